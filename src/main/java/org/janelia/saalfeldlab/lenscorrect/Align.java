@@ -7,7 +7,6 @@ import java.util.function.Supplier;
 
 import ij.ImagePlus;
 import ij.plugin.ContrastEnhancer;
-import ij.plugin.ZProjector;
 import ij.process.FloatProcessor;
 import ini.trakem2.imaging.filters.NormalizeLocalContrast;
 import mpicbg.ij.FeatureTransform;
@@ -31,16 +30,45 @@ interface Align {
 	 * @return list of extracted features
 	 */
 	public static ArrayList<Feature> extractFeatures(
-			FloatProcessor ip,
+			final FloatProcessor ip,
 			final double maxScale,
 			final double minScale,
 			final int fdSize) {
 
+		return extractFeatures(ip, maxScale, minScale, fdSize, null);
+	}
+
+	/**
+	 * Extract features from a {@link FloatProcessor} or fetch them from a
+	 * {@link FeatureCache}.
+	 *
+	 * @param ip input {@link FloatProcessor}
+	 * @param maxScale max scale factor for feature extraction
+	 * @param minScale min scale factor for feature extraction
+	 * @param fdSize feature descriptor size (4 or 8 recommended)
+	 * @param cache feature cache, null for no caching
+	 *
+	 * @return list of extracted features
+	 */
+	public static ArrayList<Feature> extractFeatures(
+			FloatProcessor ip,
+			final double maxScale,
+			final double minScale,
+			final int fdSize,
+			final FeatureCache cache) {
+
 		final FloatArray2DSIFT.Param p = new FloatArray2DSIFT.Param();
 
 		p.maxOctaveSize = (int) Math.round(Math.max(ip.getWidth(), ip.getHeight()) * maxScale);
 		p.minOctaveSize = (int) (Math.min(ip.getWidth(), ip.getHeight()) * minScale);
 
+		final String key = cache == null ? null : FeatureCache.key(ip, p);
+		if (cache != null) {
+			final ArrayList<Feature> cached = cache.get(key);
+			if (cached != null)
+				return cached;
+		}
+
 		ip = addNoise(ip);
 
 		final FloatArray2DSIFT sift = new FloatArray2DSIFT(p);
@@ -49,6 +77,9 @@ interface Align {
 		final ArrayList<Feature> fs = new ArrayList<Feature>();
 		ijSIFT.extractFeatures(ip, fs);
 
+		if (cache != null)
+			cache.put(key, fs);
+
 		return fs;
 	}
 
@@ -114,8 +145,34 @@ interface Align {
 			final int fdSize,
 			final double rod) {
 
-		final List<Feature> fs1 = extractFeatures(a, maxScale, minScale, fdSize);
-		final List<Feature> fs2 = extractFeatures(b, maxScale, minScale, fdSize);
+		return matchSIFT(a, b, maxScale, minScale, fdSize, rod, null);
+	}
+
+	/**
+	 * Match two images with SIFT features, using a {@link FeatureCache}.
+	 *
+	 * @param a input {@link FloatProcessor} for image 1
+	 * @param b input {@link FloatProcessor} for image 2
+	 * @param maxScale max scale factor for feature extraction
+	 * @param minScale min scale factor for feature extraction
+	 * @param fdSize feature descriptor size (4 or 8 recommended)
+	 * @param rod ratio of distances between best and second best match
+     *      threshold for feature matching (0.92)
+	 * @param cache feature cache, null for no caching
+	 *
+	 * @return list of candidate {@link PointMatch}es
+	 */
+	public static List<PointMatch> matchSIFT(
+			final FloatProcessor a,
+			final FloatProcessor b,
+			final double maxScale,
+			final double minScale,
+			final int fdSize,
+			final double rod,
+			final FeatureCache cache) {
+
+		final List<Feature> fs1 = extractFeatures(a, maxScale, minScale, fdSize, cache);
+		final List<Feature> fs2 = extractFeatures(b, maxScale, minScale, fdSize, cache);
 		
 		System.out.printf("%d and %d features extracted.", fs1.size(), fs2.size());
 		System.out.println();
@@ -150,7 +207,36 @@ interface Align {
 			final double rod,
 			final Function<List<PointMatch>, List<PointMatch>> filter) {
 
-		final List<PointMatch> candidates = matchSIFT(a, b, maxScale, minScale, fdSize, rod);
+		return filterMatchSIFT(a, b, maxScale, minScale, fdSize, rod, filter, null);
+	}
+
+	/**
+	 * Match and filter two images with SIFT features and a filter model,
+	 * using a {@link FeatureCache}.
+	 *
+	 * @param a input {@link FloatProcessor} for image 1
+	 * @param b input {@link FloatProcessor} for image 2
+	 * @param maxScale max scale factor for feature extraction
+	 * @param minScale min scale factor for feature extraction
+	 * @param fdSize feature descriptor size (4 or 8 recommended)
+	 * @param rod ratio of distances between best and second best match
+     *      threshold for feature matching (0.92)
+	 * @param filter function that filters candidate matches with a model
+	 * @param cache feature cache, null for no caching
+	 *
+	 * @return list of filtered {@link PointMatch}es
+	 */
+	public static List<PointMatch> filterMatchSIFT(
+			final FloatProcessor a,
+			final FloatProcessor b,
+			final double maxScale,
+			final double minScale,
+			final int fdSize,
+			final double rod,
+			final Function<List<PointMatch>, List<PointMatch>> filter,
+			final FeatureCache cache) {
+
+		final List<PointMatch> candidates = matchSIFT(a, b, maxScale, minScale, fdSize, rod, cache);
 		final int numCandidates = candidates.size(); // size of candidates is changed below
 
 		final List<PointMatch> matches = filter.apply(candidates);
@@ -187,7 +273,39 @@ interface Align {
 			final Function<List<PointMatch>, List<PointMatch>> filter,
 			final Supplier<M> modelSupplier) throws Exception {
 
-		final List<PointMatch> matches = filterMatchSIFT(a, b, maxScale, minScale, fdSize, rod, filter);
+		return alignSIFT(a, b, maxScale, minScale, fdSize, rod, filter, modelSupplier, null);
+	}
+
+	/**
+	 * Align two images with SIFT features, using a {@link FeatureCache}.
+	 * The model is the forward transformation of coordinates from image a
+	 * to b.
+	 *
+	 * @param a input {@link FloatProcessor} for image 1
+	 * @param b input {@link FloatProcessor} for image 2
+	 * @param maxScale max scale factor for feature extraction
+	 * @param minScale min scale factor for feature extraction
+	 * @param fdSize feature descriptor size (4 or 8 recommended)
+	 * @param rod ratio of distances between best and second best match
+     *      threshold for feature matching (0.92)
+	 * @param filter function that filters candidate matches with a model
+	 * @param modelSupplier supplier for the model to fit
+	 * @param cache feature cache, null for no caching
+	 *
+	 * @return fitted model
+	 */
+	static public <M extends Model<M>> M alignSIFT(
+			final FloatProcessor a,
+			final FloatProcessor b,
+			final double maxScale,
+			final double minScale,
+			final int fdSize,
+			final double rod,
+			final Function<List<PointMatch>, List<PointMatch>> filter,
+			final Supplier<M> modelSupplier,
+			final FeatureCache cache) throws Exception {
+
+		final List<PointMatch> matches = filterMatchSIFT(a, b, maxScale, minScale, fdSize, rod, filter, cache);
 		if (matches == null) {
 			throw new Exception("No matches found");
 		}
@@ -207,16 +325,9 @@ interface Align {
      */
     public static ImagePlus ZAverageProjection(final ImagePlus imp) {
 
-		final ZProjector zp = new ZProjector(imp);
-		zp.setMethod(ZProjector.AVG_METHOD);
-		if (imp.isHyperStack()) {
-			zp.setStopSlice(imp.getNSlices());
-			zp.doHyperStackProjection(false);
-		}
-		else
-			zp.doProjection();
-		
-		ImagePlus impProjection = zp.getProjection();
+		final ImagePlus impProjection = new StreamingProjector(
+				StreamingProjector.Method.MEAN,
+				Runtime.getRuntime().availableProcessors()).project(imp);
 
 		new ContrastEnhancer().stretchHistogram(impProjection, 0.35);
 		
@@ -16,6 +16,7 @@
  */
 package org.janelia.saalfeldlab.lenscorrect;
 
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
@@ -26,6 +27,10 @@ import java.util.concurrent.Callable;
 
 import org.janelia.saalfeldlab.lenscorrect.json.Calibration;
 import org.janelia.saalfeldlab.lenscorrect.json.TransformationAdapter;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneFormat;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneFormat.PixelType;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneReader;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneWriter;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -34,16 +39,24 @@ import com.google.gson.reflect.TypeToken;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.process.ImageProcessor;
 import mpicbg.trakem2.transform.CoordinateTransform;
 import mpicbg.trakem2.transform.CoordinateTransformList;
+import mpicbg.trakem2.transform.TransformMesh;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 
 /**
  * Apply wavelength-dependent lens correction to multi-channel input that is
  * either lsm or tif, several files possible. Save as single multi-channel tif.
  *
+ * Passing "-" as input or output path reads interleaved raw channel planes
+ * from stdin or writes the corrected raw planes to stdout (see
+ * {@link RawStreamOptions}).
+ *
  * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
  */
 @Command(
@@ -53,7 +66,7 @@ import picocli.CommandLine.Option;
 )
 public class ApplyChannels implements Callable<Integer> {
 
-	@Option(names = {"-i", "--inputs"}, required = true, description = "input image file paths (comma-separated)")
+	@Option(names = {"-i", "--inputs"}, required = true, description = "input image file paths or N5/Zarr datasets, e.g. /home/input.zarr/raw (comma-separated)")
 	private String[] inputPaths;
 
 	@Option(names = {"-o", "--output"}, required = true, description = "output image file path")
@@ -65,6 +78,12 @@ public class ApplyChannels implements Callable<Integer> {
 	@Option(names = {"-c", "--crop"}, defaultValue = "0", description = "crop width (default: 0)")
 	private int cropWidth;
 
+	@Mixin
+	private TiffOutputOptions tiffOutput = new TiffOutputOptions();
+
+	@Mixin
+	private RawStreamOptions rawStream = new RawStreamOptions();
+
 	private static final Gson gson = new GsonBuilder()
 			.setPrettyPrinting()
 			.disableHtmlEscaping()
@@ -74,6 +93,14 @@ public class ApplyChannels implements Callable<Integer> {
 	@Override
 	public Integer call() throws Exception {
 
+		/* raw planes to stdout, log to stderr */
+		final boolean rawOutput = RawStreamOptions.isStdio(outputPath);
+		if (rawOutput)
+			rawStream.reserveStdout();
+
+		if (rawOutput || Arrays.asList(inputPaths).contains(RawStreamOptions.STDIO))
+			return callRaw(rawOutput);
+
 		/* open input channels */
 		ImagePlus[] channels = Util.openChannels(inputPaths);
 		if (channels == null) {
@@ -94,6 +121,80 @@ public class ApplyChannels implements Callable<Integer> {
 		}
 
 		/* read the transform file into a list of CoordinateTransformList */
+		final ArrayList<CoordinateTransformList<CoordinateTransform>> transforms = readTransforms();
+		if (transforms == null)
+			return 1;
+
+		/* apply transforms, virtual input, e.g. N5, is rendered while it is saved */
+		final ImagePlus combined;
+		if (Arrays.stream(channels).anyMatch(channel -> channel.getStack().isVirtual())) {
+			combined = renderChannels(channels, transforms);
+			if (combined == null)
+				return 1;
+		} else {
+			for (int i = 0; i < channels.length; ++i) {
+				ImageStack transformedStack =
+						Util.createTransformedStack(channels[i].getStack(), transforms.get(i), cropWidth);
+				channels[i].setStack(transformedStack);
+			}
+			combined = Util.combineChannels(channels);
+		}
+		if (tiffOutput.isBigTiff())
+			tiffOutput.save(combined, outputPath);
+		else
+			IJ.saveAsTiff(combined, outputPath);
+
+		return 0;
+	}
+
+	/**
+	 * Combine the corrected channels into a {@link RenderedStack} that renders
+	 * each plane when it is saved, such that virtual input is never held in
+	 * memory as a whole.
+	 *
+	 * @return the combined channels or null if the corrected channels have
+	 *     different sizes
+	 */
+	private ImagePlus renderChannels(
+			final ImagePlus[] channels,
+			final ArrayList<CoordinateTransformList<CoordinateTransform>> transforms) {
+
+		final int nChannels = channels.length;
+		final ArrayList<TransformMeshMappingWithMasks<TransformMesh>> mappings = new ArrayList<>();
+		final ArrayList<Rectangle> bounds = new ArrayList<>();
+		for (int c = 0; c < nChannels; ++c) {
+			final TransformMesh mesh = new TransformMesh(transforms.get(c), 128, channels[c].getWidth(), channels[c].getHeight());
+			mappings.add(new TransformMeshMappingWithMasks<>(mesh));
+			bounds.add(mesh.getBoundingBox());
+			if (bounds.get(c).width != bounds.get(0).width || bounds.get(c).height != bounds.get(0).height) {
+				System.err.println("Corrected channels have different sizes and cannot be combined");
+				return null;
+			}
+		}
+		final int nSlices = channels[0].getNSlices();
+		final RenderedStack renderedStack = new RenderedStack(
+				bounds.get(0).width - 2 * cropWidth,
+				bounds.get(0).height - 2 * cropWidth,
+				channels[0].getBitDepth(),
+				i -> channels[i % nChannels].getStack().getProcessor(i / nChannels + 1),
+				nSlices * nChannels,
+				1,
+				(ip, n) -> Util.transformPlane(mappings.get(n % nChannels), bounds.get(n % nChannels), ip, cropWidth));
+		final ImagePlus combined = new ImagePlus(
+				channels[0].getTitle().replaceAll("\\.[^.]*$", "-1-" + nChannels),
+				renderedStack);
+		combined.setCalibration(channels[0].getCalibration());
+		combined.setDimensions(nChannels, nSlices, 1);
+		return combined;
+	}
+
+	/**
+	 * Read the transform file into a list of {@link CoordinateTransformList}s.
+	 *
+	 * @return the transforms or null if they could not be read
+	 */
+	private ArrayList<CoordinateTransformList<CoordinateTransform>> readTransforms() {
+
 		final List<Calibration> calibrations;
 		final ArrayList<CoordinateTransformList<CoordinateTransform>> transforms;
 		try (FileReader reader = new FileReader(transformsPath)) {
@@ -108,21 +209,134 @@ public class ApplyChannels implements Callable<Integer> {
             System.out.println(gson.toJson(transforms));
 			if (transforms.isEmpty()) {
 				System.err.println("No transforms found in: " + transformsPath);
-				return 1;
+				return null;
 			}
 		} catch (final IOException e) {
 			System.err.println("Error reading transform file: " + e.getMessage());
+			return null;
+		}
+		return transforms;
+	}
+
+	/**
+	 * Plane by plane correction for raw input from stdin and/or raw output to
+	 * stdout.  Raw input planes are interleaved channels, channel c is
+	 * corrected with transform c.
+	 */
+	private Integer callRaw(final boolean rawOutput) throws Exception {
+
+		final ArrayList<CoordinateTransformList<CoordinateTransform>> transforms = readTransforms();
+		if (transforms == null)
+			return 1;
+
+		/* open raw input stream or input channels */
+		RawPlaneReader rawInput = null;
+		ImagePlus[] channels = null;
+		final int width;
+		final int height;
+		final int nChannels;
+		final PixelType pixelType;
+		if (Arrays.asList(inputPaths).contains(RawStreamOptions.STDIO)) {
+			if (inputPaths.length != 1) {
+				System.err.println("Raw input from stdin cannot be combined with other inputs, use --raw-channels for interleaved channels");
+				return 1;
+			}
+			try {
+				rawInput = rawStream.openInput();
+			} catch (final IOException e) {
+				System.err.println("Could not open raw input stream: " + e.getMessage());
+				return 1;
+			}
+			final RawPlaneFormat format = rawInput.getFormat();
+			width = format.getWidth();
+			height = format.getHeight();
+			nChannels = format.getNumChannels();
+			pixelType = format.getType();
+		} else {
+			channels = Util.openChannels(inputPaths);
+			if (channels.length == 0) {
+				System.err.println("Could not open input images: " + Arrays.toString(inputPaths));
+				return 1;
+			}
+			width = channels[0].getWidth();
+			height = channels[0].getHeight();
+			nChannels = channels.length;
+			try {
+				pixelType = PixelType.fromBitDepth(channels[0].getBitDepth());
+			} catch (final IllegalArgumentException e) {
+				System.err.println("Cannot write " + inputPaths[0] + " as raw planes: " + e.getMessage());
+				return 1;
+			}
+		}
+		if (transforms.size() < nChannels) {
+			System.err.println("Found " + transforms.size() + " transforms for " + nChannels + " channels in: " + transformsPath);
 			return 1;
 		}
 
-		/* apply transforms */
-		for (int i = 0; i < channels.length; ++i) {
-			ImageStack transformedStack =
-					Util.createTransformedStack(channels[i].getStack(), transforms.get(i), cropWidth);
-			channels[i].setStack(transformedStack);
+		/* per channel mappings, all channels must have the same output size */
+		final ArrayList<TransformMeshMappingWithMasks<TransformMesh>> mappings = new ArrayList<>();
+		final ArrayList<Rectangle> bounds = new ArrayList<>();
+		for (int c = 0; c < nChannels; ++c) {
+			final TransformMesh mesh = new TransformMesh(transforms.get(c), 128, width, height);
+			mappings.add(new TransformMeshMappingWithMasks<>(mesh));
+			bounds.add(mesh.getBoundingBox());
+			if (bounds.get(c).width != bounds.get(0).width || bounds.get(c).height != bounds.get(0).height) {
+				System.err.println("Corrected channels have different sizes and cannot be streamed as one image");
+				return 1;
+			}
 		}
+		final int w = bounds.get(0).width - 2 * cropWidth;
+		final int h = bounds.get(0).height - 2 * cropWidth;
+		final int nSlices = channels == null ? 0 : channels[0].getNSlices();
 
-		IJ.saveAsTiff(Util.combineChannels(channels), outputPath);
+		/* correct plane by plane */
+		final ImageStack targetStack = new ImageStack(w, h);
+		try (
+				final RawPlaneReader reader = rawInput;
+				final RawPlaneWriter writer = rawOutput ?
+						rawStream.openOutput(new RawPlaneFormat(
+								w,
+								h,
+								pixelType,
+								nChannels,
+								reader == null ? (long)nSlices * nChannels : reader.getFormat().getNumPlanes())) :
+						null) {
+			for (int i = 0;; ++i) {
+				final int c = i % nChannels;
+				final ImageProcessor ip;
+				if (reader != null)
+					ip = reader.read();
+				else
+					ip = i / nChannels < nSlices ? channels[c].getStack().getProcessor(i / nChannels + 1) : null;
+				if (ip == null)
+					break;
+				final ImageProcessor dst = Util.transformPlane(mappings.get(c), bounds.get(c), ip, cropWidth);
+				if (writer != null)
+					writer.write(dst);
+				else
+					targetStack.addSlice(dst);
+			}
+		}
+		if (rawOutput)
+			return 0;
+
+		/* raw input to file */
+		if (targetStack.getSize() % nChannels != 0) {
+			System.err.println("Number of raw planes is not a multiple of the number of channels " + nChannels);
+			return 1;
+		}
+		final File parent = new File(outputPath).getAbsoluteFile().getParentFile();
+		if (!(parent.mkdirs() || parent.exists())) {
+			System.err.println("Could not create output directory");
+			return 1;
+		}
+		final ImagePlus combined = new ImagePlus("stdin", targetStack);
+		combined.setDimensions(nChannels, targetStack.getSize() / nChannels, 1);
+		combined.setOpenAsHyperStack(true);
+		if (tiffOutput.isBigTiff())
+			tiffOutput.save(combined, outputPath);
+		else
+			IJ.saveAsTiff(combined, outputPath);
 
 		return 0;
 	}
@@ -25,6 +25,10 @@ import java.util.concurrent.Callable;
 
 import org.janelia.saalfeldlab.lenscorrect.json.Calibration;
 import org.janelia.saalfeldlab.lenscorrect.json.TransformationAdapter;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneFormat;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneFormat.PixelType;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneReader;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneWriter;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -45,6 +49,7 @@ import mpicbg.trakem2.transform.TransformMeshMappingWithMasks;
 import mpicbg.trakem2.transform.TranslationModel2D;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 
 /**
@@ -58,6 +63,10 @@ import picocli.CommandLine.Option;
  * channels.  It will be composite image including all channels that is saved as
  * a multi-channel tif.
  *
+ * Passing "-" as input or output path reads raw planes from stdin or writes
+ * the corrected raw planes to stdout (see {@link RawStreamOptions}) such that
+ * the correction can run inside a pipe without intermediate files.
+ *
  * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
  */
 @Command(
@@ -67,7 +76,7 @@ import picocli.CommandLine.Option;
 )
 public class ApplySplit implements Callable<Integer> {
 
-	@Option(names = {"-i", "--input" }, required = true, description = "input path, e.g. /home/input.tif")
+	@Option(names = {"-i", "--input" }, required = true, description = "input path, e.g. /home/input.tif or an N5/Zarr dataset /home/input.n5/raw")
 	private String inputPath = null;
 
 	@Option(names = {"-o", "--output" }, required = true, description = "output path, e.g. /nrs/flyem/data/tmp/aligned.tif")
@@ -82,6 +91,15 @@ public class ApplySplit implements Callable<Integer> {
 	@Option(names = {"-a", "--align" }, required = false, description = "attempt an affine alignment of the split image channels to the first channel")
 	private boolean align = false;
 
+	@Option(names = {"--feature-cache" }, required = false, description = "directory for caching SIFT features of the alignment between runs")
+	private String featureCacheDir = null;
+
+	@Mixin
+	private TiffOutputOptions tiffOutput = new TiffOutputOptions();
+
+	@Mixin
+	private RawStreamOptions rawStream = new RawStreamOptions();
+
 
 	private static final Gson gson = new GsonBuilder()
 			.setPrettyPrinting()
@@ -93,6 +111,11 @@ public class ApplySplit implements Callable<Integer> {
 	@Override
 	public Integer call() throws Exception {
 
+		/* raw planes to stdout, log to stderr */
+		final boolean rawOutput = RawStreamOptions.isStdio(outputPath);
+		if (rawOutput)
+			rawStream.reserveStdout();
+
 		/* Read the transform file into a list of CoordinateTransformList */
 		final List<Calibration> calibrations;
 		final ArrayList<CoordinateTransformList<CoordinateTransform>> transforms;
@@ -115,20 +138,47 @@ public class ApplySplit implements Callable<Integer> {
 			return 1;
 		}
 
-		/* Open the source image stack */
-		final ImagePlus imp = Util.openImagePlus(inputPath);
-		if (imp == null) {
-			System.err.println("Could not open image: " + inputPath);
-			return 1;
+		/* Open the source image stack or raw plane stream */
+		ImagePlus imp = null;
+		RawPlaneReader rawInput = null;
+		final int width;
+		final int height;
+		final int nChannels;
+		final PixelType pixelType;
+		if (RawStreamOptions.isStdio(inputPath)) {
+			if (align) {
+				System.err.println("--align requires the whole stack and cannot be used with raw input from stdin");
+				return 1;
+			}
+			try {
+				rawInput = rawStream.openInput();
+			} catch (final IOException e) {
+				System.err.println("Could not open raw input stream: " + e.getMessage());
+				return 1;
+			}
+			final RawPlaneFormat format = rawInput.getFormat();
+			width = format.getWidth();
+			height = format.getHeight();
+			nChannels = format.getNumChannels();
+			pixelType = format.getType();
+		} else {
+			imp = Util.openImagePlus(inputPath);
+			if (imp == null) {
+				System.err.println("Could not open image: " + inputPath);
+				return 1;
+			}
+			width = imp.getWidth();
+			height = imp.getHeight();
+			nChannels = imp.getNChannels();
+			try {
+				pixelType = rawOutput ? PixelType.fromBitDepth(imp.getBitDepth()) : null;
+			} catch (final IllegalArgumentException e) {
+				System.err.println("Cannot write " + inputPath + " as raw planes: " + e.getMessage());
+				return 1;
+			}
 		}
 
 		/* calculate the intersection of the bounding boxes of all transformations */
-		final int width = imp.getWidth();
-		final int height = imp.getHeight();
-		final int nChannels = imp.getNChannels();
-		final int nSlices = imp.getNSlices();
-		final int nFrames = imp.getNFrames();
-		final int stackSize = imp.getStackSize();
 		Rectangle bounds = null;
 		for (final CoordinateTransform t : transforms) {
 			final TransformMesh mesh = new TransformMesh(t, meshResolution, width, height);
@@ -153,7 +203,7 @@ public class ApplySplit implements Callable<Integer> {
 		final ArrayList<TransformMeshMappingWithMasks<CoordinateTransformMesh>> mappings = new ArrayList<>();
 		for (final CoordinateTransformList<CoordinateTransform> t : transforms) {
 			t.add(offset);
-			mappings.add(new TransformMeshMappingWithMasks<>(new CoordinateTransformMesh(t, meshResolution, imp.getWidth(), imp.getHeight())));
+			mappings.add(new TransformMeshMappingWithMasks<>(new CoordinateTransformMesh(t, meshResolution, width, height)));
 		}
 
 		/* render and align average projection */
@@ -169,6 +219,7 @@ public class ApplySplit implements Callable<Integer> {
 			}
 			ArrayList<CoordinateTransform> alignments = new ArrayList<>();
 			alignments.add(new TranslationModel2D());
+			final FeatureCache featureCache = new FeatureCache(featureCacheDir);
 			FloatProcessor reference = alignStack.getProcessor(1).convertToFloatProcessor();
 			for (int i = 2; i <= alignStack.getSize(); ++i) {
 				FloatProcessor target = alignStack.getProcessor(i).convertToFloatProcessor();
@@ -190,7 +241,8 @@ public class ApplySplit implements Callable<Integer> {
 							}
 							return inliers;
 						},
-						TranslationModel2D::new);
+						TranslationModel2D::new,
+						featureCache);
 				alignments.add(model);
 				System.out.println("Found alignment: " + model);
 			}
@@ -198,27 +250,101 @@ public class ApplySplit implements Callable<Integer> {
 			for (int i = 0; i < transforms.size(); ++i) {
 				final CoordinateTransformList<CoordinateTransform> t = transforms.get(i);
 				t.add(alignments.get(i));
-				mappings.set(i, new TransformMeshMappingWithMasks<>(new CoordinateTransformMesh(t, meshResolution, imp.getWidth(), imp.getHeight())));
+				mappings.set(i, new TransformMeshMappingWithMasks<>(new CoordinateTransformMesh(t, meshResolution, width, height)));
 			}
 		}
 
-		/* Render and save the transformed slices */
-		ImageStack targetStack = new ImageStack(w, h);
-		for (int i = 1; i <= stackSize; ++i) {
-			final ImageProcessor ip = imp.getStack().getProcessor(i);
-			ip.setInterpolationMethod(ImageProcessor.BILINEAR);
-			//ip.setInterpolationMethod(ImageProcessor.NEAREST_NEIGHBOR);
-			//ip.setInterpolationMethod(ImageProcessor.BICUBIC);
-			for (TransformMeshMappingWithMasks<CoordinateTransformMesh> m : mappings) {
-				final ImageProcessor dst = ip.createProcessor(w, h);
-				m.mapInterpolated(ip, dst);
-				targetStack.addSlice(dst);
+		/* Virtual input, e.g. N5: render each transformed slice while it is saved */
+		if (imp != null && !rawOutput && imp.getStack().isVirtual()) {
+			final ImageStack source = imp.getStack();
+			final int numMappings = mappings.size();
+			final RenderedStack renderedStack = new RenderedStack(
+					w,
+					h,
+					imp.getBitDepth(),
+					i -> source.getProcessor(i + 1),
+					source.getSize(),
+					numMappings,
+					(ip, n) -> {
+						ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+						final ImageProcessor dst = ip.createProcessor(w, h);
+						mappings.get(n % numMappings).mapInterpolated(ip, dst);
+						return dst;
+					});
+			return save(imp, renderedStack, nChannels * numMappings, imp.getNSlices(), imp.getNFrames());
+		}
+
+		/* Render and save the transformed slices, or stream them to stdout */
+		final int stackSize = imp == null ? 0 : imp.getStackSize();
+		final ImageStack targetStack = new ImageStack(w, h);
+		try (
+				final RawPlaneReader reader = rawInput;
+				final RawPlaneWriter writer = rawOutput ?
+						rawStream.openOutput(new RawPlaneFormat(
+								w,
+								h,
+								pixelType,
+								nChannels * transforms.size(),
+								(rawInput == null ? stackSize : rawInput.getFormat().getNumPlanes()) * transforms.size())) :
+						null) {
+			for (int i = 1;; ++i) {
+				final ImageProcessor ip;
+				if (reader != null)
+					ip = reader.read();
+				else
+					ip = i <= stackSize ? imp.getStack().getProcessor(i) : null;
+				if (ip == null)
+					break;
+				ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+				//ip.setInterpolationMethod(ImageProcessor.NEAREST_NEIGHBOR);
+				//ip.setInterpolationMethod(ImageProcessor.BICUBIC);
+				for (TransformMeshMappingWithMasks<CoordinateTransformMesh> m : mappings) {
+					final ImageProcessor dst = ip.createProcessor(w, h);
+					m.mapInterpolated(ip, dst);
+					if (writer != null)
+						writer.write(dst);
+					else
+						targetStack.addSlice(dst);
+				}
 			}
 		}
-		imp.setStack(targetStack);
-		imp.setDimensions(nChannels * transforms.size(), nSlices, nFrames);
+		if (rawOutput)
+			return 0;
+
+		final int nSlices;
+		final int nFrames;
+		if (imp == null) {
+			if (targetStack.getSize() % (nChannels * transforms.size()) != 0) {
+				System.err.println("Number of raw planes is not a multiple of the number of channels " + nChannels);
+				return 1;
+			}
+			imp = new ImagePlus("stdin", targetStack);
+			nSlices = targetStack.getSize() / (nChannels * transforms.size());
+			nFrames = 1;
+		} else {
+			nSlices = imp.getNSlices();
+			nFrames = imp.getNFrames();
+		}
+		return save(imp, targetStack, nChannels * transforms.size(), nSlices, nFrames);
+	}
+
+	/**
+	 * Save the transformed stack with the dimensions of the output.
+	 */
+	private int save(
+			final ImagePlus imp,
+			final ImageStack stack,
+			final int nChannels,
+			final int nSlices,
+			final int nFrames) throws IOException {
+
+		imp.setStack(stack);
+		imp.setDimensions(nChannels, nSlices, nFrames);
 		imp.setDisplayMode(IJ.GRAYSCALE);
-		IJ.save(imp, outputPath);
+		if (tiffOutput.isBigTiff())
+			tiffOutput.save(imp, outputPath);
+		else
+			IJ.save(imp, outputPath);
 
 		return 0;
 	}
@@ -0,0 +1,239 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.File;
+import java.io.FileReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.janelia.saalfeldlab.lenscorrect.json.BatchParams;
+import org.janelia.saalfeldlab.lenscorrect.solve.PolynomialDistortion;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * Calibrate several scopes in one JVM.
+ *
+ * Every scope of the batch file is calibrated by calibrate-split or
+ * calibrate-channels with its own input, output, and parameters, as if the
+ * command had been started for it.  TrakEM2 and Bio-Formats are loaded
+ * once, and the scopes share one thread and memory budget: several scopes
+ * run concurrently, limited by --scope-threads and by the number of
+ * --scope-memory sized scopes that fit into the maximum heap, and divide
+ * --threads among them.  TrakEM2 keeps global state and is not known to be
+ * safe for concurrent projects, so scopes that run the TrakEM2 engine are
+ * calibrated one at a time, concurrently only with scopes that run
+ * --engine NATIVE or --resolve-only.  The exit code and run time of each scope are
+ * written as <code>&lt;name&gt;_batch.tsv</code> and the comparison of the
+ * lens models of all pairs of calibrated scopes as
+ * <code>&lt;name&gt;_lenses.tsv</code>.
+ */
+@Command(
+    name = "calibrate-batch",
+    mixinStandardHelpOptions = true,
+    description = "Calibrate lens distortion of several scopes in one JVM and compare their lens models"
+)
+public class CalibrateBatch implements Callable<Integer> {
+
+	@Option(names = {"-b", "--batch"}, required = true, description = "path to a JSON file with the command, name, input, output, and parameters of each scope")
+	private String batchPath;
+
+	@Option(names = {"-o", "--output"}, required = true, description = "output directory for the batch summary and lens comparison")
+	private String outputDir;
+
+	@Option(names = {"-n", "--name"}, required = true, description = "batch name for output files")
+	private String batchName;
+
+	@Option(names = {"--scope-threads"}, description = "number of scopes calibrated concurrently, at most one of them with the TrakEM2 engine (default: ${DEFAULT-VALUE})")
+	private int numScopeThreads = 1;
+
+	@Option(names = {"--threads"}, description = "total number of threads shared by the concurrent scopes (default: all available cores)")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Option(names = {"--scope-memory"}, description = "expected heap per scope in GB, limits the number of concurrent scopes to those that fit into the maximum heap (default: ${DEFAULT-VALUE}, no limit)")
+	private double scopeMemory = 0;
+
+	private static final Gson gson = new Gson();
+
+	private static class Result {
+
+		final BatchParams.Scope scope;
+		final int exitCode;
+		final double seconds;
+
+		Result(final BatchParams.Scope scope, final int exitCode, final double seconds) {
+
+			this.scope = scope;
+			this.exitCode = exitCode;
+			this.seconds = seconds;
+		}
+
+		String calibrationPath() {
+
+			return scope.getOutput() + File.separator + scope.getName() + ".json";
+		}
+	}
+
+	private static Callable<Integer> createCommand(final String command) {
+
+		return "calibrate-split".equals(command) ? new CalibrateSplit() : new CalibrateChannels();
+	}
+
+	private static List<HashMap<String, Object>> readExports(final String path) throws Exception {
+
+		try (FileReader reader = new FileReader(path)) {
+			return gson.fromJson(reader, new TypeToken<List<HashMap<String, Object>>>(){});
+		}
+	}
+
+	/**
+	 * Compare the lens models of all pairs of calibrated scopes by the
+	 * comparison of a warm start, every scope is compared to all scopes
+	 * before it.
+	 */
+	@SuppressWarnings("unchecked")
+	private static String compareLenses(final List<Result> calibrated) throws Exception {
+
+		final StringBuilder table = new StringBuilder();
+		for (int b = 1; b < calibrated.size(); ++b) {
+			final Result result = calibrated.get(b);
+			final List<HashMap<String, Object>> exports = readExports(result.calibrationPath());
+			final ArrayList<String> labels = new ArrayList<>();
+			for (final HashMap<String, Object> export : exports) {
+				final String name = (String)export.get("name");
+				final String prefix = result.scope.getName() + ", ";
+				labels.add(name.startsWith(prefix) ? name.substring(prefix.length()) : name);
+			}
+			final List<Map<String, String>> maplist = (List<Map<String, String>>)exports.get(0).get("transform");
+			final PolynomialDistortion lens = PolynomialDistortion.fromDataString(maplist.get(0).get("dataString"));
+
+			for (int a = 0; a < b; ++a) {
+				final String comparison = new WarmStart(calibrated.get(a).calibrationPath())
+						.compare(exports, labels, lens.getWidth(), lens.getHeight());
+				final String[] rows = comparison.split("\n");
+				if (table.length() == 0)
+					table.append("scope\tother\t").append(rows[0]).append('\n');
+				for (int r = 1; r < rows.length; ++r)
+					table.append(result.scope.getName()).append('\t').append(calibrated.get(a).scope.getName()).append('\t').append(rows[r]).append('\n');
+			}
+		}
+		return table.toString();
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		final String outdir = outputDir.endsWith(File.separator)
+			? outputDir.substring(0, outputDir.length() - 1)
+			: outputDir;
+
+		try {
+			final List<BatchParams.Scope> scopes = BatchParams.load(batchPath).getScopes();
+			if (scopes.isEmpty())
+				throw new IllegalArgumentException("no scopes in " + batchPath);
+
+			/* validate all scopes before the expensive part */
+			final ArrayList<List<String>> scopeArgs = new ArrayList<>();
+			for (final BatchParams.Scope scope : scopes)
+				scopeArgs.add(scope.toArgs());
+
+			/* TrakEM2 scopes run one at a time */
+			int numTrakEM2 = 0;
+			for (final BatchParams.Scope scope : scopes)
+				if (scope.usesTrakEM2())
+					++numTrakEM2;
+			final int numNative = scopes.size() - numTrakEM2;
+			int numConcurrent = Math.max(1, Math.min(numScopeThreads, numNative + Math.min(1, numTrakEM2)));
+			final double maxMemory = Runtime.getRuntime().maxMemory() / 1024.0 / 1024.0 / 1024.0;
+			if (scopeMemory > 0)
+				numConcurrent = Math.max(1, Math.min(numConcurrent, (int)(maxMemory / scopeMemory)));
+			final int numThreadsPerScope = Math.max(1, numThreads / numConcurrent);
+			System.out.printf("%d scopes, %d concurrently with %d threads each, %.1f GB heap%n", scopes.size(), numConcurrent, numThreadsPerScope, maxMemory);
+			if (numTrakEM2 > 1 && numConcurrent > 1)
+				System.out.println(numTrakEM2 + " scopes with the TrakEM2 engine run one at a time");
+
+			FileUtils.forceMkdir(new File(outdir));
+
+			/* one lane for TrakEM2 scopes, the others for native scopes */
+			final ExecutorService trakem2Exec = Executors.newSingleThreadExecutor();
+			final int numNativeLanes = numTrakEM2 > 0 ? numConcurrent - 1 : numConcurrent;
+			final ExecutorService nativeExec = numNativeLanes > 0 ? Executors.newFixedThreadPool(numNativeLanes) : trakem2Exec;
+			final ArrayList<Future<Result>> futures = new ArrayList<>();
+			for (int s = 0; s < scopes.size(); ++s) {
+				final BatchParams.Scope scope = scopes.get(s);
+				final ArrayList<String> args = new ArrayList<>(scopeArgs.get(s));
+				if (!scope.hasArg("--threads")) {
+					args.add("--threads");
+					args.add(Integer.toString(numThreadsPerScope));
+				}
+				final ExecutorService exec = scope.usesTrakEM2() ? trakem2Exec : nativeExec;
+				futures.add(exec.submit(() -> {
+					System.out.println("calibrating " + scope.getName() + ": " + scope.getCommand() + " " + String.join(" ", args));
+					final long t0 = System.nanoTime();
+					final int exitCode = new CommandLine(createCommand(scope.getCommand())).execute(args.toArray(new String[0]));
+					final Result result = new Result(scope, exitCode, (System.nanoTime() - t0) * 1e-9);
+					System.out.printf("scope %s exited with %d after %.1f s%n", scope.getName(), exitCode, result.seconds);
+					return result;
+				}));
+			}
+			final ArrayList<Result> results = new ArrayList<>();
+			try {
+				for (final Future<Result> future : futures)
+					results.add(future.get());
+			} finally {
+				trakem2Exec.shutdownNow();
+				nativeExec.shutdownNow();
+			}
+
+			final StringBuilder table = new StringBuilder("scope\tcommand\texit_code\tseconds\tcalibration\n");
+			final ArrayList<Result> calibrated = new ArrayList<>();
+			for (final Result result : results) {
+				final boolean exists = result.exitCode == 0 && new File(result.calibrationPath()).exists();
+				if (exists)
+					calibrated.add(result);
+				table.append(String.format(
+						"%s\t%s\t%d\t%.1f\t%s%n",
+						result.scope.getName(),
+						result.scope.getCommand(),
+						result.exitCode,
+						result.seconds,
+						exists ? result.calibrationPath() : ""));
+			}
+			final String tablePath = outdir + File.separator + batchName + "_batch.tsv";
+			Files.write(Paths.get(tablePath), table.toString().getBytes());
+			System.out.print(table);
+
+			if (calibrated.size() > 1) {
+				final String lenses = compareLenses(calibrated);
+				final String lensesPath = outdir + File.separator + batchName + "_lenses.tsv";
+				Files.write(Paths.get(lensesPath), lenses.getBytes());
+				System.out.print(lenses);
+			}
+
+			System.out.println("Done");
+			return calibrated.size() == results.size() ? 0 : 1;
+
+		} catch (final Exception e) {
+			e.printStackTrace();
+			return 1;
+		}
+	}
+
+	public static void main(final String[] args) {
+		final Integer exitCode = new CommandLine(new CalibrateBatch()).execute(args);
+		System.exit(exitCode);
+	}
+}
@@ -2,6 +2,7 @@ package org.janelia.saalfeldlab.lenscorrect;
 
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.GraphicsEnvironment;
 import java.awt.Rectangle;
 import java.awt.image.IndexColorModel;
 import java.io.File;
@@ -11,20 +12,19 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.commons.io.FileUtils;
+import org.janelia.saalfeldlab.lenscorrect.Checkpoints.Stage;
 import org.janelia.saalfeldlab.lenscorrect.json.CalibrationParams;
 import org.janelia.saalfeldlab.lenscorrect.json.InputParamsSplit;
+import org.janelia.saalfeldlab.lenscorrect.solve.MatchSet;
+import org.janelia.saalfeldlab.lenscorrect.solve.PolynomialDistortion;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -33,8 +33,6 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.io.FileSaver;
-import ij.plugin.HyperStackConverter;
-import ij.plugin.ZProjector;
 import ij.process.Blitter;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
@@ -45,14 +43,9 @@ import ij.process.LUT;
 import ini.trakem2.ControlWindow;
 import ini.trakem2.Project;
 import ini.trakem2.display.Display;
-import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
-import lenscorrection.DistortionCorrectionTask;
-import lenscorrection.DistortionCorrectionTask.CorrectDistortionFromSelectionParam;
-import loci.plugins.BF;
-import mpicbg.ij.plugin.NormalizeLocalContrast;
 import mpicbg.models.AffineModel2D;
 import mpicbg.models.CoordinateTransformList;
 import mpicbg.models.IdentityModel;
@@ -61,12 +54,11 @@ import mpicbg.models.Model;
 import mpicbg.models.NotEnoughDataPointsException;
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
-import mpicbg.trakem2.align.Align;
-import mpicbg.trakem2.align.AlignTask;
 import mpicbg.trakem2.align.RegularizedAffineLayerAlignment;
 import mpicbg.trakem2.transform.CoordinateTransform;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 
 @Command(
@@ -91,6 +83,69 @@ public class CalibrateSplit implements java.util.concurrent.Callable<Integer> {
 	@Option(names = {"-n", "--name"}, required = true, description = "project name for output files and transformation labels")
 	private String projectName;
 
+	@Option(names = {"--threads"}, description = "total number of threads of the MIP generation, montage, alignment, and distortion correction (default: all available cores)")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Option(names = {"--mip-threads"}, description = "number of input stacks opened and projected concurrently (default: ${DEFAULT-VALUE})")
+	private int numMipThreads = 4;
+
+	@Option(names = {"--mip-cache"}, description = "directory for caching contrast normalized MIPs between runs")
+	private String mipCacheDir;
+
+	@Option(names = {"--in-memory-patches"}, description = "create TrakEM2 patches from memory and write the MIP slices in the background")
+	private boolean inMemoryPatches = false;
+
+	@Option(names = {"--export-matches"}, description = "write the inlier point matches of all layers to this file for later --resolve-only runs")
+	private String exportMatchesPath;
+
+	@Option(names = {"--resolve-only"}, description = "fit the lens distortion from a point match file written with --export-matches, skips feature matching and TrakEM2")
+	private String resolveOnlyPath;
+
+	@Option(names = {"--previous-matches"}, description = "point match file written with --export-matches by a previous run on a subset of the tiles, reuses the matches between previous tiles and matches only the new tiles with their neighbours")
+	private String previousMatchesPath;
+
+	@Option(names = {"--feature-cache"}, description = "directory for caching the features of the native engine, the TrakEM2 montage and distortion correction, and --export-matches between runs")
+	private String featureCacheDir;
+
+	@Option(names = {"--resume"}, description = "continue after the stages that previous runs into the same output directory completed in order, stages left out by --stages run again")
+	private boolean resume = false;
+
+	@Option(names = {"--stages"}, split = ",", description = "run only these stages, comma separated, in order: ${COMPLETION-CANDIDATES} (default: all)")
+	private List<Stage> stages;
+
+	@Option(names = {"--coarse-downsampling"}, description = "downsampling factor for the SIFT features of the first montage and layer alignment, e.g. 2 or 4 (default: ${DEFAULT-VALUE}, full resolution)")
+	private int coarseDownsampling = 1;
+
+	@Option(names = {"--warm-start"}, description = "previous calibration of the same scope (e.g. scripts/scope1.json) whose lens transforms are applied to the patches before the first montage; the TrakEM2 distortion correction clears them (clearTransform) and always starts from identity, the native engine starts from the previous lens")
+	private String warmStartPath;
+
+	@Option(names = {"--warm-start-epsilon-scale"}, description = "factor for the maxEpsilon of the montage and layer alignment stages of a warm start (default: ${DEFAULT-VALUE})")
+	private double warmStartEpsilonScale = 0.25;
+
+	@Option(names = {"--warm-start-iteration-scale"}, description = "factor for the maximum iterations of the montage and layer alignment stages of a warm start (default: ${DEFAULT-VALUE})")
+	private double warmStartIterationScale = 0.5;
+
+	@Option(names = {"--stage-positions"}, description = "'metadata' or the path of a TileConfiguration file, places the tiles at their stage positions in pixels so that only overlapping tiles are matched (default: all pairs)")
+	private String stagePositionsSource;
+
+	@Option(names = {"--min-coverage"}, description = "after the first montage, keep only the tiles needed to cover every position of the field of view this many times by overlapping tiles (default: ${DEFAULT-VALUE}, keep all tiles)")
+	private int minCoverage = 0;
+
+	@Option(names = {"--convergence-tolerance"}, description = "RMS change in pixels below which a stage counts as converged: skips the second montage and final alignment after converged stages and repeats the final alignment until it converges (default: ${DEFAULT-VALUE}, fixed stages)")
+	private double convergenceTolerance = 0;
+
+	@Option(names = {"--max-align-repeats"}, description = "maximum number of repetitions of the final alignment with --convergence-tolerance (default: ${DEFAULT-VALUE})")
+	private int maxAlignRepeats = 2;
+
+	@Option(names = {"--engine"}, description = "calibration engine: ${COMPLETION-CANDIDATES}, NATIVE fits the lens distortion from the in-memory MIPs without TrakEM2, BOTH also runs TrakEM2 and compares the results (default: ${DEFAULT-VALUE})")
+	private CalibrationMatches.Engine engine = CalibrationMatches.Engine.TRAKEM2;
+
+	@Mixin
+	private CorrespondenceOptions correspondence = new CorrespondenceOptions();
+
+	@Mixin
+	private DistributedOptions distributed = new DistributedOptions();
+
 	private static Class<?> invarianceModelClass = IdentityModel.class;
 
 	private static final Gson gson = new GsonBuilder()
@@ -396,6 +451,47 @@ public class CalibrateSplit implements java.util.concurrent.Callable<Integer> {
 		return map;
 	}
 
+	/**
+	 * Bounding box of the non-zero pixels of a mask.
+	 *
+	 * @param mask
+	 * @return the bounding box, empty if the mask is empty
+	 */
+	public static Rectangle maskBounds(final ByteProcessor mask) {
+
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+		for (int y = 0; y < mask.getHeight(); ++y) {
+			for (int x = 0; x < mask.getWidth(); ++x) {
+				if (mask.get(x, y) != 0) {
+					if (x < minX) minX = x;
+					if (x > maxX) maxX = x;
+					if (y < minY) minY = y;
+					if (y > maxY) maxY = y;
+				}
+			}
+		}
+		if (maxX < 0)
+			return new Rectangle();
+		return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+	}
+
+	/**
+	 * Data string of the lens model of a patch that is cropped to the
+	 * bounding box of its mask, for locations in the full frame.
+	 *
+	 * @param ct lens model in patch coordinates
+	 * @param bounds the crop
+	 * @param width frame width
+	 * @param height frame height
+	 * @return the data string
+	 */
+	public static String frameDataString(final CoordinateTransform ct, final Rectangle bounds, final int width, final int height) {
+
+		if (bounds.x == 0 && bounds.y == 0 && bounds.width == width && bounds.height == height)
+			return ct.toDataString();
+		return PolynomialDistortion.fromDataString(ct.toDataString()).withOffset(bounds.x, bounds.y, width, height).toDataString();
+	}
+
 	public static ArrayList<PointMatch> samplePoints(final Patch patch) {
 		final CoordinateTransform ct = patch.getFullCoordinateTransform();
 		final ArrayList<PointMatch> matches = new ArrayList<PointMatch>();
@@ -428,17 +524,8 @@ public class CalibrateSplit implements java.util.concurrent.Callable<Integer> {
 		return result;
 	}
 
-	public static ImagePlus ZMaxProjection(final ImagePlus imp) {
-		final ZProjector zp = new ZProjector(imp);
-		zp.setMethod(ZProjector.MAX_METHOD);
-		if (imp.isHyperStack())
-		{
-			zp.setStopSlice(imp.getNSlices());
-			zp.doHyperStackProjection(false);
-		}
-		else
-			zp.doProjection();
-		return zp.getProjection();
+	public static ImagePlus ZMaxProjection(final ImagePlus imp, final int numThreads) {
+		return new StreamingProjector(StreamingProjector.Method.MAX, numThreads).project(imp);
 	}
 
 	/**
@@ -557,6 +644,10 @@ public class CalibrateSplit implements java.util.concurrent.Callable<Integer> {
         System.out.println("project name: " + projectName);
 
 		try {
+			//workers on other nodes may have claimed the shard of this worker
+			if (!distributed.claim())
+				return 0;
+
 			// Load calibration parameters from JSON file or use default resource
 			final CalibrationParams calibParams;
 			if (calibrationParamsPath != null) {
@@ -571,253 +662,318 @@ public class CalibrateSplit implements java.util.concurrent.Callable<Integer> {
 				InputParamsSplit.class
 			);
 
-	        final int maxNumThreads = Runtime.getRuntime().availableProcessors();
-	        final Align.ParamOptimize param = calibParams.getMontageLayers().toAlignParam();
-			final RegularizedAffineLayerAlignment.Param param2 = calibParams.getAlignLayers().toRegularizedAffineParam(maxNumThreads);
-			final CorrectDistortionFromSelectionParam p = calibParams.getCorrectDistortion().toDistortionParam(maxNumThreads);
-			final RegularizedAffineLayerAlignment.Param param3 = calibParams.getAlignLayers2().toRegularizedAffineParam(maxNumThreads);
-			final RegularizedAffineLayerAlignment.Param param4 = calibParams.getAlignLayers3().toRegularizedAffineParam(maxNumThreads);
+			if (coarseDownsampling < 1)
+				throw new IllegalArgumentException("--coarse-downsampling must be at least 1");
+
+			//start from a previous calibration with tighter montage and alignment
+			final WarmStart warmStart = warmStartPath == null ? null : new WarmStart(warmStartPath);
+			final CalibrationParams stageParams = warmStart == null
+					? calibParams
+					: calibParams.warmStart(warmStartEpsilonScale, warmStartIterationScale);
+
+	        final int maxNumThreads = Math.max(1, numThreads);
+			final RegularizedAffineLayerAlignment.Param param2 = stageParams.getAlignLayers().toRegularizedAffineParam(maxNumThreads, coarseDownsampling);
+			final RegularizedAffineLayerAlignment.Param param3 = stageParams.getAlignLayers2().toRegularizedAffineParam(maxNumThreads);
+			final RegularizedAffineLayerAlignment.Param param4 = stageParams.getAlignLayers3().toRegularizedAffineParam(maxNumThreads);
 
 			// Get input parameters from the loaded InputParamsSplit
 			final List<String> inputPatterns = inputParams.getPatterns();
 			final List<String> inputMasks = inputParams.getMasks();
 			final List<String> inputLabels = inputParams.getLabels();
 
-			final String[] extensions = {"lsm", "LSM", "tif", "TIF", "tiff", "TIFF"};
-
-			//read stacks and generate mip images
-			final List<String> flist = findFiles(Paths.get(dirPath), extensions);
-			flist.sort(Comparator.naturalOrder());
-			System.out.println("Found " + flist.size() + " files in " + dirPath + " with extensions: " + Arrays.toString(extensions));
-
-			final HashMap<String, List<ImagePlus>> mapMips = new HashMap<String, List<ImagePlus>>();
-			for (int i = 0; i < flist.size(); i++)
-			{
-				for (final String pattern : inputPatterns)
-				{
-					final Pattern pt = Pattern.compile(pattern);
-				    final Matcher mt = pt.matcher(flist.get(i));
-				    if (mt.find())
-				    {
-				    	final String path = flist.get(i);
-						final ImagePlus[] impStack = BF.openImagePlus(path);
-
-						System.out.println(
-								"Number of images: " + impStack.length + " (this should always be 1), we ignore others");
-
-						if (impStack.length > 1)
-							throw new RuntimeException("More than one image was opened, please check the input carefully.");
-
-						final ImagePlus imp = impStack[0];
-
-						System.out.println("dimensions: " + imp.getStack().getProcessor(1).getWidth() + "x"
-								+ imp.getStack().getProcessor(1).getHeight() + ", channels: " + imp.getNChannels()
-								+ ", z-slices:" + imp.getNSlices() + ", timepoints: " + imp.getNFrames());
-
-						imp.resetDisplayRange();
-
-						final ImagePlus mipImp = ZMaxProjection(imp);
-						HyperStackConverter.toStack(mipImp);
-
-						if (!mapMips.containsKey(pattern))
-							mapMips.put(pattern, new ArrayList<ImagePlus>());
-						mapMips.get(pattern).add(mipImp);
-
-						imp.close();
-						break;
-				    }
-				}
+			if (resolveOnlyPath != null) {
+				//re-run the distortion fit from stored point matches
+				CalibrationMatches.checkSolverParams(calibParams.getCorrectDistortion());
+				final MatchSet matchSet = MatchSet.read(Paths.get(resolveOnlyPath));
+				final ArrayList<HashMap<String, Object>> transformExports = CalibrationMatches.resolve(
+						matchSet, calibParams.getCorrectDistortion(), projectName, inputLabels, warmStart, maxNumThreads);
+				FileUtils.forceMkdir(new File(outdir));
+				final String resultJson = gson.toJson(transformExports);
+				final String jsonpath = outdir + File.separator + projectName + ".json";
+				Files.write(Paths.get(jsonpath), resultJson.getBytes());
+				System.out.println(resultJson);
+				System.out.println("Done");
+				return 0;
 			}
 
-			if (mapMips.size() == 0)
-				throw new RuntimeException("mip creation failed.");
+			//load each mask once, patches are cropped to the bounding box of their mask
+			final ArrayList<ByteProcessor> masks = new ArrayList<ByteProcessor>();
+			final ArrayList<ByteProcessor> croppedMasks = new ArrayList<ByteProcessor>();
+			final ArrayList<Rectangle> maskBounds = new ArrayList<Rectangle>();
+			for (final String inputMask : inputMasks) {
+				final ByteProcessor mask = IJ.openImage(dirPath + File.separator + inputMask).getProcessor().convertToByteProcessor();
+				final Rectangle bounds = maskBounds(mask);
+				if (bounds.isEmpty())
+					throw new IllegalArgumentException("mask " + inputMask + " is empty");
+				mask.setRoi(bounds);
+				masks.add(mask);
+				croppedMasks.add((ByteProcessor)mask.crop());
+				maskBounds.add(bounds);
+				mask.resetRoi();
+			}
+			final int numMasks = masks.size();
+			final int frameWidth = masks.get(0).getWidth();
+			final int frameHeight = masks.get(0).getHeight();
 
-			//save mip images
-			//normalize local contrast brx 127 bry 127 stds 3.0 (all layers)
 			final String storageDir = outdir + File.separator + projectName;
-			FileUtils.forceMkdir(new File(storageDir));
-
-			final int brx = 127;
-			final int bry = 127;
-			final float stds = 3.0f;
-			int layernum = 0;
-			final HashMap<Integer, ArrayList<String>> layerPatchPaths = new HashMap<Integer, ArrayList<String>>();
-			for (final List<ImagePlus> implist : mapMips.values()) {
-				int maxChNum = 0;
-				for (int i = 0; i < implist.size(); i++)
-				{
-					final ImagePlus mip = implist.get(i);
-					int layerId = layernum;
-					final ImageStack sstack = mip.getStack();
-					for (int s = 1; s <= sstack.getSize(); s++)
+			final String projectPath = storageDir + File.separator + projectName + "_trakem_proj.xml";
+			final String nativePath = outdir + File.separator + projectName
+					+ (engine == CalibrationMatches.Engine.BOTH ? "_native.json" : ".json");
+			//the native engine and workers have no TrakEM2 stages to resume or select
+			final boolean nativeOnly = engine == CalibrationMatches.Engine.NATIVE || distributed.isWorker();
+			final boolean computeMatches = exportMatchesPath != null || engine != CalibrationMatches.Engine.TRAKEM2 || distributed.isWorker();
+			if (previousMatchesPath != null && !computeMatches)
+				throw new IllegalArgumentException("--previous-matches requires --engine NATIVE or BOTH, or --export-matches");
+			if (engine != CalibrationMatches.Engine.TRAKEM2 && !distributed.isWorker())
+				CalibrationMatches.checkSolverParams(calibParams.getCorrectDistortion());
+			//workers read the MIPs of the coordinator from a shared cache
+			final Path jobDir = distributed.getJobDir(outdir, projectName);
+			final String mipCache = distributed.isCoordinator() && mipCacheDir == null ? jobDir.resolve("mips").toString() : mipCacheDir;
+
+			//montage and distortion correct the layers in worker processes, each with its share of the threads, or in the shards
+			final int numLayerWorkers = distributed.getNumLayerWorkers(maxNumThreads);
+			final LayerWorkers layerWorkers = numLayerWorkers > 1 || distributed.isCoordinator()
+					? new LayerWorkers(distributed, jobDir, projectPath, numLayerWorkers, distributed.getNumLocalWorkers(numLayerWorkers), maxNumThreads)
+					: null;
+			final LayerStages layerStages = new LayerStages(stageParams, new FeatureCache(featureCacheDir), coarseDownsampling, maxNumThreads, layerWorkers);
+
+			//a layer worker runs its stage on the saved project of the coordinator
+			if (distributed.getShardStage() != null) {
+				ControlWindow.setGUIEnabled(false);
+				final List<Layer> layers = Checkpoints.openProject(projectPath).getRootLayerSet().getLayers();
+				layerStages.run(distributed.getShardStage(), layers, distributed.getShardLayers());
+				LayerWorkers.complete(distributed.getShardOutput(), layers, distributed.getShardLayers());
+				System.out.println("Done");
+				return 0;
+			}
+
+			final Checkpoints checkpoints = new Checkpoints(Paths.get(storageDir, projectName + "_stage"), resume && !nativeOnly, nativeOnly ? null : stages);
+
+			final Project project;
+			if (checkpoints.shouldRun(Stage.PATCHES)) {
+				final String[] extensions = {"lsm", "LSM", "tif", "TIF", "tiff", "TIFF"};
+
+				//read stacks and generate mip images
+				final List<String> flist = findFiles(Paths.get(dirPath), extensions);
+				flist.sort(Comparator.naturalOrder());
+				System.out.println("Found " + flist.size() + " files in " + dirPath + " with extensions: " + Arrays.toString(extensions));
+
+				//normalize local contrast brx 127 bry 127 stds 3.0 (all layers)
+				final int brx = 127;
+				final int bry = 127;
+				final float stds = 3.0f;
+				final HashMap<String, List<ImagePlus>> mapMips = new MipGenerator(numMipThreads, maxNumThreads, brx, bry, stds, mipCache).generate(flist, inputPatterns);
+
+				if (mapMips.size() == 0)
+					throw new RuntimeException("mip creation failed.");
+
+				//save mip images
+				FileUtils.forceMkdir(new File(storageDir));
+
+				final PatchStore patchStore = new PatchStore(inMemoryPatches);
+				int layernum = 0;
+				final HashMap<Integer, ArrayList<String>> layerPatchPaths = new HashMap<Integer, ArrayList<String>>();
+				final HashMap<Integer, ArrayList<FloatProcessor>> layerTiles = new HashMap<Integer, ArrayList<FloatProcessor>>();
+				final HashMap<Integer, ArrayList<String>> layerTileIds = new HashMap<Integer, ArrayList<String>>();
+				final HashMap<Integer, ArrayList<double[]>> layerPositions = new HashMap<Integer, ArrayList<double[]>>();
+				final StagePositions stagePositions = stagePositionsSource == null ? null : new StagePositions(stagePositionsSource);
+				final HashMap<String, List<String>> patternFiles = MipGenerator.assign(flist, inputPatterns);
+				for (final Map.Entry<String, List<ImagePlus>> entry : mapMips.entrySet()) {
+					final List<ImagePlus> implist = entry.getValue();
+					int maxChNum = 0;
+					for (int i = 0; i < implist.size(); i++)
 					{
-						NormalizeLocalContrast.run(sstack.getProcessor(s), brx, bry, stds, true, true);
-						final String fname = String.format("layer_%02d_pos_%02d.tif", layerId, i);
-						final ImagePlus tmp = new ImagePlus(fname, sstack.getProcessor(s).duplicate());
-						final FileSaver saver = new FileSaver(tmp);
-						final String fpath = storageDir + File.separator + fname;
-						saver.saveAsTiff(fpath);
-						if (!layerPatchPaths.containsKey(layerId))
-							layerPatchPaths.put(layerId, new ArrayList<String>());
-						layerPatchPaths.get(layerId).add(fpath);
-						tmp.close();
-						layerId++;
+						final ImagePlus mip = implist.get(i);
+						final double[] position = stagePositions == null ? null : stagePositions.get(patternFiles.get(entry.getKey()).get(i));
+						int layerId = layernum;
+						final ImageStack sstack = mip.getStack();
+						for (int s = 1; s <= sstack.getSize(); s++)
+						{
+							final ImageProcessor ip = sstack.getProcessor(s);
+							for (int j = 0; j < numMasks; j++) {
+								final String fname = String.format("layer_%02d_pos_%02d_mask_%02d.tif", layerId, i, j);
+								ip.setRoi(maskBounds.get(j));
+								final ImagePlus tmp = new ImagePlus(fname, ip.crop());
+								final String fpath = storageDir + File.separator + fname;
+								if (!nativeOnly)
+									patchStore.put(tmp, fpath);
+								layerPatchPaths.computeIfAbsent(layerId * numMasks + j, k -> new ArrayList<String>()).add(fpath);
+							}
+							ip.resetRoi();
+							if (computeMatches && !distributed.isCoordinator()) {
+								//workers keep the tiles of their shard and the first layer, and the ids of all tiles
+								final FloatProcessor tile = ip.convertToFloatProcessor();
+								layerTileIds.computeIfAbsent(layerId, k -> new ArrayList<String>()).add(CalibrationMatches.tileId(tile));
+								if (distributed.matchesLayer(layerId))
+									layerTiles.computeIfAbsent(layerId, k -> new ArrayList<FloatProcessor>()).add(tile);
+							}
+							if (position != null)
+								layerPositions.computeIfAbsent(layerId, k -> new ArrayList<double[]>()).add(position);
+							layerId++;
+						}
+						if (layerId > maxChNum)
+							maxChNum = layerId;
 					}
-					if (layerId > maxChNum)
-						maxChNum = layerId;
+					layernum = maxChNum;
 				}
-				layernum = maxChNum;
-			}
 
-			for (final String pattern : inputPatterns)
-				System.out.println(pattern);
-			System.out.println(layernum);
-			for (int i = 0; i < layernum; i++)
-			{
-				final ArrayList<String> pathList = layerPatchPaths.get(i);
-				for (int s = 0; s < pathList.size(); s++)
+				for (final String pattern : inputPatterns)
+					System.out.println(pattern);
+				System.out.println(layernum);
+				for (int i = 0; i < layernum * numMasks; i++)
 				{
-					System.out.println(pathList.get(s));
+					final ArrayList<String> pathList = layerPatchPaths.get(i);
+					for (int s = 0; s < pathList.size(); s++)
+					{
+						System.out.println(pathList.get(s));
+					}
 				}
-			}
 
-			//create a new trakem project.
-			ControlWindow.setGUIEnabled(false);
+				//point matches for --resolve-only runs and the native engine
+				if (computeMatches) {
+					final MatchSet matchSet;
+					if (distributed.isCoordinator())
+						matchSet = distributed.coordinate(layernum, jobDir, mipCache, maxNumThreads);
+					else {
+						final ArrayList<List<FloatProcessor>> tiles = new ArrayList<List<FloatProcessor>>();
+						final String[][] tileIds = new String[layernum][];
+						final ArrayList<List<double[]>> positions = stagePositions == null ? null : new ArrayList<List<double[]>>();
+						for (int i = 0; i < layernum; i++) {
+							tiles.add(layerTiles.get(i));
+							tileIds[i] = layerTileIds.get(i).toArray(new String[0]);
+							if (positions != null)
+								positions.add(layerPositions.get(i));
+						}
+						final MatchSet previousMatches = previousMatchesPath == null ? null : MatchSet.read(Paths.get(previousMatchesPath));
+						matchSet = CalibrationMatches.compute(tiles, tileIds, masks, positions, calibParams.getCorrectDistortion(), new FeatureCache(featureCacheDir), correspondence.createBeadDetector(), distributed.getShardLayers(), previousMatches, maxNumThreads);
+					}
+					if (distributed.isWorker()) {
+						distributed.complete(matchSet);
+						patchStore.close();
+						System.out.println("Done");
+						return 0;
+					}
+					if (exportMatchesPath != null)
+						matchSet.write(Paths.get(exportMatchesPath));
+
+					if (engine != CalibrationMatches.Engine.TRAKEM2) {
+						final ArrayList<HashMap<String, Object>> nativeExports = CalibrationMatches.resolve(
+								matchSet, calibParams.getCorrectDistortion(), projectName, inputLabels, warmStart, maxNumThreads);
+						final String nativeJson = gson.toJson(nativeExports);
+						Files.write(Paths.get(nativePath), nativeJson.getBytes());
+						if (nativeOnly) {
+							System.out.println(nativeJson);
+							patchStore.close();
+							System.out.println("Done");
+							return 0;
+						}
+					}
+				}
 
-			final Project project = Project.newFSProject("blank", null, storageDir);
-			final LayerSet layerset = project.getRootLayerSet();
-			for (int i = 0; i < layernum * inputMasks.size(); i++)
-				  layerset.getLayer(i, 1, true);
-			project.getLayerTree().updateList(layerset);
-			Display.updateLayerScroller(layerset);
-
-			for (int i = 0; i < layernum; i++) {
-				final ArrayList<String> pathList = layerPatchPaths.get(i);
-				for (int j = 0; j < inputMasks.size(); j++) {
-					ByteProcessor mask = IJ.openImage(dirPath + File.separator + inputMasks.get(j)).getProcessor().convertToByteProcessor();
-					final Layer layer = layerset.getLayer(i * inputMasks.size() + j);
+				//create a new trakem project.
+				ControlWindow.setGUIEnabled(false);
+
+				project = Project.newFSProject("blank", null, storageDir);
+				final LayerSet layerset = project.getRootLayerSet();
+				for (int i = 0; i < layernum * numMasks; i++)
+					  layerset.getLayer(i, 1, true);
+				project.getLayerTree().updateList(layerset);
+				Display.updateLayerScroller(layerset);
+
+				//mipmaps are only needed for display
+				final boolean updateMipMaps = !GraphicsEnvironment.isHeadless();
+				for (int i = 0; i < layernum * numMasks; i++) {
+					final Rectangle bounds = maskBounds.get(i % numMasks);
+					final Layer layer = layerset.getLayer(i);
+					final List<double[]> positions = stagePositions == null ? null : StagePositions.normalize(layerPositions.get(i / numMasks));
+					final ArrayList<String> pathList = layerPatchPaths.get(i);
 					for (int s = 0; s < pathList.size(); s++) {
-						final Patch patch = Patch.createPatch(project, pathList.get(s));
+						final Patch patch = patchStore.createPatch(project, pathList.get(s));
 						layer.add(patch);
-						patch.setAlphaMask(mask);
-						patch.updateMipMaps();
+						if (positions == null)
+							patch.setLocation(bounds.x, bounds.y);
+						else
+							patch.setLocation(positions.get(s)[0] + bounds.x, positions.get(s)[1] + bounds.y);
+						patch.setAlphaMask(croppedMasks.get(i % numMasks));
+						if (warmStart != null)
+							patch.setCoordinateTransform(warmStart.lens(inputLabels.get(i), i, bounds));
+						if (updateMipMaps)
+							patch.updateMipMaps();
 					}
 					layer.recreateBuckets();
 				}
-			}
 
-			//save trakem project
-			project.saveAs(storageDir + File.separator + projectName + "_trakem_proj.xml", true);
-
-			//montage all layers. least square, translation.
-			AlignTask.montageLayers(param, layerset.getLayers(), true, true, true, false, true);
+				//save trakem project
+				patchStore.close();
+				checkpoints.completed(Stage.PATCHES, project, projectPath);
+			} else {
+				ControlWindow.setGUIEnabled(false);
+				project = Checkpoints.openProject(projectPath);
+			}
+			final LayerSet layerset = project.getRootLayerSet();
 
+			final Convergence convergence = new Convergence(convergenceTolerance);
+			double distortionChange = Double.NaN;
+			double alignChange = Double.NaN;
 
-			//Align layers. (least square)
-			boolean propagateTransformBefore = false;
-			boolean propagateTransformAfter = false;
+			if (checkpoints.shouldRun(Stage.MONTAGE)) {
+				//montage all layers. least square, translation, coarse features.
+				convergence.run(Stage.MONTAGE, "run", layerset.getLayers(), () -> layerStages.run(Stage.MONTAGE, layerset.getLayers()));
 
-			Rectangle box = null;
-			HashSet< Layer > emptyLayers = new HashSet< Layer >();
-			for ( final Iterator< Layer > it = layerset.getLayers().iterator(); it.hasNext(); )
-			{
-				/* remove empty layers */
-				final Layer la = it.next();
-				if ( !la.contains( Patch.class, true ) )
-				{
-					emptyLayers.add( la );
-//					it.remove();
-				}
-				else
-				{
-					/* accumulate boxes */
-					if ( null == box ) // The first layer:
-						box = la.getMinimalBoundingBox( Patch.class, true );
-					else
-						box = box.union( la.getMinimalBoundingBox( Patch.class, true ) );
+				//drop redundant tiles before the expensive stages
+				if (minCoverage > 0) {
+					final String coverageReport = layerStages.subsample(layerset.getLayers(), minCoverage, 16);
+					Files.write(Paths.get(outdir, projectName + "_coverage.txt"), coverageReport.getBytes());
+					System.out.print(coverageReport);
 				}
+				checkpoints.completed(Stage.MONTAGE, project, projectPath);
 			}
 
-			new RegularizedAffineLayerAlignment().exec(param2, layerset.getLayers(), new HashSet<Layer>(), emptyLayers, box, propagateTransformBefore, propagateTransformAfter, null);
-
-
-			//Auto resize canvas
-			layerset.setMinimumDimensions();
-
+			if (checkpoints.shouldRun(Stage.ALIGN)) {
+				//Align layers. (least square, coarse features)
+				convergence.run(Stage.ALIGN, "run", layerset.getLayers(), () -> layerStages.alignLayers(param2, layerset.getLayers()));
 
-			//Lens correction (All layers)
-			for (int i = 0; i < layernum * inputMasks.size(); i++)
-			{
-				p.firstLayerIndex = i;
-				p.lastLayerIndex = i;
-				final Layer layer = layerset.getLayer(i);
-				final ArrayList<Patch> patches = layer.getPatches(true);
-				if (patches.size() > 0)
-					DistortionCorrectionTask.run(p, patches, patches.get(0), layer);
+				//Auto resize canvas
+				layerset.setMinimumDimensions();
+				checkpoints.completed(Stage.ALIGN, project, projectPath);
 			}
 
-			//montage all layers. least square, translation.
-			AlignTask.montageLayers(param, layerset.getLayers(), true, true, true, false, true);
-
-
-			//Align layers. least square
-			propagateTransformBefore = false;
-			propagateTransformAfter = false;
+			if (checkpoints.shouldRun(Stage.CORRECT_DISTORTION)) {
+				//Lens correction (All layers)
+				distortionChange = convergence.run(Stage.CORRECT_DISTORTION, "run", layerset.getLayers(), () -> layerStages.run(Stage.CORRECT_DISTORTION, layerset.getLayers()));
+				checkpoints.completed(Stage.CORRECT_DISTORTION, project, projectPath);
+			}
 
-			box = null;
-			emptyLayers = new HashSet< Layer >();
-			for ( final Iterator< Layer > it = layerset.getLayers().iterator(); it.hasNext(); )
-			{
-				/* remove empty layers */
-				final Layer la = it.next();
-				if ( !la.contains( Patch.class, true ) )
-				{
-					emptyLayers.add( la );
-				}
+			if (checkpoints.shouldRun(Stage.MONTAGE2)) {
+				//montage all layers. least square, translation.  Not needed if the lens barely changed.
+				if (convergence.converged(distortionChange))
+					convergence.skip(Stage.MONTAGE2);
 				else
-				{
-					/* accumulate boxes */
-					if ( null == box ) // The first layer:
-						box = la.getMinimalBoundingBox( Patch.class, true );
-					else
-						box = box.union( la.getMinimalBoundingBox( Patch.class, true ) );
-				}
+					convergence.run(Stage.MONTAGE2, "run", layerset.getLayers(), () -> layerStages.run(Stage.MONTAGE2, layerset.getLayers()));
+				checkpoints.completed(Stage.MONTAGE2, project, projectPath);
 			}
 
-			new RegularizedAffineLayerAlignment().exec(param3, layerset.getLayers(), new HashSet<Layer>(), emptyLayers, box, propagateTransformBefore, propagateTransformAfter, null);
-
-
-
-			// TODO Is another alignment required?  Don't think so, or is it?
-			//Align layers. least square
-			propagateTransformBefore = false;
-			propagateTransformAfter = false;
+			if (checkpoints.shouldRun(Stage.ALIGN2)) {
+				//Align layers. least square
+				alignChange = convergence.run(Stage.ALIGN2, "run", layerset.getLayers(), () -> layerStages.alignLayers(param3, layerset.getLayers()));
+				checkpoints.completed(Stage.ALIGN2, project, projectPath);
+			}
 
-			box = null;
-			emptyLayers = new HashSet< Layer >();
-			for ( final Iterator< Layer > it = layerset.getLayers().iterator(); it.hasNext(); )
-			{
-				/* remove empty layers */
-				final Layer la = it.next();
-				if ( !la.contains( Patch.class, true ) )
-				{
-					emptyLayers.add( la );
-				}
-				else
-				{
-					/* accumulate boxes */
-					if ( null == box ) // The first layer:
-						box = la.getMinimalBoundingBox( Patch.class, true );
-					else
-						box = box.union( la.getMinimalBoundingBox( Patch.class, true ) );
+			if (checkpoints.shouldRun(Stage.ALIGN3)) {
+				//Align layers. least square.  With a tolerance, only until the alignment converges.
+				if (convergence.converged(alignChange))
+					convergence.skip(Stage.ALIGN3);
+				else {
+					alignChange = convergence.run(Stage.ALIGN3, "run", layerset.getLayers(), () -> layerStages.alignLayers(param4, layerset.getLayers()));
+					for (int r = 0; r < maxAlignRepeats && convergence.isEnabled() && !convergence.converged(alignChange); ++r)
+						alignChange = convergence.run(Stage.ALIGN3, "repeat", layerset.getLayers(), () -> layerStages.alignLayers(param4, layerset.getLayers()));
 				}
+				checkpoints.completed(Stage.ALIGN3, project, projectPath);
 			}
 
-			new RegularizedAffineLayerAlignment().exec(param4, layerset.getLayers(), new HashSet<Layer>(), emptyLayers, box, propagateTransformBefore, propagateTransformAfter, null);
-
-
-			//save trakem project
-			project.saveAs(storageDir + File.separator + projectName + "_trakem_proj.xml", true);
+			//record the convergence of the stages of this run
+			Files.createDirectories(Paths.get(outdir));
+			Files.write(Paths.get(outdir, projectName + "_stages.tsv"), convergence.getTable().getBytes());
 
 			//String storageDir = outdir+File.separator+pname;
 			//Project project = Project.openFSProject(storageDir + File.separator + pname + "_trakem_proj.xml");
@@ -828,21 +984,8 @@ public class CalibrateSplit implements java.util.concurrent.Callable<Integer> {
 
 			layerset.setMinimumDimensions();
 
-			final ArrayList<Patch> patches = new ArrayList<Patch>();
-
-			for (final Layer layer : layerset.getLayers()) {
-				int minX = Integer.MAX_VALUE;
-				int minY = Integer.MAX_VALUE;
-				for (final Displayable patch : layer.getDisplayables(Patch.class)) {
-					final Rectangle b = patch.getBoundingBox();
-					if (minX > b.x) minX = b.x;
-					if (minY > b.y) minY = b.y;
-				}
-				final Rectangle topLeftBox = new Rectangle(minX + 100, minY + 100);
-				System.out.println("Layer: " + layer + ", top-left box: " + topLeftBox);
-				final Collection<Displayable> displayables = layer.getDisplayables(Patch.class, topLeftBox);
-				patches.add((Patch)displayables.iterator().next());
-			}
+			//the same tile in every layer, the top-left tile of the first layer that all layers kept
+			final ArrayList<Patch> patches = LayerStages.referencePatches(layerset.getLayers());
 
 			final ArrayList<PointMatch> matches = new ArrayList<PointMatch>();
 
@@ -863,99 +1006,118 @@ public class CalibrateSplit implements java.util.concurrent.Callable<Integer> {
 				// final AffineModel2D affine = (AffineModel2D) cts.get(1);
 				// affine.preConcatenate(affineModel);
 				final List<HashMap<String, String>> maplist = new ArrayList<HashMap<String, String>>();
-				maplist.add(exportTransform(ctl.get(0)));
+				final HashMap<String, String> lens = exportTransform(ctl.get(0));
+				lens.put("dataString", frameDataString(ctl.get(0), maskBounds.get(i % numMasks), frameWidth, frameHeight));
+				maplist.add(lens);
 				maplist.add(exportTransform(ctl.get(1)));
 				final HashMap<String, Object> export = exportTransform(
 					String.format("%s, %s", projectName, inputLabels.get(i)), maplist);
 				transformExports.add(export);
 			}
 
-			final String resultJson = gson.toJson(transformExports);
-			final String jsonpath = outdir + File.separator + projectName + ".json";
-			Files.write(Paths.get(jsonpath), resultJson.getBytes());
-			System.out.println(resultJson);
-
-			//compare lenses
-			final ArrayList<ArrayList<String>> trLists = new ArrayList<ArrayList<String>>();
-			final ArrayList<String> tempIdList = new ArrayList<String>();
-			tempIdList.add("Identity");
-			tempIdList.add("mpicbg.trakem2.transform.AffineModel2D");
-			tempIdList.add("1.0 0.0 0.0 1.0 0.0 0.0");
-			trLists.add(tempIdList);
-			for (int i = 0; i < patches.size(); ++i) {
-				final Patch patch = patches.get(i);
-				@SuppressWarnings("unchecked")
-				final CoordinateTransformList< CoordinateTransform > ctl = (CoordinateTransformList< CoordinateTransform >) patch.getFullCoordinateTransform();
-				final List<CoordinateTransform> cts = ctl.getList(null);
-				final AffineModel2D affine = (AffineModel2D) cts.get(1);
-				// affine.preConcatenate(affineModel);
-				final ArrayList<String> templist = new ArrayList<String>();
-				final String label = String.format("%s, %s", projectName, inputLabels.get(i));
-				final String classname1 = ctl.get(0).getClass().getName();
-				final String ctstr1 = ctl.get(0).toDataString();
-				final String classname2 = ctl.get(1).getClass().getName();
-				final String ctstr2 = ctl.get(1).toDataString();
-				templist.add(label);
-				templist.add(classname1);
-				templist.add(ctstr1);
-				templist.add(classname2);
-				templist.add(ctstr2);
-				trLists.add(templist);
-			}
-			final String[][] transforms = new String[trLists.size()][];
-			final String[] blankArray = new String[0];
-			for(int i = 0; i < trLists.size(); i++) {
-				transforms[i] = trLists.get(i).toArray(blankArray);
+			if (checkpoints.shouldRun(Stage.EXPORT)) {
+				final String resultJson = gson.toJson(transformExports);
+				final String jsonpath = outdir + File.separator + projectName + ".json";
+				Files.write(Paths.get(jsonpath), resultJson.getBytes());
+				System.out.println(resultJson);
+				if (warmStart != null) {
+					final String changes = warmStart.compare(transformExports, inputLabels, frameWidth, frameHeight);
+					Files.write(Paths.get(outdir, projectName + "_warm_start.tsv"), changes.getBytes());
+					System.out.print(changes);
+				}
+				if (engine == CalibrationMatches.Engine.BOTH && Files.exists(Paths.get(nativePath))) {
+					final String changes = new WarmStart(nativePath).compare(transformExports, inputLabels, frameWidth, frameHeight);
+					Files.write(Paths.get(outdir, projectName + "_engines.tsv"), changes.getBytes());
+					System.out.print(changes);
+				}
+				checkpoints.completed(Stage.EXPORT, null, null);
 			}
 
-			final int iw = 256;
-			final int ih = 256;
-			final double max = 500;
-			final int pWidth = mapMips.values().iterator().next().get(0).getWidth();
-			final int pHeight = mapMips.values().iterator().next().get(0).getHeight();
-
-			final int ySkip = 4;
-			final int xSkip = 4;
-
-			final ImagePlus impVectors = showDifferenceVectors(transforms, pWidth, pHeight, iw, ih, xSkip, ySkip, max);
-			final ImagePlus impDists = showDifferenceVectorDistributions(transforms, pWidth, pHeight, iw, ih, xSkip, ySkip, max);
-
-			impDists.setDisplayRange(0, 32);
-			Thread.sleep(1000);
-			impDists.setLut(createFireLUT(32.0));
-			Thread.sleep(1000);
-			new ImageConverter(impDists).convertToRGB();
-			Thread.sleep(1000);
-			impDists.getProcessor().snapshot();
-
-//			{
-//				FileSaver saver = new FileSaver(impDists);
-//				saver.saveAsTiff(outdir + File.separator + pname + "_dists" + ".tif");
-//				FileSaver saver2 = new FileSaver(impVectors);
-//				saver2.saveAsTiff(outdir + File.separator + pname + "_vectors" + ".tif");
-//			}
-
-			final ColorProcessor ipSrc = (ColorProcessor)impVectors.getProcessor();
-			final ColorProcessor ipDst = (ColorProcessor)impDists.getProcessor();
-
-			for(int y = 0; y < ipSrc.getHeight(); y++) {
-				for(int x = y; x < ipSrc.getWidth(); x++) {
-					ipDst.set(x, y, ipSrc.get(x, y));
+			if (checkpoints.shouldRun(Stage.COMPARE)) {
+				//compare lenses
+				final ArrayList<ArrayList<String>> trLists = new ArrayList<ArrayList<String>>();
+				final ArrayList<String> tempIdList = new ArrayList<String>();
+				tempIdList.add("Identity");
+				tempIdList.add("mpicbg.trakem2.transform.AffineModel2D");
+				tempIdList.add("1.0 0.0 0.0 1.0 0.0 0.0");
+				trLists.add(tempIdList);
+				for (int i = 0; i < patches.size(); ++i) {
+					final Patch patch = patches.get(i);
+					@SuppressWarnings("unchecked")
+					final CoordinateTransformList< CoordinateTransform > ctl = (CoordinateTransformList< CoordinateTransform >) patch.getFullCoordinateTransform();
+					final List<CoordinateTransform> cts = ctl.getList(null);
+					final AffineModel2D affine = (AffineModel2D) cts.get(1);
+					// affine.preConcatenate(affineModel);
+					final ArrayList<String> templist = new ArrayList<String>();
+					final String label = String.format("%s, %s", projectName, inputLabels.get(i));
+					final String classname1 = ctl.get(0).getClass().getName();
+					final String ctstr1 = frameDataString(ctl.get(0), maskBounds.get(i % numMasks), frameWidth, frameHeight);
+					final String classname2 = ctl.get(1).getClass().getName();
+					final String ctstr2 = ctl.get(1).toDataString();
+					templist.add(label);
+					templist.add(classname1);
+					templist.add(ctstr1);
+					templist.add(classname2);
+					templist.add(ctstr2);
+					trLists.add(templist);
+				}
+				final String[][] transforms = new String[trLists.size()][];
+				final String[] blankArray = new String[0];
+				for(int i = 0; i < trLists.size(); i++) {
+					transforms[i] = trLists.get(i).toArray(blankArray);
 				}
-			}
 
-			drawCircles((ColorProcessor)impDists.getProcessor(), transforms, iw, ih, xSkip, ySkip, max);
-			drawLabels(impDists, 26, transforms, iw, ih, xSkip, ySkip);
+				final int iw = 256;
+				final int ih = 256;
+				final double max = 500;
+				final int pWidth = frameWidth;
+				final int pHeight = frameHeight;
+
+				final int ySkip = 4;
+				final int xSkip = 4;
+
+				final ImagePlus impVectors = showDifferenceVectors(transforms, pWidth, pHeight, iw, ih, xSkip, ySkip, max);
+				final ImagePlus impDists = showDifferenceVectorDistributions(transforms, pWidth, pHeight, iw, ih, xSkip, ySkip, max);
+
+				impDists.setDisplayRange(0, 32);
+				Thread.sleep(1000);
+				impDists.setLut(createFireLUT(32.0));
+				Thread.sleep(1000);
+				new ImageConverter(impDists).convertToRGB();
+				Thread.sleep(1000);
+				impDists.getProcessor().snapshot();
+
+	//			{
+	//				FileSaver saver = new FileSaver(impDists);
+	//				saver.saveAsTiff(outdir + File.separator + pname + "_dists" + ".tif");
+	//				FileSaver saver2 = new FileSaver(impVectors);
+	//				saver2.saveAsTiff(outdir + File.separator + pname + "_vectors" + ".tif");
+	//			}
+
+				final ColorProcessor ipSrc = (ColorProcessor)impVectors.getProcessor();
+				final ColorProcessor ipDst = (ColorProcessor)impDists.getProcessor();
+
+				for(int y = 0; y < ipSrc.getHeight(); y++) {
+					for(int x = y; x < ipSrc.getWidth(); x++) {
+						ipDst.set(x, y, ipSrc.get(x, y));
+					}
+				}
+
+				drawCircles((ColorProcessor)impDists.getProcessor(), transforms, iw, ih, xSkip, ySkip, max);
+				drawLabels(impDists, 26, transforms, iw, ih, xSkip, ySkip);
 
-			final FileSaver saver = new FileSaver(impDists);
-			final String comparePath = outdir + File.separator + projectName + "_compare_lenses" + ".tif";
-			saver.saveAsTiff(comparePath);
+				final FileSaver saver = new FileSaver(impDists);
+				final String comparePath = outdir + File.separator + projectName + "_compare_lenses" + ".tif";
+				saver.saveAsTiff(comparePath);
+				checkpoints.completed(Stage.COMPARE, null, null);
+			}
 
 			System.out.println("Done");
 			return 0;
 
 		} catch (final Exception e) {
 			e.printStackTrace();
+			distributed.fail(e);
 			return 1;
 		}
 	}
@@ -0,0 +1,362 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.janelia.saalfeldlab.lenscorrect.json.CalibrationParams;
+import org.janelia.saalfeldlab.lenscorrect.json.CorrectDistortionParams;
+import org.janelia.saalfeldlab.lenscorrect.json.InputParamsSplit;
+import org.janelia.saalfeldlab.lenscorrect.json.SweepParams;
+import org.janelia.saalfeldlab.lenscorrect.solve.BeadDetector;
+import org.janelia.saalfeldlab.lenscorrect.solve.DistortionSolver;
+import org.janelia.saalfeldlab.lenscorrect.solve.MatchSet;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Option;
+
+/**
+ * Sweep over correctDistortion parameters to find good calibration
+ * parameters for a new scope.
+ *
+ * The contrast normalized MIPs are generated once and shared read-only by
+ * all variants, as are the SIFT features of variants with the same feature
+ * parameters.  Each variant matches, RANSAC filters, and fits the lens
+ * distortion with the solver of the --resolve-only mode, several variants
+ * run concurrently and share the available threads and, with
+ * --variant-memory, the free heap.  The exports of all variants are written
+ * as <code>&lt;name&gt;_sweep_&lt;variant&gt;.json</code> and a table of
+ * variants ranked by their residuals as <code>&lt;name&gt;_sweep.tsv</code>.
+ *
+ * The residuals of a variant on its own RANSAC inliers do not compare
+ * variants: stricter filters keep only the matches that fit best and have
+ * smaller residuals without a better lens.  Variants are therefore ranked by
+ * the sum of the mean montage and layer residuals of their distortions on
+ * one reference match set, with the tiles and layers fit to it.  The
+ * reference matches are computed once with the correctDistortion parameters
+ * of -p, or read from --reference-matches.  A variant with the parameters of
+ * the reference fits the reference matches themselves and is slightly
+ * favoured, an independent match set, e.g. bead matches written by
+ * --export-matches, avoids that.  The residuals on the own matches are listed
+ * for reference.
+ *
+ * Only the correctDistortion parameters that the matching and the native
+ * solver use can be swept, see {@link CalibrationMatches#checkSweepOverrides}.
+ * The TrakEM2 engine of the calibrate commands also montages and aligns the
+ * layers with the montageLayers and alignLayers parameters, which the sweep
+ * neither uses nor varies, so its results can differ from the best variant.
+ */
+@Command(
+    name = "calibrate-sweep",
+    mixinStandardHelpOptions = true,
+    description = "Sweep lens distortion calibration parameters and rank the variants by their residuals. " +
+            "Variants are fit with the native solver of --resolve-only; the TrakEM2 engine also uses the montageLayers and alignLayers parameters, which are not swept"
+)
+public class CalibrateSweep implements Callable<Integer> {
+
+	@Option(names = {"-i", "--input"}, required = true, description = "input directory")
+	private String inputDir;
+
+	@Option(names = {"-o", "--output"}, required = true, description = "output directory")
+	private String outputDir;
+
+	@Option(names = {"-p", "--calibration-params"}, description = "path to calibration parameters file (default: built-in calibration-params.json)")
+	private String calibrationParamsPath;
+
+	@Option(names = {"-j", "--input-params"}, required = true, description = "path to input parameters file containing patterns, labels, and optional masks")
+	private String inputParamsPath;
+
+	@Option(names = {"-n", "--name"}, required = true, description = "project name for output files and transformation labels")
+	private String projectName;
+
+	@Option(names = {"-s", "--sweep"}, required = true, description = "path to a JSON file with a grid and/or a list of correctDistortion parameter variants")
+	private String sweepPath;
+
+	@Option(names = {"--variant-threads"}, description = "number of variants processed concurrently (default: ${DEFAULT-VALUE})")
+	private int numVariantThreads = 2;
+
+	@Option(names = {"--variant-memory"}, description = "expected heap per variant in GB, limits the number of concurrent variants to those that fit into the heap left after loading the MIPs (default: ${DEFAULT-VALUE}, no limit)")
+	private double variantMemory = 0;
+
+	@Option(names = {"--reference-matches"}, description = "point matches from --export-matches to rank all variants on (default: matches computed with the parameters of -p)")
+	private String referenceMatchesPath;
+
+	@Option(names = {"--threads"}, description = "total number of threads (default: all available cores)")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Option(names = {"--mip-threads"}, description = "number of input stacks opened and projected concurrently (default: ${DEFAULT-VALUE})")
+	private int numMipThreads = 4;
+
+	@Option(names = {"--mip-cache"}, description = "directory for caching contrast normalized MIPs between runs")
+	private String mipCacheDir;
+
+	@Option(names = {"--stage-positions"}, description = "'metadata' or the path of a TileConfiguration file, match only tiles that overlap at their stage positions (default: all pairs)")
+	private String stagePositionsSource;
+
+	@Mixin
+	private CorrespondenceOptions correspondence = new CorrespondenceOptions();
+
+	private static final Gson gson = new GsonBuilder()
+			.setPrettyPrinting()
+			.disableHtmlEscaping()
+			.create();
+
+	private static class Result {
+
+		final int variant;
+		final JsonObject overrides;
+		final int numMatches;
+		final double rms;
+		final double layerRms;
+		/* on the reference matches */
+		final double referenceRms;
+		final double referenceLayerRms;
+		final double seconds;
+		final String error;
+
+		Result(
+				final int variant,
+				final JsonObject overrides,
+				final int numMatches,
+				final double rms,
+				final double layerRms,
+				final double referenceRms,
+				final double referenceLayerRms,
+				final double seconds,
+				final String error) {
+
+			this.variant = variant;
+			this.overrides = overrides;
+			this.numMatches = numMatches;
+			this.rms = rms;
+			this.layerRms = layerRms;
+			this.referenceRms = referenceRms;
+			this.referenceLayerRms = referenceLayerRms;
+			this.seconds = seconds;
+			this.error = error;
+		}
+
+		/* failed variants and variants without residuals rank last */
+		double score() {
+
+			final double score = referenceRms + (Double.isNaN(referenceLayerRms) ? 0 : referenceLayerRms);
+			return error != null || Double.isNaN(score) ? Double.POSITIVE_INFINITY : score;
+		}
+	}
+
+	private static double mean(final double[] values, final int first) {
+
+		double sum = 0;
+		int n = 0;
+		for (int i = first; i < values.length; ++i) {
+			if (!Double.isNaN(values[i])) {
+				sum += values[i];
+				++n;
+			}
+		}
+		return n == 0 ? Double.NaN : sum / n;
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		final String dirPath = inputDir.endsWith(File.separator)
+			? inputDir.substring(0, inputDir.length() - 1)
+			: inputDir;
+		final String outdir = outputDir.endsWith(File.separator)
+			? outputDir.substring(0, outputDir.length() - 1)
+			: outputDir;
+
+		try {
+			final CalibrationParams calibParams = calibrationParamsPath != null
+					? CalibrationParams.load(calibrationParamsPath)
+					: CalibrationParams.loadFromResource("/calibration-params.json");
+			final InputParamsSplit inputParams = gson.fromJson(
+					Files.readString(Paths.get(inputParamsPath)),
+					InputParamsSplit.class);
+			final List<JsonObject> variants = SweepParams.load(sweepPath).expand();
+			if (variants.isEmpty())
+				throw new IllegalArgumentException("no variants in " + sweepPath);
+
+			/* validate all variants before the expensive part */
+			final ArrayList<CorrectDistortionParams> variantParams = new ArrayList<>();
+			for (final JsonObject overrides : variants) {
+				final CorrectDistortionParams params = SweepParams.apply(calibParams.getCorrectDistortion(), overrides);
+				CalibrationMatches.checkSweepOverrides(overrides, params);
+				CalibrationMatches.checkSolverParams(params);
+				variantParams.add(params);
+			}
+			System.out.println(variants.size() + " variants");
+
+			/* MIPs and masks, shared read-only by all variants */
+			final String[] extensions = {"lsm", "LSM", "tif", "TIF", "tiff", "TIFF"};
+			final List<String> flist = CalibrateSplit.findFiles(Paths.get(dirPath), extensions);
+			flist.sort(Comparator.naturalOrder());
+			System.out.println("Found " + flist.size() + " files in " + dirPath + " with extensions: " + Arrays.toString(extensions));
+			final HashMap<String, List<ImagePlus>> mapMips = new MipGenerator(numMipThreads, numThreads, 127, 127, 3.0f, mipCacheDir).generate(flist, inputParams.getPatterns());
+			if (mapMips.size() == 0)
+				throw new RuntimeException("mip creation failed.");
+
+			int layernum = 0;
+			final HashMap<Integer, ArrayList<FloatProcessor>> layerTiles = new HashMap<Integer, ArrayList<FloatProcessor>>();
+			final HashMap<Integer, ArrayList<double[]>> layerPositions = new HashMap<Integer, ArrayList<double[]>>();
+			final StagePositions stagePositions = stagePositionsSource == null ? null : new StagePositions(stagePositionsSource);
+			final HashMap<String, List<String>> patternFiles = MipGenerator.assign(flist, inputParams.getPatterns());
+			for (final Map.Entry<String, List<ImagePlus>> entry : mapMips.entrySet()) {
+				final List<ImagePlus> implist = entry.getValue();
+				int maxChNum = 0;
+				for (int i = 0; i < implist.size(); i++) {
+					final double[] position = stagePositions == null ? null : stagePositions.get(patternFiles.get(entry.getKey()).get(i));
+					int layerId = layernum;
+					final ImageStack sstack = implist.get(i).getStack();
+					for (int s = 1; s <= sstack.getSize(); s++) {
+						layerTiles.computeIfAbsent(layerId, k -> new ArrayList<FloatProcessor>()).add(sstack.getProcessor(s).convertToFloatProcessor());
+						if (position != null)
+							layerPositions.computeIfAbsent(layerId, k -> new ArrayList<double[]>()).add(position);
+						layerId++;
+					}
+					if (layerId > maxChNum)
+						maxChNum = layerId;
+				}
+				layernum = maxChNum;
+			}
+			final ArrayList<List<FloatProcessor>> tiles = new ArrayList<List<FloatProcessor>>();
+			final ArrayList<List<double[]>> positions = stagePositions == null ? null : new ArrayList<List<double[]>>();
+			for (int i = 0; i < layernum; i++) {
+				tiles.add(layerTiles.get(i));
+				if (positions != null)
+					positions.add(layerPositions.get(i));
+			}
+
+			final ArrayList<ByteProcessor> masks = new ArrayList<ByteProcessor>();
+			if (inputParams.getMasks() != null)
+				for (final String inputMask : inputParams.getMasks())
+					masks.add(IJ.openImage(dirPath + File.separator + inputMask).getProcessor().convertToByteProcessor());
+
+			FileUtils.forceMkdir(new File(outdir));
+
+			/* reference matches to rank all variants on */
+			final FeatureCache featureCache = new FeatureCache(null);
+			final BeadDetector beadDetector = correspondence.createBeadDetector();
+			final MatchSet referenceMatches = referenceMatchesPath != null
+					? MatchSet.read(Paths.get(referenceMatchesPath))
+					: CalibrationMatches.compute(tiles, masks, positions, calibParams.getCorrectDistortion(), featureCache, beadDetector, numThreads);
+			if (referenceMatches.getNumLayers() != tiles.size())
+				throw new IllegalArgumentException(
+						"reference matches have " + referenceMatches.getNumLayers() + " layers but there are " + tiles.size());
+			if (referenceMatches.getWidth() != tiles.get(0).get(0).getWidth() || referenceMatches.getHeight() != tiles.get(0).get(0).getHeight())
+				throw new IllegalArgumentException(String.format(
+						"reference matches are %d x %d px but the MIPs are %d x %d px",
+						referenceMatches.getWidth(), referenceMatches.getHeight(), tiles.get(0).get(0).getWidth(), tiles.get(0).get(0).getHeight()));
+			System.out.println(referenceMatches.getNumMatches() + " reference matches");
+
+			/* variants, within the thread and free heap budget */
+			int numConcurrent = Math.max(1, Math.min(numVariantThreads, variants.size()));
+			final Runtime runtime = Runtime.getRuntime();
+			final double freeMemory = (runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory()) / 1024.0 / 1024.0 / 1024.0;
+			if (variantMemory > 0)
+				numConcurrent = Math.max(1, Math.min(numConcurrent, (int)(freeMemory / variantMemory)));
+			final int numThreadsPerVariant = Math.max(1, numThreads / numConcurrent);
+			System.out.printf("%d variants concurrently with %d threads each, %.1f GB free heap%n", numConcurrent, numThreadsPerVariant, freeMemory);
+			final ExecutorService exec = Executors.newFixedThreadPool(numConcurrent);
+			final ArrayList<Future<Result>> futures = new ArrayList<>();
+			for (int v = 0; v < variants.size(); ++v) {
+				final int variant = v;
+				futures.add(exec.submit(() -> {
+					final JsonObject overrides = variants.get(variant);
+					final long t0 = System.nanoTime();
+					try {
+						final CorrectDistortionParams params = variantParams.get(variant);
+						final MatchSet matchSet = CalibrationMatches.compute(tiles, masks, positions, params, featureCache, beadDetector, numThreadsPerVariant);
+						final DistortionSolver.Solution solution = CalibrationMatches.solve(matchSet, params, numThreadsPerVariant);
+						final DistortionSolver.Solution reference = CalibrationMatches.evaluate(referenceMatches, params, solution.distortions, numThreadsPerVariant);
+						final ArrayList<HashMap<String, Object>> transformExports = CalibrationMatches.export(solution, projectName, inputParams.getLabels());
+						Files.write(
+								Paths.get(outdir, String.format("%s_sweep_%03d.json", projectName, variant)),
+								gson.toJson(transformExports).getBytes());
+						final Result result = new Result(
+								variant,
+								overrides,
+								matchSet.getNumMatches(),
+								mean(solution.rms, 0),
+								mean(solution.layerRms, 1),
+								mean(reference.rms, 0),
+								mean(reference.layerRms, 1),
+								(System.nanoTime() - t0) * 1e-9,
+								null);
+						System.out.printf(
+								"variant %d %s: reference rms %.3f px, reference layer rms %.3f px, rms %.3f px, layer rms %.3f px, %.1f s%n",
+								variant, overrides, result.referenceRms, result.referenceLayerRms, result.rms, result.layerRms, result.seconds);
+						return result;
+					} catch (final Exception e) {
+						System.err.println("variant " + variant + " " + overrides + " failed: " + e);
+						return new Result(variant, overrides, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, (System.nanoTime() - t0) * 1e-9, e.toString());
+					}
+				}));
+			}
+			final ArrayList<Result> results = new ArrayList<>();
+			try {
+				for (final Future<Result> future : futures)
+					results.add(future.get());
+			} finally {
+				exec.shutdownNow();
+			}
+
+			/* ranked table */
+			results.sort(Comparator.comparingDouble(Result::score));
+			final StringBuilder table = new StringBuilder("rank\tvariant\treference_rms\treference_layer_rms\trms\tlayer_rms\tmatches\tseconds\toverrides\terror\n");
+			for (int r = 0; r < results.size(); ++r) {
+				final Result result = results.get(r);
+				table.append(String.format(
+						"%d\t%d\t%.4f\t%.4f\t%.4f\t%.4f\t%d\t%.1f\t%s\t%s%n",
+						r + 1,
+						result.variant,
+						result.referenceRms,
+						result.referenceLayerRms,
+						result.rms,
+						result.layerRms,
+						result.numMatches,
+						result.seconds,
+						result.overrides,
+						result.error == null ? "" : result.error));
+			}
+			final String tablePath = outdir + File.separator + projectName + "_sweep.tsv";
+			Files.write(Paths.get(tablePath), table.toString().getBytes());
+			System.out.print(table);
+
+			System.out.println("Done");
+			return 0;
+
+		} catch (final Exception e) {
+			e.printStackTrace();
+			return 1;
+		}
+	}
+
+	public static void main(final String[] args) {
+		final Integer exitCode = new CommandLine(new CalibrateSweep()).execute(args);
+		System.exit(exitCode);
+	}
+}
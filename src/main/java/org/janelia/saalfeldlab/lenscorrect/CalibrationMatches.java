@@ -0,0 +1,681 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.lenscorrect.json.CalibrationParams;
+import org.janelia.saalfeldlab.lenscorrect.json.CorrectDistortionParams;
+import org.janelia.saalfeldlab.lenscorrect.solve.BeadDetector;
+import org.janelia.saalfeldlab.lenscorrect.solve.DistortionSolver;
+import org.janelia.saalfeldlab.lenscorrect.solve.MatchSet;
+import org.janelia.saalfeldlab.lenscorrect.solve.MatchSet.TileMatches;
+import org.janelia.saalfeldlab.lenscorrect.solve.PolynomialDistortion;
+
+import com.google.gson.JsonObject;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.SimilarityModel2D;
+import mpicbg.models.TranslationModel2D;
+
+/**
+ * Inlier point matches of the calibration MIPs and the solver-only
+ * re-run that fits the lens distortion from them.
+ *
+ * Matches are computed with the SIFT and RANSAC parameters of the
+ * distortion correction stage, or from sub-pixel bead locations, between all
+ * pairs of tiles of a layer, or only the pairs that overlap at their stage
+ * positions (montage), and between each tile and the same tile of the first
+ * layer (layer alignment).  Feature matching and RANSAC do not depend on the
+ * optimizer parameters, so a calibration can be re-run from the stored
+ * matches with a different desired model, polynomial dimension or lambda in
+ * seconds.  The native solver regularizes the tiles like TrakEM2 but does
+ * not use the TrakEM2 optimizer limits, see {@link #checkSolverParams}.
+ */
+class CalibrationMatches {
+
+	/**
+	 * Calibration engines of the calibrate commands.  TRAKEM2 runs the staged
+	 * TrakEM2 montage, alignment and distortion correction, NATIVE fits the
+	 * lens distortion and layer affines jointly from the matches of the
+	 * in-memory MIPs without creating a TrakEM2 project, and BOTH runs the
+	 * two for comparison.
+	 */
+	enum Engine {
+		TRAKEM2,
+		NATIVE,
+		BOTH
+	}
+
+	private static final int NUM_BEAD_NEIGHBOURS = 3;
+
+	/* correctDistortion parameters that neither the matching nor the native solver use */
+	private static final String[] UNUSED_PARAMS = {
+			"multipleHypotheses",
+			"rejectIdentity",
+			"identityTolerance",
+			"tilesAreInPlace",
+			"maxIterationsOptimize",
+			"maxPlateauwidthOptimize",
+			"clearTransform"};
+
+	private static CorrectDistortionParams defaults = null;
+
+	private CalibrationMatches() {}
+
+	private static synchronized CorrectDistortionParams defaults() {
+
+		if (defaults == null) {
+			try {
+				defaults = CalibrationParams.loadFromResource("/calibration-params.json").getCorrectDistortion();
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return defaults;
+	}
+
+	private static void warnIgnored(final String name, final double value, final double defaultValue) {
+
+		if (value != defaultValue)
+			System.out.println(
+					"warning: the native solver ignores correctDistortion." + name + " " + value +
+					" (default " + defaultValue + ")");
+	}
+
+	/**
+	 * Reject or report the distortion correction parameters that the native
+	 * solver does not honour.  A lambdaRegularize of 1 or more is rejected
+	 * with regularization.  Rigid desired and regularizer models are fit as
+	 * similarities, and the TrakEM2 optimizer limits are ignored because the
+	 * solver runs a fixed number of Gauss-Newton iterations; each is reported
+	 * if it differs from the built-in defaults.
+	 *
+	 * @param params distortion correction parameters
+	 * @throws IllegalArgumentException if lambdaRegularize is out of range
+	 */
+	static void checkSolverParams(final CorrectDistortionParams params) {
+
+		if (params.getDesiredModelIndex() == 1)
+			System.out.println("warning: the native solver fits correctDistortion.desiredModelIndex 1 (rigid) as a similarity");
+		if (params.isRegularize()) {
+			if (!(params.getLambdaRegularize() >= 0 && params.getLambdaRegularize() < 1))
+				throw new IllegalArgumentException(
+						"the native solver needs correctDistortion.lambdaRegularize in [0, 1) but it is " + params.getLambdaRegularize());
+			if (params.getRegularizerIndex() == 1)
+				System.out.println("warning: the native solver fits correctDistortion.regularizerIndex 1 (rigid) as a similarity");
+		}
+
+		final CorrectDistortionParams defaults = defaults();
+		warnIgnored("maxIterationsOptimize", params.getMaxIterationsOptimize(), defaults.getMaxIterationsOptimize());
+		warnIgnored("maxPlateauwidthOptimize", params.getMaxPlateauwidthOptimize(), defaults.getMaxPlateauwidthOptimize());
+	}
+
+	/**
+	 * Reject the overrides of a calibrate-sweep variant that the matching and
+	 * the native solver do not use, a grid over them would only produce
+	 * identical variants.  The regularizer is used only with regularize.
+	 *
+	 * @param overrides correctDistortion overrides of the variant
+	 * @param params correctDistortion parameters of the variant
+	 * @throws IllegalArgumentException for an unused override
+	 */
+	static void checkSweepOverrides(final JsonObject overrides, final CorrectDistortionParams params) {
+
+		for (final String name : UNUSED_PARAMS)
+			if (overrides.has(name))
+				throw new IllegalArgumentException(
+						"calibrate-sweep does not use correctDistortion." + name + ", remove it from the sweep");
+		if (!params.isRegularize())
+			for (final String name : new String[] {"regularizerIndex", "lambdaRegularize"})
+				if (overrides.has(name))
+					throw new IllegalArgumentException(
+							"correctDistortion." + name + " has no effect without regularize, set regularize to true in the sweep or -p");
+	}
+
+	private static Model<?> createModel(final int modelIndex) {
+
+		switch (modelIndex) {
+		case 0:
+			return new TranslationModel2D();
+		case 1:
+			return new RigidModel2D();
+		case 2:
+			return new SimilarityModel2D();
+		case 3:
+			return new AffineModel2D();
+		default:
+			throw new IllegalArgumentException("unsupported model index " + modelIndex);
+		}
+	}
+
+	private static boolean inside(final ByteProcessor mask, final double x, final double y) {
+
+		return mask == null || mask.getPixel((int)Math.round(x), (int)Math.round(y)) != 0;
+	}
+
+	/**
+	 * RANSAC filtered matches between two tiles, null if there are not
+	 * enough inliers.
+	 */
+	private static ArrayList<PointMatch> match(
+			final List<Feature> fsA,
+			final List<Feature> fsB,
+			final CorrectDistortionParams params) {
+
+		final ArrayList<PointMatch> candidates = Align.matchFeatures(fsA, fsB, params.getRod());
+		final ArrayList<PointMatch> inliers = new ArrayList<>();
+		try {
+			if (!createModel(params.getExpectedModelIndex()).filterRansac(
+					candidates,
+					inliers,
+					1000,
+					params.getMaxEpsilon(),
+					params.getMinInlierRatio(),
+					params.getMinNumInliers()))
+				return null;
+		} catch (final NotEnoughDataPointsException e) {
+			return null;
+		}
+		return inliers;
+	}
+
+	/**
+	 * Beads of a tile as features, the descriptor of a bead is the offsets to
+	 * its {@link #NUM_BEAD_NEIGHBOURS} nearest neighbours.
+	 */
+	private static ArrayList<Feature> beadFeatures(final FloatProcessor ip, final BeadDetector beadDetector) {
+
+		final List<double[]> beads = beadDetector.detect((float[])ip.getPixels(), ip.getWidth(), ip.getHeight());
+		final float[][] descriptors = BeadDetector.descriptors(beads, NUM_BEAD_NEIGHBOURS);
+		final ArrayList<Feature> fs = new ArrayList<>();
+		for (int i = 0; i < beads.size(); ++i)
+			if (descriptors[i] != null)
+				fs.add(new Feature(1, 0, beads.get(i), descriptors[i]));
+		return fs;
+	}
+
+	private static ArrayList<Feature> extractFeatures(
+			final FloatProcessor ip,
+			final FloatArray2DSIFT.Param p,
+			final FeatureCache cache,
+			final BeadDetector beadDetector) {
+
+		if (beadDetector != null)
+			return beadFeatures(ip, beadDetector);
+		final String key = cache == null ? null : FeatureCache.key(ip, p);
+		if (cache != null) {
+			final ArrayList<Feature> cached = cache.get(key);
+			if (cached != null)
+				return cached;
+		}
+		final ArrayList<Feature> fs = new ArrayList<>();
+		new SIFT(new FloatArray2DSIFT(p.clone())).extractFeatures(ip, fs);
+		if (cache != null)
+			cache.put(key, fs);
+		return fs;
+	}
+
+	/**
+	 * SHA-1 of the size and pixels of a tile.
+	 */
+	static String tileId(final FloatProcessor ip) {
+
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		final float[] pixels = (float[])ip.getPixels();
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + 4 * pixels.length);
+		buffer.putInt(ip.getWidth()).putInt(ip.getHeight());
+		buffer.asFloatBuffer().put(pixels);
+		digest.update(buffer.array());
+		final StringBuilder id = new StringBuilder();
+		for (final byte b : digest.digest())
+			id.append(String.format("%02x", b));
+		return id.toString();
+	}
+
+	/**
+	 * @return for each tile, its index in the previous matches, -1 for new
+	 *     tiles
+	 */
+	private static int[][] previousIndices(final MatchSet previous, final String[][] tileIds) {
+
+		if (previous.getTileIds() == null)
+			throw new IllegalArgumentException("previous matches have no tile ids, export them again with --export-matches");
+		if (previous.getNumLayers() != tileIds.length)
+			throw new IllegalArgumentException(
+					"previous matches have " + previous.getNumLayers() + " layers but there are " + tileIds.length);
+
+		final int[][] indices = new int[tileIds.length][];
+		for (int l = 0; l < tileIds.length; ++l) {
+			final HashMap<String, Integer> previousTiles = new HashMap<>();
+			final String[] previousIds = previous.getTileIds()[l];
+			for (int t = 0; t < previousIds.length; ++t)
+				previousTiles.put(previousIds[t], t);
+			indices[l] = new int[tileIds[l].length];
+			for (int t = 0; t < tileIds[l].length; ++t)
+				indices[l][t] = previousTiles.getOrDefault(tileIds[l][t], -1);
+		}
+		return indices;
+	}
+
+	private static TileMatches toTileMatches(
+			final int layerA,
+			final int tileA,
+			final int layerB,
+			final int tileB,
+			final List<PointMatch> inliers,
+			final ByteProcessor mask,
+			final int minNumInliers) {
+
+		final ArrayList<PointMatch> masked = new ArrayList<>();
+		for (final PointMatch m : inliers) {
+			final double[] p = m.getP1().getL();
+			final double[] q = m.getP2().getL();
+			if (inside(mask, p[0], p[1]) && inside(mask, q[0], q[1]))
+				masked.add(m);
+		}
+		if (masked.size() < minNumInliers)
+			return null;
+
+		final float[] locations = new float[4 * masked.size()];
+		for (int i = 0; i < masked.size(); ++i) {
+			final double[] p = masked.get(i).getP1().getL();
+			final double[] q = masked.get(i).getP2().getL();
+			locations[4 * i] = (float)p[0];
+			locations[4 * i + 1] = (float)p[1];
+			locations[4 * i + 2] = (float)q[0];
+			locations[4 * i + 3] = (float)q[1];
+		}
+		return new TileMatches(layerA, tileA, layerB, tileB, locations);
+	}
+
+	/**
+	 * Compute the inlier matches of all channel layers.  With masks, every
+	 * channel layer becomes one layer per mask, in the order of the TrakEM2
+	 * layers (channel * numMasks + mask), and only matches inside the mask are
+	 * kept.
+	 *
+	 * @param layerTiles the contrast normalized MIP slices of each channel
+	 * @param masks masks, null or empty for no masks
+	 * @param layerPositions stage positions of the tiles of each channel,
+	 *     null to match all pairs of tiles
+	 * @param params distortion correction parameters
+	 * @param cache feature cache, may be null
+	 * @param beadDetector match beads instead of SIFT features, null for SIFT
+	 * @param numThreads
+	 * @return the match set
+	 */
+	static MatchSet compute(
+			final List<List<FloatProcessor>> layerTiles,
+			final List<ByteProcessor> masks,
+			final List<List<double[]>> layerPositions,
+			final CorrectDistortionParams params,
+			final FeatureCache cache,
+			final BeadDetector beadDetector,
+			final int numThreads) throws InterruptedException, ExecutionException {
+
+		return compute(layerTiles, null, masks, layerPositions, params, cache, beadDetector, null, null, numThreads);
+	}
+
+	/**
+	 * @param layerTiles the tiles of each channel layer
+	 * @return the ids of the tiles of each channel layer
+	 */
+	static String[][] tileIds(final List<List<FloatProcessor>> layerTiles) {
+
+		final String[][] tileIds = new String[layerTiles.size()][];
+		for (int l = 0; l < tileIds.length; ++l) {
+			tileIds[l] = new String[layerTiles.get(l).size()];
+			for (int t = 0; t < tileIds[l].length; ++t)
+				tileIds[l][t] = tileId(layerTiles.get(l).get(t));
+		}
+		return tileIds;
+	}
+
+	/**
+	 * Compute the inlier matches of a subset of the channel layers, the
+	 * matches within these layers and with the first layer.  The match sets
+	 * of disjoint subsets can be merged with {@link MatchSet#addAll}.
+	 *
+	 * Tiles are identified by a hash of their MIP.  With the matches of a
+	 * previous calibration of the same layers, the previous matches between
+	 * tiles that both exist in the previous calibration are reused, and only
+	 * pairs with a new tile are matched, i.e. with stage positions only the
+	 * new tiles and their neighbours.
+	 *
+	 * @param layerTiles the contrast normalized MIP slices of each channel,
+	 *     null for channels that are neither matched nor the first channel
+	 * @param tileIds the ids of the tiles of each channel, see
+	 *     {@link #tileId(FloatProcessor)}, null to compute them from
+	 *     layerTiles, which then must have the tiles of all channels
+	 * @param masks masks, null or empty for no masks
+	 * @param layerPositions stage positions of the tiles of each channel,
+	 *     null to match all pairs of tiles
+	 * @param params distortion correction parameters
+	 * @param cache feature cache, may be null
+	 * @param beadDetector match beads instead of SIFT features, null for SIFT
+	 * @param shardLayers the channel layers to match, null for all
+	 * @param previous matches of a previous calibration, null to match all
+	 *     pairs
+	 * @param numThreads
+	 * @return the match set
+	 */
+	static MatchSet compute(
+			final List<List<FloatProcessor>> layerTiles,
+			final String[][] tileIds,
+			final List<ByteProcessor> masks,
+			final List<List<double[]>> layerPositions,
+			final CorrectDistortionParams params,
+			final FeatureCache cache,
+			final BeadDetector beadDetector,
+			final List<Integer> shardLayers,
+			final MatchSet previous,
+			final int numThreads) throws InterruptedException, ExecutionException {
+
+		final List<ByteProcessor> layerMasks = new ArrayList<>();
+		if (masks == null || masks.isEmpty())
+			layerMasks.add(null);
+		else
+			layerMasks.addAll(masks);
+		final int numMasks = layerMasks.size();
+
+		final String[][] channelTileIds = tileIds == null ? tileIds(layerTiles) : tileIds;
+		final int numChannels = channelTileIds.length;
+		final int[] numTiles = new int[numChannels * numMasks];
+		for (int l = 0; l < numChannels; ++l)
+			for (int j = 0; j < numMasks; ++j)
+				numTiles[l * numMasks + j] = channelTileIds[l].length;
+		final FloatProcessor first = layerTiles.get(0).get(0);
+		final MatchSet matchSet = new MatchSet(first.getWidth(), first.getHeight(), numTiles);
+
+		final FloatArray2DSIFT.Param p = new FloatArray2DSIFT.Param();
+		p.initialSigma = (float)params.getInitialSigma();
+		p.steps = params.getSteps();
+		p.minOctaveSize = params.getMinOctaveSize();
+		p.maxOctaveSize = params.getMaxOctaveSize();
+		p.fdSize = params.getFdSize();
+		p.fdBins = params.getFdBins();
+
+		final String[][] layerTileIds = new String[numTiles.length][];
+		for (int l = 0; l < numChannels; ++l)
+			for (int j = 0; j < numMasks; ++j)
+				layerTileIds[l * numMasks + j] = channelTileIds[l];
+		matchSet.setTileIds(layerTileIds);
+
+		/* previous matches between previous tiles */
+		final int[][] previousIndices = previous == null ? null : previousIndices(previous, layerTileIds);
+		int numReused = 0;
+		if (previous != null) {
+			final int[][] newIndices = new int[numTiles.length][];
+			for (int l = 0; l < numTiles.length; ++l) {
+				newIndices[l] = new int[previous.getNumTiles(l)];
+				Arrays.fill(newIndices[l], -1);
+				for (int t = 0; t < numTiles[l]; ++t)
+					if (previousIndices[l][t] >= 0)
+						newIndices[l][previousIndices[l][t]] = t;
+			}
+			for (final TileMatches m : previous.getMatches()) {
+				if (shardLayers != null && !shardLayers.contains(m.layerA / numMasks))
+					continue;
+				final int tileA = newIndices[m.layerA][m.tileA];
+				final int tileB = newIndices[m.layerB][m.tileB];
+				if (tileA >= 0 && tileB >= 0) {
+					matchSet.add(m.withTiles(tileA, tileB));
+					++numReused;
+				}
+			}
+		}
+
+		/* {layerA, tileA, layerB, tileB} of the channel layers, montage pairs within, and same tile pairs across layers */
+		final ArrayList<int[]> pairs = new ArrayList<>();
+		for (int l = 0; l < numChannels; ++l) {
+			if (shardLayers != null && !shardLayers.contains(l))
+				continue;
+			final int numLayerTiles = layerTiles.get(l).size();
+			final List<int[]> layerPairs;
+			if (layerPositions == null) {
+				layerPairs = new ArrayList<>();
+				for (int a = 0; a < numLayerTiles; ++a)
+					for (int b = a + 1; b < numLayerTiles; ++b)
+						layerPairs.add(new int[] {a, b});
+			} else
+				layerPairs = StagePositions.overlappingPairs(layerPositions.get(l), first.getWidth(), first.getHeight());
+			for (final int[] pair : layerPairs)
+				pairs.add(new int[] {l, pair[0], l, pair[1]});
+			if (l > 0)
+				for (int a = 0; a < Math.min(numLayerTiles, layerTiles.get(0).size()); ++a)
+					pairs.add(new int[] {l, a, 0, a});
+		}
+		if (previousIndices != null) {
+			final int numPairs = pairs.size();
+			pairs.removeIf(pair ->
+					previousIndices[pair[0] * numMasks][pair[1]] >= 0 &&
+					previousIndices[pair[2] * numMasks][pair[3]] >= 0);
+			System.out.println("matching " + pairs.size() + " of " + numPairs + " tile pairs with new tiles, reusing the matches of " + numReused + " tile pairs");
+		}
+
+		final ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		try {
+			/* features of the tiles of all pairs, before the matching tasks that wait for them */
+			final ArrayList<ArrayList<Future<ArrayList<Feature>>>> features = new ArrayList<>();
+			for (final String[] ids : channelTileIds)
+				features.add(new ArrayList<>(Collections.nCopies(ids.length, null)));
+			for (final int[] pair : pairs) {
+				for (int end = 0; end < 4; end += 2) {
+					final FloatProcessor ip = layerTiles.get(pair[end]).get(pair[end + 1]);
+					if (features.get(pair[end]).get(pair[end + 1]) == null)
+						features.get(pair[end]).set(pair[end + 1], exec.submit(() -> extractFeatures(ip, p, cache, beadDetector)));
+				}
+			}
+
+			final ArrayList<Future<Void>> futures = new ArrayList<>();
+			for (final int[] pair : pairs) {
+				futures.add(exec.submit(() -> {
+					final ArrayList<PointMatch> inliers = match(
+							features.get(pair[0]).get(pair[1]).get(),
+							features.get(pair[2]).get(pair[3]).get(),
+							params);
+					if (inliers != null) {
+						for (int j = 0; j < numMasks; ++j) {
+							final TileMatches tm = toTileMatches(
+									pair[0] * numMasks + j, pair[1], pair[2] * numMasks + j, pair[3],
+									inliers, layerMasks.get(j), params.getMinNumInliers());
+							if (tm != null)
+								matchSet.add(tm);
+						}
+					}
+					return null;
+				}));
+			}
+			for (final Future<Void> future : futures)
+				future.get();
+		} finally {
+			exec.shutdownNow();
+		}
+
+		System.out.println(matchSet.getNumMatches() + " inlier matches in " + matchSet.getMatches().size() + " tile pairs");
+		return matchSet;
+	}
+
+	/**
+	 * Fit the lens distortion and export affine of each layer from stored
+	 * matches.
+	 *
+	 * @param matchSet
+	 * @param params distortion correction parameters
+	 * @param numThreads
+	 * @return the solution
+	 */
+	static DistortionSolver.Solution solve(
+			final MatchSet matchSet,
+			final CorrectDistortionParams params,
+			final int numThreads) throws InterruptedException, ExecutionException {
+
+		return solve(matchSet, params, null, numThreads);
+	}
+
+	/**
+	 * Fit the lens distortion and export affine of each layer from stored
+	 * matches, starting from the distortions of a previous calibration.
+	 * Callers check the parameters with {@link #checkSolverParams} first.
+	 *
+	 * @param matchSet
+	 * @param params distortion correction parameters
+	 * @param previous distortion of each layer, null or null entries for the
+	 *     identity
+	 * @param numThreads
+	 * @return the solution
+	 */
+	static DistortionSolver.Solution solve(
+			final MatchSet matchSet,
+			final CorrectDistortionParams params,
+			final PolynomialDistortion[] previous,
+			final int numThreads) throws InterruptedException, ExecutionException {
+
+		return solver(params, numThreads).solve(matchSet, previous);
+	}
+
+	/**
+	 * Residuals of the distortions of a solution on other matches, with the
+	 * tiles and layers fit to them, e.g. to compare solutions from
+	 * differently filtered matches on the same matches.
+	 *
+	 * @param matchSet matches to evaluate on
+	 * @param params distortion correction parameters
+	 * @param distortions distortion of each layer
+	 * @param numThreads
+	 * @return the solution with the given distortions
+	 */
+	static DistortionSolver.Solution evaluate(
+			final MatchSet matchSet,
+			final CorrectDistortionParams params,
+			final PolynomialDistortion[] distortions,
+			final int numThreads) throws InterruptedException, ExecutionException {
+
+		return solver(params, numThreads).evaluate(matchSet, distortions);
+	}
+
+	private static DistortionSolver solver(final CorrectDistortionParams params, final int numThreads) {
+
+		return new DistortionSolver(
+				DistortionSolver.TileModel.fromModelIndex(params.getDesiredModelIndex()),
+				params.isRegularize() ? DistortionSolver.TileModel.fromModelIndex(params.getRegularizerIndex()) : null,
+				params.getLambdaRegularize(),
+				params.getDimension(),
+				params.getLambda(),
+				10,
+				numThreads);
+	}
+
+	/**
+	 * Export a solution like the TrakEM2 calibration.
+	 *
+	 * @param solution
+	 * @param projectName
+	 * @param labels one label per layer
+	 * @return the transform exports
+	 */
+	static ArrayList<HashMap<String, Object>> export(
+			final DistortionSolver.Solution solution,
+			final String projectName,
+			final List<String> labels) {
+
+		final int numLayers = solution.distortions.length;
+		if (labels.size() < numLayers)
+			throw new IllegalArgumentException(
+					"matches have " + numLayers + " layers but there are only " + labels.size() + " labels");
+
+		final ArrayList<HashMap<String, Object>> transformExports = new ArrayList<HashMap<String, Object>>();
+		for (int l = 0; l < numLayers; ++l) {
+			final PolynomialDistortion distortion = solution.distortions[l];
+			final HashMap<String, String> nonLinear = new HashMap<String, String>();
+			nonLinear.put("className", "mpicbg.trakem2.transform.NonLinearCoordinateTransform");
+			nonLinear.put("dataString", distortion.toDataString());
+			final HashMap<String, String> affine = new HashMap<String, String>();
+			affine.put("className", "mpicbg.trakem2.transform.AffineModel2D");
+			affine.put("dataString", DistortionSolver.affineDataString(solution.affines[l]));
+
+			final List<HashMap<String, String>> maplist = new ArrayList<HashMap<String, String>>();
+			maplist.add(nonLinear);
+			maplist.add(affine);
+			final HashMap<String, Object> export = new HashMap<String, Object>();
+			export.put("name", String.format("%s, %s", projectName, labels.get(l)));
+			export.put("transform", maplist);
+			transformExports.add(export);
+		}
+		return transformExports;
+	}
+
+	/**
+	 * Fit the lens distortion and export affine of each layer from stored
+	 * matches, exported like the TrakEM2 calibration.  With a warm start, the
+	 * solver starts from the previous lens of each layer that has the same
+	 * polynomial dimension and frame size.
+	 *
+	 * @param matchSet
+	 * @param params distortion correction parameters
+	 * @param projectName
+	 * @param labels one label per layer
+	 * @param warmStart previous calibration, may be null
+	 * @param numThreads
+	 * @return the transform exports
+	 */
+	static ArrayList<HashMap<String, Object>> resolve(
+			final MatchSet matchSet,
+			final CorrectDistortionParams params,
+			final String projectName,
+			final List<String> labels,
+			final WarmStart warmStart,
+			final int numThreads) throws InterruptedException, ExecutionException {
+
+		if (labels.size() < matchSet.getNumLayers())
+			throw new IllegalArgumentException(
+					"matches have " + matchSet.getNumLayers() + " layers but there are only " + labels.size() + " labels");
+
+		PolynomialDistortion[] previous = null;
+		if (warmStart != null) {
+			previous = new PolynomialDistortion[matchSet.getNumLayers()];
+			for (int l = 0; l < previous.length; ++l) {
+				final PolynomialDistortion distortion = warmStart.distortion(labels.get(l), l);
+				if (distortion == null ||
+						distortion.getDimension() != params.getDimension() ||
+						distortion.getWidth() != matchSet.getWidth() ||
+						distortion.getHeight() != matchSet.getHeight())
+					System.out.println("previous lens of " + labels.get(l) + " does not fit the solver, starting from the identity");
+				else
+					previous[l] = distortion;
+			}
+		}
+
+		final DistortionSolver.Solution solution = solve(matchSet, params, previous, numThreads);
+		for (int l = 0; l < matchSet.getNumLayers(); ++l)
+			System.out.printf("%s: montage rms %.3f px, layer rms %.3f px%n", labels.get(l), solution.rms[l], solution.layerRms[l]);
+
+		return export(solution, projectName, labels);
+	}
+}
@@ -0,0 +1,151 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.EnumSet;
+
+import ini.trakem2.Project;
+
+/**
+ * Stage checkpoints of the calibrate commands.
+ *
+ * After each stage, the TrakEM2 project is saved and the set of completed
+ * stages is written to a marker file next to it, one name per line.
+ * Completing a stage invalidates the stages after it because they ran on the
+ * project before the change.  A resumed run reopens the saved project and
+ * continues after the completed stages at the start of the stage order, so
+ * that stages skipped by a selection like <code>--stages EXPORT</code> run
+ * on resume.  A run can be restricted to a selection of stages, e.g. to redo
+ * only the final alignment and export.  Stages that run on an existing
+ * project require that the patches stage has completed before.
+ */
+class Checkpoints {
+
+	/**
+	 * Calibration stages in the order they run.
+	 */
+	enum Stage {
+		PATCHES,
+		MONTAGE,
+		ALIGN,
+		CORRECT_DISTORTION,
+		MONTAGE2,
+		ALIGN2,
+		ALIGN3,
+		EXPORT,
+		COMPARE
+	}
+
+	private final Path markerPath;
+	private final EnumSet<Stage> stages;
+	private final EnumSet<Stage> completed;
+	private final Stage lastCompleted;
+
+	/**
+	 * @param markerPath stage marker file
+	 * @param resume skip the completed stages at the start of the stage
+	 *     order of the marker
+	 * @param stages stages to run, null or empty for all
+	 */
+	Checkpoints(final Path markerPath, final boolean resume, final Collection<Stage> stages) throws IOException {
+
+		this.markerPath = markerPath;
+		this.stages = stages == null || stages.isEmpty() ? EnumSet.allOf(Stage.class) : EnumSet.copyOf(stages);
+
+		completed = Files.exists(markerPath) ? read(markerPath) : EnumSet.noneOf(Stage.class);
+		if (resume) {
+			lastCompleted = lastCompleted(completed);
+			if (lastCompleted != null)
+				System.out.println("resuming after stage " + lastCompleted);
+			else
+				System.out.println("no checkpoint of stage " + Stage.PATCHES + " at " + markerPath + ", starting from the beginning");
+		} else
+			lastCompleted = null;
+	}
+
+	private static EnumSet<Stage> read(final Path markerPath) throws IOException {
+
+		final EnumSet<Stage> completed = EnumSet.noneOf(Stage.class);
+		for (final String name : new String(Files.readAllBytes(markerPath), StandardCharsets.UTF_8).split("\\s+"))
+			if (!name.isEmpty())
+				completed.add(Stage.valueOf(name));
+		return completed;
+	}
+
+	/**
+	 * @param completed
+	 * @return the last stage of the completed stages at the start of the
+	 *     stage order, null if the first stage has not completed
+	 */
+	private static Stage lastCompleted(final EnumSet<Stage> completed) {
+
+		Stage last = null;
+		for (final Stage stage : Stage.values()) {
+			if (!completed.contains(stage))
+				break;
+			last = stage;
+		}
+		return last;
+	}
+
+	/**
+	 * @param stage
+	 * @return whether the stage is selected and not completed before
+	 */
+	boolean shouldRun(final Stage stage) {
+
+		final boolean run = stages.contains(stage) && (lastCompleted == null || stage.compareTo(lastCompleted) > 0);
+		if (!run)
+			System.out.println("skipping stage " + stage);
+		return run;
+	}
+
+	/**
+	 * Save the project and mark a stage completed and the stages after it
+	 * not completed.
+	 *
+	 * @param stage
+	 * @param project the project to save, null for stages that do not
+	 *     change it
+	 * @param projectPath
+	 */
+	void completed(final Stage stage, final Project project, final String projectPath) throws IOException {
+
+		if (project != null)
+			project.saveAs(projectPath, true);
+
+		completed.removeIf(s -> s.compareTo(stage) > 0);
+		completed.add(stage);
+		final StringBuilder names = new StringBuilder();
+		for (final Stage s : completed)
+			names.append(s.name()).append('\n');
+
+		final Path dir = markerPath.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		final File tmp = File.createTempFile("stage", ".tmp", dir.toFile());
+		Files.write(tmp.toPath(), names.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), markerPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		System.out.println("completed stage " + stage);
+	}
+
+	/**
+	 * Open the project saved by a previous run.
+	 *
+	 * @param projectPath
+	 * @return the project
+	 */
+	static Project openProject(final String projectPath) throws IOException {
+
+		if (!new File(projectPath).exists())
+			throw new IOException("no saved project at " + projectPath + ", run the " + Stage.PATCHES + " stage first");
+		final Project project = Project.openFSProject(projectPath);
+		if (project == null)
+			throw new IOException("could not open project " + projectPath);
+		return project;
+	}
+}
@@ -0,0 +1,164 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.lenscorrect.Checkpoints.Stage;
+
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+
+/**
+ * Convergence of the calibration stages.
+ *
+ * The change of a stage is measured at an 8x8 grid of points in every patch,
+ * transferred into world coordinates by the full coordinate transform of the
+ * patch before and after the stage.  A global rigid transform is removed
+ * before the RMS and maximum distance are computed, so a stage that only
+ * moves the whole layer set does not count as a change.  With a tolerance,
+ * the commands skip refinement stages that would follow a stage that
+ * changed less than the tolerance and repeat the final alignment until it
+ * changes less.  All decisions are recorded in a table.
+ */
+class Convergence {
+
+	@FunctionalInterface
+	interface StageTask {
+
+		void run() throws Exception;
+	}
+
+	private final double tolerance;
+	private final StringBuilder table = new StringBuilder("stage\tdecision\trms_change\tmax_change\n");
+
+	/**
+	 * @param tolerance RMS change in pixels below which a stage is
+	 *     converged, 0 to run all stages as configured
+	 */
+	Convergence(final double tolerance) {
+
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @return whether stages are skipped and repeated by their change
+	 */
+	boolean isEnabled() {
+
+		return tolerance > 0;
+	}
+
+	/**
+	 * @param change RMS change of a stage
+	 * @return whether the change is below the tolerance
+	 */
+	boolean converged(final double change) {
+
+		return isEnabled() && change < tolerance;
+	}
+
+	private static HashMap<Long, double[]> sample(final List<Layer> layers) {
+
+		final HashMap<Long, double[]> samples = new HashMap<>();
+		for (final Layer layer : layers) {
+			for (final Patch patch : layer.getPatches(true)) {
+				final CoordinateTransform ct = patch.getFullCoordinateTransform();
+				final double scaleX = (patch.getOWidth() - 1.0) / 7.0;
+				final double scaleY = (patch.getOHeight() - 1.0) / 7.0;
+				final double[] points = new double[2 * 64];
+				for (int y = 0; y < 8; ++y) {
+					for (int x = 0; x < 8; ++x) {
+						final double[] l = ct.apply(new double[] {scaleX * x, scaleY * y});
+						points[2 * (y * 8 + x)] = l[0];
+						points[2 * (y * 8 + x) + 1] = l[1];
+					}
+				}
+				samples.put(patch.getId(), points);
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * RMS and maximum distance between the samples of the patches that exist
+	 * before and after, after removing the best global rigid transform.
+	 */
+	static double[] change(final Map<Long, double[]> before, final Map<Long, double[]> after) {
+
+		final ArrayList<PointMatch> matches = new ArrayList<>();
+		for (final Map.Entry<Long, double[]> entry : after.entrySet()) {
+			final double[] p = entry.getValue();
+			final double[] q = before.get(entry.getKey());
+			if (q == null)
+				continue;
+			for (int i = 0; i < p.length; i += 2)
+				matches.add(new PointMatch(new Point(new double[] {p[i], p[i + 1]}), new Point(new double[] {q[i], q[i + 1]})));
+		}
+		if (matches.size() < 2)
+			return new double[] {Double.NaN, Double.NaN};
+
+		final RigidModel2D rigid = new RigidModel2D();
+		try {
+			rigid.fit(matches);
+		} catch (final Exception e) {
+			return new double[] {Double.NaN, Double.NaN};
+		}
+		double sum = 0;
+		double max = 0;
+		for (final PointMatch m : matches) {
+			m.apply(rigid);
+			final double d = m.getDistance();
+			sum += d * d;
+			max = Math.max(max, d);
+		}
+		return new double[] {Math.sqrt(sum / matches.size()), max};
+	}
+
+	private void record(final Stage stage, final String decision, final double rms, final double max) {
+
+		table.append(String.format("%s\t%s\t%.4f\t%.4f%n", stage, decision, rms, max));
+		System.out.println(String.format("stage %s %s, change rms %.4f px, max %.4f px", stage, decision, rms, max));
+	}
+
+	/**
+	 * Run a stage and record its change.
+	 *
+	 * @param stage
+	 * @param decision why the stage runs, e.g. "run" or "repeat"
+	 * @param layers the layers that the stage modifies
+	 * @param task
+	 * @return the RMS change
+	 */
+	double run(final Stage stage, final String decision, final List<Layer> layers, final StageTask task) throws Exception {
+
+		final HashMap<Long, double[]> before = sample(layers);
+		task.run();
+		final double[] change = change(before, sample(layers));
+		record(stage, decision, change[0], change[1]);
+		return change[0];
+	}
+
+	/**
+	 * Record a stage that was skipped because the previous stage converged.
+	 *
+	 * @param stage
+	 */
+	void skip(final Stage stage) {
+
+		record(stage, "skipped", Double.NaN, Double.NaN);
+	}
+
+	/**
+	 * @return the table of decisions and changes
+	 */
+	String getTable() {
+
+		return table.toString();
+	}
+}
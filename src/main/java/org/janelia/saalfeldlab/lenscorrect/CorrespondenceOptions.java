@@ -0,0 +1,41 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import org.janelia.saalfeldlab.lenscorrect.solve.BeadDetector;
+
+import picocli.CommandLine.Option;
+
+/**
+ * Options shared by the calibrate commands to select how the point matches
+ * of the lens-correct matcher are found.  SIFT uses the SIFT parameters of
+ * the distortion correction stage, BEADS detects sub-pixel bead locations on
+ * the MIPs and matches them by the offsets to their nearest neighbours.  The
+ * TrakEM2 engine always extracts its own SIFT features.
+ */
+public class CorrespondenceOptions {
+
+	public enum Correspondences {
+		SIFT,
+		BEADS
+	}
+
+	@Option(names = {"--correspondences"}, description = "point matches of the native engine, --export-matches and calibrate-sweep: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})")
+	private Correspondences correspondences = Correspondences.SIFT;
+
+	@Option(names = {"--bead-sigma"}, description = "standard deviation of beads in MIP pixels (default: ${DEFAULT-VALUE})")
+	private double beadSigma = 2.0;
+
+	@Option(names = {"--bead-threshold"}, description = "minimum bead response relative to the brightest bead of a tile (default: ${DEFAULT-VALUE})")
+	private double beadThreshold = 0.1;
+
+	/**
+	 * @return the bead detector, null for SIFT
+	 */
+	public BeadDetector createBeadDetector() {
+
+		if (correspondences != Correspondences.BEADS)
+			return null;
+		if (beadSigma <= 0)
+			throw new IllegalArgumentException("--bead-sigma must be positive");
+		return new BeadDetector(beadSigma, beadThreshold);
+	}
+}
@@ -0,0 +1,472 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.lenscorrect.Checkpoints.Stage;
+import org.janelia.saalfeldlab.lenscorrect.solve.MatchSet;
+
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Model.OptionSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParseResult;
+import picocli.CommandLine.Spec;
+
+/**
+ * Options shared by the calibrate commands to compute the point matches of
+ * the native engine, and the per-layer stages of the TrakEM2 engine, in
+ * worker processes.
+ *
+ * The coordinator generates the MIPs into a MIP cache on the shared file
+ * system, distributes the channel layers round robin over shards, and writes
+ * one picocli argument file per shard into the job directory.  A worker is
+ * the same command started with such an argument file, e.g.
+ *
+ * <pre>
+ * lens-correct calibrate-split @/shared/jobs/shard_03.args
+ * </pre>
+ *
+ * It claims its shard, reads the MIPs from the cache, matches the tiles of
+ * its layers with each other and with the first layer, and writes the
+ * matches next to the argument file.  File and directory options are
+ * written to the argument files as absolute paths, so that workers can run
+ * in any working directory.  The coordinator launches local worker
+ * processes for the shards that no worker on another node has claimed,
+ * waits for all shards, merges their matches, and runs the joint solve and
+ * export.
+ *
+ * The montage and distortion correction of the TrakEM2 engine run in
+ * worker processes too (see {@link LayerWorkers}), in --layer-workers local
+ * workers, or with --shards in shards of layers like the matching, with
+ * argument files montage_NN.args, correct_distortion_NN.args and
+ * montage2_NN.args for the stages.  The coordinator saves the project, the
+ * workers open it, run the stage for their layers, and write the
+ * transforms of their patches, which the coordinator applies to its
+ * project before the next stage.  Each worker has its own JVM, so
+ * TrakEM2's static state is never shared between layers that are
+ * processed concurrently.  Workers on other nodes need the output
+ * directory with the project on the shared file system.
+ */
+public class DistributedOptions {
+
+	/* default number of threads of a layer worker */
+	static final int THREADS_PER_LAYER_WORKER = 4;
+
+	private static final String[] COORDINATOR_OPTIONS = {
+			"--shards",
+			"--job-dir",
+			"--local-workers",
+			"--worker-memory",
+			"--worker-timeout",
+			"--layer-workers",
+			"--shard-layers",
+			"--shard-output",
+			"--shard-stage",
+			"--mip-cache",
+			"--export-matches",
+			"--resume",
+			"--stages",
+			/* workers use their cores, local workers their share of --threads */
+			"--threads"};
+
+	/* file and directory options, written as absolute paths for the workers */
+	private static final HashSet<String> PATH_OPTIONS = new HashSet<>(Arrays.asList(
+			"--input",
+			"--output",
+			"--calibration-params",
+			"--input-params",
+			"--resolve-only",
+			"--previous-matches",
+			"--feature-cache",
+			"--warm-start",
+			"--stage-positions"));
+
+	@Spec(Spec.Target.MIXEE)
+	private CommandSpec mixee;
+
+	@Option(names = {"--shards"}, description = "compute the point matches of the native engine, and montage and distortion correct the layers of the TrakEM2 engine, in this many shards of layers in worker processes, and solve and export in this process (default: ${DEFAULT-VALUE}, no workers)")
+	private int numShards = 0;
+
+	@Option(names = {"--job-dir"}, description = "directory on a shared file system for the shard argument files and outputs, run 'lens-correct <command> @<job-dir>/<stage>_NN.args' on other nodes to work on a shard, e.g. shard_NN.args for the matching (default: <output>/<name>_jobs)")
+	private String jobDir;
+
+	@Option(names = {"--local-workers"}, description = "number of worker processes launched concurrently on this node, 0 to leave all shards to workers on other nodes (default: all shards)")
+	private Integer numLocalWorkers;
+
+	@Option(names = {"--worker-memory"}, description = "maximum heap of the local worker processes, e.g. 16g (default: JVM default)")
+	private String workerMemory;
+
+	@Option(names = {"--worker-timeout"}, description = "minutes to wait for all shards, 0 to wait indefinitely (default: ${DEFAULT-VALUE})")
+	private long workerTimeout = 0;
+
+	@Option(names = {"--layer-workers"}, description = "number of worker processes that montage and distortion correct the layers of the TrakEM2 engine concurrently, 1 to process one layer after the other in this process (default: one per " + THREADS_PER_LAYER_WORKER + " threads, with --shards: one per shard)")
+	private Integer numLayerWorkers;
+
+	@Option(names = {"--shard-layers"}, split = ",", hidden = true, description = "layers matched by this worker")
+	private List<Integer> shardLayers;
+
+	@Option(names = {"--shard-output"}, hidden = true, description = "matches written by this worker")
+	private String shardOutput;
+
+	@Option(names = {"--shard-stage"}, hidden = true, description = "per-layer TrakEM2 stage run by this worker instead of the matching")
+	private Stage shardStage;
+
+	/**
+	 * @return whether this process distributes the matching to workers
+	 */
+	public boolean isCoordinator() {
+
+		return numShards > 0 && !isWorker();
+	}
+
+	/**
+	 * @return whether this process matches one shard
+	 */
+	public boolean isWorker() {
+
+		return shardOutput != null;
+	}
+
+	/**
+	 * @return the per-layer TrakEM2 stage run by this worker, null for the
+	 *     matching
+	 */
+	public Stage getShardStage() {
+
+		return shardStage;
+	}
+
+	/**
+	 * @return the output of this worker
+	 */
+	public Path getShardOutput() {
+
+		return Paths.get(shardOutput);
+	}
+
+	/**
+	 * @param numThreads number of threads of this process
+	 * @return the number of worker processes of the per-layer TrakEM2
+	 *     stages, the number of shards for a coordinator, 1 to run them in
+	 *     this process
+	 */
+	public int getNumLayerWorkers(final int numThreads) {
+
+		if (isWorker())
+			return 1;
+		if (isCoordinator())
+			return numShards;
+		if (numLayerWorkers == null)
+			return Math.max(1, numThreads / THREADS_PER_LAYER_WORKER);
+		return Math.max(1, numLayerWorkers);
+	}
+
+	/**
+	 * @param numWorkers number of workers of a stage
+	 * @return the number of these workers launched on this node, all
+	 *     unless a coordinator leaves some to other nodes
+	 */
+	public int getNumLocalWorkers(final int numWorkers) {
+
+		return isCoordinator() && numLocalWorkers != null ? Math.min(numLocalWorkers, numWorkers) : numWorkers;
+	}
+
+	/**
+	 * @return the layers matched by this worker, null to match all layers
+	 */
+	public List<Integer> getShardLayers() {
+
+		return isWorker() ? shardLayers : null;
+	}
+
+	/**
+	 * @param layer channel layer
+	 * @return whether this process matches the tiles of a channel layer,
+	 *     workers match the layers of their shard and the first layer
+	 */
+	public boolean matchesLayer(final int layer) {
+
+		return !isWorker() || layer == 0 || shardLayers.contains(layer);
+	}
+
+	/**
+	 * @param outdir output directory
+	 * @param projectName
+	 * @return the job directory
+	 */
+	public Path getJobDir(final String outdir, final String projectName) {
+
+		return jobDir == null ? Paths.get(outdir, projectName + "_jobs") : Paths.get(jobDir);
+	}
+
+	private static Path sibling(final Path path, final String extension) {
+
+		return path.resolveSibling(path.getFileName().toString().replaceFirst("\\.[^.]*$", "") + extension);
+	}
+
+	/**
+	 * Claim the shard of this worker.
+	 *
+	 * @return false if another worker claimed the shard before
+	 */
+	public boolean claim() throws IOException {
+
+		if (!isWorker())
+			return true;
+		try {
+			Files.createFile(sibling(Paths.get(shardOutput), ".claim"));
+		} catch (final FileAlreadyExistsException e) {
+			System.out.println("shard " + shardOutput + " is claimed by another worker");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the matches of this worker.
+	 *
+	 * @param matchSet
+	 */
+	public void complete(final MatchSet matchSet) throws IOException {
+
+		matchSet.write(Paths.get(shardOutput));
+		System.out.println("wrote shard " + shardOutput);
+	}
+
+	/**
+	 * Report a failure of this worker to the coordinator, does nothing if
+	 * this is not a worker.
+	 *
+	 * @param e
+	 */
+	public void fail(final Exception e) {
+
+		if (!isWorker())
+			return;
+		final StringWriter trace = new StringWriter();
+		e.printStackTrace(new PrintWriter(trace));
+		try {
+			Files.writeString(sibling(Paths.get(shardOutput), ".failed"), trace.toString());
+		} catch (final IOException f) {
+			System.err.println("Could not report failure of shard " + shardOutput + ": " + f.getMessage());
+		}
+	}
+
+	/**
+	 * Distribute layers round robin over shards.
+	 *
+	 * @param numLayers
+	 * @param numShards
+	 * @return the layers of each non-empty shard
+	 */
+	static List<List<Integer>> shards(final int numLayers, final int numShards) {
+
+		final ArrayList<List<Integer>> shards = new ArrayList<>();
+		for (int s = 0; s < Math.min(numLayers, numShards); ++s)
+			shards.add(new ArrayList<>());
+		for (int l = 0; l < numLayers; ++l)
+			shards.get(l % shards.size()).add(l);
+		return shards;
+	}
+
+	/**
+	 * Quote an argument for a picocli argument file.
+	 */
+	static String quote(final String arg) {
+
+		return "\"" + arg.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * @param option longest name of the option
+	 * @param value
+	 * @return the value of an option for the workers, an absolute path for
+	 *     file and directory options
+	 */
+	static String workerValue(final String option, final String value) {
+
+		if (!PATH_OPTIONS.contains(option) || option.equals("--stage-positions") && value.equals(StagePositions.METADATA))
+			return value;
+		return Paths.get(value).toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * The options of the command line of this process that workers need,
+	 * i.e. all but the distribution, MIP cache, match export, stage and
+	 * thread options.
+	 */
+	List<String> workerArgs() {
+
+		final HashSet<String> excluded = new HashSet<>(Arrays.asList(COORDINATOR_OPTIONS));
+		final ParseResult parseResult = mixee.commandLine().getParseResult();
+		final ArrayList<String> args = new ArrayList<>();
+		for (final OptionSpec option : mixee.options()) {
+			if (excluded.contains(option.longestName()) || !parseResult.hasMatchedOption(option))
+				continue;
+			if (option.arity().max() == 0)
+				args.add(option.longestName());
+			else {
+				for (final String value : option.originalStringValues()) {
+					args.add(option.longestName());
+					args.add(workerValue(option.longestName(), value));
+				}
+			}
+		}
+		return args;
+	}
+
+	private static boolean finished(final Path output) {
+
+		return Files.exists(output) || Files.exists(sibling(output, ".failed"));
+	}
+
+	private static int launch(final String command, final Path argsFile, final int numThreads, final String memory) throws IOException, InterruptedException {
+
+		final ArrayList<String> commandLine = new ArrayList<>();
+		commandLine.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		commandLine.add("-XX:ActiveProcessorCount=" + numThreads);
+		if (memory != null)
+			commandLine.add("-Xmx" + memory);
+		commandLine.add("-cp");
+		commandLine.add(System.getProperty("java.class.path"));
+		commandLine.add(LensCorrectCLI.class.getName());
+		commandLine.add(command);
+		commandLine.add("@" + argsFile);
+		return new ProcessBuilder(commandLine).inheritIO().start().waitFor();
+	}
+
+	/**
+	 * Write the shard argument files, launch the local workers, wait for all
+	 * shards, and merge their matches.
+	 *
+	 * @param numLayers number of channel layers
+	 * @param jobDir
+	 * @param mipCacheDir MIP cache on the shared file system with the MIPs of
+	 *     all layers
+	 * @param numThreads number of threads divided among the local workers
+	 * @return the matches of all layers
+	 */
+	MatchSet coordinate(final int numLayers, final Path jobDir, final String mipCacheDir, final int numThreads) throws Exception {
+
+		final List<Path> outputs = runShards(
+				"shard",
+				".matches",
+				shards(numLayers, numShards),
+				Arrays.asList("--mip-cache", Paths.get(mipCacheDir).toAbsolutePath().toString()),
+				jobDir,
+				getNumLocalWorkers(numShards),
+				numThreads);
+
+		MatchSet matchSet = null;
+		for (final Path output : outputs) {
+			final MatchSet shard = MatchSet.read(output);
+			if (matchSet == null)
+				matchSet = shard;
+			else
+				matchSet.addAll(shard);
+		}
+		System.out.println(matchSet.getNumMatches() + " inlier matches in " + matchSet.getMatches().size() + " tile pairs from " + outputs.size() + " shards");
+		return matchSet;
+	}
+
+	/**
+	 * Write one argument file per shard, launch the local workers, and wait
+	 * for all shards.
+	 *
+	 * @param name prefix of the argument and output files, e.g. shard
+	 * @param extension of the output files, e.g. .matches
+	 * @param shards the layers of each shard
+	 * @param shardArgs arguments of all shards in addition to the options
+	 *     of this process
+	 * @param jobDir
+	 * @param numLocal maximum number of local workers, 0 to leave all shards
+	 *     to workers on other nodes
+	 * @param numThreads number of threads divided among the local workers
+	 * @return the output of each shard
+	 * @throws RuntimeException if a shard failed or the shards did not finish
+	 *     in time
+	 */
+	List<Path> runShards(
+			final String name,
+			final String extension,
+			final List<List<Integer>> shards,
+			final List<String> shardArgs,
+			final Path jobDir,
+			final int numLocal,
+			final int numThreads) throws Exception {
+
+		Files.createDirectories(jobDir);
+		final List<String> args = workerArgs();
+		final ArrayList<Path> argsFiles = new ArrayList<>();
+		final ArrayList<Path> outputs = new ArrayList<>();
+		for (int s = 0; s < shards.size(); ++s) {
+			final Path argsFile = jobDir.resolve(String.format("%s_%02d.args", name, s));
+			final Path output = jobDir.resolve(String.format("%s_%02d%s", name, s, extension)).toAbsolutePath();
+			Files.deleteIfExists(output);
+			Files.deleteIfExists(sibling(output, ".claim"));
+			Files.deleteIfExists(sibling(output, ".failed"));
+
+			final ArrayList<String> workerArgs = new ArrayList<>(args);
+			workerArgs.addAll(shardArgs);
+			workerArgs.add("--shard-layers");
+			final StringBuilder layers = new StringBuilder();
+			for (final int l : shards.get(s))
+				layers.append(layers.length() == 0 ? "" : ",").append(l);
+			workerArgs.add(layers.toString());
+			workerArgs.add("--shard-output");
+			workerArgs.add(output.toString());
+
+			final StringBuilder lines = new StringBuilder();
+			for (final String arg : workerArgs)
+				lines.append(quote(arg)).append('\n');
+			Files.writeString(argsFile, lines.toString());
+			argsFiles.add(argsFile);
+			outputs.add(output);
+			System.out.println(name + " " + s + ": layers " + layers + ", " + argsFile);
+		}
+
+		final int numLocalShards = Math.min(numLocal, shards.size());
+		final ExecutorService exec = numLocalShards > 0 ? Executors.newFixedThreadPool(numLocalShards) : null;
+		final ArrayList<Future<Integer>> localWorkers = new ArrayList<>();
+		try {
+			if (exec != null) {
+				final int numWorkerThreads = Math.max(1, numThreads / numLocalShards);
+				for (final Path argsFile : argsFiles)
+					localWorkers.add(exec.submit(() -> launch(mixee.name(), argsFile, numWorkerThreads, workerMemory)));
+			} else
+				System.out.println("waiting for workers on other nodes: lens-correct " + mixee.name() + " @" + jobDir.resolve(name + "_NN.args"));
+
+			final long deadline = workerTimeout > 0 ? System.currentTimeMillis() + workerTimeout * 60000 : Long.MAX_VALUE;
+			while (!outputs.stream().allMatch(DistributedOptions::finished)) {
+				for (final Future<Integer> worker : localWorkers)
+					if (worker.isDone() && worker.get() != 0)
+						throw new RuntimeException("local worker exited with " + worker.get());
+				if (System.currentTimeMillis() > deadline)
+					throw new RuntimeException("shards not finished after " + workerTimeout + " minutes");
+				Thread.sleep(1000);
+			}
+		} finally {
+			if (exec != null)
+				exec.shutdownNow();
+		}
+
+		for (final Path output : outputs) {
+			final Path failed = sibling(output, ".failed");
+			if (Files.exists(failed))
+				throw new RuntimeException("shard " + output + " failed:\n" + Files.readString(failed));
+		}
+		return outputs;
+	}
+}
@@ -0,0 +1,210 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import ij.process.FloatProcessor;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+
+/**
+ * Cache for SIFT features keyed by a hash of the image pixels and the SIFT
+ * parameters ({@code initialSigma}, {@code steps}, octave sizes,
+ * {@code fdSize}, {@code fdBins}).
+ *
+ * Features are always kept in memory for the lifetime of the cache, so an
+ * image that is matched against several others is processed only once.  With
+ * a directory, features are also stored in a compact binary file per image
+ * and reused by later runs:
+ *
+ * <pre>
+ * "LCSF" version:int numFeatures:int descriptorLength:int
+ * numFeatures x (x:double y:double scale:double orientation:double descriptor:float[descriptorLength])
+ * </pre>
+ *
+ * all big endian.  Files are written to a temporary file first and moved in
+ * place, so concurrent runs can share a directory.
+ *
+ * The cache serves the SIFT code of lens-correct: apply-split --align, the
+ * native calibration engine and --export-matches of the calibrate commands,
+ * and calibrate-sweep.  It also serves the montage and distortion correction
+ * of the TrakEM2 engine through {@link PatchFeatures}, keyed by the patch
+ * pixels and the transform they are rendered with.  The three layer
+ * alignments are not served, they extract features from whole layers
+ * rendered at their new positions after each alignment, which is why the
+ * calibration parameters keep clearCache enabled for them.
+ */
+class FeatureCache {
+
+	private static final int MAGIC = 0x4c435346; // "LCSF"
+
+	/* change when feature extraction changes to invalidate existing caches */
+	private static final int VERSION = 1;
+
+	private final String cacheDir;
+	private final HashMap<String, ArrayList<Feature>> features = new HashMap<>();
+
+	/**
+	 * @param cacheDir directory for feature files, null for an in-memory
+	 *     cache only
+	 */
+	FeatureCache(final String cacheDir) {
+
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Hash of the pixels and extraction parameters of an image.
+	 *
+	 * @param ip
+	 * @param p
+	 * @return hex encoded SHA-1 key
+	 */
+	static String key(final FloatProcessor ip, final FloatArray2DSIFT.Param p) {
+
+		return key(ip, "", p);
+	}
+
+	/**
+	 * Hash of the pixels and extraction parameters of an image, and of a
+	 * description of how the image is rendered before extraction.  An empty
+	 * description gives the key of {@link #key(FloatProcessor, FloatArray2DSIFT.Param)}.
+	 *
+	 * @param ip
+	 * @param rendering e.g. display range and transform
+	 * @param p
+	 * @return hex encoded SHA-1 key
+	 */
+	static String key(final FloatProcessor ip, final String rendering, final FloatArray2DSIFT.Param p) {
+
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		final ByteBuffer header = ByteBuffer.allocate(40);
+		header
+				.putInt(VERSION)
+				.putInt(ip.getWidth())
+				.putInt(ip.getHeight())
+				.putFloat(p.initialSigma)
+				.putInt(p.steps)
+				.putInt(p.minOctaveSize)
+				.putInt(p.maxOctaveSize)
+				.putInt(p.fdSize)
+				.putInt(p.fdBins);
+		digest.update(header.array(), 0, header.position());
+		digest.update(rendering.getBytes(StandardCharsets.UTF_8));
+
+		final float[] pixels = (float[])ip.getPixels();
+		final ByteBuffer buffer = ByteBuffer.allocate(pixels.length * Float.BYTES).order(ByteOrder.BIG_ENDIAN);
+		buffer.asFloatBuffer().put(pixels);
+		digest.update(buffer.array());
+
+		final StringBuilder key = new StringBuilder();
+		for (final byte b : digest.digest())
+			key.append(String.format("%02x", b));
+		return key.toString();
+	}
+
+	private Path path(final String key) {
+
+		return Paths.get(cacheDir, key + ".sift");
+	}
+
+	/**
+	 * @param key
+	 * @return the cached features or null
+	 */
+	synchronized ArrayList<Feature> get(final String key) {
+
+		ArrayList<Feature> fs = features.get(key);
+		if (fs == null && cacheDir != null && Files.exists(path(key))) {
+			try {
+				fs = read(path(key).toFile());
+				features.put(key, fs);
+			} catch (final IOException e) {
+				System.err.println("Could not read cached features " + path(key) + ": " + e.getMessage());
+			}
+		}
+		return fs;
+	}
+
+	/**
+	 * @param key
+	 * @param fs
+	 */
+	synchronized void put(final String key, final ArrayList<Feature> fs) {
+
+		features.put(key, fs);
+		if (cacheDir != null) {
+			try {
+				write(fs, path(key));
+			} catch (final IOException e) {
+				System.err.println("Could not cache features at " + path(key) + ": " + e.getMessage());
+			}
+		}
+	}
+
+	static ArrayList<Feature> read(final File file) throws IOException {
+
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("not a feature file of version " + VERSION);
+			final int numFeatures = in.readInt();
+			final int descriptorLength = in.readInt();
+			final ArrayList<Feature> fs = new ArrayList<>(numFeatures);
+			for (int i = 0; i < numFeatures; ++i) {
+				final double[] location = new double[] {in.readDouble(), in.readDouble()};
+				final double scale = in.readDouble();
+				final double orientation = in.readDouble();
+				final float[] descriptor = new float[descriptorLength];
+				for (int j = 0; j < descriptorLength; ++j)
+					descriptor[j] = in.readFloat();
+				fs.add(new Feature(scale, orientation, location, descriptor));
+			}
+			return fs;
+		}
+	}
+
+	static void write(final ArrayList<Feature> fs, final Path path) throws IOException {
+
+		Files.createDirectories(path.getParent());
+		final File tmp = File.createTempFile("features", ".tmp", path.getParent().toFile());
+		try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			final int descriptorLength = fs.isEmpty() ? 0 : fs.get(0).descriptor.length;
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(fs.size());
+			out.writeInt(descriptorLength);
+			for (final Feature f : fs) {
+				out.writeDouble(f.location[0]);
+				out.writeDouble(f.location[1]);
+				out.writeDouble(f.scale);
+				out.writeDouble(f.orientation);
+				for (int j = 0; j < descriptorLength; ++j)
+					out.writeFloat(f.descriptor[j]);
+			}
+		}
+		Files.move(tmp.toPath(), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
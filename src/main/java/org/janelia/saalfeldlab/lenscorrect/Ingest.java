@@ -0,0 +1,302 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.awt.Rectangle;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.janelia.saalfeldlab.lenscorrect.json.Calibration;
+import org.janelia.saalfeldlab.lenscorrect.json.TransformationAdapter;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneFormat;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneFormat.PixelType;
+import org.janelia.saalfeldlab.lenscorrect.stream.RingBuffer;
+import org.janelia.saalfeldlab.lenscorrect.stream.RingBuffer.Frame;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import mpicbg.models.CoordinateTransformMesh;
+import mpicbg.trakem2.transform.CoordinateTransform;
+import mpicbg.trakem2.transform.CoordinateTransformList;
+import mpicbg.trakem2.transform.TransformMesh;
+import mpicbg.trakem2.transform.TransformMeshMappingWithMasks;
+import mpicbg.trakem2.transform.TranslationModel2D;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * Apply lens-distortion correction to a live stream of frames.
+ *
+ * Frames are taken from a memory-mapped {@link RingBuffer} written by the
+ * acquisition process, corrected one by one, and published to a second ring
+ * buffer.  In channel mode, interleaved channel frames are corrected with
+ * their channel's transform and cropped like in apply-channels.  In split
+ * mode, every frame is rendered with all transforms into the intersection of
+ * their bounding boxes like in apply-split.  The latency from acquisition to
+ * publication of the corrected frame is reported per frame.  With
+ * --drop-when-full, corrected frames that find the output ring full are
+ * dropped instead of waiting for its consumer; this is the default of a
+ * replay, which has no consumer attached to the output ring.
+ */
+@Command(
+    name = "ingest",
+    mixinStandardHelpOptions = true,
+    description = "Apply lens-distortion correction to frames from a shared-memory ring buffer during live acquisition"
+)
+public class Ingest implements Callable<Integer> {
+
+	@Option(names = {"-i", "--input"}, required = true, description = "input ring buffer file, e.g. /dev/shm/camera.ring")
+	private String inputPath;
+
+	@Option(names = {"-o", "--output"}, required = true, description = "output ring buffer file, created or replaced, e.g. /dev/shm/corrected.ring")
+	private String outputPath;
+
+	@Option(names = {"-t", "--transforms"}, required = true, description = "JSON file containing transforms for each channel or split image")
+	private String transformsPath;
+
+	@Option(names = {"--split"}, description = "render every frame with all transforms like apply-split, default is one transform per interleaved channel like apply-channels")
+	private boolean split = false;
+
+	@Option(names = {"-c", "--crop"}, defaultValue = "0", description = "crop width in channel mode (default: ${DEFAULT-VALUE})")
+	private int cropWidth;
+
+	@Option(names = {"-r", "--numTriangles"}, defaultValue = "128", description = "number of triangles per image width (default: ${DEFAULT-VALUE})")
+	private int meshResolution;
+
+	@Option(names = {"--output-slots"}, defaultValue = "16", description = "number of slots of the output ring buffer (default: ${DEFAULT-VALUE})")
+	private int numOutputSlots;
+
+	@Option(names = {"--replay"}, description = "stand-in for the acquisition: create the input ring buffer and feed it the planes of this image")
+	private String replayPath = null;
+
+	@Option(names = {"--replay-rate"}, defaultValue = "0", description = "frames per second of the replay, 0 for as fast as possible (default: ${DEFAULT-VALUE})")
+	private double replayRate;
+
+	@Option(names = {"--input-slots"}, defaultValue = "16", description = "number of slots of the replay input ring buffer (default: ${DEFAULT-VALUE})")
+	private int numInputSlots;
+
+	@Option(names = {"--drop-when-full"}, arity = "0..1", description = "publish without waiting for a consumer of the output ring, frames that find it full are dropped and counted (default: true with --replay, false otherwise)")
+	private Boolean dropWhenFull = null;
+
+	@Option(names = {"--report-every"}, defaultValue = "1", description = "report latency every n frames, 0 for summary only (default: ${DEFAULT-VALUE})")
+	private int reportEvery;
+
+	private static final Gson gson = new GsonBuilder()
+			.setPrettyPrinting()
+			.disableHtmlEscaping()
+			.registerTypeAdapter(CoordinateTransform.class, new TransformationAdapter())
+			.create();
+
+	@Override
+	public Integer call() throws Exception {
+
+		/* read the transform file into a list of CoordinateTransformList */
+		final ArrayList<CoordinateTransformList<CoordinateTransform>> transforms = new ArrayList<>();
+		try (FileReader reader = new FileReader(transformsPath)) {
+			final List<Calibration> calibrations = gson.fromJson(reader, new TypeToken<List<Calibration>>(){});
+			for (final Calibration calibration : calibrations) {
+				CoordinateTransformList<CoordinateTransform> transform = new CoordinateTransformList<>();
+				for (final CoordinateTransform t : calibration.transform())
+					transform.add(t);
+				transforms.add(transform);
+			}
+			if (transforms.isEmpty()) {
+				System.err.println("No transforms found in: " + transformsPath);
+				return 1;
+			}
+		} catch (final IOException e) {
+			System.err.println("Error reading transform file: " + e.getMessage());
+			return 1;
+		}
+
+		/* attach to the input ring, or create it and start the replay */
+		final RingBuffer input;
+		Thread replay = null;
+		try {
+			if (replayPath == null)
+				input = RingBuffer.open(inputPath);
+			else {
+				final ImagePlus imp = Util.openImagePlus(replayPath);
+				if (imp == null) {
+					System.err.println("Could not open image: " + replayPath);
+					return 1;
+				}
+				input = RingBuffer.create(
+						inputPath,
+						new RawPlaneFormat(imp.getWidth(), imp.getHeight(), PixelType.fromBitDepth(imp.getBitDepth()), imp.getNChannels(), 0),
+						numInputSlots);
+				replay = startReplay(imp, RingBuffer.open(inputPath));
+			}
+		} catch (final IOException e) {
+			System.err.println("Could not open input ring buffer " + inputPath + ": " + e.getMessage());
+			return 1;
+		} catch (final IllegalArgumentException e) {
+			System.err.println("Cannot replay " + replayPath + " as raw planes: " + e.getMessage());
+			return 1;
+		}
+
+		final RawPlaneFormat inputFormat = input.getFormat();
+		final int width = inputFormat.getWidth();
+		final int height = inputFormat.getHeight();
+		final int nChannels = inputFormat.getNumChannels();
+		if (!split && transforms.size() < nChannels) {
+			System.err.println("Found " + transforms.size() + " transforms for " + nChannels + " channels in: " + transformsPath);
+			return 1;
+		}
+
+		/* mappings and output bounds */
+		final ArrayList<TransformMeshMappingWithMasks<?>> mappings = new ArrayList<>();
+		final ArrayList<Rectangle> bounds = new ArrayList<>();
+		if (split) {
+			/* intersection of the bounding boxes of all transformations */
+			Rectangle intersection = null;
+			for (final CoordinateTransform t : transforms) {
+				final Rectangle boundsT = new TransformMesh(t, meshResolution, width, height).getBoundingBox();
+				intersection = intersection == null ? boundsT : intersection.intersection(boundsT);
+			}
+			if (intersection == null || intersection.isEmpty()) {
+				System.err.println("No valid bounding box found for the transformations.");
+				return 1;
+			}
+			final TranslationModel2D offset = new TranslationModel2D();
+			offset.set(-intersection.x, -intersection.y);
+			for (final CoordinateTransformList<CoordinateTransform> t : transforms) {
+				t.add(offset);
+				mappings.add(new TransformMeshMappingWithMasks<>(new CoordinateTransformMesh(t, meshResolution, width, height)));
+				bounds.add(new Rectangle(intersection.width, intersection.height));
+			}
+		} else {
+			for (int c = 0; c < nChannels; ++c) {
+				final TransformMesh mesh = new TransformMesh(transforms.get(c), meshResolution, width, height);
+				mappings.add(new TransformMeshMappingWithMasks<>(mesh));
+				bounds.add(mesh.getBoundingBox());
+				if (bounds.get(c).width != bounds.get(0).width || bounds.get(c).height != bounds.get(0).height) {
+					System.err.println("Corrected channels have different sizes and cannot be published to one ring buffer");
+					return 1;
+				}
+			}
+		}
+		final int crop = split ? 0 : cropWidth;
+		final int w = bounds.get(0).width - 2 * crop;
+		final int h = bounds.get(0).height - 2 * crop;
+
+		try (final RingBuffer output = RingBuffer.create(
+				outputPath,
+				new RawPlaneFormat(w, h, inputFormat.getType(), split ? nChannels * mappings.size() : nChannels, 0),
+				numOutputSlots)) {
+
+			System.out.println("Correcting " + width + "x" + height + " frames from " + inputPath + " to " + w + "x" + h + " frames in " + outputPath);
+
+			final boolean drop = dropWhenFull == null ? replayPath != null : dropWhenFull;
+			long numFrames = 0;
+			long numDropped = 0;
+			double sumLatency = 0;
+			double maxLatency = 0;
+			for (Frame frame = input.take(); frame != null; frame = input.take(), ++numFrames) {
+				if (split) {
+					for (int i = 0; i < mappings.size(); ++i)
+						if (!publish(output, Util.transformPlane(mappings.get(i), bounds.get(i), frame.ip, 0), frame.acquisitionTime, drop))
+							++numDropped;
+				} else {
+					final int c = (int)(numFrames % nChannels);
+					if (!publish(output, Util.transformPlane(mappings.get(c), bounds.get(c), frame.ip, crop), frame.acquisitionTime, drop))
+						++numDropped;
+				}
+				final double latency = (System.nanoTime() - frame.acquisitionTime) * 1e-6;
+				sumLatency += latency;
+				maxLatency = Math.max(maxLatency, latency);
+				if (reportEvery > 0 && numFrames % reportEvery == 0)
+					System.out.println(String.format("frame %d: latency %.3f ms", numFrames, latency));
+			}
+			output.finish();
+
+			System.out.println(String.format(
+					"Corrected %d frames, mean latency %.3f ms, max latency %.3f ms, %d frames dropped",
+					numFrames,
+					numFrames == 0 ? 0 : sumLatency / numFrames,
+					maxLatency,
+					numDropped));
+		} finally {
+			input.close();
+			if (replay != null)
+				replay.join();
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Publish a corrected frame, or drop it if the ring is full and frames may
+	 * be dropped.
+	 *
+	 * @return false if the frame was dropped
+	 */
+	private static boolean publish(
+			final RingBuffer output,
+			final ImageProcessor ip,
+			final long acquisitionTime,
+			final boolean drop) throws InterruptedIOException {
+
+		if (drop)
+			return output.offer(ip, acquisitionTime);
+		output.put(ip, acquisitionTime);
+		return true;
+	}
+
+	/**
+	 * Stand-in for the acquisition process, publishes the planes of an image
+	 * in stack order at the replay rate.
+	 */
+	private Thread startReplay(final ImagePlus imp, final RingBuffer ring) {
+
+		final Thread thread = new Thread(() -> {
+			final ImageStack stack = imp.getStack();
+			final long interval = replayRate > 0 ? (long)(1e9 / replayRate) : 0;
+			final long start = System.nanoTime();
+			try (final RingBuffer producer = ring) {
+				for (int i = 1; i <= stack.getSize(); ++i) {
+					final ImageProcessor ip = stack.getProcessor(i);
+					while (System.nanoTime() - start < (i - 1) * interval)
+						Thread.onSpinWait();
+					producer.put(ip, System.nanoTime());
+				}
+				producer.finish();
+			} catch (final IOException e) {
+				e.printStackTrace(System.err);
+			}
+		}, "ingest-replay");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	public static void main(final String... args) {
+
+		final Integer exitCode = new CommandLine(new Ingest()).execute(args);
+		System.exit(exitCode);
+	}
+}
@@ -0,0 +1,329 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.janelia.saalfeldlab.lenscorrect.Checkpoints.Stage;
+import org.janelia.saalfeldlab.lenscorrect.json.CalibrationParams;
+
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import lenscorrection.DistortionCorrectionTask;
+import lenscorrection.DistortionCorrectionTask.CorrectDistortionFromSelectionParam;
+import mpicbg.trakem2.align.Align;
+import mpicbg.trakem2.align.AlignTask;
+import mpicbg.trakem2.align.RegularizedAffineLayerAlignment;
+
+/**
+ * The stages of the calibrate commands.  The per-layer stages, montage and
+ * lens distortion correction, can run for several layers concurrently.
+ *
+ * Each layer (one channel, or one channel and mask) is an independent
+ * problem.  TrakEM2 keeps static state, so concurrently processed layers run
+ * in separate worker processes (see {@link LayerWorkers}) that split the
+ * available cores, and a process runs its layers one after the other with
+ * all its threads for SIFT and the optimizer.
+ */
+class LayerStages {
+
+	private static final Pattern TILE_INDEX = Pattern.compile("_pos_(\\d+)");
+
+	private final CalibrationParams calibParams;
+	private final FeatureCache featureCache;
+	private final int coarseDownsampling;
+	private final int maxNumThreads;
+	private final LayerWorkers workers;
+
+	/**
+	 * @param calibParams
+	 * @param featureCache features of the montage and distortion correction
+	 *     (see {@link PatchFeatures})
+	 * @param coarseDownsampling downsampling of the SIFT features of the
+	 *     first montage, 1 for full resolution
+	 * @param maxNumThreads number of threads per layer
+	 * @param workers worker processes of the per-layer stages, null to run
+	 *     them in this process
+	 */
+	LayerStages(
+			final CalibrationParams calibParams,
+			final FeatureCache featureCache,
+			final int coarseDownsampling,
+			final int maxNumThreads,
+			final LayerWorkers workers) {
+
+		this.calibParams = calibParams;
+		this.featureCache = featureCache;
+		this.coarseDownsampling = coarseDownsampling;
+		this.maxNumThreads = Math.max(1, maxNumThreads);
+		this.workers = workers;
+	}
+
+	/**
+	 * Run a per-layer stage for all layers, in the worker processes if
+	 * there are any.
+	 *
+	 * @param stage {@link Stage#MONTAGE} with coarse features,
+	 *     {@link Stage#CORRECT_DISTORTION}, or {@link Stage#MONTAGE2}
+	 * @param layers all layers of the layer set
+	 */
+	void run(final Stage stage, final List<Layer> layers) throws Exception {
+
+		if (workers != null)
+			workers.run(stage, layers);
+		else
+			run(stage, layers, IntStream.range(0, layers.size()).boxed().collect(Collectors.toList()));
+	}
+
+	/**
+	 * Run a per-layer stage for some layers in this process.
+	 *
+	 * @param stage {@link Stage#MONTAGE} with coarse features,
+	 *     {@link Stage#CORRECT_DISTORTION}, or {@link Stage#MONTAGE2}
+	 * @param layers all layers of the layer set
+	 * @param layerIndices the layers to process
+	 */
+	void run(final Stage stage, final List<Layer> layers, final List<Integer> layerIndices) throws Exception {
+
+		for (final int layerIndex : layerIndices) {
+			switch (stage) {
+			case MONTAGE:
+				montage(layers.get(layerIndex), coarseDownsampling);
+				break;
+			case MONTAGE2:
+				montage(layers.get(layerIndex), 1);
+				break;
+			case CORRECT_DISTORTION:
+				correctDistortion(layers.get(layerIndex), layerIndex);
+				break;
+			default:
+				throw new IllegalArgumentException(stage + " is not a per-layer stage");
+			}
+		}
+	}
+
+	/**
+	 * Montage the patches of a layer, least squares, translation, with SIFT
+	 * features extracted at reduced resolution.
+	 *
+	 * @param layer
+	 * @param downsampling 1 for full resolution
+	 */
+	private void montage(final Layer layer, final int downsampling) throws Exception {
+
+		final Align.ParamOptimize param = calibParams.getMontageLayers().toAlignParam(downsampling);
+		param.maxNumThreadsSift = maxNumThreads;
+		PatchFeatures.prime(param, layer.getPatches(true), featureCache, maxNumThreads);
+		AlignTask.montageLayers(param, Collections.singletonList(layer), true, true, true, false, true);
+	}
+
+	/**
+	 * Index of the tile of a patch, the position of its file in the file
+	 * list of its pattern, from the patch title
+	 * layer_&lt;layer&gt;_pos_&lt;tile&gt;[_mask_&lt;mask&gt;].tif.
+	 *
+	 * @param patch
+	 * @return the tile index
+	 */
+	static int tileIndex(final Patch patch) {
+
+		final Matcher matcher = TILE_INDEX.matcher(patch.getTitle());
+		if (!matcher.find())
+			throw new IllegalArgumentException("no tile index in patch title " + patch.getTitle());
+		return Integer.parseInt(matcher.group(1));
+	}
+
+	/* the patch closest to the top-left corner */
+	private static Patch topLeft(final List<Patch> patches) {
+
+		Patch topLeft = null;
+		double min = Double.POSITIVE_INFINITY;
+		for (final Patch patch : patches) {
+			final Rectangle b = patch.getBoundingBox();
+			if (b.x + b.y < min) {
+				min = b.x + b.y;
+				topLeft = patch;
+			}
+		}
+		return topLeft;
+	}
+
+	/* patches of a layer by tile index */
+	private static TreeMap<Integer, Patch> tiles(final Layer layer) {
+
+		final TreeMap<Integer, Patch> tiles = new TreeMap<>();
+		for (final Patch patch : layer.getPatches(true))
+			tiles.put(tileIndex(patch), patch);
+		return tiles;
+	}
+
+	/**
+	 * The patch of the same tile in every layer, the top-left tile of the
+	 * first layer among the tiles that all layers have.  Their transforms
+	 * are exported.
+	 *
+	 * @param layers
+	 * @return one patch per layer
+	 */
+	static ArrayList<Patch> referencePatches(final List<Layer> layers) {
+
+		final ArrayList<TreeMap<Integer, Patch>> layerTiles = new ArrayList<>();
+		final HashSet<Integer> common = new HashSet<>();
+		for (final Layer layer : layers) {
+			final TreeMap<Integer, Patch> tiles = tiles(layer);
+			if (layerTiles.isEmpty())
+				common.addAll(tiles.keySet());
+			else
+				common.retainAll(tiles.keySet());
+			layerTiles.add(tiles);
+		}
+		if (common.isEmpty())
+			throw new IllegalStateException("no tile is in every layer");
+
+		final ArrayList<Patch> candidates = new ArrayList<>();
+		for (final Map.Entry<Integer, Patch> entry : layerTiles.get(0).entrySet())
+			if (common.contains(entry.getKey()))
+				candidates.add(entry.getValue());
+		final int reference = tileIndex(topLeft(candidates));
+
+		final ArrayList<Patch> patches = new ArrayList<>();
+		for (final TreeMap<Integer, Patch> tiles : layerTiles)
+			patches.add(tiles.get(reference));
+		return patches;
+	}
+
+	/**
+	 * Remove redundant tiles after the montage, keeping the tiles that cover
+	 * every cell of the field of view at least minCoverage times (see
+	 * {@link TileCoverage}).
+	 *
+	 * Layers from the same files, the channels of a pattern and their masks,
+	 * have the same tiles and keep the same subset, so that the layers stay
+	 * comparable and every layer has the tile whose transforms are exported,
+	 * see {@link #referencePatches(List)}.  The subset is selected at the
+	 * mean montage positions of the layers, and always contains the top-left
+	 * tile of the first layer.
+	 *
+	 * @param layers
+	 * @param minCoverage
+	 * @param gridSize number of coverage cells along each side of the field
+	 *     of view
+	 * @return a report with the coverage map of each set of layers
+	 */
+	String subsample(final List<Layer> layers, final int minCoverage, final int gridSize) {
+
+		/* layers with the same tiles are from the same files */
+		final LinkedHashMap<List<Integer>, List<TreeMap<Integer, Patch>>> groups = new LinkedHashMap<>();
+		final LinkedHashMap<List<Integer>, List<Layer>> groupLayers = new LinkedHashMap<>();
+		int reference = -1;
+		for (final Layer layer : layers) {
+			final TreeMap<Integer, Patch> tiles = tiles(layer);
+			if (tiles.isEmpty())
+				continue;
+			if (reference < 0)
+				reference = tileIndex(topLeft(new ArrayList<>(tiles.values())));
+			final List<Integer> key = new ArrayList<>(tiles.keySet());
+			groups.computeIfAbsent(key, k -> new ArrayList<>()).add(tiles);
+			groupLayers.computeIfAbsent(key, k -> new ArrayList<>()).add(layer);
+		}
+
+		final StringBuilder report = new StringBuilder();
+		for (final Map.Entry<List<Integer>, List<TreeMap<Integer, Patch>>> group : groups.entrySet()) {
+			final ArrayList<Integer> tileIndices = new ArrayList<>(group.getKey());
+			final List<TreeMap<Integer, Patch>> members = group.getValue();
+			final ArrayList<double[]> positions = new ArrayList<>();
+			for (final int t : tileIndices) {
+				final double[] position = new double[2];
+				for (final TreeMap<Integer, Patch> tiles : members) {
+					position[0] += tiles.get(t).getAffineTransform().getTranslateX() / members.size();
+					position[1] += tiles.get(t).getAffineTransform().getTranslateY() / members.size();
+				}
+				positions.add(position);
+			}
+
+			final Patch first = members.get(0).firstEntry().getValue();
+			final TileCoverage tileCoverage = new TileCoverage(positions, first.getOWidth(), first.getOHeight(), gridSize);
+			final boolean[] selected = tileCoverage.select(minCoverage, tileIndices.indexOf(reference));
+			int numSelected = 0;
+			for (int i = 0; i < tileIndices.size(); ++i) {
+				if (selected[i])
+					++numSelected;
+				else
+					for (final TreeMap<Integer, Patch> tiles : members)
+						tiles.get(tileIndices.get(i)).getLayer().remove(tiles.get(tileIndices.get(i)));
+			}
+
+			final ArrayList<String> titles = new ArrayList<>();
+			for (final Layer layer : groupLayers.get(group.getKey())) {
+				layer.recreateBuckets();
+				titles.add(layer.getTitle());
+			}
+
+			final int[] coverage = tileCoverage.coverage(selected);
+			report.append(String.format(
+					"%s: %d of %d tiles, minimum coverage %d%n",
+					String.join(", ", titles),
+					numSelected,
+					tileIndices.size(),
+					Arrays.stream(coverage).min().orElse(0)));
+			report.append(tileCoverage.format(coverage));
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Estimate and apply the lens distortion correction of a layer, empty
+	 * layers are skipped.
+	 *
+	 * @param layer
+	 * @param layerIndex position of the layer in the layer set
+	 */
+	private void correctDistortion(final Layer layer, final int layerIndex) throws Exception {
+
+		final ArrayList<Patch> patches = layer.getPatches(true);
+		if (patches.size() == 0)
+			return;
+		final CorrectDistortionFromSelectionParam p = calibParams.getCorrectDistortion().toDistortionParam(maxNumThreads);
+		p.firstLayerIndex = layerIndex;
+		p.lastLayerIndex = layerIndex;
+		PatchFeatures.prime(p, patches, featureCache, maxNumThreads);
+		DistortionCorrectionTask.run(p, patches, patches.get(0), layer);
+	}
+
+	/**
+	 * Align all non-empty layers with TrakEM2's regularized affine layer
+	 * alignment, least squares.
+	 *
+	 * @param param
+	 * @param layers
+	 */
+	void alignLayers(final RegularizedAffineLayerAlignment.Param param, final List<Layer> layers) throws Exception {
+
+		Rectangle box = null;
+		final HashSet<Layer> emptyLayers = new HashSet<Layer>();
+		for (final Layer la : layers) {
+			if (!la.contains(Patch.class, true)) {
+				/* empty layers are not aligned */
+				emptyLayers.add(la);
+			} else {
+				/* accumulate boxes */
+				if (null == box) // The first layer:
+					box = la.getMinimalBoundingBox(Patch.class, true);
+				else
+					box = box.union(la.getMinimalBoundingBox(Patch.class, true));
+			}
+		}
+
+		new RegularizedAffineLayerAlignment().exec(param, layers, new HashSet<Layer>(), emptyLayers, box, false, false, null);
+	}
+}
\ No newline at end of file
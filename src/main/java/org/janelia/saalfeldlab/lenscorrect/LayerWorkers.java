@@ -0,0 +1,176 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.janelia.saalfeldlab.lenscorrect.Checkpoints.Stage;
+import org.janelia.saalfeldlab.lenscorrect.json.TransformationAdapter;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import mpicbg.trakem2.transform.CoordinateTransform;
+
+/**
+ * Runs the per-layer stages of the TrakEM2 engine, montage and distortion
+ * correction, in worker processes (see {@link DistributedOptions}).
+ *
+ * The project is saved before each stage, and the layers are distributed
+ * round robin over the workers, local worker processes or, with --shards,
+ * also workers on other nodes.  A worker opens the saved project, runs the
+ * stage for its layers with {@link LayerStages#run(Stage, List, List)}, and
+ * writes the affine and lens transform of each of their patches as JSON:
+ *
+ * <pre>
+ * [{"id": 12, "affine": [m00, m10, m01, m11, m02, m12], "transform": {"className": ..., "dataString": ...}}, ...]
+ * </pre>
+ *
+ * The coordinator applies the transforms to the patches with the same id
+ * in its project.  Workers work in their own JVM, so that TrakEM2's static
+ * state is never shared between layers that are processed concurrently,
+ * and the exported transforms are the same as with one layer after the
+ * other in one process.
+ */
+class LayerWorkers {
+
+	private static final Gson gson = new GsonBuilder()
+			.registerTypeAdapter(CoordinateTransform.class, new TransformationAdapter())
+			.create();
+
+	/**
+	 * The transforms of a patch.
+	 */
+	private static class PatchTransform {
+
+		long id;
+		double[] affine;
+		CoordinateTransform transform;
+
+		PatchTransform(final Patch patch) {
+
+			id = patch.getId();
+			affine = new double[6];
+			patch.getAffineTransform().getMatrix(affine);
+			transform = patch.getCoordinateTransform();
+		}
+	}
+
+	private final DistributedOptions distributed;
+	private final Path jobDir;
+	private final String projectPath;
+	private final int numWorkers;
+	private final int numLocalWorkers;
+	private final int numThreads;
+
+	/**
+	 * @param distributed
+	 * @param jobDir directory for the argument files and outputs of the
+	 *     workers
+	 * @param projectPath where the project is saved for the workers
+	 * @param numWorkers number of workers
+	 * @param numLocalWorkers number of these workers launched on this node
+	 * @param numThreads number of threads divided among the local workers
+	 */
+	LayerWorkers(
+			final DistributedOptions distributed,
+			final Path jobDir,
+			final String projectPath,
+			final int numWorkers,
+			final int numLocalWorkers,
+			final int numThreads) {
+
+		this.distributed = distributed;
+		this.jobDir = jobDir;
+		this.projectPath = projectPath;
+		this.numWorkers = numWorkers;
+		this.numLocalWorkers = numLocalWorkers;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Run a per-layer stage for all layers in the workers and apply the
+	 * transforms of their patches.
+	 *
+	 * @param stage
+	 * @param layers all layers of the layer set
+	 */
+	void run(final Stage stage, final List<Layer> layers) throws Exception {
+
+		layers.get(0).getProject().saveAs(projectPath, true);
+		final List<Path> outputs = distributed.runShards(
+				stage.name().toLowerCase(),
+				".json",
+				DistributedOptions.shards(layers.size(), numWorkers),
+				Arrays.asList("--shard-stage", stage.name()),
+				jobDir,
+				numLocalWorkers,
+				numThreads);
+		for (final Path output : outputs)
+			apply(read(output), layers);
+	}
+
+	/**
+	 * Write the transforms of the patches of some layers, the output of a
+	 * worker.
+	 *
+	 * @param output
+	 * @param layers all layers of the layer set
+	 * @param layerIndices the layers of the worker
+	 */
+	static void complete(final Path output, final List<Layer> layers, final List<Integer> layerIndices) throws IOException {
+
+		final ArrayList<PatchTransform> transforms = new ArrayList<>();
+		for (final int l : layerIndices)
+			for (final Patch patch : layers.get(l).getPatches(true))
+				transforms.add(new PatchTransform(patch));
+
+		final File tmp = File.createTempFile("transforms", ".tmp", output.toAbsolutePath().getParent().toFile());
+		Files.write(tmp.toPath(), gson.toJson(transforms).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		System.out.println("wrote shard " + output);
+	}
+
+	private static List<PatchTransform> read(final Path output) throws IOException {
+
+		return gson.fromJson(Files.readString(output), new TypeToken<List<PatchTransform>>(){}.getType());
+	}
+
+	/**
+	 * Apply the transforms of a worker to the patches with the same id.  The
+	 * lens transform is only set if it changed, setting it updates the
+	 * mipmaps.
+	 */
+	private static void apply(final List<PatchTransform> transforms, final List<Layer> layers) {
+
+		final HashMap<Long, Patch> patches = new HashMap<>();
+		for (final Layer layer : layers)
+			for (final Patch patch : layer.getPatches(true))
+				patches.put(patch.getId(), patch);
+
+		final HashSet<Layer> changed = new HashSet<>();
+		for (final PatchTransform t : transforms) {
+			final Patch patch = patches.get(t.id);
+			if (patch == null)
+				throw new IllegalStateException("a worker returned patch " + t.id + " that is not in the project");
+			if (!gson.toJson(t.transform, CoordinateTransform.class).equals(gson.toJson(patch.getCoordinateTransform(), CoordinateTransform.class)))
+				patch.setCoordinateTransform(t.transform);
+			patch.setAffineTransform(new AffineTransform(t.affine));
+			changed.add(patch.getLayer());
+		}
+		for (final Layer layer : changed)
+			layer.recreateBuckets();
+	}
+}
@@ -30,8 +30,12 @@ import picocli.CommandLine.Spec;
  * Subcommands:
  * - calibrate-split: Calibrate lens distortion and align split-images or lens arrays
  * - calibrate-channels: Calibrate lens distortion and align multi-channel image stacks
+ * - calibrate-sweep: Sweep lens distortion calibration parameters and rank the variants by their residuals
+ * - calibrate-batch: Calibrate lens distortion of several scopes in one JVM and compare their lens models
  * - apply-split: Apply lens calibration and alignment to stacks of split-images or lens arrays
  * - apply-channels: Apply lens calibration and alignment to multi-channel image stacks
+ * - ingest: Apply lens calibration to frames from a shared-memory ring buffer during acquisition
+ * - project: Export max, mean, or sum z-projections of multi-channel image stacks
  *
  * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
  */
@@ -45,7 +49,11 @@ import picocli.CommandLine.Spec;
         CalibrateSplit.class,
         ApplySplit.class,
         ApplyChannels.class,
-        CalibrateChannels.class
+        CalibrateChannels.class,
+        CalibrateSweep.class,
+        CalibrateBatch.class,
+        Ingest.class,
+        ProjectStacks.class
     }
 )
 public class LensCorrectCLI implements Callable<Integer> {
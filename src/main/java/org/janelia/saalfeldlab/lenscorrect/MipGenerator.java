@@ -0,0 +1,254 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.plugin.HyperStackConverter;
+import mpicbg.ij.plugin.NormalizeLocalContrast;
+
+/**
+ * Generates the contrast normalized max intensity projections of the
+ * calibration stacks for the calibrate commands.
+ *
+ * Each file is assigned to the first input pattern that it matches.  Matched
+ * files are opened and projected by a bounded pool, so that reading the next
+ * stacks overlaps with projecting the current ones.  The available cores are
+ * shared between the concurrently processed files, each file is projected
+ * with its share of them.  Results and log messages are collected in the
+ * order of the file list, so the MIPs of a pattern are in the same order as
+ * when they were generated one after another.
+ *
+ * With a cache directory, normalized MIPs are stored as tifs named by a hash
+ * of the input file's path, size, and modification time and of the
+ * normalization parameters.  Re-running a calibration with other parameters
+ * then reads the MIPs from the cache instead of the stacks.  Modifying or
+ * replacing an input file or changing the normalization changes the key, old
+ * entries are never used again and can be deleted at any time.
+ */
+class MipGenerator {
+
+	/* change when the MIP generation changes to invalidate existing caches */
+	private static final String CACHE_VERSION = "max-normalized-1";
+
+	private final int numFiles;
+	private final int numProjectorThreads;
+	private final int brx;
+	private final int bry;
+	private final float stds;
+	private final String cacheDir;
+
+	/**
+	 * @param numFiles maximum number of files that are opened and projected
+	 *     concurrently
+	 * @param numThreads total number of decoder and projector threads,
+	 *     divided among the concurrent files
+	 * @param brx local contrast normalization block radius x
+	 * @param bry local contrast normalization block radius y
+	 * @param stds local contrast normalization standard deviations
+	 * @param cacheDir cache directory, null for no caching
+	 */
+	MipGenerator(
+			final int numFiles,
+			final int numThreads,
+			final int brx,
+			final int bry,
+			final float stds,
+			final String cacheDir) {
+
+		this.numFiles = Math.max(1, numFiles);
+		numProjectorThreads = Math.max(1, numThreads / this.numFiles);
+		this.brx = brx;
+		this.bry = bry;
+		this.stds = stds;
+		this.cacheDir = cacheDir;
+	}
+
+	private static class Mip {
+
+		final ImagePlus imp;
+		final String log;
+
+		Mip(final ImagePlus imp, final String log) {
+
+			this.imp = imp;
+			this.log = log;
+		}
+	}
+
+	private Path cachePath(final String path) throws IOException {
+
+		final Path file = Paths.get(path).toAbsolutePath();
+		final String key = String.join(
+				"\n",
+				CACHE_VERSION,
+				file.toString(),
+				Long.toString(Files.size(file)),
+				Long.toString(Files.getLastModifiedTime(file).toMillis()),
+				Integer.toString(brx),
+				Integer.toString(bry),
+				Float.toString(stds));
+
+		final byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		final StringBuilder name = new StringBuilder();
+		for (final byte b : hash)
+			name.append(String.format("%02x", b));
+		return Paths.get(cacheDir, name + ".tif");
+	}
+
+	private static void saveToCache(final ImagePlus mip, final Path cachePath) {
+
+		/* write to a temporary file first so that concurrent or interrupted runs never see partial entries */
+		try {
+			Files.createDirectories(cachePath.getParent());
+			final File tmp = File.createTempFile("mip", ".tif.tmp", cachePath.getParent().toFile());
+			final FileSaver saver = new FileSaver(mip);
+			final boolean saved = mip.getStackSize() > 1 ? saver.saveAsTiffStack(tmp.getPath()) : saver.saveAsTiff(tmp.getPath());
+			if (saved)
+				Files.move(tmp.toPath(), cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			else
+				Files.deleteIfExists(tmp.toPath());
+		} catch (final IOException e) {
+			System.err.println("Could not cache MIP at " + cachePath + ": " + e.getMessage());
+		}
+	}
+
+	private Mip createMip(final String path) throws Exception {
+
+		final Path cachePath = cacheDir == null ? null : cachePath(path);
+		if (cachePath != null && Files.exists(cachePath)) {
+			final ImagePlus cached = IJ.openImage(cachePath.toString());
+			if (cached != null)
+				return new Mip(cached, "cached mip of " + path + ": " + cachePath);
+		}
+
+		final ImagePlus[] impStack = Util.openSeriesVirtual(path, numProjectorThreads);
+
+		final StringBuilder log = new StringBuilder();
+		log.append("Number of images: " + impStack.length + " (this should always be 1), we ignore others");
+
+		if (impStack.length > 1)
+			throw new RuntimeException("More than one image was opened, please check the input carefully.");
+
+		final ImagePlus imp = impStack[0];
+
+		log.append("\ndimensions: " + imp.getStack().getProcessor(1).getWidth() + "x"
+				+ imp.getStack().getProcessor(1).getHeight() + ", channels: " + imp.getNChannels()
+				+ ", z-slices:" + imp.getNSlices() + ", timepoints: " + imp.getNFrames());
+
+		imp.resetDisplayRange();
+
+		final ImagePlus mipImp = new StreamingProjector(StreamingProjector.Method.MAX, numProjectorThreads).project(imp);
+		HyperStackConverter.toStack(mipImp);
+
+		imp.close();
+
+		final ImageStack stack = mipImp.getStack();
+		for (int s = 1; s <= stack.getSize(); s++)
+			NormalizeLocalContrast.run(stack.getProcessor(s), brx, bry, stds, true, true);
+
+		if (cachePath != null)
+			saveToCache(mipImp, cachePath);
+
+		return new Mip(mipImp, log.toString());
+	}
+
+	/**
+	 * Assign files to the first pattern that they match, the same
+	 * assignment as in {@link #generate(List, List)}.
+	 *
+	 * @param files sorted list of files
+	 * @param patterns input patterns
+	 * @return files by the pattern that they matched, in file order
+	 */
+	static HashMap<String, List<String>> assign(final List<String> files, final List<String> patterns) {
+
+		final ArrayList<Pattern> compiledPatterns = new ArrayList<>();
+		for (final String pattern : patterns)
+			compiledPatterns.add(Pattern.compile(pattern));
+
+		final HashMap<String, List<String>> assigned = new HashMap<String, List<String>>();
+		for (final String path : files) {
+			for (int j = 0; j < compiledPatterns.size(); ++j) {
+				if (compiledPatterns.get(j).matcher(path).find()) {
+					assigned.computeIfAbsent(patterns.get(j), k -> new ArrayList<String>()).add(path);
+					break;
+				}
+			}
+		}
+		return assigned;
+	}
+
+	/**
+	 * Generate the normalized MIPs of all files that match one of the
+	 * patterns.
+	 *
+	 * @param files sorted list of files
+	 * @param patterns input patterns
+	 * @return MIPs by the pattern that their file matched, in file order
+	 * @throws Exception the first error that occurred while opening or
+	 *     projecting a file
+	 */
+	HashMap<String, List<ImagePlus>> generate(final List<String> files, final List<String> patterns) throws Exception {
+
+		final ArrayList<Pattern> compiledPatterns = new ArrayList<>();
+		for (final String pattern : patterns)
+			compiledPatterns.add(Pattern.compile(pattern));
+
+		final ArrayList<String> matchedPatterns = new ArrayList<>();
+		final ArrayList<Future<Mip>> futures = new ArrayList<>();
+		final ExecutorService exec = Executors.newFixedThreadPool(numFiles);
+		try {
+			for (final String path : files) {
+				for (int j = 0; j < compiledPatterns.size(); ++j) {
+					if (compiledPatterns.get(j).matcher(path).find()) {
+						matchedPatterns.add(patterns.get(j));
+						futures.add(exec.submit(() -> createMip(path)));
+						break;
+					}
+				}
+			}
+
+			final HashMap<String, List<ImagePlus>> mapMips = new HashMap<String, List<ImagePlus>>();
+			for (int i = 0; i < futures.size(); ++i) {
+				final Mip mip = futures.get(i).get();
+				System.out.println(mip.log);
+
+				final String pattern = matchedPatterns.get(i);
+				if (!mapMips.containsKey(pattern))
+					mapMips.put(pattern, new ArrayList<ImagePlus>());
+				mapMips.get(pattern).add(mip.imp);
+			}
+			return mapMips;
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception)e.getCause();
+			throw e;
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+}
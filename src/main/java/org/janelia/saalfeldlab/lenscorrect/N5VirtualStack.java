@@ -0,0 +1,348 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * {@link VirtualStack} backed by an N5 or Zarr dataset.  Planes are read on
+ * demand, only the blocks intersecting the requested plane are fetched, in
+ * parallel, and kept in a bounded LRU cache such that consecutive planes in the
+ * same block slab are served from memory.
+ *
+ * Dimensions are interpreted in ImageJ hyperstack order: x, y, [[c,] z[, t]],
+ * i.e. 3D datasets are z-stacks, 4D datasets are xyCZ and 5D datasets xyCZT.
+ * Dataset paths are given as the container path followed by the dataset path
+ * inside the container, e.g. <code>/data/acquisition.zarr/raw/s0</code>.
+ */
+public class N5VirtualStack extends VirtualStack {
+
+	private static final Pattern N5_PATH = Pattern.compile("^(.*?\\.(?:n5|zarr))(?:/+(.*))?/*$", Pattern.CASE_INSENSITIVE);
+
+	private final N5Reader n5;
+	private final String dataset;
+	private final DatasetAttributes attributes;
+	private final long[] dimensions;
+	private final int[] blockSize;
+	private final int nChannels;
+	private final int nSlices;
+	private final int nFrames;
+	private final ExecutorService exec;
+	private final Map<List<Long>, DataBlock<?>> cache;
+
+	/**
+	 * @param n5 the reader
+	 * @param dataset dataset path in the container
+	 * @param maxNumCachedBlocks cache size, at least one block slab will be
+	 *     cached
+	 * @param numThreads number of block fetching threads
+	 */
+	public N5VirtualStack(
+			final N5Reader n5,
+			final String dataset,
+			final int maxNumCachedBlocks,
+			final int numThreads) {
+
+		this(n5, dataset, n5.getDatasetAttributes(dataset), maxNumCachedBlocks, numThreads);
+	}
+
+	private N5VirtualStack(
+			final N5Reader n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final int maxNumCachedBlocks,
+			final int numThreads) {
+
+		super((int)attributes.getDimensions()[0], (int)attributes.getDimensions()[1], null, null);
+
+		this.n5 = n5;
+		this.dataset = dataset;
+		this.attributes = attributes;
+		dimensions = attributes.getDimensions();
+		blockSize = attributes.getBlockSize();
+
+		if (dimensions.length < 2 || dimensions.length > 5)
+			throw new IllegalArgumentException("Only 2D to 5D datasets are supported, " + dataset + " has " + dimensions.length + " dimensions.");
+
+		switch (dimensions.length) {
+		case 2:
+			nChannels = 1; nSlices = 1; nFrames = 1;
+			break;
+		case 3:
+			nChannels = 1; nSlices = (int)dimensions[2]; nFrames = 1;
+			break;
+		case 4:
+			nChannels = (int)dimensions[2]; nSlices = (int)dimensions[3]; nFrames = 1;
+			break;
+		default:
+			nChannels = (int)dimensions[2]; nSlices = (int)dimensions[3]; nFrames = (int)dimensions[4];
+		}
+
+		final int blocksPerSlab = (int)(
+				((dimensions[0] + blockSize[0] - 1) / blockSize[0]) *
+				((dimensions[1] + blockSize[1] - 1) / blockSize[1]));
+		final int maxNumEntries = Math.max(maxNumCachedBlocks, blocksPerSlab);
+		cache = new LinkedHashMap<List<Long>, DataBlock<?>>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<List<Long>, DataBlock<?>> eldest) {
+
+				return size() > maxNumEntries;
+			}
+		};
+
+		exec = Executors.newFixedThreadPool(Math.max(1, numThreads), r -> {
+			final Thread thread = new Thread(r, "n5-block-fetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		setBitDepth(bitDepth(attributes.getDataType()));
+	}
+
+	/**
+	 * Test whether a path points into an N5 or Zarr container.
+	 *
+	 * @param path
+	 * @return
+	 */
+	public static boolean isN5Path(final String path) {
+
+		return N5_PATH.matcher(path).matches();
+	}
+
+	/**
+	 * Open an N5 or Zarr dataset as a virtual {@link ImagePlus}.
+	 *
+	 * @param path container path followed by the dataset path
+	 * @param maxNumCachedBlocks
+	 * @param numThreads
+	 * @return the {@link ImagePlus} or null if the dataset could not be
+	 *     opened
+	 */
+	public static ImagePlus openImagePlus(final String path, final int maxNumCachedBlocks, final int numThreads) {
+
+		final Matcher matcher = N5_PATH.matcher(path);
+		if (!matcher.matches())
+			return null;
+
+		final String container = matcher.group(1);
+		final String dataset = matcher.group(2) == null ? "/" : matcher.group(2);
+		try {
+			final N5Reader n5 = container.toLowerCase().endsWith(".zarr")
+					? new N5ZarrReader(container)
+					: new N5FSReader(container);
+			if (!n5.datasetExists(dataset)) {
+				System.err.println("No dataset " + dataset + " in " + container);
+				return null;
+			}
+			final N5VirtualStack stack = new N5VirtualStack(n5, dataset, maxNumCachedBlocks, numThreads);
+			final ImagePlus imp = new ImagePlus(path, stack);
+			imp.setDimensions(stack.nChannels, stack.nSlices, stack.nFrames);
+			if (stack.nChannels > 1)
+				imp.setOpenAsHyperStack(true);
+			return imp;
+		} catch (final Exception e) {
+			System.err.println("Could not open N5 dataset " + path + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Open an N5 or Zarr dataset with a cache of 1024 blocks and one block
+	 * fetching thread per core.
+	 *
+	 * @param path
+	 * @return
+	 */
+	public static ImagePlus openImagePlus(final String path) {
+
+		return openImagePlus(path, 1024, Runtime.getRuntime().availableProcessors());
+	}
+
+	private static int bitDepth(final DataType dataType) {
+
+		switch (dataType) {
+		case UINT8:
+		case INT8:
+			return 8;
+		case UINT16:
+		case INT16:
+			return 16;
+		default:
+			return 32;
+		}
+	}
+
+	@Override
+	public int getSize() {
+
+		return nChannels * nSlices * nFrames;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+
+		return null;
+	}
+
+	/**
+	 * Fetch a block through the cache.
+	 */
+	private DataBlock<?> getBlock(final long[] gridPosition) throws Exception {
+
+		final List<Long> key = Arrays.asList(Arrays.stream(gridPosition).boxed().toArray(Long[]::new));
+		synchronized (cache) {
+			final DataBlock<?> cached = cache.get(key);
+			if (cached != null)
+				return cached;
+		}
+		final DataBlock<?> block = n5.readBlock(dataset, attributes, gridPosition);
+		if (block != null) {
+			synchronized (cache) {
+				cache.put(key, block);
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * Read plane n (1-based, ImageJ stack order, channel fastest).
+	 */
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+
+		final int width = (int)dimensions[0];
+		final int height = (int)dimensions[1];
+
+		/* plane position in dimensions 2.. */
+		final long[] planePosition = new long[dimensions.length];
+		int i = n - 1;
+		for (int d = 2; d < dimensions.length; ++d) {
+			planePosition[d] = i % dimensions[d];
+			i /= dimensions[d];
+		}
+
+		final ImageProcessor ip;
+		switch (getBitDepth()) {
+		case 8:
+			ip = new ByteProcessor(width, height);
+			break;
+		case 16:
+			ip = new ShortProcessor(width, height);
+			break;
+		default:
+			ip = new FloatProcessor(width, height);
+		}
+		final Object pixels = ip.getPixels();
+
+		final List<Future<?>> futures = new ArrayList<>();
+		for (long gy = 0; gy * blockSize[1] < height; ++gy) {
+			for (long gx = 0; gx * blockSize[0] < width; ++gx) {
+				final long[] gridPosition = new long[dimensions.length];
+				gridPosition[0] = gx;
+				gridPosition[1] = gy;
+				for (int d = 2; d < dimensions.length; ++d)
+					gridPosition[d] = planePosition[d] / blockSize[d];
+				futures.add(exec.submit(() -> {
+					copyBlock(getBlock(gridPosition), gridPosition, planePosition, pixels, width, height);
+					return null;
+				}));
+			}
+		}
+		try {
+			for (final Future<?> future : futures)
+				future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (final ExecutionException e) {
+			throw new RuntimeException("Could not read blocks of " + dataset, e.getCause());
+		}
+		ip.resetMinAndMax();
+		return ip;
+	}
+
+	/**
+	 * Copy the section of a block that intersects the plane into the plane's
+	 * pixel array.  Missing blocks are left empty.  Zarr edge chunks have the
+	 * full block size and are clipped to the plane.
+	 */
+	private void copyBlock(
+			final DataBlock<?> block,
+			final long[] gridPosition,
+			final long[] planePosition,
+			final Object pixels,
+			final int width,
+			final int height) {
+
+		if (block == null)
+			return;
+
+		final int[] size = block.getSize();
+		final Object data = block.getData();
+
+		/* offset of the plane inside the block */
+		int planeOffset = 0;
+		int stride = size[0] * size[1];
+		for (int d = 2; d < dimensions.length; ++d) {
+			planeOffset += (int)(planePosition[d] - gridPosition[d] * blockSize[d]) * stride;
+			stride *= size[d];
+		}
+
+		final int x0 = (int)(gridPosition[0] * blockSize[0]);
+		final int y0 = (int)(gridPosition[1] * blockSize[1]);
+		final int w = Math.min(size[0], width - x0);
+		final int h = Math.min(size[1], height - y0);
+		for (int y = 0; y < h; ++y) {
+			final int src = planeOffset + y * size[0];
+			final int dst = (y0 + y) * width + x0;
+			if (data instanceof byte[] && pixels instanceof byte[])
+				System.arraycopy(data, src, pixels, dst, w);
+			else if (data instanceof short[] && pixels instanceof short[])
+				System.arraycopy(data, src, pixels, dst, w);
+			else if (data instanceof float[] && pixels instanceof float[])
+				System.arraycopy(data, src, pixels, dst, w);
+			else {
+				final float[] floats = (float[])pixels;
+				for (int x = 0; x < w; ++x)
+					floats[dst + x] = (float)toDouble(data, src + x);
+			}
+		}
+	}
+
+	private double toDouble(final Object data, final int i) {
+
+		if (data instanceof int[]) {
+			final int v = ((int[])data)[i];
+			return attributes.getDataType() == DataType.UINT32 ? v & 0xffffffffL : v;
+		}
+		if (data instanceof long[])
+			return ((long[])data)[i];
+		if (data instanceof double[])
+			return ((double[])data)[i];
+		throw new IllegalArgumentException("Unsupported data type " + attributes.getDataType() + " in " + dataset);
+	}
+}
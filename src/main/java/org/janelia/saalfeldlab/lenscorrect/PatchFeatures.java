@@ -0,0 +1,109 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ini.trakem2.display.Patch;
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.trakem2.align.AbstractAffineTile2D;
+import mpicbg.trakem2.align.Align;
+import mpicbg.trakem2.align.TranslationTile2D;
+import mpicbg.trakem2.transform.CoordinateTransform;
+
+/**
+ * Serves the patch features of TrakEM2's montage and distortion correction
+ * from a {@link FeatureCache}.
+ *
+ * TrakEM2 extracts the features of a patch from the patch rendered with its
+ * coordinate transform, and stores them in the project keyed by patch id and
+ * SIFT parameters.  Before each of these stages, the features of every patch
+ * are looked up in the cache by the content of that image: the patch pixels,
+ * display range and coordinate transform, and the SIFT parameters.  Missing
+ * features are extracted the way TrakEM2 extracts them and cached.  All are
+ * then stored for TrakEM2, which reads them instead of extracting its own.
+ * With --mip-cache, the patches of repeated runs are identical, so their
+ * montage and distortion correction reuse the features of earlier runs.
+ *
+ * Patches with an alpha mask are left to TrakEM2.
+ *
+ * Extends {@link Align} for access to its feature store.
+ */
+class PatchFeatures extends Align {
+
+	private PatchFeatures() {}
+
+	/**
+	 * Cache key of the image TrakEM2 extracts the features of a patch from.
+	 *
+	 * @param patch
+	 * @param p
+	 * @return the key
+	 */
+	static String key(final Patch patch, final FloatArray2DSIFT.Param p) {
+
+		final CoordinateTransform ct = patch.getCoordinateTransform();
+		final String rendering = patch.getMin() + " " + patch.getMax() + " " + (ct == null ? "" : ct.toXML(""));
+		return FeatureCache.key(patch.getImageProcessor().convertToFloatProcessor(), rendering, p);
+	}
+
+	/**
+	 * Store the cached features of the patches for TrakEM2, extract and cache
+	 * the missing ones.
+	 *
+	 * @param p the parameters of the stage
+	 * @param patches
+	 * @param cache
+	 * @param numThreads
+	 */
+	static void prime(
+			final Align.Param p,
+			final List<Patch> patches,
+			final FeatureCache cache,
+			final int numThreads) throws Exception {
+
+		if (patches.isEmpty())
+			return;
+
+		final ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, patches.size())));
+		try {
+			final ArrayList<Future<Void>> futures = new ArrayList<>();
+			for (final Patch patch : patches) {
+				futures.add(exec.submit(() -> {
+					prime(p, patch, cache);
+					return null;
+				}));
+			}
+			for (final Future<Void> future : futures)
+				future.get();
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception)e.getCause();
+			throw e;
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	private static void prime(final Align.Param p, final Patch patch, final FeatureCache cache) {
+
+		if (patch.hasAlphaMask())
+			return;
+
+		final String key = key(patch, p.sift);
+		final AbstractAffineTile2D<?> tile = new TranslationTile2D(patch);
+		ArrayList<Feature> features = cache.get(key);
+		if (features == null) {
+			features = new ArrayList<>();
+			new SIFT(new FloatArray2DSIFT(p.sift)).extractFeatures(tile.createMaskedByteImage(), features);
+			cache.put(key, features);
+		}
+		if (!serializeFeatures(p, tile, features))
+			System.out.println("warning: could not store the features of " + patch.getTitle() + ", TrakEM2 extracts them again");
+	}
+}
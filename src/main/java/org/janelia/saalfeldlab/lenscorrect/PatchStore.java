@@ -0,0 +1,132 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ini.trakem2.Project;
+import ini.trakem2.display.Patch;
+
+/**
+ * Writes the normalized MIP slices of the calibrate commands and creates
+ * the TrakEM2 {@link Patch patches} for them.
+ *
+ * By default, slices are written synchronously and patches are loaded from
+ * the written files like before.  In memory mode, patches are created from
+ * the slices directly and handed to the project's image cache, while the
+ * files are written by a background thread.  The files are still needed,
+ * the saved project references them and the loader falls back to them when
+ * it evicts an image from its cache, so they are written to a temporary file
+ * first and moved into place, and {@link #awaitWrites()} must be called
+ * before the project is saved.
+ */
+class PatchStore {
+
+	private final boolean inMemory;
+	private final HashMap<String, ImagePlus> images = new HashMap<>();
+	private final List<Future<?>> writes = new ArrayList<>();
+	private final ExecutorService writer;
+
+	/**
+	 * @param inMemory create patches from memory and write their files in
+	 *     the background
+	 */
+	PatchStore(final boolean inMemory) {
+
+		this.inMemory = inMemory;
+		writer = inMemory ? Executors.newSingleThreadExecutor() : null;
+	}
+
+	private static void save(final ImagePlus imp, final String path) throws IOException {
+
+		final File file = new File(path);
+		final File tmp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+		if (!new FileSaver(imp).saveAsTiff(tmp.getPath()))
+			throw new IOException("Could not write " + path);
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Store a patch image at path.
+	 *
+	 * @param imp
+	 * @param path
+	 * @throws IOException if writing synchronously failed
+	 */
+	void put(final ImagePlus imp, final String path) throws IOException {
+
+		if (inMemory) {
+			images.put(path, imp);
+			writes.add(writer.submit(() -> {
+				save(imp, path);
+				return null;
+			}));
+		} else {
+			new FileSaver(imp).saveAsTiff(path);
+			imp.close();
+		}
+	}
+
+	/**
+	 * Create a patch for an image that was stored at path.
+	 *
+	 * @param project
+	 * @param path
+	 * @return the patch
+	 */
+	Patch createPatch(final Project project, final String path) {
+
+		final ImagePlus imp = images.get(path);
+		if (imp == null)
+			return Patch.createPatch(project, path);
+
+		/* every patch gets its own image like when loaded from file */
+		final ImagePlus copy = new ImagePlus(imp.getTitle(), imp.getProcessor().duplicate());
+		final Patch patch = new Patch(project, copy.getTitle(), 0, 0, copy);
+		project.getLoader().addedPatchFrom(path, patch);
+		return patch;
+	}
+
+	/**
+	 * Wait until all background writes are complete.
+	 *
+	 * @throws IOException if a write failed
+	 */
+	void awaitWrites() throws IOException, InterruptedException {
+
+		try {
+			for (final Future<?> write : writes)
+				write.get();
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			writes.clear();
+		}
+	}
+
+	/**
+	 * Wait for pending writes and stop the background writer.
+	 */
+	void close() throws IOException, InterruptedException {
+
+		if (writer != null) {
+			try {
+				awaitWrites();
+			} finally {
+				writer.shutdown();
+			}
+		}
+	}
+}
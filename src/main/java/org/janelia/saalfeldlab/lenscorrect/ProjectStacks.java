@@ -0,0 +1,174 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.lenscorrect.StreamingProjector.Method;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Option;
+
+/**
+ * Batch export of z-projections of lsm or tif stacks.
+ *
+ * Stacks are read plane by plane and reduced with a
+ * {@link StreamingProjector}, so even very large stacks need only memory for
+ * the projection.  By default, one multi-channel tif is written per input,
+ * with --split-channels one tif per channel named
+ * <code>&lt;input&gt;.&lt;channel&gt;.tif</code> like the
+ * max-intensity-multi-channel-lsm script did.
+ */
+@Command(
+    name = "project",
+    mixinStandardHelpOptions = true,
+    description = "Export max, mean, or sum z-projections of multi-channel image stacks"
+)
+public class ProjectStacks implements Callable<Integer> {
+
+	@Option(names = {"-i", "--inputs"}, required = true, description = "input image file paths or directories (comma-separated)")
+	private String[] inputPaths;
+
+	@Option(names = {"-p", "--pattern"}, defaultValue = ".*\\.(lsm|LSM|tif|TIF|tiff|TIFF)$", description = "regular expression for files in input directories (default: ${DEFAULT-VALUE})")
+	private String pattern;
+
+	@Option(names = {"-o", "--output"}, required = true, description = "output directory")
+	private String outputPath;
+
+	@Option(names = {"-m", "--method"}, defaultValue = "max", description = "projection method: max, mean, or sum (default: ${DEFAULT-VALUE})")
+	private String method;
+
+	@Option(names = {"--split-channels"}, description = "write one tif per channel")
+	private boolean splitChannels = false;
+
+	@Option(names = {"--threads"}, description = "number of row bands accumulated in parallel (default: all available cores)")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Mixin
+	private TiffOutputOptions tiffOutput = new TiffOutputOptions();
+
+	/**
+	 * Expand directories into their files that match the pattern, sorted.
+	 */
+	private List<String> listInputs() throws IOException {
+
+		final Pattern filePattern = Pattern.compile(pattern);
+		final ArrayList<String> files = new ArrayList<>();
+		for (final String inputPath : inputPaths) {
+			final Path path = Paths.get(inputPath);
+			if (Files.isDirectory(path)) {
+				try (Stream<Path> list = Files.list(path)) {
+					files.addAll(list
+							.filter(p -> !Files.isDirectory(p))
+							.map(Path::toString)
+							.filter(f -> filePattern.matcher(f).find())
+							.sorted()
+							.collect(Collectors.toList()));
+				}
+			} else
+				files.add(inputPath);
+		}
+		return files;
+	}
+
+	private void save(final ImagePlus imp, final String path) throws IOException {
+
+		if (tiffOutput.isBigTiff())
+			tiffOutput.save(imp, path);
+		else
+			IJ.saveAsTiff(imp, path);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		final StreamingProjector projector = new StreamingProjector(Method.fromString(method), numThreads);
+
+		final File outputDir = new File(outputPath);
+		if (!(outputDir.mkdirs() || outputDir.isDirectory())) {
+			System.err.println("Could not create output directory " + outputPath);
+			return 1;
+		}
+
+		final List<String> files = listInputs();
+		if (files.isEmpty()) {
+			System.err.println("No input files found in: " + Arrays.toString(inputPaths));
+			return 1;
+		}
+
+		int numFailed = 0;
+		for (final String file : files) {
+			final ImagePlus[] series;
+			try {
+				series = Util.openSeriesVirtual(file, numThreads);
+			} catch (final Exception e) {
+				System.err.println("Could not open " + file + ": " + e.getMessage());
+				++numFailed;
+				continue;
+			}
+
+			final String name = new File(file).getName();
+			for (int s = 0; s < series.length; ++s) {
+				final ImagePlus imp = series[s];
+				final long t = System.currentTimeMillis();
+				final ImagePlus projection = projector.project(imp);
+				System.out.println(
+						name + (series.length > 1 ? " series " + s : "") + ": " +
+						imp.getNChannels() + " channels, " + imp.getNSlices() + " slices, " +
+						(System.currentTimeMillis() - t) + "ms");
+
+				final String baseName = outputPath + File.separator + name + (series.length > 1 ? "." + s : "");
+				if (splitChannels) {
+					for (int c = 1; c <= projection.getNChannels(); ++c) {
+						final ImageStack channelStack = new ImageStack(projection.getWidth(), projection.getHeight());
+						for (int f = 1; f <= projection.getNFrames(); ++f)
+							channelStack.addSlice(projection.getStack().getProcessor(projection.getStackIndex(c, 1, f)));
+						final ImagePlus channel = new ImagePlus(projection.getTitle() + "-" + c, channelStack);
+						channel.setCalibration(projection.getCalibration());
+						save(channel, baseName + "." + c + ".tif");
+					}
+				} else
+					save(projection, baseName + "." + method.trim().toLowerCase() + ".tif");
+				imp.close();
+			}
+		}
+
+		return numFailed == 0 ? 0 : 1;
+	}
+
+	public static void main(final String... args) {
+
+		final Integer exitCode = new CommandLine(new ProjectStacks()).execute(args);
+		System.exit(exitCode);
+	}
+}
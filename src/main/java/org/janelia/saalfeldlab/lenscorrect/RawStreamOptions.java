@@ -0,0 +1,98 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneFormat;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneFormat.PixelType;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneReader;
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneWriter;
+
+import picocli.CommandLine.Option;
+
+/**
+ * Options shared by the apply commands to read raw planes from stdin and/or
+ * write corrected raw planes to stdout, selected by passing "-" as input or
+ * output path.  Without --raw-header, the input layout must be given with
+ * --raw-width and --raw-height.
+ */
+public class RawStreamOptions {
+
+	public static final String STDIO = "-";
+
+	@Option(names = {"--raw-width"}, description = "width of raw planes read from stdin")
+	private int width = 0;
+
+	@Option(names = {"--raw-height"}, description = "height of raw planes read from stdin")
+	private int height = 0;
+
+	@Option(names = {"--raw-type"}, defaultValue = "uint16", description = "pixel type of raw planes read from stdin: uint8, uint16, or float32 (default: ${DEFAULT-VALUE})")
+	private String type = "uint16";
+
+	@Option(names = {"--raw-channels"}, defaultValue = "1", description = "number of interleaved channels of raw planes read from stdin (default: ${DEFAULT-VALUE})")
+	private int numChannels = 1;
+
+	@Option(names = {"--raw-planes"}, defaultValue = "0", description = "number of raw planes read from stdin, 0 to read until the end of the stream (default: ${DEFAULT-VALUE})")
+	private long numPlanes = 0;
+
+	@Option(names = {"--raw-header"}, description = "raw streams start with a 32 byte header describing their layout, read from stdin and written to stdout")
+	private boolean header = false;
+
+	private FileChannel stdout = null;
+
+	public static boolean isStdio(final String path) {
+
+		return STDIO.equals(path);
+	}
+
+	/**
+	 * Open stdin for reading raw planes.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public RawPlaneReader openInput() throws IOException {
+
+		final FileChannel channel = new FileInputStream(FileDescriptor.in).getChannel();
+		final RawPlaneFormat format;
+		if (header)
+			format = RawPlaneFormat.readHeader(channel);
+		else if (width <= 0 || height <= 0)
+			throw new IOException("--raw-width and --raw-height are required to read raw planes without header");
+		else
+			format = new RawPlaneFormat(width, height, PixelType.fromString(type), numChannels, numPlanes);
+
+		return new RawPlaneReader(channel, format);
+	}
+
+	/**
+	 * Take stdout over for raw planes.  Everything printed to
+	 * {@link System#out} after this call goes to stderr such that log messages
+	 * do not corrupt the stream.  Call this before printing anything if the
+	 * output is "-".
+	 */
+	public void reserveStdout() {
+
+		if (stdout == null) {
+			System.out.flush();
+			stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+			System.setOut(System.err);
+		}
+	}
+
+	/**
+	 * Open stdout for writing raw planes.
+	 *
+	 * @param format
+	 * @return
+	 * @throws IOException
+	 */
+	public RawPlaneWriter openOutput(final RawPlaneFormat format) throws IOException {
+
+		reserveStdout();
+		return new RawPlaneWriter(stdout, format, header);
+	}
+}
@@ -0,0 +1,86 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.util.function.IntFunction;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * {@link VirtualStack} whose planes are rendered on demand from the planes of
+ * a source.  Each source plane is rendered into a fixed number of consecutive
+ * planes, e.g. one per transform.  Saving the stack with
+ * {@link org.janelia.saalfeldlab.lenscorrect.tiff.BigTiffWriter} or
+ * {@link ij.IJ#save} writes each plane as it is rendered, so the corrected
+ * output of a virtual input is never held in memory as a whole.  The last
+ * source plane is kept such that all planes rendered from it read it once.
+ */
+class RenderedStack extends VirtualStack {
+
+	/**
+	 * Renders plane n (0-based) from its source plane.
+	 */
+	interface PlaneRenderer {
+
+		ImageProcessor render(ImageProcessor source, int n);
+	}
+
+	private final IntFunction<ImageProcessor> source;
+	private final int numSourcePlanes;
+	private final int planesPerSource;
+	private final PlaneRenderer renderer;
+
+	private int lastSourceIndex = -1;
+	private ImageProcessor lastSource = null;
+
+	/**
+	 * @param width width of the rendered planes
+	 * @param height height of the rendered planes
+	 * @param bitDepth bit depth of the rendered planes
+	 * @param source source plane by 0-based index
+	 * @param numSourcePlanes number of source planes
+	 * @param planesPerSource number of planes rendered from each source plane
+	 * @param renderer
+	 */
+	RenderedStack(
+			final int width,
+			final int height,
+			final int bitDepth,
+			final IntFunction<ImageProcessor> source,
+			final int numSourcePlanes,
+			final int planesPerSource,
+			final PlaneRenderer renderer) {
+
+		super(width, height, null, null);
+		setBitDepth(bitDepth);
+		this.source = source;
+		this.numSourcePlanes = numSourcePlanes;
+		this.planesPerSource = planesPerSource;
+		this.renderer = renderer;
+	}
+
+	@Override
+	public int getSize() {
+
+		return numSourcePlanes * planesPerSource;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+
+		return null;
+	}
+
+	/**
+	 * Render plane n (1-based).
+	 */
+	@Override
+	public synchronized ImageProcessor getProcessor(final int n) {
+
+		final int sourceIndex = (n - 1) / planesPerSource;
+		if (sourceIndex != lastSourceIndex) {
+			lastSource = source.apply(sourceIndex);
+			lastSourceIndex = sourceIndex;
+		}
+		return renderer.render(lastSource, n - 1);
+	}
+}
@@ -0,0 +1,180 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import loci.formats.ImageReader;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+/**
+ * Stage positions of the calibration tiles, in pixels, and the neighbour
+ * graph of overlapping tiles.
+ *
+ * Positions are read either from the LSM or OME metadata of each stack
+ * (plane position or stage label, converted with the physical pixel size) or
+ * from a TileConfiguration file as written by the Stitching plugin, the same
+ * format that {@link LensCorrect#parseZOffset(String)} reads.  The calibrate
+ * commands place the patches at their stage positions, so that TrakEM2,
+ * with tiles in place, and the point match export compare only tiles that
+ * overlap instead of all pairs of tiles.
+ */
+class StagePositions {
+
+	/**
+	 * Source for reading the positions from the metadata of each stack.
+	 */
+	static final String METADATA = "metadata";
+
+	private static final Pattern TILE_CONFIGURATION_LINE = Pattern.compile("^([^;]*);[^;]*;\\s*\\(([^)]*)\\)\\s*$");
+
+	private final HashMap<String, double[]> tileConfiguration;
+
+	/**
+	 * @param source {@link #METADATA} or the path of a TileConfiguration
+	 *     file
+	 */
+	StagePositions(final String source) throws IOException {
+
+		tileConfiguration = METADATA.equals(source) ? null : parseTileConfiguration(source);
+	}
+
+	/**
+	 * @param path stack file
+	 * @return the stage position of the stack in pixels
+	 */
+	double[] get(final String path) throws IOException, FormatException, ServiceException {
+
+		if (tileConfiguration == null)
+			return readMetadata(path);
+
+		final String fileName = Paths.get(path).getFileName().toString();
+		final double[] position = tileConfiguration.get(fileName);
+		if (position != null)
+			return position;
+		for (final Map.Entry<String, double[]> entry : tileConfiguration.entrySet())
+			if (path.endsWith(entry.getKey()))
+				return entry.getValue();
+		throw new IOException("no position for " + fileName + " in tile configuration");
+	}
+
+	/**
+	 * Read the x,y positions of a TileConfiguration file.
+	 *
+	 * @param path
+	 * @return positions by file name
+	 */
+	static HashMap<String, double[]> parseTileConfiguration(final String path) throws IOException {
+
+		final HashMap<String, double[]> positions = new HashMap<String, double[]>();
+		try (final BufferedReader reader = new BufferedReader(new FileReader(path))) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				final Matcher matcher = TILE_CONFIGURATION_LINE.matcher(line.trim());
+				if (!matcher.matches())
+					continue;
+				final String[] coordinates = matcher.group(2).split(",");
+				if (coordinates.length < 2)
+					throw new IOException("cannot parse tile configuration line: " + line);
+				positions.put(
+						matcher.group(1).trim(),
+						new double[] {
+								Double.parseDouble(coordinates[0].trim()),
+								Double.parseDouble(coordinates[1].trim())});
+			}
+		}
+		return positions;
+	}
+
+	private static double micrometers(final Length length) {
+
+		final Number value = length == null ? null : length.value(UNITS.MICROMETER);
+		return value == null ? Double.NaN : value.doubleValue();
+	}
+
+	/**
+	 * Read the stage position of the first plane of a stack from its
+	 * metadata.
+	 *
+	 * @param path
+	 * @return the position in pixels
+	 */
+	static double[] readMetadata(final String path) throws IOException, FormatException, ServiceException {
+
+		final IMetadata meta = MetadataTools.createOMEXMLMetadata();
+		try (final ImageReader reader = new ImageReader()) {
+			reader.setMetadataStore(meta);
+			reader.setId(path);
+		}
+
+		double x = Double.NaN;
+		double y = Double.NaN;
+		if (meta.getPlaneCount(0) > 0) {
+			x = micrometers(meta.getPlanePositionX(0, 0));
+			y = micrometers(meta.getPlanePositionY(0, 0));
+		}
+		if (Double.isNaN(x) || Double.isNaN(y)) {
+			x = micrometers(meta.getStageLabelX(0));
+			y = micrometers(meta.getStageLabelY(0));
+		}
+		final double pixelWidth = micrometers(meta.getPixelsPhysicalSizeX(0));
+		final double pixelHeight = micrometers(meta.getPixelsPhysicalSizeY(0));
+		if (Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(pixelWidth) || Double.isNaN(pixelHeight))
+			throw new IOException("no stage position or pixel size in the metadata of " + path);
+
+		return new double[] {x / pixelWidth, y / pixelHeight};
+	}
+
+	/**
+	 * Pairs of tiles of equal size that overlap at their positions.
+	 *
+	 * @param positions tile positions
+	 * @param width tile width
+	 * @param height tile height
+	 * @return pairs {a, b} with a &lt; b
+	 */
+	static List<int[]> overlappingPairs(final List<double[]> positions, final int width, final int height) {
+
+		final ArrayList<int[]> pairs = new ArrayList<>();
+		for (int a = 0; a < positions.size(); ++a) {
+			final double[] pa = positions.get(a);
+			for (int b = a + 1; b < positions.size(); ++b) {
+				final double[] pb = positions.get(b);
+				if (Math.abs(pa[0] - pb[0]) < width && Math.abs(pa[1] - pb[1]) < height)
+					pairs.add(new int[] {a, b});
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * Shift positions so that the minimum is at the origin.
+	 *
+	 * @param positions
+	 * @return shifted copies
+	 */
+	static List<double[]> normalize(final List<double[]> positions) {
+
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		for (final double[] p : positions) {
+			minX = Math.min(minX, p[0]);
+			minY = Math.min(minY, p[1]);
+		}
+		final ArrayList<double[]> normalized = new ArrayList<>();
+		for (final double[] p : positions)
+			normalized.add(new double[] {p[0] - minX, p[1] - minY});
+		return normalized;
+	}
+}
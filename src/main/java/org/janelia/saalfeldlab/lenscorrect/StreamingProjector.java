@@ -0,0 +1,201 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Z-projection that reads one plane at a time and folds it into per-channel
+ * accumulators in place, so projecting a virtual stack needs memory for the
+ * accumulators only, not for the stack.
+ *
+ * Planes are read in stack order by one thread because the readers of
+ * virtual stacks are generally not thread safe.  Every plane is accumulated
+ * in parallel by row bands, each band of the accumulators is owned by one
+ * thread that folds in the planes in order.  There is only one set of
+ * accumulators, independent of the number of threads, and at most
+ * {@value #MAX_PLANES_IN_FLIGHT} read planes wait for accumulation.
+ *
+ * Each channel and frame is projected separately, the result is a
+ * channels x 1 x frames hyperstack.  Max projections keep the input's bit
+ * depth like {@link ij.plugin.ZProjector}, mean and sum projections are
+ * 32-bit.
+ */
+public class StreamingProjector {
+
+	public enum Method {
+
+		MAX, MEAN, SUM;
+
+		public static Method fromString(final String name) {
+
+			return valueOf(name.trim().toUpperCase());
+		}
+	}
+
+	static final int MAX_PLANES_IN_FLIGHT = 4;
+
+	private final Method method;
+	private final int numThreads;
+
+	/**
+	 * @param method
+	 * @param numThreads number of row bands accumulated in parallel
+	 */
+	public StreamingProjector(final Method method, final int numThreads) {
+
+		this.method = method;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Accumulators, one per channel and frame.
+	 */
+	private class Accumulator {
+
+		final float[][] values;
+
+		Accumulator(final int n, final int size) {
+
+			values = new float[n][size];
+			if (method == Method.MAX)
+				for (final float[] v : values)
+					Arrays.fill(v, Float.NEGATIVE_INFINITY);
+		}
+
+		/**
+		 * Fold the pixels [from, to) of a plane into accumulator i.
+		 */
+		void add(final int i, final Object pixels, final int from, final int to) {
+
+			final float[] v = values[i];
+			if (pixels instanceof byte[]) {
+				final byte[] p = (byte[])pixels;
+				if (method == Method.MAX)
+					for (int j = from; j < to; ++j)
+						v[j] = Math.max(v[j], p[j] & 0xff);
+				else
+					for (int j = from; j < to; ++j)
+						v[j] += p[j] & 0xff;
+			} else if (pixels instanceof short[]) {
+				final short[] p = (short[])pixels;
+				if (method == Method.MAX)
+					for (int j = from; j < to; ++j)
+						v[j] = Math.max(v[j], p[j] & 0xffff);
+				else
+					for (int j = from; j < to; ++j)
+						v[j] += p[j] & 0xffff;
+			} else if (pixels instanceof float[]) {
+				final float[] p = (float[])pixels;
+				if (method == Method.MAX)
+					for (int j = from; j < to; ++j)
+						v[j] = Math.max(v[j], p[j]);
+				else
+					for (int j = from; j < to; ++j)
+						v[j] += p[j];
+			} else
+				throw new IllegalArgumentException("RGB stacks are not supported");
+		}
+	}
+
+	private static void await(final List<Future<?>> futures) {
+
+		try {
+			for (final Future<?> future : futures)
+				future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (final ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Project all slices of each channel and frame.
+	 *
+	 * @param imp
+	 * @return the projection
+	 */
+	public ImagePlus project(final ImagePlus imp) {
+
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final int nChannels = imp.getNChannels();
+		final int nSlices = imp.getNSlices();
+		final int nFrames = imp.getNFrames();
+		final ImageStack stack = imp.getStack();
+		final Accumulator result = new Accumulator(nChannels * nFrames, width * height);
+
+		/* one thread per row band, so every band accumulates its planes in order */
+		final int numBands = Math.min(numThreads, height);
+		final ExecutorService[] bands = new ExecutorService[numBands];
+		for (int k = 0; k < numBands; ++k)
+			bands[k] = Executors.newSingleThreadExecutor();
+		final ArrayDeque<List<Future<?>>> planesInFlight = new ArrayDeque<>();
+		try {
+			/* frames, slices, channels: the order of the planes in the stack */
+			for (int t = 1; t <= nFrames; ++t) {
+				for (int z = 1; z <= nSlices; ++z) {
+					for (int c = 1; c <= nChannels; ++c) {
+						final int index = imp.getStackIndex(c, z, t);
+						final int i = (t - 1) * nChannels + c - 1;
+						final Object pixels = stack.isVirtual() ? stack.getProcessor(index).getPixels() : stack.getPixels(index);
+						final List<Future<?>> futures = new ArrayList<>(numBands);
+						for (int k = 0; k < numBands; ++k) {
+							final int from = k * height / numBands * width;
+							final int to = (k + 1) * height / numBands * width;
+							futures.add(bands[k].submit(() -> result.add(i, pixels, from, to)));
+						}
+						planesInFlight.add(futures);
+						if (planesInFlight.size() > MAX_PLANES_IN_FLIGHT)
+							await(planesInFlight.poll());
+					}
+				}
+			}
+			while (!planesInFlight.isEmpty())
+				await(planesInFlight.poll());
+		} finally {
+			for (final ExecutorService band : bands)
+				band.shutdown();
+		}
+
+		/* assemble the channels x frames projection */
+		final ImageStack projectionStack = new ImageStack(width, height);
+		for (int i = 0; i < result.values.length; ++i) {
+			final float[] values = result.values[i];
+			if (method == Method.MEAN)
+				for (int j = 0; j < values.length; ++j)
+					values[j] /= nSlices;
+			final FloatProcessor fp = new FloatProcessor(width, height, values);
+			final ImageProcessor ip;
+			if (method != Method.MAX)
+				ip = fp;
+			else if (imp.getBitDepth() == 8)
+				ip = fp.convertToByteProcessor(false);
+			else if (imp.getBitDepth() == 16)
+				ip = fp.convertToShortProcessor(false);
+			else
+				ip = fp;
+			projectionStack.addSlice(ip);
+		}
+
+		final ImagePlus projection = new ImagePlus(method + "_" + imp.getTitle(), projectionStack);
+		projection.setCalibration(imp.getCalibration());
+		projection.setDimensions(nChannels, 1, nFrames);
+		if (nChannels > 1 || nFrames > 1)
+			projection.setOpenAsHyperStack(true);
+		projection.resetDisplayRange();
+		return projection;
+	}
+}
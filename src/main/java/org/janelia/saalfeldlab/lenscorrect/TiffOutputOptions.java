@@ -0,0 +1,61 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.lenscorrect.tiff.BigTiffWriter;
+import org.janelia.saalfeldlab.lenscorrect.tiff.BigTiffWriter.Compression;
+
+import ij.ImagePlus;
+import picocli.CommandLine.Option;
+
+/**
+ * Output options shared by the apply commands to write tiled, compressed
+ * BigTIFF instead of ImageJ's classic uncompressed TIFF.
+ */
+public class TiffOutputOptions {
+
+	@Option(names = {"--bigtiff"}, description = "write a tiled BigTIFF, implied by --compression or --pyramid-levels")
+	private boolean bigTiff = false;
+
+	@Option(names = {"--compression"}, defaultValue = "none", description = "BigTIFF tile compression: none, lzw, deflate, or zstd (default: ${DEFAULT-VALUE})")
+	private String compression = "none";
+
+	@Option(names = {"--tile-size"}, defaultValue = "512", description = "BigTIFF tile size, multiple of 16 (default: ${DEFAULT-VALUE})")
+	private int tileSize = 512;
+
+	@Option(names = {"--pyramid-levels"}, defaultValue = "0", description = "number of 2x downsampled SubIFD levels per plane (default: ${DEFAULT-VALUE})")
+	private int numPyramidLevels = 0;
+
+	@Option(names = {"--encoder-threads"}, description = "number of BigTIFF encoder threads (default: all available cores)")
+	private int numEncoderThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * @return true if the output should be written with the
+	 *     {@link BigTiffWriter}
+	 */
+	public boolean isBigTiff() {
+
+		return bigTiff || Compression.fromString(compression) != Compression.NONE || numPyramidLevels > 0;
+	}
+
+	public BigTiffWriter createWriter() {
+
+		return new BigTiffWriter(
+				Compression.fromString(compression),
+				tileSize,
+				numPyramidLevels,
+				numEncoderThreads);
+	}
+
+	/**
+	 * Save an {@link ImagePlus} as BigTIFF with these options.
+	 *
+	 * @param imp
+	 * @param path
+	 * @throws IOException
+	 */
+	public void save(final ImagePlus imp, final String path) throws IOException {
+
+		createWriter().write(imp, path);
+	}
+}
@@ -0,0 +1,168 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Coverage of the field of view by overlapping tiles of equal size.
+ *
+ * The field of view is divided into a grid of cells.  A cell of a tile is
+ * covered once by each other tile that contains it, so the coverage of a
+ * cell is the number of tile pairs that can contribute correspondences at
+ * that location of the lens.  Redundant tiles are removed greedily, always
+ * the tile whose removal loses the least coverage, as long as every cell
+ * stays covered at least a minimum number of times (or as often as with all
+ * tiles, if that is less).  This does not guarantee the smallest possible
+ * subset but it is close for the regular mosaics used for calibration.
+ */
+class TileCoverage {
+
+	/* tile b covers cells [x0, x1) x [y0, y1) of tile a */
+	private static class Pair {
+
+		final int a;
+		final int b;
+		final int x0, y0, x1, y1;
+
+		Pair(final int a, final int b, final int x0, final int y0, final int x1, final int y1) {
+
+			this.a = a;
+			this.b = b;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+		}
+	}
+
+	private final int numTiles;
+	private final int gridSize;
+	private final ArrayList<Pair> pairs = new ArrayList<>();
+
+	/**
+	 * @param positions tile positions
+	 * @param width tile width
+	 * @param height tile height
+	 * @param gridSize number of cells along each side of the field of view
+	 */
+	TileCoverage(final List<double[]> positions, final int width, final int height, final int gridSize) {
+
+		numTiles = positions.size();
+		this.gridSize = gridSize;
+		final double cellWidth = (double)width / gridSize;
+		final double cellHeight = (double)height / gridSize;
+		for (final int[] pair : StagePositions.overlappingPairs(positions, width, height)) {
+			for (int k = 0; k < 2; ++k) {
+				final int a = pair[k];
+				final int b = pair[1 - k];
+				/* tile b relative to tile a, cells with their center inside */
+				final double dx = positions.get(b)[0] - positions.get(a)[0];
+				final double dy = positions.get(b)[1] - positions.get(a)[1];
+				final int x0 = Math.max(0, (int)Math.ceil(dx / cellWidth - 0.5));
+				final int y0 = Math.max(0, (int)Math.ceil(dy / cellHeight - 0.5));
+				final int x1 = Math.min(gridSize, (int)Math.ceil((dx + width) / cellWidth - 0.5));
+				final int y1 = Math.min(gridSize, (int)Math.ceil((dy + height) / cellHeight - 0.5));
+				if (x0 < x1 && y0 < y1)
+					pairs.add(new Pair(a, b, x0, y0, x1, y1));
+			}
+		}
+	}
+
+	private static void add(final int[] coverage, final Pair pair, final int gridSize, final int value) {
+
+		for (int y = pair.y0; y < pair.y1; ++y)
+			for (int x = pair.x0; x < pair.x1; ++x)
+				coverage[y * gridSize + x] += value;
+	}
+
+	/**
+	 * @param selected selected tiles
+	 * @return the coverage of each cell, row by row
+	 */
+	int[] coverage(final boolean[] selected) {
+
+		final int[] coverage = new int[gridSize * gridSize];
+		for (final Pair pair : pairs)
+			if (selected[pair.a] && selected[pair.b])
+				add(coverage, pair, gridSize, 1);
+		return coverage;
+	}
+
+	/**
+	 * Select a small subset of tiles that covers every cell at least
+	 * minCoverage times, or as often as all tiles if that is less.
+	 *
+	 * @param minCoverage
+	 * @return the selected tiles
+	 */
+	boolean[] select(final int minCoverage) {
+
+		return select(minCoverage, -1);
+	}
+
+	/**
+	 * Select a small subset of tiles that covers every cell at least
+	 * minCoverage times, or as often as all tiles if that is less, and
+	 * contains a given tile.
+	 *
+	 * @param minCoverage
+	 * @param keep tile that is always selected, -1 for none
+	 * @return the selected tiles
+	 */
+	boolean[] select(final int minCoverage, final int keep) {
+
+		final boolean[] selected = new boolean[numTiles];
+		Arrays.fill(selected, true);
+		final int[] coverage = coverage(selected);
+		final int[] required = new int[coverage.length];
+		for (int i = 0; i < coverage.length; ++i)
+			required[i] = Math.min(minCoverage, coverage[i]);
+
+		for (int n = numTiles; n > 1; --n) {
+			int best = -1;
+			long bestLoss = Long.MAX_VALUE;
+			for (int r = 0; r < numTiles; ++r) {
+				if (!selected[r] || r == keep)
+					continue;
+				final int[] reduced = coverage.clone();
+				long loss = 0;
+				for (final Pair pair : pairs) {
+					if ((pair.a == r || pair.b == r) && selected[pair.a] && selected[pair.b]) {
+						add(reduced, pair, gridSize, -1);
+						loss += (long)(pair.x1 - pair.x0) * (pair.y1 - pair.y0);
+					}
+				}
+				boolean valid = true;
+				for (int i = 0; i < reduced.length && valid; ++i)
+					valid = reduced[i] >= required[i];
+				if (valid && loss < bestLoss) {
+					best = r;
+					bestLoss = loss;
+				}
+			}
+			if (best < 0)
+				break;
+			selected[best] = false;
+			for (final Pair pair : pairs)
+				if ((pair.a == best || pair.b == best) && (pair.a == best ? selected[pair.b] : selected[pair.a]))
+					add(coverage, pair, gridSize, -1);
+		}
+		return selected;
+	}
+
+	/**
+	 * @param coverage
+	 * @return the coverage as a text map, one row of cells per line
+	 */
+	String format(final int[] coverage) {
+
+		final StringBuilder map = new StringBuilder();
+		for (int y = 0; y < gridSize; ++y) {
+			for (int x = 0; x < gridSize; ++x)
+				map.append(String.format("%4d", coverage[y * gridSize + x]));
+			map.append('\n');
+		}
+		return map.toString();
+	}
+}
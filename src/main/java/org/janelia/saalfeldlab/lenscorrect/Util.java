@@ -1,17 +1,23 @@
 package org.janelia.saalfeldlab.lenscorrect;
 
 import java.awt.Rectangle;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.imagearchive.lsm.reader.Reader;
+import org.janelia.saalfeldlab.lenscorrect.tiff.TiffDecoder;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.VirtualStack;
 import ij.io.Opener;
 import ij.process.Blitter;
 import ij.process.ImageProcessor;
+import loci.formats.FormatException;
+import loci.plugins.BF;
+import loci.plugins.in.ImporterOptions;
 import mpicbg.models.CoordinateTransform;
 import mpicbg.trakem2.transform.TransformMesh;
 import mpicbg.trakem2.transform.TransformMeshMappingWithMasks;
@@ -39,9 +45,35 @@ interface Util {
 		final ImagePlus[] channels = new ImagePlus[nChannels];
 
 		for (int c = 0; c < nChannels; ++c) {
-			final ImageStack channelStack = new ImageStack(imp.getWidth(), imp.getHeight());
-			for (int s = 0; s < nSlices; ++s)
-				channelStack.addSlice(stack.getProcessor(imp.getStackIndex(c + 1, s + 1, 1)));
+			final int channel = c + 1;
+			final ImageStack channelStack;
+			if (stack.isVirtual()) {
+				/* keep virtual stacks lazy, planes are read when they are rendered */
+				channelStack = new VirtualStack(imp.getWidth(), imp.getHeight(), null, null) {
+
+					@Override
+					public ImageProcessor getProcessor(final int n) {
+
+						return stack.getProcessor(imp.getStackIndex(channel, n, 1));
+					}
+
+					@Override
+					public int getSize() {
+
+						return nSlices;
+					}
+
+					@Override
+					public String getSliceLabel(final int n) {
+
+						return null;
+					}
+				};
+			} else {
+				channelStack = new ImageStack(imp.getWidth(), imp.getHeight());
+				for (int s = 0; s < nSlices; ++s)
+					channelStack.addSlice(stack.getProcessor(imp.getStackIndex(channel, s + 1, 1)));
+			}
 
 			final ImagePlus channelImp = new ImagePlus(imp.getTitle() + "-" + c, channelStack);
 			channelImp.setCalibration(imp.getCalibration());
@@ -76,18 +108,38 @@ interface Util {
 	}
 
     /**
-     * Open an {@link ImagePlus}. Supports .tif and .lsm files.
+     * Open an {@link ImagePlus}. Supports .tif and .lsm files, and N5 or Zarr
+     * datasets which are opened as a virtual stack that reads blocks on
+     * demand (see {@link N5VirtualStack}).  Compressed .tif files are decoded
+     * in parallel by {@link TiffDecoder}.
      * 
-     * @param path path to image file
+     * @param path path to image file or N5/Zarr dataset
      * @return opened {@link ImagePlus}, or null if the file could not be
      *     opened
      */
     static public ImagePlus openImagePlus(final String path) {
 
+		return openImagePlus(path, Runtime.getRuntime().availableProcessors());
+	}
+
+    /**
+     * Open an {@link ImagePlus} like {@link #openImagePlus(String)} with a
+     * given number of N5 reader or TIFF decoder threads.
+     * 
+     * @param path path to image file or N5/Zarr dataset
+     * @param numThreads
+     * @return opened {@link ImagePlus}, or null if the file could not be
+     *     opened
+     */
+    static public ImagePlus openImagePlus(final String path, final int numThreads) {
+
 		final ImagePlus imp;
-		if (path.endsWith(".tif"))
-			imp = new Opener().openImage(path);
-		else if (path.endsWith(".lsm"))
+		if (N5VirtualStack.isN5Path(path))
+			imp = N5VirtualStack.openImagePlus(path, 1024, numThreads);
+		else if (path.endsWith(".tif")) {
+			final ImagePlus decoded = TiffDecoder.openCompressed(path, numThreads);
+			imp = decoded == null ? new Opener().openImage(path) : decoded;
+		} else if (path.endsWith(".lsm"))
 			imp = new Reader().open(path);
 		else
 			imp = null;
@@ -95,6 +147,45 @@ interface Util {
 		return imp;
 	}
 
+    /**
+     * Open all series of an image file as virtual stacks that read planes on
+     * demand, e.g. for streaming projections.  Compressed TIFFs are opened
+     * with {@link TiffDecoder}, everything else with Bio-Formats.
+     * 
+     * @param path path to image file
+     * @return array of opened {@link ImagePlus}s
+     * @throws FormatException
+     * @throws IOException
+     */
+	static public ImagePlus[] openSeriesVirtual(final String path) throws FormatException, IOException {
+
+		return openSeriesVirtual(path, Runtime.getRuntime().availableProcessors());
+	}
+
+    /**
+     * Open all series of an image file as virtual stacks like
+     * {@link #openSeriesVirtual(String)} with a given number of TIFF decoder
+     * threads.
+     * 
+     * @param path path to image file
+     * @param numThreads
+     * @return array of opened {@link ImagePlus}s
+     * @throws FormatException
+     * @throws IOException
+     */
+	static public ImagePlus[] openSeriesVirtual(final String path, final int numThreads) throws FormatException, IOException {
+
+		if (path.toLowerCase().endsWith(".tif") || path.toLowerCase().endsWith(".tiff")) {
+			final ImagePlus decoded = TiffDecoder.openCompressedVirtual(path, numThreads);
+			if (decoded != null)
+				return new ImagePlus[] {decoded};
+		}
+		final ImporterOptions options = new ImporterOptions();
+		options.setId(path);
+		options.setVirtual(true);
+		return BF.openImagePlus(options);
+	}
+
     /**
 	 * Open a list of {@link ImagePlus}s, that each contain one or more
      * channels as an array of single channel {@link ImagePlus}s.  Original
@@ -138,19 +229,34 @@ interface Util {
 		final Rectangle bounds = mesh.getBoundingBox();
 		final ImageStack stack = new ImageStack(bounds.width - 2 * cropWidth, bounds.height - 2 * cropWidth);
 		final TransformMeshMappingWithMasks<TransformMesh> mapping = new TransformMeshMappingWithMasks<TransformMesh>(mesh);
-		for (int i = 0; i < srcStack.getSize(); ++i) {
-			final ImageProcessor src = srcStack.getProcessor(i + 1);
-			src.setInterpolationMethod(ImageProcessor.BILINEAR);
-			final ImageProcessor dst = src.createProcessor(bounds.width, bounds.height);
-			mapping.mapInterpolated(src, dst);
-			final ImageProcessor cropped = dst.createProcessor(bounds.width - 2 * cropWidth, bounds.height - 2 * cropWidth);
-			cropped.copyBits(dst, -cropWidth, -cropWidth, Blitter.COPY);
-
-			stack.addSlice(cropped);
-		}
+		for (int i = 0; i < srcStack.getSize(); ++i)
+			stack.addSlice(transformPlane(mapping, bounds, srcStack.getProcessor(i + 1), cropWidth));
 		return stack;
 	}
 
+    /**
+     * Create a transformed and cropped copy of a single plane.
+     * 
+     * @param mapping mapping of the transform mesh
+     * @param bounds bounding box of the transform mesh
+     * @param src source plane
+     * @param cropWidth width of border to crop
+     * @return transformed and cropped plane
+     */
+	static public ImageProcessor transformPlane(
+			final TransformMeshMappingWithMasks<?> mapping,
+			final Rectangle bounds,
+			final ImageProcessor src,
+			final int cropWidth) {
+
+		src.setInterpolationMethod(ImageProcessor.BILINEAR);
+		final ImageProcessor dst = src.createProcessor(bounds.width, bounds.height);
+		mapping.mapInterpolated(src, dst);
+		final ImageProcessor cropped = dst.createProcessor(bounds.width - 2 * cropWidth, bounds.height - 2 * cropWidth);
+		cropped.copyBits(dst, -cropWidth, -cropWidth, Blitter.COPY);
+		return cropped;
+	}
+
     /**
      * Create a transformed and cropped copy of an {@link ImageStack}.
      * Uses a default mesh resolution of 128 triangles per image width.
@@ -0,0 +1,211 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.awt.Rectangle;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.lenscorrect.json.Calibration;
+import org.janelia.saalfeldlab.lenscorrect.json.TransformationAdapter;
+import org.janelia.saalfeldlab.lenscorrect.solve.PolynomialDistortion;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.CoordinateTransformList;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.trakem2.transform.CoordinateTransform;
+import mpicbg.trakem2.transform.NonLinearCoordinateTransform;
+
+/**
+ * Warm start of the calibrate commands from a previous calibration of the
+ * same scope, e.g. one of scripts/scope*.json.
+ *
+ * The lens transform of the previous calibration becomes the coordinate
+ * transform of all patches of its layer before the first montage, so the
+ * montage and layer alignment start from nearly undistorted tiles and can
+ * use a tighter maxEpsilon and fewer iterations.  Previous calibrations are
+ * assigned to layers by label (calibration names are
+ * "&lt;project&gt;, &lt;label&gt;"), or by position if no name ends with the
+ * label.
+ *
+ * The TrakEM2 distortion correction does not start from the previous lens.
+ * With clearTransform, which calibration-params.json enables,
+ * DistortionCorrectionTask removes the coordinate transforms of all patches
+ * of the layer before it extracts features, so the distortion fit always
+ * starts from identity and only the montage and layer alignment stages
+ * benefit from the warm start.  The native engine starts its solver from the
+ * previous distortion, see {@link #distortion(String, int)}.
+ *
+ * After the export, the new calibration is compared with the
+ * previous one, the same comparison is used between the results of the
+ * TrakEM2 and the native calibration engine, and between the scopes of a
+ * batch calibration.
+ */
+class WarmStart {
+
+	private static final Gson gson = new GsonBuilder()
+			.registerTypeAdapter(CoordinateTransform.class, new TransformationAdapter())
+			.create();
+
+	private final List<Calibration> calibrations;
+
+	/**
+	 * @param path previous calibration JSON
+	 */
+	WarmStart(final String path) throws IOException {
+
+		try (FileReader reader = new FileReader(path)) {
+			calibrations = gson.fromJson(reader, new TypeToken<List<Calibration>>(){});
+		}
+		if (calibrations == null || calibrations.isEmpty())
+			throw new IOException("no calibrations in " + path);
+		System.out.println("read " + calibrations.size() + " calibrations from " + path);
+	}
+
+	/**
+	 * @param label
+	 * @param index layer index, used if no calibration name ends with the
+	 *     label
+	 * @return the previous calibration of a layer
+	 */
+	Calibration find(final String label, final int index) {
+
+		for (final Calibration calibration : calibrations)
+			if (calibration.name() != null && (calibration.name().equals(label) || calibration.name().endsWith(", " + label)))
+				return calibration;
+		if (index < calibrations.size()) {
+			System.out.println("no previous calibration named '" + label + "', using '" + calibrations.get(index).name() + "'");
+			return calibrations.get(index);
+		}
+		throw new IllegalArgumentException("no previous calibration for " + label);
+	}
+
+	/**
+	 * A new instance of the previous lens transform of a layer, restricted to
+	 * a crop of the frame.
+	 *
+	 * @param label
+	 * @param index
+	 * @param bounds crop of the frame, null for the full frame
+	 * @return the lens transform for the patches of the layer
+	 */
+	CoordinateTransform lens(final String label, final int index, final Rectangle bounds) throws Exception {
+
+		final CoordinateTransform lens = find(label, index).transform()[0];
+		final String className = lens.getClass().getName();
+		final String dataString = lens.toDataString();
+		if (bounds == null)
+			return CalibrateChannels.createTransform(className, dataString);
+		if (!(lens instanceof NonLinearCoordinateTransform))
+			throw new IllegalArgumentException("cannot crop a " + className + " to a mask");
+
+		final PolynomialDistortion distortion = PolynomialDistortion.fromDataString(dataString);
+		if (bounds.x == 0 && bounds.y == 0 && bounds.width == distortion.getWidth() && bounds.height == distortion.getHeight())
+			return CalibrateChannels.createTransform(className, dataString);
+		return CalibrateChannels.createTransform(
+				className,
+				distortion.withOffset(-bounds.x, -bounds.y, bounds.width, bounds.height).toDataString());
+	}
+
+	/**
+	 * The previous lens distortion of a layer for the native solver.
+	 *
+	 * @param label
+	 * @param index
+	 * @return the lens distortion, null if the previous lens is not a
+	 *     polynomial distortion
+	 */
+	PolynomialDistortion distortion(final String label, final int index) {
+
+		final CoordinateTransform lens = find(label, index).transform()[0];
+		if (!(lens instanceof NonLinearCoordinateTransform))
+			return null;
+		return PolynomialDistortion.fromDataString(lens.toDataString());
+	}
+
+	private static CoordinateTransformList<mpicbg.models.CoordinateTransform> transformList(
+			final List<Map<String, String>> maplist) throws Exception {
+
+		final CoordinateTransformList<mpicbg.models.CoordinateTransform> ctl = new CoordinateTransformList<>();
+		for (final Map<String, String> map : maplist)
+			ctl.add(CalibrateChannels.createTransform(map.get("className"), map.get("dataString")));
+		return ctl;
+	}
+
+	/**
+	 * Compare exported calibrations with the previous ones on a 64x64 grid
+	 * over the frame.  The total change is the displacement between the
+	 * previous and the new lens and affine, the lens change is what remains
+	 * of the displacement between the previous and the new lens after the
+	 * best affine fit.
+	 *
+	 * @param transformExports the new calibrations
+	 * @param labels one label per export
+	 * @param width frame width
+	 * @param height frame height
+	 * @return a table of the mean and maximum changes in pixels
+	 */
+	@SuppressWarnings("unchecked")
+	String compare(
+			final List<? extends Map<String, Object>> transformExports,
+			final List<String> labels,
+			final int width,
+			final int height) throws Exception {
+
+		final StringBuilder table = new StringBuilder("label\tprevious\tmean_change\tmax_change\tmean_lens_change\tmax_lens_change\n");
+		for (int i = 0; i < transformExports.size(); ++i) {
+			final Calibration previous = find(labels.get(i), i);
+			final List<Map<String, String>> maplist = (List<Map<String, String>>)transformExports.get(i).get("transform");
+			final CoordinateTransformList<mpicbg.models.CoordinateTransform> ctl = transformList(maplist);
+			final CoordinateTransformList<mpicbg.models.CoordinateTransform> previousCtl = new CoordinateTransformList<>();
+			for (final CoordinateTransform ct : previous.transform())
+				previousCtl.add(ct);
+			final CoordinateTransform lens = CalibrateChannels.createTransform(maplist.get(0).get("className"), maplist.get(0).get("dataString"));
+			final CoordinateTransform previousLens = previous.transform()[0];
+
+			final ArrayList<PointMatch> lensMatches = new ArrayList<>();
+			double sum = 0;
+			double max = 0;
+			final double scaleX = (width - 1.0) / 63.0;
+			final double scaleY = (height - 1.0) / 63.0;
+			for (int y = 0; y < 64; ++y) {
+				for (int x = 0; x < 64; ++x) {
+					final double[] l = {scaleX * x, scaleY * y};
+					final double[] p = ctl.apply(l);
+					final double[] q = previousCtl.apply(l);
+					final double d = Math.hypot(p[0] - q[0], p[1] - q[1]);
+					sum += d;
+					max = Math.max(max, d);
+					lensMatches.add(new PointMatch(new Point(lens.apply(l)), new Point(previousLens.apply(l))));
+				}
+			}
+
+			final AffineModel2D affine = new AffineModel2D();
+			affine.fit(lensMatches);
+			double lensSum = 0;
+			double lensMax = 0;
+			for (final PointMatch m : lensMatches) {
+				m.apply(affine);
+				final double d = m.getDistance();
+				lensSum += d;
+				lensMax = Math.max(lensMax, d);
+			}
+
+			table.append(String.format(
+					"%s\t%s\t%.3f\t%.3f\t%.3f\t%.3f%n",
+					labels.get(i),
+					previous.name(),
+					sum / lensMatches.size(),
+					max,
+					lensSum / lensMatches.size(),
+					lensMax));
+		}
+		return table.toString();
+	}
+}
@@ -35,12 +35,24 @@ public class AlignLayersParams {
      * Convert to RegularizedAffineLayerAlignment.Param for use with TrakEM2
      */
     public RegularizedAffineLayerAlignment.Param toRegularizedAffineParam(int maxNumThreads) {
+        return toRegularizedAffineParam(maxNumThreads, 1);
+    }
+
+    /**
+     * Convert to RegularizedAffineLayerAlignment.Param for use with TrakEM2
+     * with SIFT octave sizes reduced by a downsampling factor, models remain
+     * in full resolution coordinates
+     *
+     * @param maxNumThreads
+     * @param downsampling 1 for full resolution
+     */
+    public RegularizedAffineLayerAlignment.Param toRegularizedAffineParam(int maxNumThreads, int downsampling) {
         return new RegularizedAffineLayerAlignment.Param(
             SIFTfdBins,
             SIFTfdSize,
             (float) SIFTinitialSigma,
-            SIFTmaxOctaveSize,
-            SIFTminOctaveSize,
+            Math.max(1, SIFTmaxOctaveSize / downsampling),
+            Math.max(1, SIFTminOctaveSize / downsampling),
             SIFTsteps,
             clearCache,
             maxNumThreads,
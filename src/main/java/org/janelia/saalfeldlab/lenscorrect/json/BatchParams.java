@@ -0,0 +1,139 @@
+package org.janelia.saalfeldlab.lenscorrect.json;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+
+/**
+ * Batch of calibrations of several scopes, e.g.
+ *
+ * <pre>
+ * {
+ *   "scopes": [
+ *     {"command": "calibrate-split", "name": "scope1", "input": "/data/scope1",
+ *      "output": "/calib/scope1", "inputParams": "/data/scope1/input.json"},
+ *     {"command": "calibrate-channels", "name": "scope2", "input": "/data/scope2",
+ *      "output": "/calib/scope2", "inputParams": "/data/scope2/input.json",
+ *      "calibrationParams": "/data/scope2/calibration.json", "args": ["--engine", "NATIVE"]}
+ *   ]
+ * }
+ * </pre>
+ *
+ * args are passed to the calibrate command in addition to the options of the
+ * scope.
+ */
+public class BatchParams {
+    private List<Scope> scopes;
+
+    private static final Gson GSON = new Gson();
+
+    public static class Scope {
+        private String command;
+        private String name;
+        private String input;
+        private String output;
+        private String inputParams;
+        private String calibrationParams;
+        private List<String> args;
+
+        public String getCommand() {
+            return command;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * Command line arguments of the calibrate command of this scope
+         *
+         * @return the arguments without the command name
+         * @throws IllegalArgumentException for unknown commands and missing
+         *     options
+         */
+        public List<String> toArgs() {
+            if (!"calibrate-split".equals(command) && !"calibrate-channels".equals(command))
+                throw new IllegalArgumentException("Unknown batch command: " + command);
+            if (name == null || input == null || output == null || inputParams == null)
+                throw new IllegalArgumentException("Scope " + name + " needs a name, input, output, and inputParams");
+
+            final List<String> commandArgs = new ArrayList<>();
+            commandArgs.add("--input");
+            commandArgs.add(input);
+            commandArgs.add("--output");
+            commandArgs.add(output);
+            commandArgs.add("--input-params");
+            commandArgs.add(inputParams);
+            commandArgs.add("--name");
+            commandArgs.add(name);
+            if (calibrationParams != null) {
+                commandArgs.add("--calibration-params");
+                commandArgs.add(calibrationParams);
+            }
+            if (args != null)
+                commandArgs.addAll(args);
+            return commandArgs;
+        }
+
+        /**
+         * @param option
+         * @return whether the extra args of this scope set an option
+         */
+        public boolean hasArg(String option) {
+            if (args == null)
+                return false;
+            for (String arg : args)
+                if (arg.equals(option) || arg.startsWith(option + "="))
+                    return true;
+            return false;
+        }
+
+        /**
+         * @param option
+         * @return the value of an option in the extra args of this scope, null
+         *     if it is not set
+         */
+        public String getArg(String option) {
+            if (args == null)
+                return null;
+            for (int i = 0; i < args.size(); ++i) {
+                if (args.get(i).startsWith(option + "="))
+                    return args.get(i).substring(option.length() + 1);
+                if (args.get(i).equals(option))
+                    return i + 1 < args.size() ? args.get(i + 1) : null;
+            }
+            return null;
+        }
+
+        /**
+         * @return whether this scope runs the TrakEM2 engine, i.e. is neither
+         *     a --resolve-only run nor runs with --engine NATIVE
+         */
+        public boolean usesTrakEM2() {
+            return !hasArg("--resolve-only") && !"NATIVE".equals(getArg("--engine"));
+        }
+    }
+
+    /**
+     * Load a batch from a JSON file
+     *
+     * @param path Path to the batch file
+     * @return Parsed BatchParams object
+     * @throws IOException if file cannot be read
+     */
+    public static BatchParams load(String path) throws IOException {
+        return GSON.fromJson(Files.readString(Paths.get(path)), BatchParams.class);
+    }
+
+    public List<Scope> getScopes() {
+        return scopes == null ? List.of() : scopes;
+    }
+}
\ No newline at end of file
@@ -9,6 +9,7 @@ import java.nio.file.Paths;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
 
 /**
  * Calibration parameters (shared between different calibration tools)
@@ -65,6 +66,32 @@ public class CalibrationParams {
         return loadFromStream(inputStream);
     }
 
+    /**
+     * Parameters for a run that starts from a previous calibration.  The
+     * tiles are then nearly undistorted and in place before the first montage,
+     * so the montage and layer alignment stages use a tighter RANSAC
+     * maxEpsilon and fewer optimizer iterations.  The distortion correction
+     * parameters are not changed.
+     *
+     * @param epsilonScale factor for maxEpsilon
+     * @param iterationScale factor for the maximum number of iterations
+     * @return a new CalibrationParams object
+     */
+    public CalibrationParams warmStart(double epsilonScale, double iterationScale) {
+        final JsonObject json = GSON.toJsonTree(this).getAsJsonObject();
+        for (String stage : new String[] {"montageLayers", "alignLayers", "alignLayers2", "alignLayers3"}) {
+            final JsonObject params = json.getAsJsonObject(stage);
+            if (params == null)
+                continue;
+            if (params.has("maxEpsilon"))
+                params.addProperty("maxEpsilon", params.get("maxEpsilon").getAsDouble() * epsilonScale);
+            for (String key : new String[] {"maxIterations", "maxIterationsOptimize"})
+                if (params.has(key))
+                    params.addProperty(key, Math.max(1, (int)Math.round(params.get(key).getAsInt() * iterationScale)));
+        }
+        return GSON.fromJson(json, CalibrationParams.class);
+    }
+
     public MontageLayersParams getMontageLayers() {
         return montageLayers;
     }
@@ -68,4 +68,80 @@ public class CorrectDistortionParams {
 
         return p;
     }
+
+    public double getInitialSigma() {
+        return initialSigma;
+    }
+
+    public int getSteps() {
+        return steps;
+    }
+
+    public int getMinOctaveSize() {
+        return minOctaveSize;
+    }
+
+    public int getMaxOctaveSize() {
+        return maxOctaveSize;
+    }
+
+    public int getFdSize() {
+        return fdSize;
+    }
+
+    public int getFdBins() {
+        return fdBins;
+    }
+
+    public double getRod() {
+        return rod;
+    }
+
+    public double getMaxEpsilon() {
+        return maxEpsilon;
+    }
+
+    public double getMinInlierRatio() {
+        return minInlierRatio;
+    }
+
+    public int getMinNumInliers() {
+        return minNumInliers;
+    }
+
+    public int getExpectedModelIndex() {
+        return expectedModelIndex;
+    }
+
+    public int getDesiredModelIndex() {
+        return desiredModelIndex;
+    }
+
+    public boolean isRegularize() {
+        return regularize;
+    }
+
+    public int getRegularizerIndex() {
+        return regularizerIndex;
+    }
+
+    public double getLambdaRegularize() {
+        return lambdaRegularize;
+    }
+
+    public int getMaxIterationsOptimize() {
+        return maxIterationsOptimize;
+    }
+
+    public int getMaxPlateauwidthOptimize() {
+        return maxPlateauwidthOptimize;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public double getLambda() {
+        return lambda;
+    }
 }
\ No newline at end of file
@@ -31,11 +31,25 @@ public class MontageLayersParams {
      * Convert to Align.ParamOptimize for use with TrakEM2
      */
     public Align.ParamOptimize toAlignParam() {
+        return toAlignParam(1);
+    }
+
+    /**
+     * Convert to Align.ParamOptimize for use with TrakEM2 with SIFT octave
+     * sizes reduced by a downsampling factor.  TrakEM2 scales patches to the
+     * maximum octave size before feature extraction, so features are
+     * extracted from correspondingly downsampled images while their
+     * locations, and the fitted models, remain in full resolution
+     * coordinates.
+     *
+     * @param downsampling 1 for full resolution
+     */
+    public Align.ParamOptimize toAlignParam(int downsampling) {
         Align.ParamOptimize param = new Align.ParamOptimize();
         param.sift.initialSigma = (float) initialSigma;
         param.sift.steps = steps;
-        param.sift.minOctaveSize = minOctaveSize;
-        param.sift.maxOctaveSize = maxOctaveSize;
+        param.sift.minOctaveSize = Math.max(1, minOctaveSize / downsampling);
+        param.sift.maxOctaveSize = Math.max(1, maxOctaveSize / downsampling);
         param.sift.fdSize = fdSize;
         param.sift.fdBins = fdBins;
         param.rod = (float) rod;
@@ -0,0 +1,94 @@
+package org.janelia.saalfeldlab.lenscorrect.json;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Parameter sweep over the correctDistortion parameters, a grid of values per
+ * parameter and/or a list of explicit variants, e.g.
+ *
+ * <pre>
+ * {
+ *   "grid": {"lambda": [0.001, 0.01, 0.1], "dimension": [4, 5]},
+ *   "variants": [{"lambda": 0.01, "rod": 0.9}]
+ * }
+ * </pre>
+ *
+ * expands to the 6 grid combinations followed by the explicit variants.
+ */
+public class SweepParams {
+    private Map<String, List<JsonElement>> grid;
+    private List<Map<String, JsonElement>> variants;
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Load sweep parameters from a JSON file
+     *
+     * @param path Path to the sweep file
+     * @return Parsed SweepParams object
+     * @throws IOException if file cannot be read
+     */
+    public static SweepParams load(String path) throws IOException {
+        return GSON.fromJson(Files.readString(Paths.get(path)), SweepParams.class);
+    }
+
+    /**
+     * Expand the grid and the explicit variants into a list of parameter
+     * overrides
+     *
+     * @return one JSON object of overrides per variant
+     */
+    public List<JsonObject> expand() {
+        final List<JsonObject> overrides = new ArrayList<>();
+        if (grid != null && !grid.isEmpty()) {
+            overrides.add(new JsonObject());
+            for (Map.Entry<String, List<JsonElement>> entry : grid.entrySet()) {
+                final List<JsonObject> expanded = new ArrayList<>();
+                for (JsonObject o : overrides) {
+                    for (JsonElement value : entry.getValue()) {
+                        final JsonObject e = o.deepCopy();
+                        e.add(entry.getKey(), value);
+                        expanded.add(e);
+                    }
+                }
+                overrides.clear();
+                overrides.addAll(expanded);
+            }
+        }
+        if (variants != null) {
+            for (Map<String, JsonElement> variant : variants) {
+                final JsonObject o = new JsonObject();
+                variant.forEach(o::add);
+                overrides.add(o);
+            }
+        }
+        return overrides;
+    }
+
+    /**
+     * Apply overrides to correctDistortion parameters
+     *
+     * @param params base parameters
+     * @param overrides
+     * @return a new CorrectDistortionParams object
+     * @throws IllegalArgumentException for parameters that do not exist
+     */
+    public static CorrectDistortionParams apply(CorrectDistortionParams params, JsonObject overrides) {
+        final JsonObject json = GSON.toJsonTree(params).getAsJsonObject();
+        for (Map.Entry<String, JsonElement> entry : overrides.entrySet()) {
+            if (!json.has(entry.getKey()))
+                throw new IllegalArgumentException("Unknown correctDistortion parameter: " + entry.getKey());
+            json.add(entry.getKey(), entry.getValue());
+        }
+        return GSON.fromJson(json, CorrectDistortionParams.class);
+    }
+}
\ No newline at end of file
@@ -62,6 +62,7 @@ public class TransformationAdapter implements JsonDeserializer<CoordinateTransfo
                     list.add(transform);
                 }
             }
+            return list;
         } else {
             try {
                 final Class<?> clazz = Class.forName(className);
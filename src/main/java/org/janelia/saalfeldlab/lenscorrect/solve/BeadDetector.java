@@ -0,0 +1,240 @@
+package org.janelia.saalfeldlab.lenscorrect.solve;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sub-pixel detection of fluorescent beads and translation invariant bead
+ * descriptors.
+ *
+ * Beads are the local maxima of a difference of Gaussians of the expected
+ * bead size above a threshold relative to the strongest response, refined to
+ * sub-pixel accuracy by a quadratic fit of their 3x3 neighbourhood.  The
+ * descriptor of a bead is the offset vectors to its nearest neighbouring
+ * beads, ordered by distance, so that the same bead in two overlapping tiles
+ * has a similar descriptor as long as its neighbourhood is in both tiles.
+ */
+public class BeadDetector {
+
+	private final double sigma;
+	private final double threshold;
+
+	/**
+	 * @param sigma bead standard deviation in pixels
+	 * @param threshold minimum response relative to the strongest bead
+	 */
+	public BeadDetector(final double sigma, final double threshold) {
+
+		this.sigma = sigma;
+		this.threshold = threshold;
+	}
+
+	private static float[] kernel(final double sigma) {
+
+		final int r = Math.max(1, (int)Math.ceil(3 * sigma));
+		final float[] kernel = new float[2 * r + 1];
+		double sum = 0;
+		for (int i = -r; i <= r; ++i) {
+			kernel[i + r] = (float)Math.exp(-0.5 * i * i / (sigma * sigma));
+			sum += kernel[i + r];
+		}
+		for (int i = 0; i < kernel.length; ++i)
+			kernel[i] /= sum;
+		return kernel;
+	}
+
+	/**
+	 * Separable Gaussian blur with clamped borders.
+	 */
+	static float[] blur(final float[] pixels, final int width, final int height, final double sigma) {
+
+		final float[] kernel = kernel(sigma);
+		final int r = kernel.length / 2;
+		final float[] tmp = new float[pixels.length];
+		final float[] blurred = new float[pixels.length];
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				float sum = 0;
+				for (int k = -r; k <= r; ++k)
+					sum += kernel[k + r] * pixels[y * width + Math.min(width - 1, Math.max(0, x + k))];
+				tmp[y * width + x] = sum;
+			}
+		}
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				float sum = 0;
+				for (int k = -r; k <= r; ++k)
+					sum += kernel[k + r] * tmp[Math.min(height - 1, Math.max(0, y + k)) * width + x];
+				blurred[y * width + x] = sum;
+			}
+		}
+		return blurred;
+	}
+
+	/**
+	 * Detect beads.
+	 *
+	 * @param pixels row by row
+	 * @param width
+	 * @param height
+	 * @return bead locations {x, y}
+	 */
+	public List<double[]> detect(final float[] pixels, final int width, final int height) {
+
+		final float[] dog = blur(pixels, width, height, sigma);
+		final float[] background = blur(pixels, width, height, sigma * 1.6);
+		float max = 0;
+		for (int i = 0; i < dog.length; ++i) {
+			dog[i] -= background[i];
+			max = Math.max(max, dog[i]);
+		}
+		final double minResponse = threshold * max;
+		final int r = Math.max(1, (int)Math.ceil(1.5 * sigma));
+
+		final ArrayList<double[]> beads = new ArrayList<>();
+		for (int y = r; y < height - r; ++y) {
+			for (int x = r; x < width - r; ++x) {
+				final float v = dog[y * width + x];
+				if (v <= minResponse || v <= 0)
+					continue;
+				boolean isMax = true;
+				for (int dy = -1; dy <= 1 && isMax; ++dy)
+					for (int dx = -1; dx <= 1 && isMax; ++dx)
+						if ((dx != 0 || dy != 0) && dog[(y + dy) * width + x + dx] >= v)
+							isMax = false;
+				if (!isMax)
+					continue;
+
+				/* quadratic fit of the 3x3 neighbourhood, the centroid of the positive response if it is not a proper maximum */
+				final double gx = 0.5 * (dog[y * width + x + 1] - dog[y * width + x - 1]);
+				final double gy = 0.5 * (dog[(y + 1) * width + x] - dog[(y - 1) * width + x]);
+				final double hxx = dog[y * width + x + 1] - 2 * v + dog[y * width + x - 1];
+				final double hyy = dog[(y + 1) * width + x] - 2 * v + dog[(y - 1) * width + x];
+				final double hxy = 0.25 * (
+						dog[(y + 1) * width + x + 1] - dog[(y + 1) * width + x - 1] -
+						dog[(y - 1) * width + x + 1] + dog[(y - 1) * width + x - 1]);
+				final double det = hxx * hyy - hxy * hxy;
+				final double ox = det > 0 ? (hxy * gy - hyy * gx) / det : Double.NaN;
+				final double oy = det > 0 ? (hxy * gx - hxx * gy) / det : Double.NaN;
+				if (Math.abs(ox) <= 1 && Math.abs(oy) <= 1) {
+					beads.add(new double[] {x + ox, y + oy});
+					continue;
+				}
+				double sum = 0, sx = 0, sy = 0;
+				for (int dy = -r; dy <= r; ++dy) {
+					for (int dx = -r; dx <= r; ++dx) {
+						final double w = Math.max(0, dog[(y + dy) * width + x + dx]);
+						sum += w;
+						sx += w * dx;
+						sy += w * dy;
+					}
+				}
+				beads.add(new double[] {x + sx / sum, y + sy / sum});
+			}
+		}
+		return beads;
+	}
+
+	/**
+	 * Descriptors of the offsets to the k nearest neighbours of each bead.
+	 * Beads with fewer than k neighbours get no descriptor (null).
+	 *
+	 * Beads are binned into a grid of about k + 1 beads per cell, and the
+	 * neighbours of a bead are searched in rings of cells around its own
+	 * until no unsearched cell can be closer than the k-th nearest bead found,
+	 * with ties ordered by index.
+	 *
+	 * @param beads
+	 * @param k
+	 * @return one descriptor of length 2k per bead
+	 */
+	public static float[][] descriptors(final List<double[]> beads, final int k) {
+
+		final int n = beads.size();
+		final float[][] descriptors = new float[n][];
+		if (n <= k)
+			return descriptors;
+
+		/* grid */
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (final double[] p : beads) {
+			minX = Math.min(minX, p[0]);
+			minY = Math.min(minY, p[1]);
+			maxX = Math.max(maxX, p[0]);
+			maxY = Math.max(maxY, p[1]);
+		}
+		final double area = Math.max(1, (maxX - minX) * (maxY - minY));
+		final double cellSize = Math.max(1e-6, Math.sqrt(area * (k + 1) / n));
+		final int gridWidth = (int)Math.min(n, (maxX - minX) / cellSize + 1);
+		final int gridHeight = (int)Math.min(n, (maxY - minY) / cellSize + 1);
+		final int[] cellX = new int[n];
+		final int[] cellY = new int[n];
+		final int[] cellStart = new int[gridWidth * gridHeight + 1];
+		for (int i = 0; i < n; ++i) {
+			final double[] p = beads.get(i);
+			cellX[i] = Math.min(gridWidth - 1, (int)((p[0] - minX) / cellSize));
+			cellY[i] = Math.min(gridHeight - 1, (int)((p[1] - minY) / cellSize));
+			++cellStart[cellY[i] * gridWidth + cellX[i] + 1];
+		}
+		for (int c = 0; c < gridWidth * gridHeight; ++c)
+			cellStart[c + 1] += cellStart[c];
+		final int[] cellBeads = new int[n];
+		final int[] fill = Arrays.copyOf(cellStart, cellStart.length - 1);
+		for (int i = 0; i < n; ++i)
+			cellBeads[fill[cellY[i] * gridWidth + cellX[i]]++] = i;
+
+		/* k nearest, sorted by distance and index */
+		final double[] nearestDistances = new double[k];
+		final int[] nearest = new int[k];
+		for (int i = 0; i < n; ++i) {
+			final double[] p = beads.get(i);
+			int numNearest = 0;
+			for (int r = 0; ; ++r) {
+				final int x0 = cellX[i] - r, x1 = cellX[i] + r, y0 = cellY[i] - r, y1 = cellY[i] + r;
+				for (int cy = Math.max(0, y0); cy <= Math.min(gridHeight - 1, y1); ++cy) {
+					for (int cx = Math.max(0, x0); cx <= Math.min(gridWidth - 1, x1); ++cx) {
+						/* the ring only */
+						if (cy != y0 && cy != y1 && cx != x0 && cx != x1)
+							continue;
+						for (int c = cellStart[cy * gridWidth + cx]; c < cellStart[cy * gridWidth + cx + 1]; ++c) {
+							final int j = cellBeads[c];
+							if (j == i)
+								continue;
+							final double[] q = beads.get(j);
+							final double d = (q[0] - p[0]) * (q[0] - p[0]) + (q[1] - p[1]) * (q[1] - p[1]);
+							if (numNearest == k && (d > nearestDistances[k - 1] || d == nearestDistances[k - 1] && j > nearest[k - 1]))
+								continue;
+							int m = numNearest < k ? numNearest++ : k - 1;
+							for (; m > 0 && (d < nearestDistances[m - 1] || d == nearestDistances[m - 1] && j < nearest[m - 1]); --m) {
+								nearestDistances[m] = nearestDistances[m - 1];
+								nearest[m] = nearest[m - 1];
+							}
+							nearestDistances[m] = d;
+							nearest[m] = j;
+						}
+					}
+				}
+				if (x0 <= 0 && y0 <= 0 && x1 >= gridWidth - 1 && y1 >= gridHeight - 1)
+					break;
+				if (numNearest == k) {
+					/* distance to the closest unsearched cell */
+					final double reach = Math.min(
+							Math.min(p[0] - (minX + x0 * cellSize), minX + (x1 + 1) * cellSize - p[0]),
+							Math.min(p[1] - (minY + y0 * cellSize), minY + (y1 + 1) * cellSize - p[1]));
+					if (nearestDistances[k - 1] < reach * reach)
+						break;
+				}
+			}
+			final float[] descriptor = new float[2 * k];
+			for (int m = 0; m < k; ++m) {
+				final double[] q = beads.get(nearest[m]);
+				descriptor[2 * m] = (float)(q[0] - p[0]);
+				descriptor[2 * m + 1] = (float)(q[1] - p[1]);
+			}
+			descriptors[i] = descriptor;
+		}
+		return descriptors;
+	}
+}
@@ -0,0 +1,838 @@
+package org.janelia.saalfeldlab.lenscorrect.solve;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.lenscorrect.solve.MatchSet.TileMatches;
+
+/**
+ * Estimates a {@link PolynomialDistortion} per layer and an affine per tile
+ * from the point matches of a {@link MatchSet}.
+ *
+ * Within each layer, the tiles of all tiles but the first are initialized
+ * with the linear least squares solution of the montage matches for an
+ * identity distortion.  Then, tiles and the non-linear coefficients of the
+ * distortion are refined jointly with Gauss-Newton iterations, the
+ * non-linear coefficients ridge regularized by lambda.  The linear part of
+ * the distortion stays the identity, it is absorbed by the tiles and the
+ * layer's frame.  Tiles should be translations (TrakEM2's
+ * desiredModelIndex 0) or similarities, with affine tiles, the distortion is
+ * not well defined by a regular grid of tiles.  The dense normal equations
+ * are accumulated in parallel.
+ *
+ * Tiles can be regularized like TrakEM2's InterpolatedAffineModel2D, which
+ * blends the desired model with a regularizer model by lambdaRegularize.
+ * The deviation of each tile's linear part from the regularizer model is
+ * added to the least squares problem at the tile's centered match
+ * locations, weighted by lambdaRegularize / (1 - lambdaRegularize).  For a
+ * translation regularizer, this is exactly the blend of the two fits.
+ *
+ * A warm start initializes the distortion of each layer with that of a
+ * previous calibration instead of the identity, and stops the Gauss-Newton
+ * iterations once the non-linear coefficients change by less than
+ * {@link #WARM_START_TOLERANCE} px.
+ *
+ * Layers are then registered to the first layer with one affine each,
+ * estimated from the matches between layers, and all layers are finally
+ * moved by one rigid transform such that their first tiles stay as close
+ * to their original position as possible, like the TrakEM2 export does.
+ *
+ * The distortions of a solution can be evaluated on other matches, with
+ * only the tiles and layers fit to them, to compare solutions from
+ * different match sets on the same matches.
+ */
+public class DistortionSolver {
+
+	static final double WARM_START_TOLERANCE = 1e-4;
+
+	/**
+	 * Per layer distortion and export affine of the first tile, and
+	 * per tile affines, all affines as {m00, m01, m02, m10, m11, m12}.
+	 */
+	public static class Solution {
+
+		public final PolynomialDistortion[] distortions;
+		public final double[][] affines;
+		public final double[][][] tileAffines;
+
+		/* RMS of the transferred montage matches per layer, in px */
+		public final double[] rms;
+
+		/* RMS of the matches to the first layer, NaN if there are none */
+		public final double[] layerRms;
+
+		Solution(
+				final PolynomialDistortion[] distortions,
+				final double[][] affines,
+				final double[][][] tileAffines,
+				final double[] rms,
+				final double[] layerRms) {
+
+			this.distortions = distortions;
+			this.affines = affines;
+			this.tileAffines = tileAffines;
+			this.rms = rms;
+			this.layerRms = layerRms;
+		}
+	}
+
+	/**
+	 * Linear tile models, each a basis of affine parameter changes.
+	 */
+	public enum TileModel {
+
+		TRANSLATION(new double[][] {
+			{0, 0, 1, 0, 0, 0},
+			{0, 0, 0, 0, 0, 1}}),
+		SIMILARITY(new double[][] {
+			{1, 0, 0, 0, 1, 0},
+			{0, -1, 0, 1, 0, 0},
+			{0, 0, 1, 0, 0, 0},
+			{0, 0, 0, 0, 0, 1}}),
+		AFFINE(new double[][] {
+			{1, 0, 0, 0, 0, 0},
+			{0, 1, 0, 0, 0, 0},
+			{0, 0, 1, 0, 0, 0},
+			{0, 0, 0, 1, 0, 0},
+			{0, 0, 0, 0, 1, 0},
+			{0, 0, 0, 0, 0, 1}});
+
+		final double[][] basis;
+
+		TileModel(final double[][] basis) {
+
+			this.basis = basis;
+		}
+
+		/**
+		 * Model for a TrakEM2 model index (0 translation, 1 rigid,
+		 * 2 similarity, 3 affine), rigid is approximated by similarity.
+		 *
+		 * @param index
+		 * @return the model
+		 */
+		public static TileModel fromModelIndex(final int index) {
+
+			switch (index) {
+			case 0:
+				return TRANSLATION;
+			case 1:
+			case 2:
+				return SIMILARITY;
+			case 3:
+				return AFFINE;
+			default:
+				throw new IllegalArgumentException("unsupported model index " + index);
+			}
+		}
+	}
+
+	private final TileModel tileModel;
+	private final TileModel regularizer;
+	private final double regularizerWeight;
+	private final int dimension;
+	private final double lambda;
+	private final int numIterations;
+	private final int numThreads;
+
+	/**
+	 * @param tileModel model of the tiles within a layer
+	 * @param dimension polynomial degree of the distortion
+	 * @param lambda ridge regularization of the non-linear coefficients
+	 * @param numIterations number of Gauss-Newton iterations
+	 * @param numThreads
+	 */
+	public DistortionSolver(
+			final TileModel tileModel,
+			final int dimension,
+			final double lambda,
+			final int numIterations,
+			final int numThreads) {
+
+		this(tileModel, null, 0, dimension, lambda, numIterations, numThreads);
+	}
+
+	/**
+	 * @param tileModel model of the tiles within a layer
+	 * @param regularizer regularizer model of the tiles, null for none
+	 * @param lambdaRegularize weight of the regularizer in [0, 1)
+	 * @param dimension polynomial degree of the distortion
+	 * @param lambda ridge regularization of the non-linear coefficients
+	 * @param numIterations number of Gauss-Newton iterations
+	 * @param numThreads
+	 */
+	public DistortionSolver(
+			final TileModel tileModel,
+			final TileModel regularizer,
+			final double lambdaRegularize,
+			final int dimension,
+			final double lambda,
+			final int numIterations,
+			final int numThreads) {
+
+		if (regularizer != null && !(lambdaRegularize >= 0 && lambdaRegularize < 1))
+			throw new IllegalArgumentException("lambdaRegularize must be in [0, 1) but is " + lambdaRegularize);
+
+		this.tileModel = tileModel;
+		this.regularizer = regularizer;
+		this.regularizerWeight = regularizer == null ? 0 : lambdaRegularize / (1 - lambdaRegularize);
+		this.dimension = dimension;
+		this.lambda = lambda;
+		this.numIterations = numIterations;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Apply an affine {m00, m01, m02, m10, m11, m12} to a location in place.
+	 *
+	 * @param a
+	 * @param l
+	 */
+	public static void apply(final double[] a, final double[] l) {
+
+		final double x = l[0];
+		final double y = l[1];
+		l[0] = a[0] * x + a[1] * y + a[2];
+		l[1] = a[3] * x + a[4] * y + a[5];
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return a after b
+	 */
+	public static double[] concatenate(final double[] a, final double[] b) {
+
+		return new double[] {
+				a[0] * b[0] + a[1] * b[3], a[0] * b[1] + a[1] * b[4], a[0] * b[2] + a[1] * b[5] + a[2],
+				a[3] * b[0] + a[4] * b[3], a[3] * b[1] + a[4] * b[4], a[3] * b[2] + a[4] * b[5] + a[5]};
+	}
+
+	/**
+	 * @param a
+	 * @return the data string of the equivalent mpicbg AffineModel2D
+	 */
+	public static String affineDataString(final double[] a) {
+
+		return a[0] + " " + a[3] + " " + a[1] + " " + a[4] + " " + a[2] + " " + a[5];
+	}
+
+	private static double[] identityAffine() {
+
+		return new double[] {1, 0, 0, 0, 1, 0};
+	}
+
+	/**
+	 * Dense normal equations A<sup>T</sup>A x = A<sup>T</sup>b.
+	 */
+	static class NormalEquations {
+
+		final int n;
+		final double[] ata;
+		final double[] atb;
+		int numRows = 0;
+
+		NormalEquations(final int n) {
+
+			this.n = n;
+			ata = new double[n * n];
+			atb = new double[n];
+		}
+
+		/**
+		 * Add a row with nonzero coefficients at indices.
+		 */
+		void addRow(final int[] indices, final double[] coefficients, final int nnz, final double rhs) {
+
+			for (int i = 0; i < nnz; ++i) {
+				final int ii = indices[i];
+				if (ii < 0)
+					continue;
+				final double ci = coefficients[i];
+				final int row = ii * n;
+				for (int j = 0; j < nnz; ++j)
+					if (indices[j] >= 0)
+						ata[row + indices[j]] += ci * coefficients[j];
+				atb[ii] += ci * rhs;
+			}
+			++numRows;
+		}
+
+		void add(final NormalEquations other) {
+
+			for (int i = 0; i < ata.length; ++i)
+				ata[i] += other.ata[i];
+			for (int i = 0; i < n; ++i)
+				atb[i] += other.atb[i];
+			numRows += other.numRows;
+		}
+
+		void regularize(final int i, final double weight, final double target) {
+
+			ata[i * n + i] += weight;
+			atb[i] += weight * target;
+		}
+
+		/**
+		 * Cholesky solve.
+		 */
+		double[] solve() {
+
+			final double[] l = ata.clone();
+			for (int j = 0; j < n; ++j) {
+				double d = l[j * n + j];
+				for (int k = 0; k < j; ++k)
+					d -= l[j * n + k] * l[j * n + k];
+				if (d <= 0)
+					throw new ArithmeticException("normal equations are not positive definite");
+				d = Math.sqrt(d);
+				l[j * n + j] = d;
+				for (int i = j + 1; i < n; ++i) {
+					double s = l[i * n + j];
+					for (int k = 0; k < j; ++k)
+						s -= l[i * n + k] * l[j * n + k];
+					l[i * n + j] = s / d;
+				}
+			}
+			final double[] x = atb.clone();
+			for (int i = 0; i < n; ++i) {
+				for (int k = 0; k < i; ++k)
+					x[i] -= l[i * n + k] * x[k];
+				x[i] /= l[i * n + i];
+			}
+			for (int i = n - 1; i >= 0; --i) {
+				for (int k = i + 1; k < n; ++k)
+					x[i] -= l[k * n + i] * x[k];
+				x[i] /= l[i * n + i];
+			}
+			return x;
+		}
+	}
+
+	private interface RowSource {
+
+		void addRows(TileMatches m, NormalEquations equations);
+	}
+
+	/**
+	 * Accumulate the normal equations of all matches in parallel, each
+	 * thread into its own equations.
+	 */
+	private NormalEquations accumulate(
+			final ExecutorService exec,
+			final List<TileMatches> matches,
+			final int n,
+			final RowSource rows) throws InterruptedException, ExecutionException {
+
+		final int numTasks = Math.min(numThreads, Math.max(1, matches.size()));
+		final ArrayList<Future<NormalEquations>> futures = new ArrayList<>();
+		for (int t = 0; t < numTasks; ++t) {
+			final int first = t * matches.size() / numTasks;
+			final int last = (t + 1) * matches.size() / numTasks;
+			futures.add(exec.submit(() -> {
+				final NormalEquations equations = new NormalEquations(n);
+				for (int i = first; i < last; ++i)
+					rows.addRows(matches.get(i), equations);
+				return equations;
+			}));
+		}
+		final NormalEquations equations = futures.get(0).get();
+		for (int t = 1; t < futures.size(); ++t)
+			equations.add(futures.get(t).get());
+		return equations;
+	}
+
+	/**
+	 * One Gauss-Newton step on the parameters of all tiles but the first
+	 * and, optionally, the non-linear coefficients of the distortion jointly.
+	 * The residuals are linear in the tile parameters, so without the
+	 * distortion, one step is the least squares solution.
+	 */
+	private void refine(
+			final ExecutorService exec,
+			final PolynomialDistortion distortion,
+			final double[][] affines,
+			final List<TileMatches> matches,
+			final boolean refineDistortion) throws InterruptedException, ExecutionException {
+
+		final int numTiles = affines.length;
+		final int length = distortion.getLength();
+		final double[][] beta = distortion.getBeta();
+		final double[][] basis = tileModel.basis;
+		final int numTileParameters = basis.length;
+		final int numAffineParameters = numTileParameters * (numTiles - 1);
+		/* non-linear terms are 2..length-2, x, y, and the constant are fixed */
+		final int m = refineDistortion ? length - 3 : 0;
+		if (numAffineParameters + 2 * m == 0)
+			return;
+
+		final NormalEquations equations = accumulate(exec, matches, numAffineParameters + 2 * m, (tm, eq) -> {
+			final double[] ep = new double[length];
+			final double[] eq2 = new double[length];
+			final double[] p = new double[2];
+			final double[] q = new double[2];
+			final int nnz = 2 * numTileParameters + 2 * m;
+			final int[] indices = new int[nnz];
+			final double[] coefficients = new double[nnz];
+			final double[] a = affines[tm.tileA];
+			final double[] b = affines[tm.tileB];
+			for (int i = 0; i < tm.size(); ++i) {
+				distortion.expand(tm.xa(i), tm.ya(i), ep);
+				distortion.expand(tm.xb(i), tm.yb(i), eq2);
+				p[0] = p[1] = q[0] = q[1] = 0;
+				for (int k = 0; k < length; ++k) {
+					p[0] += ep[k] * beta[k][0];
+					p[1] += ep[k] * beta[k][1];
+					q[0] += eq2[k] * beta[k][0];
+					q[1] += eq2[k] * beta[k][1];
+				}
+
+				for (int r = 0; r < 2; ++r) {
+					/* a(D(p)) - b(D(q)) */
+					final double residual =
+							a[3 * r] * p[0] + a[3 * r + 1] * p[1] + a[3 * r + 2] -
+							b[3 * r] * q[0] - b[3 * r + 1] * q[1] - b[3 * r + 2];
+					for (int j = 0; j < numTileParameters; ++j) {
+						final double[] e = basis[j];
+						indices[j] = tm.tileA == 0 ? -1 : numTileParameters * (tm.tileA - 1) + j;
+						coefficients[j] = e[3 * r] * p[0] + e[3 * r + 1] * p[1] + e[3 * r + 2];
+						indices[numTileParameters + j] = tm.tileB == 0 ? -1 : numTileParameters * (tm.tileB - 1) + j;
+						coefficients[numTileParameters + j] = -(e[3 * r] * q[0] + e[3 * r + 1] * q[1] + e[3 * r + 2]);
+					}
+					for (int c = 0; c < 2; ++c) {
+						for (int k = 0; k < m; ++k) {
+							indices[2 * numTileParameters + c * m + k] = numAffineParameters + c * m + k;
+							coefficients[2 * numTileParameters + c * m + k] = a[3 * r + c] * ep[2 + k] - b[3 * r + c] * eq2[2 + k];
+						}
+					}
+					eq.addRow(indices, coefficients, nnz, -residual);
+				}
+			}
+		});
+
+		if (regularizer != null && regularizerWeight > 0)
+			addRegularizer(distortion, affines, matches, equations);
+
+		/* keep tiles without matches in place, ridge regularize the distortion */
+		for (int i = 0; i < numAffineParameters; ++i)
+			equations.regularize(i, 1e-6, 0);
+		for (int c = 0; c < 2; ++c)
+			for (int k = 0; k < m; ++k)
+				equations.regularize(numAffineParameters + c * m + k, lambda, -beta[2 + k][c]);
+
+		final double[] x = equations.solve();
+		for (int t = 1; t < numTiles; ++t)
+			for (int j = 0; j < numTileParameters; ++j)
+				for (int k = 0; k < 6; ++k)
+					affines[t][k] += x[numTileParameters * (t - 1) + j] * basis[j][k];
+		for (int c = 0; c < 2; ++c)
+			for (int k = 0; k < m; ++k)
+				beta[2 + k][c] += x[numAffineParameters + c * m + k];
+	}
+
+	/**
+	 * The deviation of a linear part {m00, m01, m10, m11} from the
+	 * regularizer model, the part of l - I orthogonal to the linear parts of
+	 * the regularizer basis, which are orthogonal to each other.
+	 */
+	private double[] deviation(final double[] l, final boolean offset) {
+
+		final double[] d = l.clone();
+		if (offset) {
+			d[0] -= 1;
+			d[3] -= 1;
+		}
+		final double[] p = d.clone();
+		for (final double[] e : regularizer.basis) {
+			final double[] b = {e[0], e[1], e[3], e[4]};
+			final double norm = b[0] * b[0] + b[1] * b[1] + b[2] * b[2] + b[3] * b[3];
+			if (norm == 0)
+				continue;
+			final double dot = (p[0] * b[0] + p[1] * b[1] + p[2] * b[2] + p[3] * b[3]) / norm;
+			for (int k = 0; k < 4; ++k)
+				d[k] -= dot * b[k];
+		}
+		return d;
+	}
+
+	/**
+	 * Add the regularizer of all tiles but the first to the normal equations
+	 * of {@link #refine}: the deviation N of each tile's linear part from the
+	 * regularizer model at the tile's centered match locations p,
+	 * sum |N p|<sup>2</sup> = sum<sub>r</sub> n<sub>r</sub><sup>T</sup> S
+	 * n<sub>r</sub> for the rows n<sub>r</sub> of N and the scatter matrix S
+	 * of the locations, as rows n<sub>r</sub> u<sub>c</sub> for the columns
+	 * u<sub>c</sub> of the Cholesky factor of S.
+	 */
+	private void addRegularizer(
+			final PolynomialDistortion distortion,
+			final double[][] affines,
+			final List<TileMatches> matches,
+			final NormalEquations equations) {
+
+		final int numTiles = affines.length;
+		final double[][] moments = new double[numTiles][6];
+		final double[] l = new double[2];
+		for (final TileMatches m : matches) {
+			for (int i = 0; i < m.size(); ++i) {
+				l[0] = m.xa(i);
+				l[1] = m.ya(i);
+				distortion.applyInPlace(l);
+				addMoments(moments[m.tileA], l);
+				l[0] = m.xb(i);
+				l[1] = m.yb(i);
+				distortion.applyInPlace(l);
+				addMoments(moments[m.tileB], l);
+			}
+		}
+
+		final double[][] basis = tileModel.basis;
+		final int numTileParameters = basis.length;
+		final double[][] derivatives = new double[numTileParameters][];
+		for (int j = 0; j < numTileParameters; ++j)
+			derivatives[j] = deviation(new double[] {basis[j][0], basis[j][1], basis[j][3], basis[j][4]}, false);
+
+		final double w = Math.sqrt(regularizerWeight);
+		final int[] indices = new int[numTileParameters];
+		final double[] coefficients = new double[numTileParameters];
+		for (int t = 1; t < numTiles; ++t) {
+			final double[] mt = moments[t];
+			final double n = mt[0];
+			if (n < 2)
+				continue;
+			final double sxx = mt[3] - mt[1] * mt[1] / n;
+			final double sxy = mt[4] - mt[1] * mt[2] / n;
+			final double syy = mt[5] - mt[2] * mt[2] / n;
+			if (sxx <= 0)
+				continue;
+			final double u00 = Math.sqrt(sxx);
+			final double u10 = sxy / u00;
+			final double u11 = Math.sqrt(Math.max(0, syy - u10 * u10));
+			final double[][] u = {{u00, u10}, {0, u11}};
+
+			final double[] a = affines[t];
+			final double[] n0 = deviation(new double[] {a[0], a[1], a[3], a[4]}, true);
+			for (int j = 0; j < numTileParameters; ++j)
+				indices[j] = numTileParameters * (t - 1) + j;
+			for (int r = 0; r < 2; ++r) {
+				for (final double[] uc : u) {
+					for (int j = 0; j < numTileParameters; ++j)
+						coefficients[j] = w * (derivatives[j][2 * r] * uc[0] + derivatives[j][2 * r + 1] * uc[1]);
+					equations.addRow(indices, coefficients, numTileParameters, -w * (n0[2 * r] * uc[0] + n0[2 * r + 1] * uc[1]));
+				}
+			}
+		}
+	}
+
+	/* count, sums, and sums of squares and products of locations */
+	private static void addMoments(final double[] moments, final double[] l) {
+
+		moments[0] += 1;
+		moments[1] += l[0];
+		moments[2] += l[1];
+		moments[3] += l[0] * l[0];
+		moments[4] += l[0] * l[1];
+		moments[5] += l[1] * l[1];
+	}
+
+	private static double[] world(final PolynomialDistortion distortion, final double[] affine, final double x, final double y) {
+
+		final double[] l = new double[] {x, y};
+		distortion.applyInPlace(l);
+		apply(affine, l);
+		return l;
+	}
+
+	private static double rms(
+			final PolynomialDistortion[] distortions,
+			final double[][][] affines,
+			final List<TileMatches> matches) {
+
+		double sum = 0;
+		int n = 0;
+		for (final TileMatches m : matches) {
+			for (int i = 0; i < m.size(); ++i) {
+				final double[] p = world(distortions[m.layerA], affines[m.layerA][m.tileA], m.xa(i), m.ya(i));
+				final double[] q = world(distortions[m.layerB], affines[m.layerB][m.tileB], m.xb(i), m.yb(i));
+				sum += (p[0] - q[0]) * (p[0] - q[0]) + (p[1] - q[1]) * (p[1] - q[1]);
+				++n;
+			}
+		}
+		return n == 0 ? Double.NaN : Math.sqrt(sum / n);
+	}
+
+	/**
+	 * Least squares affine that maps the points p onto q.
+	 */
+	static double[] fitAffine(final List<double[]> p, final List<double[]> q) {
+
+		final NormalEquations equations = new NormalEquations(6);
+		final int[] indices = new int[3];
+		final double[] coefficients = new double[3];
+		for (int i = 0; i < p.size(); ++i) {
+			for (int r = 0; r < 2; ++r) {
+				for (int k = 0; k < 3; ++k)
+					indices[k] = 3 * r + k;
+				coefficients[0] = p.get(i)[0];
+				coefficients[1] = p.get(i)[1];
+				coefficients[2] = 1;
+				equations.addRow(indices, coefficients, 3, q.get(i)[r]);
+			}
+		}
+		return equations.solve();
+	}
+
+	/**
+	 * Least squares rigid transform that maps the points p onto q.
+	 */
+	static double[] fitRigid(final List<double[]> p, final List<double[]> q) {
+
+		double pcx = 0, pcy = 0, qcx = 0, qcy = 0;
+		for (int i = 0; i < p.size(); ++i) {
+			pcx += p.get(i)[0];
+			pcy += p.get(i)[1];
+			qcx += q.get(i)[0];
+			qcy += q.get(i)[1];
+		}
+		pcx /= p.size();
+		pcy /= p.size();
+		qcx /= q.size();
+		qcy /= q.size();
+
+		double sin = 0, cos = 0;
+		for (int i = 0; i < p.size(); ++i) {
+			final double px = p.get(i)[0] - pcx;
+			final double py = p.get(i)[1] - pcy;
+			final double qx = q.get(i)[0] - qcx;
+			final double qy = q.get(i)[1] - qcy;
+			cos += px * qx + py * qy;
+			sin += px * qy - py * qx;
+		}
+		final double angle = Math.atan2(sin, cos);
+		final double c = Math.cos(angle);
+		final double s = Math.sin(angle);
+		return new double[] {c, -s, qcx - c * pcx + s * pcy, s, c, qcy - s * pcx - c * pcy};
+	}
+
+	/**
+	 * The initial distortion of a warm start: a previous distortion refitted
+	 * for the normalization of the solver and followed by the affine that
+	 * makes its linear part the identity, which the solver keeps fixed.  The
+	 * affine is absorbed by the tiles.
+	 *
+	 * @param previous
+	 * @param dimension
+	 * @param width
+	 * @param height
+	 * @return the initial distortion
+	 */
+	static PolynomialDistortion warmStart(
+			final PolynomialDistortion previous,
+			final int dimension,
+			final int width,
+			final int height) {
+
+		if (previous.getDimension() != dimension || previous.getWidth() != width || previous.getHeight() != height)
+			throw new IllegalArgumentException(String.format(
+					"cannot warm start a distortion of dimension %d for %d x %d px from one of dimension %d for %d x %d px",
+					dimension, width, height, previous.getDimension(), previous.getWidth(), previous.getHeight()));
+
+		final PolynomialDistortion identity = PolynomialDistortion.identity(dimension, width, height);
+		final PolynomialDistortion refitted = previous.withOffset(0, 0, width, height);
+		final double[][] id = identity.getBeta();
+		final double[][] beta = refitted.getBeta();
+		final int last = beta.length - 1;
+
+		/* M^T = B^-1 I for the 2 x 2 linear rows B of beta and I of the identity */
+		final double det = beta[0][0] * beta[1][1] - beta[0][1] * beta[1][0];
+		if (Math.abs(det) < 1e-12)
+			throw new IllegalArgumentException("previous distortion is singular");
+		final double[][] inverse = {
+			{beta[1][1] / det, -beta[0][1] / det},
+			{-beta[1][0] / det, beta[0][0] / det}};
+		final double[][] mt = new double[2][2];
+		for (int i = 0; i < 2; ++i)
+			for (int j = 0; j < 2; ++j)
+				mt[i][j] = inverse[i][0] * id[0][j] + inverse[i][1] * id[1][j];
+
+		final double[][] warm = identity.getBeta();
+		for (int k = 2; k < last; ++k) {
+			final double x = beta[k][0] * mt[0][0] + beta[k][1] * mt[1][0];
+			final double y = beta[k][0] * mt[0][1] + beta[k][1] * mt[1][1];
+			warm[k][0] = x;
+			warm[k][1] = y;
+		}
+		return identity;
+	}
+
+	/**
+	 * @param matchSet
+	 * @return the solution
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public Solution solve(final MatchSet matchSet) throws InterruptedException, ExecutionException {
+
+		return solve(matchSet, null);
+	}
+
+	/**
+	 * @param matchSet
+	 * @param previous distortion of each layer of a previous calibration for
+	 *     a warm start, null or null entries for the identity
+	 * @return the solution
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public Solution solve(final MatchSet matchSet, final PolynomialDistortion[] previous) throws InterruptedException, ExecutionException {
+
+		final int numLayers = matchSet.getNumLayers();
+		final PolynomialDistortion[] distortions = new PolynomialDistortion[numLayers];
+		final boolean[] warm = new boolean[numLayers];
+		for (int l = 0; l < numLayers; ++l) {
+			warm[l] = previous != null && l < previous.length && previous[l] != null;
+			distortions[l] = warm[l]
+					? warmStart(previous[l], dimension, matchSet.getWidth(), matchSet.getHeight())
+					: PolynomialDistortion.identity(dimension, matchSet.getWidth(), matchSet.getHeight());
+		}
+		return solve(matchSet, distortions, warm, numIterations);
+	}
+
+	/**
+	 * Fit the tiles and layers of a match set for fixed distortions, e.g.
+	 * those of a solution from other matches.  The residuals of the
+	 * returned solution compare distortions on the same matches.
+	 *
+	 * @param matchSet
+	 * @param distortions distortion of each layer, not modified
+	 * @return the solution with the given distortions
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public Solution evaluate(final MatchSet matchSet, final PolynomialDistortion[] distortions) throws InterruptedException, ExecutionException {
+
+		if (distortions.length != matchSet.getNumLayers())
+			throw new IllegalArgumentException(
+					"matches have " + matchSet.getNumLayers() + " layers but there are " + distortions.length + " distortions");
+		for (final PolynomialDistortion distortion : distortions)
+			if (distortion.getWidth() != matchSet.getWidth() || distortion.getHeight() != matchSet.getHeight())
+				throw new IllegalArgumentException(String.format(
+						"matches are %d x %d px but a distortion is %d x %d px",
+						matchSet.getWidth(), matchSet.getHeight(), distortion.getWidth(), distortion.getHeight()));
+
+		return solve(matchSet, distortions.clone(), new boolean[distortions.length], 0);
+	}
+
+	/**
+	 * @param matchSet
+	 * @param distortions initial distortion of each layer, refined in place
+	 * @param warm whether the distortion of each layer is a warm start
+	 * @param numIterations number of Gauss-Newton iterations, 0 to keep the
+	 *     distortions fixed
+	 */
+	private Solution solve(
+			final MatchSet matchSet,
+			final PolynomialDistortion[] distortions,
+			final boolean[] warm,
+			final int numIterations) throws InterruptedException, ExecutionException {
+
+		final int numLayers = matchSet.getNumLayers();
+		final int width = matchSet.getWidth();
+		final int height = matchSet.getHeight();
+
+		final double[][][] tileAffines = new double[numLayers][][];
+		final double[] rms = new double[numLayers];
+		final double[] layerRms = new double[numLayers];
+
+		final ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		try {
+			/* montage and distortion of each layer */
+			for (int l = 0; l < numLayers; ++l) {
+				final int layer = l;
+				final ArrayList<TileMatches> montageMatches = new ArrayList<>();
+				for (final TileMatches m : matchSet.getMatches())
+					if (m.layerA == layer && m.layerB == layer)
+						montageMatches.add(m);
+
+				tileAffines[l] = new double[matchSet.getNumTiles(l)][];
+				for (int t = 0; t < tileAffines[l].length; ++t)
+					tileAffines[l][t] = identityAffine();
+
+				if (montageMatches.size() > 0) {
+					refine(exec, distortions[l], tileAffines[l], montageMatches, false);
+					for (int i = 0; i < numIterations; ++i) {
+						final double[][] beta = distortions[l].getBeta();
+						final double[][] before = new double[beta.length][];
+						for (int k = 0; k < beta.length; ++k)
+							before[k] = beta[k].clone();
+						refine(exec, distortions[l], tileAffines[l], montageMatches, true);
+						double change = 0;
+						for (int k = 0; k < beta.length; ++k)
+							change = Math.max(change, Math.max(Math.abs(beta[k][0] - before[k][0]), Math.abs(beta[k][1] - before[k][1])));
+						if (warm[l] && change < WARM_START_TOLERANCE)
+							break;
+					}
+				}
+				rms[l] = rms(distortions, tileAffines, montageMatches);
+			}
+		} finally {
+			exec.shutdown();
+		}
+
+		/* register layers to the first layer */
+		for (int l = 1; l < numLayers; ++l) {
+			final ArrayList<double[]> p = new ArrayList<>();
+			final ArrayList<double[]> q = new ArrayList<>();
+			final ArrayList<TileMatches> layerMatches = new ArrayList<>();
+			for (final TileMatches m : matchSet.getMatches()) {
+				if (m.layerA == l && m.layerB == 0) {
+					layerMatches.add(m);
+					for (int i = 0; i < m.size(); ++i) {
+						p.add(world(distortions[l], tileAffines[l][m.tileA], m.xa(i), m.ya(i)));
+						q.add(world(distortions[0], tileAffines[0][m.tileB], m.xb(i), m.yb(i)));
+					}
+				} else if (m.layerA == 0 && m.layerB == l) {
+					layerMatches.add(m);
+					for (int i = 0; i < m.size(); ++i) {
+						p.add(world(distortions[l], tileAffines[l][m.tileB], m.xb(i), m.yb(i)));
+						q.add(world(distortions[0], tileAffines[0][m.tileA], m.xa(i), m.ya(i)));
+					}
+				}
+			}
+			if (p.size() >= 3) {
+				final double[] g = fitAffine(p, q);
+				for (int t = 0; t < tileAffines[l].length; ++t)
+					tileAffines[l][t] = concatenate(g, tileAffines[l][t]);
+			}
+			layerRms[l] = rms(distortions, tileAffines, layerMatches);
+		}
+		layerRms[0] = numLayers > 1 ? 0 : Double.NaN;
+
+		/* move all layers such that their first tiles stay in place on average */
+		final ArrayList<double[]> world = new ArrayList<>();
+		final ArrayList<double[]> local = new ArrayList<>();
+		for (int l = 0; l < numLayers; ++l) {
+			for (int y = 0; y < 16; ++y) {
+				for (int x = 0; x < 16; ++x) {
+					final double xs = (width - 1.0) * x / 15;
+					final double ys = (height - 1.0) * y / 15;
+					world.add(world(distortions[l], tileAffines[l][0], xs, ys));
+					local.add(new double[] {xs, ys});
+				}
+			}
+		}
+		final double[] rigid = fitRigid(world, local);
+		final double[][] affines = new double[numLayers][];
+		for (int l = 0; l < numLayers; ++l) {
+			for (int t = 0; t < tileAffines[l].length; ++t)
+				tileAffines[l][t] = concatenate(rigid, tileAffines[l][t]);
+			affines[l] = tileAffines[l][0];
+		}
+
+		return new Solution(distortions, affines, tileAffines, rms, layerRms);
+	}
+}
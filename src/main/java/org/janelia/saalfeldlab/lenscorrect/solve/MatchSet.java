@@ -0,0 +1,302 @@
+package org.janelia.saalfeldlab.lenscorrect.solve;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Inlier point matches between the tiles of the layers of a calibration.
+ * Tiles are the width x height MIPs of one layer (a channel, or a channel
+ * and mask), matches connect two tiles of the same layer (montage) or of
+ * different layers (layer alignment).  Tiles may have ids, e.g. a hash of
+ * their content, that identify them across calibrations with added tiles.
+ *
+ * Match sets are stored in a compact big endian binary file:
+ *
+ * <pre>
+ * "LCPM" version:int width:int height:int numLayers:int numTiles:int[numLayers]
+ * hasIds:boolean [numLayers x numTiles[layer] x id:UTF]
+ * numPairs:int
+ * numPairs x (layerA:int tileA:int layerB:int tileB:int n:int n x (xa:float ya:float xb:float yb:float))
+ * </pre>
+ *
+ * Version 1 files have no ids.
+ */
+public class MatchSet {
+
+	private static final int MAGIC = 0x4c43504d; // "LCPM"
+	private static final int VERSION = 2;
+
+	/**
+	 * Matches between two tiles, locations in tile coordinates.
+	 */
+	public static class TileMatches {
+
+		public final int layerA;
+		public final int tileA;
+		public final int layerB;
+		public final int tileB;
+
+		/* n x (xa, ya, xb, yb) */
+		private final float[] locations;
+
+		public TileMatches(final int layerA, final int tileA, final int layerB, final int tileB, final float[] locations) {
+
+			if (locations.length % 4 != 0)
+				throw new IllegalArgumentException("locations must be n x (xa, ya, xb, yb)");
+
+			this.layerA = layerA;
+			this.tileA = tileA;
+			this.layerB = layerB;
+			this.tileB = tileB;
+			this.locations = locations;
+		}
+
+		public int size() {
+
+			return locations.length / 4;
+		}
+
+		public double xa(final int i) {
+
+			return locations[4 * i];
+		}
+
+		public double ya(final int i) {
+
+			return locations[4 * i + 1];
+		}
+
+		public double xb(final int i) {
+
+			return locations[4 * i + 2];
+		}
+
+		public double yb(final int i) {
+
+			return locations[4 * i + 3];
+		}
+
+		/**
+		 * @param tileA
+		 * @param tileB
+		 * @return the same matches between tiles with other indices
+		 */
+		public TileMatches withTiles(final int tileA, final int tileB) {
+
+			return new TileMatches(layerA, tileA, layerB, tileB, locations);
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+
+			if (!(o instanceof TileMatches))
+				return false;
+			final TileMatches other = (TileMatches)o;
+			return layerA == other.layerA && tileA == other.tileA && layerB == other.layerB && tileB == other.tileB &&
+					Arrays.equals(locations, other.locations);
+		}
+
+		@Override
+		public int hashCode() {
+
+			return Arrays.hashCode(locations) + 31 * (layerA + 31 * (tileA + 31 * (layerB + 31 * tileB)));
+		}
+	}
+
+	private final int width;
+	private final int height;
+	private final int[] numTiles;
+	private String[][] tileIds = null;
+	private final List<TileMatches> matches;
+
+	/**
+	 * @param width tile width
+	 * @param height tile height
+	 * @param numTiles number of tiles per layer
+	 */
+	public MatchSet(final int width, final int height, final int[] numTiles) {
+
+		this(width, height, numTiles, new ArrayList<>());
+	}
+
+	private MatchSet(final int width, final int height, final int[] numTiles, final List<TileMatches> matches) {
+
+		this.width = width;
+		this.height = height;
+		this.numTiles = numTiles;
+		this.matches = matches;
+	}
+
+	public synchronized void add(final TileMatches tileMatches) {
+
+		if (tileMatches.layerA >= numTiles.length || tileMatches.tileA >= numTiles[tileMatches.layerA] ||
+				tileMatches.layerB >= numTiles.length || tileMatches.tileB >= numTiles[tileMatches.layerB])
+			throw new IllegalArgumentException("tile out of range");
+		matches.add(tileMatches);
+	}
+
+	/**
+	 * Add the matches of another match set of the same tiles, e.g. computed
+	 * for a different subset of the layers.
+	 *
+	 * @param other
+	 */
+	public synchronized void addAll(final MatchSet other) {
+
+		if (other.width != width || other.height != height || !Arrays.equals(other.numTiles, numTiles) ||
+				(tileIds != null && other.tileIds != null && !Arrays.deepEquals(tileIds, other.tileIds)))
+			throw new IllegalArgumentException("match sets have different tiles");
+		matches.addAll(other.matches);
+	}
+
+	public int getWidth() {
+
+		return width;
+	}
+
+	public int getHeight() {
+
+		return height;
+	}
+
+	public int getNumLayers() {
+
+		return numTiles.length;
+	}
+
+	public int getNumTiles(final int layer) {
+
+		return numTiles[layer];
+	}
+
+	public List<TileMatches> getMatches() {
+
+		return matches;
+	}
+
+	/**
+	 * @param tileIds one id per tile of each layer, null for none
+	 */
+	public void setTileIds(final String[][] tileIds) {
+
+		if (tileIds != null) {
+			if (tileIds.length != numTiles.length)
+				throw new IllegalArgumentException("ids for " + tileIds.length + " layers, but there are " + numTiles.length);
+			for (int l = 0; l < numTiles.length; ++l)
+				if (tileIds[l].length != numTiles[l])
+					throw new IllegalArgumentException("ids for " + tileIds[l].length + " tiles in layer " + l + ", but there are " + numTiles[l]);
+		}
+		this.tileIds = tileIds;
+	}
+
+	/**
+	 * @return one id per tile of each layer, null if the tiles have no ids
+	 */
+	public String[][] getTileIds() {
+
+		return tileIds;
+	}
+
+	public int getNumMatches() {
+
+		int n = 0;
+		for (final TileMatches m : matches)
+			n += m.size();
+		return n;
+	}
+
+	/**
+	 * Write to a temporary file and move it in place.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public void write(final Path path) throws IOException {
+
+		final Path dir = path.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		final File tmp = File.createTempFile("matches", ".tmp", dir.toFile());
+		try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(numTiles.length);
+			for (final int n : numTiles)
+				out.writeInt(n);
+			out.writeBoolean(tileIds != null);
+			if (tileIds != null)
+				for (final String[] layerIds : tileIds)
+					for (final String id : layerIds)
+						out.writeUTF(id);
+			out.writeInt(matches.size());
+			for (final TileMatches m : matches) {
+				out.writeInt(m.layerA);
+				out.writeInt(m.tileA);
+				out.writeInt(m.layerB);
+				out.writeInt(m.tileB);
+				out.writeInt(m.size());
+				for (final float l : m.locations)
+					out.writeFloat(l);
+			}
+		}
+		Files.move(tmp.toPath(), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @param path
+	 * @return the match set
+	 * @throws IOException
+	 */
+	public static MatchSet read(final Path path) throws IOException {
+
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(path + " is not a match file");
+			final int version = in.readInt();
+			if (version < 1 || version > VERSION)
+				throw new IOException("unsupported match file version " + version);
+			final int width = in.readInt();
+			final int height = in.readInt();
+			final int[] numTiles = new int[in.readInt()];
+			for (int l = 0; l < numTiles.length; ++l)
+				numTiles[l] = in.readInt();
+			String[][] tileIds = null;
+			if (version > 1 && in.readBoolean()) {
+				tileIds = new String[numTiles.length][];
+				for (int l = 0; l < numTiles.length; ++l) {
+					tileIds[l] = new String[numTiles[l]];
+					for (int t = 0; t < numTiles[l]; ++t)
+						tileIds[l][t] = in.readUTF();
+				}
+			}
+			final int numPairs = in.readInt();
+			final ArrayList<TileMatches> matches = new ArrayList<>(numPairs);
+			for (int i = 0; i < numPairs; ++i) {
+				final int layerA = in.readInt();
+				final int tileA = in.readInt();
+				final int layerB = in.readInt();
+				final int tileB = in.readInt();
+				final float[] locations = new float[4 * in.readInt()];
+				for (int j = 0; j < locations.length; ++j)
+					locations[j] = in.readFloat();
+				matches.add(new TileMatches(layerA, tileA, layerB, tileB, locations));
+			}
+			final MatchSet matchSet = new MatchSet(width, height, numTiles, matches);
+			matchSet.setTileIds(tileIds);
+			return matchSet;
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package org.janelia.saalfeldlab.lenscorrect.solve;
+
+/**
+ * Polynomial lens distortion model with the parameterization and data
+ * string of TrakEM2's
+ * <code>mpicbg.trakem2.transform.NonLinearCoordinateTransform</code>.
+ *
+ * A location (x, y) is expanded into all monomials
+ * x<sup>j</sup>y<sup>i-j</sup> of degree 1 &le; i &le; dimension, in the
+ * order i = 1..dimension, j = i..0, each normalized by a mean and standard
+ * deviation, followed by the constant 100.  The transformed location is the
+ * product of this expansion with a length x 2 coefficient matrix beta.  The
+ * data string is
+ *
+ * <pre>
+ * dimension length beta[0][0] beta[0][1] ... normMean[0..length) normVar[0..length) width height
+ * </pre>
+ */
+public class PolynomialDistortion {
+
+	private final int dimension;
+	private final int length;
+	private final double[][] beta;
+	private final double[] normMean;
+	private final double[] normVar;
+	private final int width;
+	private final int height;
+
+	/**
+	 * @param dimension
+	 * @param beta length x 2 coefficients
+	 * @param normMean
+	 * @param normVar
+	 * @param width
+	 * @param height
+	 */
+	public PolynomialDistortion(
+			final int dimension,
+			final double[][] beta,
+			final double[] normMean,
+			final double[] normVar,
+			final int width,
+			final int height) {
+
+		this.dimension = dimension;
+		this.length = length(dimension);
+		this.beta = beta;
+		this.normMean = normMean;
+		this.normVar = normVar;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Number of terms of the expansion of a given dimension, including the
+	 * constant.
+	 *
+	 * @param dimension
+	 * @return (dimension + 2) * (dimension + 1) / 2
+	 */
+	public static int length(final int dimension) {
+
+		return (dimension + 2) * (dimension + 1) / 2;
+	}
+
+	private static void expandRaw(final int dimension, final double x, final double y, final double[] expanded) {
+
+		int k = 0;
+		for (int i = 1; i <= dimension; ++i)
+			for (int j = i; j >= 0; --j)
+				expanded[k++] = Math.pow(x, j) * Math.pow(y, i - j);
+	}
+
+	/**
+	 * The identity transform with the expansion normalized over a regular
+	 * grid of locations in a width x height image.
+	 *
+	 * @param dimension
+	 * @param width
+	 * @param height
+	 * @return the identity
+	 */
+	public static PolynomialDistortion identity(final int dimension, final int width, final int height) {
+
+		final int length = length(dimension);
+		final int n = 32;
+		final double[] sum = new double[length];
+		final double[] sumSquares = new double[length];
+		final double[] expanded = new double[length];
+		for (int yi = 0; yi < n; ++yi) {
+			for (int xi = 0; xi < n; ++xi) {
+				expandRaw(dimension, (width - 1.0) * xi / (n - 1), (height - 1.0) * yi / (n - 1), expanded);
+				for (int k = 0; k < length - 1; ++k) {
+					sum[k] += expanded[k];
+					sumSquares[k] += expanded[k] * expanded[k];
+				}
+			}
+		}
+
+		final double[] normMean = new double[length];
+		final double[] normVar = new double[length];
+		for (int k = 0; k < length - 1; ++k) {
+			normMean[k] = sum[k] / (n * n);
+			normVar[k] = Math.sqrt(Math.max(0, sumSquares[k] / (n * n) - normMean[k] * normMean[k]));
+			if (normVar[k] == 0)
+				normVar[k] = 1;
+		}
+		normMean[length - 1] = 100;
+		normVar[length - 1] = 0;
+
+		/* x and y are the first two terms, the constant restores their means */
+		final double[][] beta = new double[length][2];
+		beta[0][0] = normVar[0];
+		beta[1][1] = normVar[1];
+		beta[length - 1][0] = normMean[0] / 100;
+		beta[length - 1][1] = normMean[1] / 100;
+
+		return new PolynomialDistortion(dimension, beta, normMean, normVar, width, height);
+	}
+
+	/**
+	 * Parse a NonLinearCoordinateTransform data string.
+	 *
+	 * @param data
+	 * @return the transform
+	 */
+	public static PolynomialDistortion fromDataString(final String data) {
+
+		final String[] fields = data.trim().split("\\s+");
+		final int dimension = Integer.parseInt(fields[0]);
+		final int length = Integer.parseInt(fields[1]);
+		if (length != length(dimension) || fields.length != 4 + 4 * length)
+			throw new IllegalArgumentException("malformed data string for dimension " + dimension);
+
+		int f = 2;
+		final double[][] beta = new double[length][2];
+		for (int k = 0; k < length; ++k) {
+			beta[k][0] = Double.parseDouble(fields[f++]);
+			beta[k][1] = Double.parseDouble(fields[f++]);
+		}
+		final double[] normMean = new double[length];
+		for (int k = 0; k < length; ++k)
+			normMean[k] = Double.parseDouble(fields[f++]);
+		final double[] normVar = new double[length];
+		for (int k = 0; k < length; ++k)
+			normVar[k] = Double.parseDouble(fields[f++]);
+		final int width = Integer.parseInt(fields[f++]);
+		final int height = Integer.parseInt(fields[f++]);
+
+		return new PolynomialDistortion(dimension, beta, normMean, normVar, width, height);
+	}
+
+	/**
+	 * @return the data string of the equivalent NonLinearCoordinateTransform
+	 */
+	public String toDataString() {
+
+		final StringBuilder data = new StringBuilder();
+		data.append(dimension).append(' ').append(length).append(' ');
+		for (int k = 0; k < length; ++k)
+			data.append(beta[k][0]).append(' ').append(beta[k][1]).append(' ');
+		for (int k = 0; k < length; ++k)
+			data.append(normMean[k]).append(' ');
+		for (int k = 0; k < length; ++k)
+			data.append(normVar[k]).append(' ');
+		data.append(width).append(' ').append(height);
+		return data.toString();
+	}
+
+	/**
+	 * The same distortion for locations in a larger width x height image in
+	 * which the image of this distortion starts at (offsetX, offsetY), i.e.
+	 * D'(x, y) = D(x - offsetX, y - offsetY).  A shifted polynomial is a
+	 * polynomial of the same degree, so the coefficients, normalized for the
+	 * larger image, are fitted exactly to a regular grid of samples.
+	 *
+	 * @param offsetX
+	 * @param offsetY
+	 * @param width
+	 * @param height
+	 * @return the distortion in the coordinates of the larger image
+	 */
+	public PolynomialDistortion withOffset(final double offsetX, final double offsetY, final int width, final int height) {
+
+		final PolynomialDistortion shifted = identity(dimension, width, height);
+		final DistortionSolver.NormalEquations[] equations = {
+				new DistortionSolver.NormalEquations(length),
+				new DistortionSolver.NormalEquations(length)};
+		final int[] indices = new int[length];
+		for (int k = 0; k < length; ++k)
+			indices[k] = k;
+		final double[] expanded = new double[length];
+		final double[] l = new double[2];
+		final int n = 32;
+		for (int yi = 0; yi < n; ++yi) {
+			for (int xi = 0; xi < n; ++xi) {
+				final double x = (width - 1.0) * xi / (n - 1);
+				final double y = (height - 1.0) * yi / (n - 1);
+				shifted.expand(x, y, expanded);
+				l[0] = x - offsetX;
+				l[1] = y - offsetY;
+				applyInPlace(l);
+				equations[0].addRow(indices, expanded, length, l[0]);
+				equations[1].addRow(indices, expanded, length, l[1]);
+			}
+		}
+		for (int c = 0; c < 2; ++c) {
+			final double[] b = equations[c].solve();
+			for (int k = 0; k < length; ++k)
+				shifted.beta[k][c] = b[k];
+		}
+		return shifted;
+	}
+
+	/**
+	 * Normalized expansion of a location.
+	 *
+	 * @param x
+	 * @param y
+	 * @param expanded length terms
+	 */
+	public void expand(final double x, final double y, final double[] expanded) {
+
+		expandRaw(dimension, x, y, expanded);
+		for (int k = 0; k < length - 1; ++k)
+			expanded[k] = (expanded[k] - normMean[k]) / normVar[k];
+		expanded[length - 1] = 100;
+	}
+
+	/**
+	 * Transform a location in place.
+	 *
+	 * @param location
+	 */
+	public void applyInPlace(final double[] location) {
+
+		final double[] expanded = new double[length];
+		expand(location[0], location[1], expanded);
+		double x = 0, y = 0;
+		for (int k = 0; k < length; ++k) {
+			x += expanded[k] * beta[k][0];
+			y += expanded[k] * beta[k][1];
+		}
+		location[0] = x;
+		location[1] = y;
+	}
+
+	public int getDimension() {
+
+		return dimension;
+	}
+
+	public int getLength() {
+
+		return length;
+	}
+
+	/**
+	 * @return the coefficients, modified in place by the solver
+	 */
+	public double[][] getBeta() {
+
+		return beta;
+	}
+
+	public int getWidth() {
+
+		return width;
+	}
+
+	public int getHeight() {
+
+		return height;
+	}
+}
@@ -0,0 +1,248 @@
+package org.janelia.saalfeldlab.lenscorrect.stream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Layout of a stream of raw, little-endian, uncompressed planes.
+ *
+ * Planes are ordered like an ImageJ stack, channel fastest.  The stream can
+ * optionally start with a 32 byte header:
+ *
+ * <pre>
+ * offset  size  content
+ *      0     4  magic "LCRP"
+ *      4     2  version (1)
+ *      6     2  bytes per pixel (1: uint8, 2: uint16, 4: float32)
+ *      8     4  width
+ *     12     4  height
+ *     16     4  number of channels
+ *     20     4  reserved
+ *     24     8  number of planes, 0 if unknown
+ * </pre>
+ *
+ * all little-endian.
+ */
+public class RawPlaneFormat {
+
+	public enum PixelType {
+
+		UINT8(1), UINT16(2), FLOAT32(4);
+
+		final int bytes;
+
+		PixelType(final int bytes) {
+
+			this.bytes = bytes;
+		}
+
+		public static PixelType fromString(final String name) {
+
+			return valueOf(name.trim().toUpperCase());
+		}
+
+		public static PixelType fromBitDepth(final int bitDepth) {
+
+			switch (bitDepth) {
+			case 8:
+				return UINT8;
+			case 16:
+				return UINT16;
+			case 32:
+				return FLOAT32;
+			default:
+				throw new IllegalArgumentException("Unsupported bit depth for raw planes: " + bitDepth);
+			}
+		}
+
+		static PixelType fromBytes(final int bytes) {
+
+			for (final PixelType type : values())
+				if (type.bytes == bytes)
+					return type;
+			throw new IllegalArgumentException("Unsupported bytes per pixel: " + bytes);
+		}
+	}
+
+	public static final int HEADER_SIZE = 32;
+
+	private static final int MAGIC = 'L' | 'C' << 8 | 'R' << 16 | 'P' << 24;
+	private static final short VERSION = 1;
+
+	private final int width;
+	private final int height;
+	private final PixelType type;
+	private final int numChannels;
+	private final long numPlanes;
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param type
+	 * @param numChannels channels per slice, planes are channel fastest
+	 * @param numPlanes number of planes, 0 if the stream is read until its end
+	 */
+	public RawPlaneFormat(
+			final int width,
+			final int height,
+			final PixelType type,
+			final int numChannels,
+			final long numPlanes) {
+
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Raw plane size must be positive, got " + width + "x" + height);
+		if (numChannels <= 0)
+			throw new IllegalArgumentException("Number of channels must be positive, got " + numChannels);
+
+		this.width = width;
+		this.height = height;
+		this.type = type;
+		this.numChannels = numChannels;
+		this.numPlanes = numPlanes;
+	}
+
+	public int getWidth() {
+
+		return width;
+	}
+
+	public int getHeight() {
+
+		return height;
+	}
+
+	public PixelType getType() {
+
+		return type;
+	}
+
+	public int getNumChannels() {
+
+		return numChannels;
+	}
+
+	public long getNumPlanes() {
+
+		return numPlanes;
+	}
+
+	public int getPlaneSize() {
+
+		return width * height * type.bytes;
+	}
+
+	/**
+	 * Read a header from a channel.
+	 *
+	 * @param channel
+	 * @return
+	 * @throws IOException if the stream does not start with a valid header
+	 */
+	public static RawPlaneFormat readHeader(final ReadableByteChannel channel) throws IOException {
+
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining())
+			if (channel.read(header) < 0)
+				throw new EOFException("Stream ended inside the raw plane header");
+		header.flip();
+
+		if (header.getInt() != MAGIC)
+			throw new IOException("Stream does not start with a raw plane header");
+		final short version = header.getShort();
+		if (version != VERSION)
+			throw new IOException("Unsupported raw plane header version " + version);
+		final PixelType type = PixelType.fromBytes(header.getShort());
+		final int width = header.getInt();
+		final int height = header.getInt();
+		final int numChannels = header.getInt();
+		header.getInt();
+		final long numPlanes = header.getLong();
+
+		return new RawPlaneFormat(width, height, type, numChannels, numPlanes);
+	}
+
+	/**
+	 * Write this format as header to a channel.
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void writeHeader(final WritableByteChannel channel) throws IOException {
+
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putShort(VERSION);
+		header.putShort((short)type.bytes);
+		header.putInt(width);
+		header.putInt(height);
+		header.putInt(numChannels);
+		header.putInt(0);
+		header.putLong(numPlanes);
+		header.flip();
+		while (header.hasRemaining())
+			channel.write(header);
+	}
+
+	ByteBuffer allocatePlaneBuffer() {
+
+		return ByteBuffer.allocateDirect(getPlaneSize()).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Bulk copy a plane buffer into a new {@link ImageProcessor}.
+	 */
+	ImageProcessor decode(final ByteBuffer buffer) {
+
+		buffer.rewind();
+		switch (type) {
+		case UINT8: {
+			final byte[] pixels = new byte[width * height];
+			buffer.get(pixels);
+			return new ByteProcessor(width, height, pixels);
+		}
+		case UINT16: {
+			final short[] pixels = new short[width * height];
+			buffer.asShortBuffer().get(pixels);
+			return new ShortProcessor(width, height, pixels, null);
+		}
+		default: {
+			final float[] pixels = new float[width * height];
+			buffer.asFloatBuffer().get(pixels);
+			return new FloatProcessor(width, height, pixels);
+		}
+		}
+	}
+
+	/**
+	 * Bulk copy an {@link ImageProcessor} into a plane buffer, converting it
+	 * to this format's pixel type if necessary.
+	 */
+	void encode(final ImageProcessor ip, final ByteBuffer buffer) {
+
+		if (ip.getWidth() != width || ip.getHeight() != height)
+			throw new IllegalArgumentException(
+					"Plane size " + ip.getWidth() + "x" + ip.getHeight() + " does not match stream size " + width + "x" + height);
+
+		buffer.clear();
+		switch (type) {
+		case UINT8:
+			buffer.put((byte[])(ip instanceof ByteProcessor ? ip : ip.convertToByteProcessor(false)).getPixels());
+			break;
+		case UINT16:
+			buffer.asShortBuffer().put((short[])(ip instanceof ShortProcessor ? ip : ip.convertToShortProcessor(false)).getPixels());
+			break;
+		default:
+			buffer.asFloatBuffer().put((float[])(ip instanceof FloatProcessor ? ip : ip.convertToFloatProcessor()).getPixels());
+		}
+		buffer.rewind();
+	}
+}
@@ -0,0 +1,127 @@
+package org.janelia.saalfeldlab.lenscorrect.stream;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Reads raw planes from a {@link ReadableByteChannel}.
+ *
+ * A background thread fills one plane buffer from the channel while the
+ * previously filled buffer is decoded by the caller (double buffering), so
+ * reading the pipe and rendering overlap.
+ */
+public class RawPlaneReader implements Closeable {
+
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private final ReadableByteChannel channel;
+	private final RawPlaneFormat format;
+	private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(2);
+	private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(3);
+	private final Thread thread;
+	private volatile IOException exception = null;
+	private long numPlanesRead = 0;
+	private boolean ended = false;
+
+	/**
+	 * @param channel
+	 * @param format plane layout, if the number of planes is 0, planes are
+	 *     read until the end of the stream
+	 */
+	public RawPlaneReader(final ReadableByteChannel channel, final RawPlaneFormat format) {
+
+		this.channel = channel;
+		this.format = format;
+		free.add(format.allocatePlaneBuffer());
+		free.add(format.allocatePlaneBuffer());
+
+		thread = new Thread(this::fill, "raw-plane-reader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public RawPlaneFormat getFormat() {
+
+		return format;
+	}
+
+	private void fill() {
+
+		try {
+			for (long i = 0; format.getNumPlanes() == 0 || i < format.getNumPlanes(); ++i) {
+				final ByteBuffer buffer = free.take();
+				buffer.clear();
+				while (buffer.hasRemaining())
+					if (channel.read(buffer) < 0)
+						break;
+				if (buffer.position() == 0 && format.getNumPlanes() == 0)
+					break;
+				if (buffer.hasRemaining())
+					throw new EOFException(
+							"Stream ended inside plane " + (i + 1) + " after " + buffer.position() + " of " + buffer.capacity() + " bytes");
+				filled.put(buffer);
+			}
+		} catch (final IOException e) {
+			exception = e;
+		} catch (final InterruptedException e) {
+			exception = new InterruptedIOException("Raw plane reader was interrupted");
+		} finally {
+			filled.add(END);
+		}
+	}
+
+	/**
+	 * Read the next plane.
+	 *
+	 * @return the next plane or null at the end of the stream
+	 * @throws IOException if the stream could not be read or ended inside a
+	 *     plane
+	 */
+	public ImageProcessor read() throws IOException {
+
+		if (ended)
+			return null;
+
+		final ByteBuffer buffer;
+		try {
+			buffer = filled.take();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a raw plane");
+		}
+		if (buffer == END) {
+			ended = true;
+			if (exception != null)
+				throw exception;
+			return null;
+		}
+
+		final ImageProcessor ip = format.decode(buffer);
+		free.add(buffer);
+		++numPlanesRead;
+		return ip;
+	}
+
+	/**
+	 * @return number of planes read so far
+	 */
+	public long getNumPlanesRead() {
+
+		return numPlanesRead;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		thread.interrupt();
+		channel.close();
+	}
+}
@@ -0,0 +1,126 @@
+package org.janelia.saalfeldlab.lenscorrect.stream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Writes raw planes to a {@link WritableByteChannel}.
+ *
+ * Planes are encoded by the caller into one of two plane buffers while a
+ * background thread drains the other one into the channel (double
+ * buffering), so rendering and writing to the pipe overlap.
+ */
+public class RawPlaneWriter implements Closeable {
+
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private final WritableByteChannel channel;
+	private final RawPlaneFormat format;
+	private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(2);
+	private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(3);
+	private final Thread thread;
+	private volatile IOException exception = null;
+	private boolean closed = false;
+
+	/**
+	 * @param channel
+	 * @param format plane layout
+	 * @param writeHeader write the format as header before the first plane
+	 * @throws IOException
+	 */
+	public RawPlaneWriter(
+			final WritableByteChannel channel,
+			final RawPlaneFormat format,
+			final boolean writeHeader) throws IOException {
+
+		this.channel = channel;
+		this.format = format;
+		if (writeHeader)
+			format.writeHeader(channel);
+		free.add(format.allocatePlaneBuffer());
+		free.add(format.allocatePlaneBuffer());
+
+		thread = new Thread(this::drain, "raw-plane-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public RawPlaneFormat getFormat() {
+
+		return format;
+	}
+
+	private void drain() {
+
+		try {
+			for (ByteBuffer buffer = filled.take(); buffer != END; buffer = filled.take()) {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				free.put(buffer);
+			}
+		} catch (final IOException e) {
+			exception = e;
+			/* unblock a writer waiting for a free buffer */
+			free.offer(END);
+		} catch (final InterruptedException e) {
+			exception = new InterruptedIOException("Raw plane writer was interrupted");
+			free.offer(END);
+		}
+	}
+
+	/**
+	 * Queue a plane for writing, blocks while both plane buffers are in use.
+	 *
+	 * @param ip
+	 * @throws IOException if writing a previous plane failed
+	 */
+	public void write(final ImageProcessor ip) throws IOException {
+
+		final ByteBuffer buffer;
+		try {
+			buffer = free.take();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a raw plane buffer");
+		}
+		if (buffer == END || exception != null)
+			throw exception;
+
+		format.encode(ip, buffer);
+		try {
+			filled.put(buffer);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queueing a raw plane");
+		}
+	}
+
+	/**
+	 * Wait for all queued planes to be written and close the channel.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed)
+			return;
+		closed = true;
+		filled.add(END);
+		try {
+			thread.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while flushing raw planes");
+		} finally {
+			channel.close();
+		}
+		if (exception != null)
+			throw exception;
+	}
+}
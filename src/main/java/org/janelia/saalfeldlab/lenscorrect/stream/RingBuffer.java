@@ -0,0 +1,308 @@
+package org.janelia.saalfeldlab.lenscorrect.stream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneFormat.PixelType;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Single-producer/single-consumer ring buffer of raw frames in a memory-mapped
+ * file, shared between processes.
+ *
+ * The producer writes a frame into slot <code>head % numSlots</code> and then
+ * publishes it by incrementing head with release semantics, the consumer
+ * reads slot <code>tail % numSlots</code> once it observes head &gt; tail with
+ * acquire semantics and frees it by incrementing tail.  Neither side takes a
+ * lock, each index is only ever written by one side.  All fields are
+ * little-endian:
+ *
+ * <pre>
+ * offset  size  content
+ *      0     4  magic "LCRB"
+ *      4     2  version (1)
+ *      6     2  bytes per pixel (1: uint8, 2: uint16, 4: float32)
+ *      8     4  width
+ *     12     4  height
+ *     16     4  number of channels (interleaved frames per time point)
+ *     20     4  number of slots
+ *     24     8  slot size in bytes
+ *     32     4  closed flag, set by the producer after the last frame
+ *     64     8  head, number of frames published
+ *    128     8  tail, number of frames consumed
+ *   4096        slots
+ * </pre>
+ *
+ * Each slot starts with two 8 byte timestamps (acquisition and publication in
+ * {@link System#nanoTime()} / CLOCK_MONOTONIC nanoseconds) followed by the
+ * frame's pixels.
+ */
+public class RingBuffer implements Closeable {
+
+	/**
+	 * A frame read from the ring.
+	 */
+	public static class Frame {
+
+		public final ImageProcessor ip;
+		public final long acquisitionTime;
+		public final long publicationTime;
+
+		Frame(final ImageProcessor ip, final long acquisitionTime, final long publicationTime) {
+
+			this.ip = ip;
+			this.acquisitionTime = acquisitionTime;
+			this.publicationTime = publicationTime;
+		}
+	}
+
+	public static final int HEADER_SIZE = 4096;
+	public static final int SLOT_HEADER_SIZE = 16;
+
+	private static final int MAGIC = 'L' | 'C' << 8 | 'R' << 16 | 'B' << 24;
+	private static final short VERSION = 1;
+
+	private static final int CLOSED = 32;
+	private static final int HEAD = 64;
+	private static final int TAIL = 128;
+
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/* busy spins before parking while waiting for the other side */
+	private static final int SPINS = 1000;
+	private static final long PARK_NANOS = 20000;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final RawPlaneFormat format;
+	private final int numSlots;
+	private final long slotSize;
+
+	/* cached copies of the other side's index to avoid reading shared memory */
+	private long head;
+	private long tail;
+
+	private RingBuffer(final FileChannel channel, final MappedByteBuffer buffer) throws IOException {
+
+		this.channel = channel;
+		this.buffer = buffer;
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a ring buffer file");
+		if (buffer.getShort(4) != VERSION)
+			throw new IOException("Unsupported ring buffer version " + buffer.getShort(4));
+
+		format = new RawPlaneFormat(
+				buffer.getInt(8),
+				buffer.getInt(12),
+				PixelType.fromBytes(buffer.getShort(6)),
+				buffer.getInt(16),
+				0);
+		numSlots = buffer.getInt(20);
+		slotSize = buffer.getLong(24);
+		head = (long)LONG.getAcquire(buffer, HEAD);
+		tail = (long)LONG.getAcquire(buffer, TAIL);
+	}
+
+	private static long slotSize(final RawPlaneFormat format) {
+
+		/* keep slots cache line aligned */
+		return (SLOT_HEADER_SIZE + format.getPlaneSize() + 63L) / 64L * 64L;
+	}
+
+	/**
+	 * Create (or replace) a ring buffer file.
+	 *
+	 * @param path
+	 * @param format frame layout, the number of planes is ignored
+	 * @param numSlots
+	 * @return
+	 * @throws IOException
+	 */
+	public static RingBuffer create(final String path, final RawPlaneFormat format, final int numSlots) throws IOException {
+
+		if (numSlots < 1)
+			throw new IllegalArgumentException("A ring buffer needs at least one slot");
+
+		final long slotSize = slotSize(format);
+		final long size = HEADER_SIZE + slotSize * numSlots;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Ring buffer of " + size + " bytes exceeds the 2GB mapping limit, use fewer slots");
+
+		final Path file = Paths.get(path);
+		final FileChannel channel = FileChannel.open(
+				file,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putShort(4, VERSION);
+		buffer.putShort(6, (short)format.getType().bytes);
+		buffer.putInt(8, format.getWidth());
+		buffer.putInt(12, format.getHeight());
+		buffer.putInt(16, format.getNumChannels());
+		buffer.putInt(20, numSlots);
+		buffer.putLong(24, slotSize);
+		buffer.putInt(CLOSED, 0);
+		buffer.putLong(HEAD, 0);
+		buffer.putLong(TAIL, 0);
+		/* publish the header last */
+		INT.setRelease(buffer, 0, MAGIC);
+
+		return new RingBuffer(channel, buffer);
+	}
+
+	/**
+	 * Attach to an existing ring buffer file.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static RingBuffer open(final String path) throws IOException {
+
+		final FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		final long size = channel.size();
+		if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+			channel.close();
+			throw new IOException("Not a ring buffer file: " + path);
+		}
+		return new RingBuffer(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+	}
+
+	public RawPlaneFormat getFormat() {
+
+		return format;
+	}
+
+	public int getNumSlots() {
+
+		return numSlots;
+	}
+
+	private ByteBuffer slot(final long index) {
+
+		final int offset = (int)(HEADER_SIZE + (index % numSlots) * slotSize);
+		return buffer.slice(offset + SLOT_HEADER_SIZE, format.getPlaneSize()).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static void idle(final int spins) throws InterruptedIOException {
+
+		if (spins < SPINS)
+			Thread.onSpinWait();
+		else {
+			LockSupport.parkNanos(PARK_NANOS);
+			if (Thread.interrupted())
+				throw new InterruptedIOException("Interrupted while waiting for the ring buffer");
+		}
+	}
+
+	/**
+	 * Producer: publish a frame if a slot is free.
+	 *
+	 * @param ip
+	 * @param acquisitionTime
+	 * @return false if the ring is full
+	 */
+	public boolean offer(final ImageProcessor ip, final long acquisitionTime) {
+
+		if (head - tail >= numSlots) {
+			tail = (long)LONG.getAcquire(buffer, TAIL);
+			if (head - tail >= numSlots)
+				return false;
+		}
+
+		final int offset = (int)(HEADER_SIZE + (head % numSlots) * slotSize);
+		format.encode(ip, slot(head));
+		buffer.putLong(offset, acquisitionTime);
+		buffer.putLong(offset + 8, System.nanoTime());
+		LONG.setRelease(buffer, HEAD, ++head);
+		return true;
+	}
+
+	/**
+	 * Producer: publish a frame, waits while the ring is full.
+	 *
+	 * @param ip
+	 * @param acquisitionTime
+	 * @throws InterruptedIOException
+	 */
+	public void put(final ImageProcessor ip, final long acquisitionTime) throws InterruptedIOException {
+
+		for (int spins = 0; !offer(ip, acquisitionTime); ++spins)
+			idle(spins);
+	}
+
+	/**
+	 * Producer: mark the end of the stream.
+	 */
+	public void finish() {
+
+		INT.setRelease(buffer, CLOSED, 1);
+	}
+
+	/**
+	 * Consumer: read the next frame if one is available.
+	 *
+	 * @return the frame or null if the ring is empty
+	 */
+	public Frame poll() {
+
+		if (tail >= head) {
+			head = (long)LONG.getAcquire(buffer, HEAD);
+			if (tail >= head)
+				return null;
+		}
+
+		final int offset = (int)(HEADER_SIZE + (tail % numSlots) * slotSize);
+		final Frame frame = new Frame(
+				format.decode(slot(tail)),
+				buffer.getLong(offset),
+				buffer.getLong(offset + 8));
+		LONG.setRelease(buffer, TAIL, ++tail);
+		return frame;
+	}
+
+	/**
+	 * Consumer: read the next frame, waits while the ring is empty.
+	 *
+	 * @return the frame or null if the producer has finished and all frames
+	 *     were consumed
+	 * @throws InterruptedIOException
+	 */
+	public Frame take() throws InterruptedIOException {
+
+		for (int spins = 0;; ++spins) {
+			/* read the closed flag before polling so no frame published before it is missed */
+			final boolean finished = (int)INT.getAcquire(buffer, CLOSED) != 0;
+			final Frame frame = poll();
+			if (frame != null)
+				return frame;
+			if (finished)
+				return null;
+			idle(spins);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		channel.close();
+	}
+}
@@ -0,0 +1,551 @@
+package org.janelia.saalfeldlab.lenscorrect.tiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import com.github.luben.zstd.Zstd;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Writes an {@link ImagePlus} as a tiled, optionally compressed BigTIFF.
+ *
+ * Tiles are encoded on a pool of worker threads while already encoded planes
+ * are written sequentially.  Planes are written in ImageJ stack order (channel
+ * fastest, then slice, then frame) and the ImageJ hyperstack dimensions are
+ * stored in the image description of the first IFD, so the channel/slice
+ * layout of the input {@link ImagePlus} is preserved.  Optionally, each plane
+ * gets a pyramid of 2x downsampled reduced resolution images attached as
+ * SubIFDs.
+ */
+public class BigTiffWriter {
+
+	/**
+	 * Tile compression, ZSTD uses the compression code of libtiff.
+	 */
+	public enum Compression {
+
+		NONE(1), LZW(5), DEFLATE(8), ZSTD(50000);
+
+		final int code;
+
+		Compression(final int code) {
+
+			this.code = code;
+		}
+
+		public static Compression fromString(final String name) {
+
+			return valueOf(name.trim().toUpperCase());
+		}
+	}
+
+	/* field types */
+	static final short ASCII = 2;
+	static final short SHORT = 3;
+	static final short LONG = 4;
+	static final short LONG8 = 16;
+	static final short IFD8 = 18;
+
+	/* tags */
+	static final int NEW_SUBFILE_TYPE = 254;
+	static final int IMAGE_WIDTH = 256;
+	static final int IMAGE_LENGTH = 257;
+	static final int BITS_PER_SAMPLE = 258;
+	static final int COMPRESSION = 259;
+	static final int PHOTOMETRIC_INTERPRETATION = 262;
+	static final int IMAGE_DESCRIPTION = 270;
+	static final int SAMPLES_PER_PIXEL = 277;
+	static final int PLANAR_CONFIGURATION = 284;
+	static final int PREDICTOR = 317;
+	static final int TILE_WIDTH = 322;
+	static final int TILE_LENGTH = 323;
+	static final int TILE_OFFSETS = 324;
+	static final int TILE_BYTE_COUNTS = 325;
+	static final int SUB_IFDS = 330;
+	static final int SAMPLE_FORMAT = 339;
+
+	private final Compression compression;
+	private final int tileSize;
+	private final int numPyramidLevels;
+	private final int numThreads;
+
+	/**
+	 * @param compression tile compression
+	 * @param tileSize tile width and height, must be a multiple of 16
+	 * @param numPyramidLevels number of 2x downsampled SubIFD levels per plane
+	 * @param numThreads number of encoder threads
+	 */
+	public BigTiffWriter(
+			final Compression compression,
+			final int tileSize,
+			final int numPyramidLevels,
+			final int numThreads) {
+
+		if (tileSize <= 0 || tileSize % 16 != 0)
+			throw new IllegalArgumentException("Tile size must be a positive multiple of 16: " + tileSize);
+
+		this.compression = compression;
+		this.tileSize = tileSize;
+		this.numPyramidLevels = Math.max(0, numPyramidLevels);
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Encoded tiles of one plane at one resolution level.
+	 */
+	private static class EncodedImage {
+
+		final int width;
+		final int height;
+		final List<Future<byte[]>> tiles = new ArrayList<>();
+
+		EncodedImage(final int width, final int height) {
+
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	/**
+	 * Save an {@link ImagePlus} as a BigTIFF file.
+	 *
+	 * @param imp the image, 8-bit, 16-bit, 32-bit, or RGB
+	 * @param path output path
+	 * @throws IOException
+	 */
+	public void write(final ImagePlus imp, final String path) throws IOException {
+
+		final ImageStack stack = imp.getStack();
+		final int n = stack.getSize();
+		final int bitDepth = imp.getBitDepth();
+
+		final ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		try (final FileChannel channel = FileChannel.open(
+				Paths.get(path),
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			/* header, first IFD offset is patched when the first IFD is written */
+			final ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			header.put((byte)'I').put((byte)'I').putShort((short)43).putShort((short)8).putShort((short)0).putLong(0);
+			header.flip();
+			channel.write(header, 0);
+			long position = 16;
+			long previousNextIfdOffset = 8;
+
+			/* keep up to two planes queued ahead of the one being written */
+			final int window = 2;
+			final ArrayDeque<List<EncodedImage>> queue = new ArrayDeque<>();
+			int nextPlane = 0;
+			for (int i = 0; i < n; ++i) {
+				while (nextPlane < n && nextPlane <= i + window)
+					queue.add(submit(stack.getProcessor(++nextPlane), bitDepth, exec));
+
+				final List<EncodedImage> levels = queue.poll();
+
+				/* tiles of all levels */
+				final long[][] offsets = new long[levels.size()][];
+				final long[][] byteCounts = new long[levels.size()][];
+				for (int l = 0; l < levels.size(); ++l) {
+					final List<Future<byte[]>> tiles = levels.get(l).tiles;
+					offsets[l] = new long[tiles.size()];
+					byteCounts[l] = new long[tiles.size()];
+					for (int t = 0; t < tiles.size(); ++t) {
+						final ByteBuffer bytes = ByteBuffer.wrap(get(tiles.get(t)));
+						offsets[l][t] = position;
+						byteCounts[l][t] = bytes.remaining();
+						while (bytes.hasRemaining())
+							position += channel.write(bytes, position);
+					}
+				}
+
+				/* reduced resolution IFDs */
+				final long[] subIfdOffsets = new long[levels.size() - 1];
+				for (int l = 1; l < levels.size(); ++l) {
+					final EncodedImage level = levels.get(l);
+					final IfdBuilder ifd = createIfd(level, bitDepth, offsets[l], byteCounts[l], true, null);
+					subIfdOffsets[l - 1] = position;
+					position += ifd.write(channel, position);
+				}
+
+				/* full resolution IFD */
+				final String description = i == 0 ? createImageJDescription(imp) : null;
+				final IfdBuilder ifd = createIfd(levels.get(0), bitDepth, offsets[0], byteCounts[0], false, description);
+				if (subIfdOffsets.length > 0)
+					ifd.add(SUB_IFDS, IFD8, subIfdOffsets);
+
+				final long ifdOffset = position;
+				position += ifd.write(channel, position);
+				patchOffset(channel, previousNextIfdOffset, ifdOffset);
+				previousNextIfdOffset = ifd.nextIfdOffsetPosition;
+
+				IJ.showProgress(i + 1, n);
+			}
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	private static byte[] get(final Future<byte[]> future) throws IOException {
+
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (final ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static void patchOffset(final FileChannel channel, final long position, final long value) throws IOException {
+
+		final ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putLong(value).flip();
+		channel.write(buffer, position);
+	}
+
+	/**
+	 * Submit encoding tasks for all tiles of one plane and its pyramid levels.
+	 */
+	private List<EncodedImage> submit(
+			final ImageProcessor ip,
+			final int bitDepth,
+			final ExecutorService exec) {
+
+		final ArrayList<EncodedImage> levels = new ArrayList<>();
+		ImageProcessor level = ip;
+		for (int l = 0; l <= numPyramidLevels; ++l) {
+			if (l > 0) {
+				if (level.getWidth() < 2 || level.getHeight() < 2)
+					break;
+				level.setInterpolationMethod(ImageProcessor.BILINEAR);
+				level = level.resize(level.getWidth() / 2, level.getHeight() / 2, true);
+			}
+			final ImageProcessor source = level;
+			final EncodedImage encoded = new EncodedImage(source.getWidth(), source.getHeight());
+			for (int y = 0; y < source.getHeight(); y += tileSize) {
+				for (int x = 0; x < source.getWidth(); x += tileSize) {
+					final int tx = x;
+					final int ty = y;
+					encoded.tiles.add(exec.submit(() -> encodeTile(source, bitDepth, tx, ty)));
+				}
+			}
+			levels.add(encoded);
+		}
+		return levels;
+	}
+
+	/**
+	 * Copy, predict, and compress one tile.  Edge tiles are padded with zeros
+	 * to the full tile size as required by the TIFF specification.
+	 */
+	byte[] encodeTile(final ImageProcessor ip, final int bitDepth, final int x0, final int y0) {
+
+		final int samplesPerPixel = bitDepth == 24 ? 3 : 1;
+		final int bytesPerSample = bitDepth == 24 ? 1 : bitDepth / 8;
+		final int rowBytes = tileSize * samplesPerPixel * bytesPerSample;
+		final byte[] tile = new byte[rowBytes * tileSize];
+		final int w = Math.min(tileSize, ip.getWidth() - x0);
+		final int h = Math.min(tileSize, ip.getHeight() - y0);
+		final int width = ip.getWidth();
+		final Object pixels = ip.getPixels();
+
+		final ByteBuffer buffer = ByteBuffer.wrap(tile).order(ByteOrder.LITTLE_ENDIAN);
+		for (int y = 0; y < h; ++y) {
+			final int rowOffset = (y0 + y) * width + x0;
+			buffer.position(y * rowBytes);
+			switch (bitDepth) {
+			case 8:
+				buffer.put((byte[])pixels, rowOffset, w);
+				break;
+			case 16: {
+				final short[] s = (short[])pixels;
+				for (int x = 0; x < w; ++x)
+					buffer.putShort(s[rowOffset + x]);
+				break;
+			}
+			case 32: {
+				final float[] f = (float[])pixels;
+				for (int x = 0; x < w; ++x)
+					buffer.putFloat(f[rowOffset + x]);
+				break;
+			}
+			case 24: {
+				final int[] rgb = (int[])pixels;
+				for (int x = 0; x < w; ++x) {
+					final int c = rgb[rowOffset + x];
+					buffer.put((byte)(c >> 16)).put((byte)(c >> 8)).put((byte)c);
+				}
+				break;
+			}
+			default:
+				throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+			}
+		}
+
+		if (compression == Compression.NONE)
+			return tile;
+
+		if (usePredictor(bitDepth))
+			applyHorizontalDifferencing(tile, tileSize, tileSize, samplesPerPixel, bytesPerSample);
+
+		if (compression == Compression.LZW)
+			return Lzw.encode(tile);
+
+		if (compression == Compression.ZSTD)
+			return Zstd.compress(tile, Zstd.defaultCompressionLevel());
+
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			deflater.setInput(tile);
+			deflater.finish();
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(tile.length / 2 + 64);
+			final byte[] chunk = new byte[65536];
+			while (!deflater.finished()) {
+				final int size = deflater.deflate(chunk);
+				out.write(chunk, 0, size);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private boolean usePredictor(final int bitDepth) {
+
+		return compression != Compression.NONE && bitDepth != 32;
+	}
+
+	/**
+	 * TIFF predictor 2, in place, little endian samples.
+	 */
+	static void applyHorizontalDifferencing(
+			final byte[] data,
+			final int width,
+			final int height,
+			final int samplesPerPixel,
+			final int bytesPerSample) {
+
+		final int rowSamples = width * samplesPerPixel;
+		if (bytesPerSample == 1) {
+			for (int y = 0; y < height; ++y) {
+				final int row = y * rowSamples;
+				for (int i = rowSamples - 1; i >= samplesPerPixel; --i)
+					data[row + i] -= data[row + i - samplesPerPixel];
+			}
+		} else {
+			for (int y = 0; y < height; ++y) {
+				final int row = y * rowSamples;
+				for (int i = rowSamples - 1; i >= samplesPerPixel; --i) {
+					final int a = 2 * (row + i);
+					final int b = 2 * (row + i - samplesPerPixel);
+					final int v = ((data[a] & 0xff) | (data[a + 1] & 0xff) << 8) - ((data[b] & 0xff) | (data[b + 1] & 0xff) << 8);
+					data[a] = (byte)v;
+					data[a + 1] = (byte)(v >> 8);
+				}
+			}
+		}
+	}
+
+	private IfdBuilder createIfd(
+			final EncodedImage image,
+			final int bitDepth,
+			final long[] offsets,
+			final long[] byteCounts,
+			final boolean reducedResolution,
+			final String description) {
+
+		final int samplesPerPixel = bitDepth == 24 ? 3 : 1;
+		final int bitsPerSample = bitDepth == 24 ? 8 : bitDepth;
+		final short[] bitsPerSamples = new short[samplesPerPixel];
+		Arrays.fill(bitsPerSamples, (short)bitsPerSample);
+
+		final IfdBuilder ifd = new IfdBuilder();
+		ifd.add(NEW_SUBFILE_TYPE, LONG, reducedResolution ? 1 : 0);
+		ifd.add(IMAGE_WIDTH, LONG, image.width);
+		ifd.add(IMAGE_LENGTH, LONG, image.height);
+		ifd.add(BITS_PER_SAMPLE, bitsPerSamples);
+		ifd.add(COMPRESSION, SHORT, compression.code);
+		ifd.add(PHOTOMETRIC_INTERPRETATION, SHORT, samplesPerPixel == 3 ? 2 : 1);
+		if (description != null)
+			ifd.add(IMAGE_DESCRIPTION, description);
+		ifd.add(SAMPLES_PER_PIXEL, SHORT, samplesPerPixel);
+		ifd.add(PLANAR_CONFIGURATION, SHORT, 1);
+		if (usePredictor(bitDepth))
+			ifd.add(PREDICTOR, SHORT, 2);
+		ifd.add(TILE_WIDTH, LONG, tileSize);
+		ifd.add(TILE_LENGTH, LONG, tileSize);
+		ifd.add(TILE_OFFSETS, LONG8, offsets);
+		ifd.add(TILE_BYTE_COUNTS, LONG8, byteCounts);
+		ifd.add(SAMPLE_FORMAT, SHORT, bitDepth == 32 ? 3 : 1);
+		return ifd;
+	}
+
+	/**
+	 * ImageJ hyperstack description, this is what ImageJ and Bio-Formats use
+	 * to restore the channel, slice, and frame dimensions.
+	 */
+	static String createImageJDescription(final ImagePlus imp) {
+
+		final StringBuilder sb = new StringBuilder();
+		sb.append("ImageJ=").append(IJ.getVersion()).append('\n');
+		sb.append("images=").append(imp.getStackSize()).append('\n');
+		if (imp.getNChannels() > 1)
+			sb.append("channels=").append(imp.getNChannels()).append('\n');
+		if (imp.getNSlices() > 1)
+			sb.append("slices=").append(imp.getNSlices()).append('\n');
+		if (imp.getNFrames() > 1)
+			sb.append("frames=").append(imp.getNFrames()).append('\n');
+		if (imp.isHyperStack() || imp.getNChannels() > 1)
+			sb.append("hyperstack=true\n");
+		if (imp.getNChannels() > 1)
+			sb.append("mode=grayscale\n");
+		final String unit = imp.getCalibration().getUnit();
+		if (unit != null && !unit.equals("pixel"))
+			sb.append("unit=").append(unit).append('\n');
+		if (imp.getNSlices() > 1)
+			sb.append("spacing=").append(imp.getCalibration().pixelDepth).append('\n');
+		sb.append("min=").append(imp.getDisplayRangeMin()).append('\n');
+		sb.append("max=").append(imp.getDisplayRangeMax()).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Collects BigTIFF IFD entries and writes them with their out-of-line
+	 * values.  Entries are written in ascending tag order as required by the
+	 * TIFF specification, independent of the order in which they were added.
+	 */
+	static class IfdBuilder {
+
+		private static class Entry {
+
+			final int tag;
+			final short type;
+			final long count;
+			final byte[] value;
+
+			Entry(final int tag, final short type, final long count, final byte[] value) {
+
+				this.tag = tag;
+				this.type = type;
+				this.count = count;
+				this.value = value;
+			}
+		}
+
+		private final ArrayList<Entry> entries = new ArrayList<>();
+
+		long nextIfdOffsetPosition;
+
+		private static ByteBuffer allocate(final int size) {
+
+			return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		void add(final int tag, final short type, final long value) {
+
+			final ByteBuffer buffer;
+			switch (type) {
+			case SHORT:
+				buffer = allocate(2).putShort((short)value);
+				break;
+			case LONG:
+				buffer = allocate(4).putInt((int)value);
+				break;
+			default:
+				buffer = allocate(8).putLong(value);
+			}
+			entries.add(new Entry(tag, type, 1, buffer.array()));
+		}
+
+		void add(final int tag, final short[] values) {
+
+			final ByteBuffer buffer = allocate(2 * values.length);
+			for (final short value : values)
+				buffer.putShort(value);
+			entries.add(new Entry(tag, SHORT, values.length, buffer.array()));
+		}
+
+		void add(final int tag, final short type, final long[] values) {
+
+			final ByteBuffer buffer = allocate(8 * values.length);
+			for (final long value : values)
+				buffer.putLong(value);
+			entries.add(new Entry(tag, type, values.length, buffer.array()));
+		}
+
+		void add(final int tag, final String value) {
+
+			final byte[] ascii = (value + '\0').getBytes(StandardCharsets.US_ASCII);
+			entries.add(new Entry(tag, ASCII, ascii.length, ascii));
+		}
+
+		/**
+		 * Write IFD and out-of-line values at position.
+		 *
+		 * @return number of bytes written
+		 */
+		long write(final FileChannel channel, final long position) throws IOException {
+
+			entries.sort(Comparator.comparingInt(entry -> entry.tag));
+
+			final long ifdSize = 8 + 20L * entries.size() + 8;
+			long valuePosition = position + ifdSize;
+			final ByteBuffer ifd = allocate((int)ifdSize);
+			final ByteArrayOutputStream values = new ByteArrayOutputStream();
+			ifd.putLong(entries.size());
+			for (final Entry entry : entries) {
+				ifd.putShort((short)entry.tag);
+				ifd.putShort(entry.type);
+				ifd.putLong(entry.count);
+				if (entry.value.length <= 8) {
+					final byte[] inline = new byte[8];
+					System.arraycopy(entry.value, 0, inline, 0, entry.value.length);
+					ifd.put(inline);
+				} else {
+					ifd.putLong(valuePosition);
+					values.write(entry.value, 0, entry.value.length);
+					valuePosition += entry.value.length;
+					/* word alignment */
+					if ((entry.value.length & 1) != 0) {
+						values.write(0);
+						++valuePosition;
+					}
+				}
+			}
+			nextIfdOffsetPosition = position + ifdSize - 8;
+			ifd.putLong(0);
+			ifd.flip();
+
+			long written = 0;
+			while (ifd.hasRemaining())
+				written += channel.write(ifd, position + written);
+			final ByteBuffer valueBuffer = ByteBuffer.wrap(values.toByteArray());
+			while (valueBuffer.hasRemaining())
+				written += channel.write(valueBuffer, position + written);
+			return written;
+		}
+	}
+}
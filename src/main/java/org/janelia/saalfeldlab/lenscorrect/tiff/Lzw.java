@@ -0,0 +1,189 @@
+package org.janelia.saalfeldlab.lenscorrect.tiff;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * TIFF flavored LZW codec (MSB-first code packing, early change, clear code
+ * 256, end of information code 257, 12 bit maximum code width).
+ */
+final class Lzw {
+
+	static final int CLEAR_CODE = 256;
+	static final int EOI_CODE = 257;
+	static final int FIRST_CODE = 258;
+	/* table size at which the encoder emits a clear code */
+	static final int MAX_CODE = 4094;
+
+	private static final int TABLE_BITS = 13;
+	private static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+	private Lzw() {}
+
+	/**
+	 * MSB-first bit packer.
+	 */
+	private static final class BitWriter {
+
+		private final ByteArrayOutputStream out;
+		private int buffer = 0;
+		private int numBits = 0;
+
+		BitWriter(final int capacity) {
+
+			out = new ByteArrayOutputStream(capacity);
+		}
+
+		void write(final int code, final int width) {
+
+			buffer = (buffer << width) | code;
+			numBits += width;
+			while (numBits >= 8) {
+				numBits -= 8;
+				out.write((buffer >>> numBits) & 0xff);
+			}
+		}
+
+		byte[] toByteArray() {
+
+			if (numBits > 0)
+				out.write((buffer << (8 - numBits)) & 0xff);
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * LZW encode a byte array.
+	 *
+	 * @param data uncompressed bytes
+	 * @return LZW compressed bytes
+	 */
+	static byte[] encode(final byte[] data) {
+
+		final BitWriter writer = new BitWriter(data.length / 2 + 16);
+		/* open addressing string table, key is prefix code << 8 | next byte */
+		final int[] keys = new int[TABLE_SIZE];
+		final short[] codes = new short[TABLE_SIZE];
+		Arrays.fill(keys, -1);
+		int nextCode = FIRST_CODE;
+		int width = 9;
+
+		writer.write(CLEAR_CODE, width);
+		if (data.length == 0) {
+			writer.write(EOI_CODE, width);
+			return writer.toByteArray();
+		}
+
+		int prefix = data[0] & 0xff;
+		for (int i = 1; i < data.length; ++i) {
+			final int b = data[i] & 0xff;
+			final int key = (prefix << 8) | b;
+			int slot = (key * 0x9e3779b1) >>> (32 - TABLE_BITS);
+			while (keys[slot] != -1 && keys[slot] != key)
+				slot = (slot + 1) & (TABLE_SIZE - 1);
+			if (keys[slot] == key) {
+				prefix = codes[slot];
+				continue;
+			}
+			writer.write(prefix, width);
+			keys[slot] = key;
+			codes[slot] = (short)nextCode++;
+			if (nextCode == MAX_CODE) {
+				writer.write(CLEAR_CODE, width);
+				Arrays.fill(keys, -1);
+				nextCode = FIRST_CODE;
+				width = 9;
+			} else if (nextCode == 1 << width)
+				/* the decoder lags one entry behind and widens early */
+				++width;
+			prefix = b;
+		}
+		writer.write(prefix, width);
+		if (++nextCode == MAX_CODE) {
+			writer.write(CLEAR_CODE, width);
+			width = 9;
+		} else if (nextCode == 1 << width)
+			++width;
+		writer.write(EOI_CODE, width);
+
+		return writer.toByteArray();
+	}
+
+	/**
+	 * LZW decode into a preallocated array.  Table entries are stored as
+	 * offset and length of an occurrence in the output, so strings are copied
+	 * straight from the already decoded data.
+	 *
+	 * @param data LZW compressed bytes
+	 * @param out output array, decoding stops when it is full
+	 * @return number of decoded bytes
+	 */
+	static int decode(final byte[] data, final byte[] out) {
+
+		final int[] offsets = new int[4096];
+		final int[] lengths = new int[4096];
+		int nextCode = FIRST_CODE;
+		int width = 9;
+
+		int buffer = 0;
+		int numBits = 0;
+		int in = 0;
+		int pos = 0;
+
+		/* output position and length of the previous string, -1 after a clear */
+		int previousStart = -1;
+		int previousLength = 0;
+
+		while (pos < out.length) {
+
+			/* next code, MSB first */
+			while (numBits < width && in < data.length) {
+				buffer = (buffer << 8) | (data[in++] & 0xff);
+				numBits += 8;
+			}
+			if (numBits < width)
+				break;
+			numBits -= width;
+			final int code = (buffer >>> numBits) & ((1 << width) - 1);
+
+			if (code == EOI_CODE)
+				break;
+			if (code == CLEAR_CODE) {
+				nextCode = FIRST_CODE;
+				width = 9;
+				previousStart = -1;
+				continue;
+			}
+
+			final int start = pos;
+			if (code < 256)
+				out[pos++] = (byte)code;
+			else if (code >= FIRST_CODE && code < nextCode) {
+				final int length = Math.min(lengths[code], out.length - pos);
+				System.arraycopy(out, offsets[code], out, pos, length);
+				pos += length;
+			} else if (code == nextCode && previousStart != -1) {
+				/* KwKwK, the previous string followed by its own first byte */
+				final int length = Math.min(previousLength, out.length - pos);
+				System.arraycopy(out, previousStart, out, pos, length);
+				pos += length;
+				if (pos < out.length)
+					out[pos++] = out[previousStart];
+			} else
+				throw new IllegalStateException("Corrupt LZW data, code " + code + " with table size " + nextCode);
+
+			if (previousStart != -1 && nextCode < 4096) {
+				/* previous string plus the first byte of this one, which directly follows it */
+				offsets[nextCode] = previousStart;
+				lengths[nextCode] = previousLength + 1;
+				++nextCode;
+				if (nextCode + 1 >= 1 << width && width < 12)
+					++width;
+			}
+			previousStart = start;
+			previousLength = pos - start;
+		}
+
+		return pos;
+	}
+}
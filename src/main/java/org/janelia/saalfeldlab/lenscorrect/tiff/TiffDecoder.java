@@ -0,0 +1,726 @@
+package org.janelia.saalfeldlab.lenscorrect.tiff;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.github.luben.zstd.Zstd;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Decodes compressed TIFF and BigTIFF files with a pool of threads.
+ *
+ * All strips or tiles of all planes are decompressed concurrently, each
+ * straight into its plane's preallocated pixel array, instead of one strip
+ * after the other.  Supported are single sample 8-bit, 16-bit, and 32-bit
+ * float images with LZW, deflate, PackBits, or zstd compression and optional
+ * horizontal predictor, in strips or tiles, in either byte order.  Reduced
+ * resolution IFDs are skipped.  Multi-plane files need an ImageJ image
+ * description to restore channels, slices, and frames.
+ *
+ * {@link #open(String)} returns null for files that are not compressed or use
+ * features that are not supported, callers fall back to their existing
+ * reader for those.
+ */
+public class TiffDecoder {
+
+	/* compression schemes */
+	static final int NONE = 1;
+	static final int LZW = 5;
+	static final int DEFLATE = 8;
+	static final int ADOBE_DEFLATE = 32946;
+	static final int PACKBITS = 32773;
+	static final int ZSTD = 50000;
+
+	/* more tags, the others are shared with the writer */
+	static final int STRIP_OFFSETS = 273;
+	static final int ROWS_PER_STRIP = 278;
+	static final int STRIP_BYTE_COUNTS = 279;
+	static final int X_RESOLUTION = 282;
+
+	private final int numThreads;
+
+	/**
+	 * @param numThreads number of decoder threads
+	 */
+	public TiffDecoder(final int numThreads) {
+
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Open a compressed TIFF with one decoder thread per core.
+	 *
+	 * @param path
+	 * @return the image, or null if the file is not a compressed TIFF that
+	 *     this decoder supports
+	 */
+	public static ImagePlus openCompressed(final String path) {
+
+		return openCompressed(path, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Open a compressed TIFF.
+	 *
+	 * @param path
+	 * @param numThreads number of decoder threads
+	 * @return the image, or null if the file is not a compressed TIFF that
+	 *     this decoder supports
+	 */
+	public static ImagePlus openCompressed(final String path, final int numThreads) {
+
+		try {
+			return new TiffDecoder(numThreads).open(path);
+		} catch (final IOException e) {
+			System.err.println("Could not decode " + path + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * The parsed fields of one IFD that matter for decoding.
+	 */
+	static class Ifd {
+
+		long newSubfileType = 0;
+		int width;
+		int height;
+		int bitsPerSample = 1;
+		int samplesPerPixel = 1;
+		int compression = NONE;
+		int predictor = 1;
+		int sampleFormat = 1;
+		int rowsPerStrip = Integer.MAX_VALUE;
+		int tileWidth = 0;
+		int tileHeight = 0;
+		long[] offsets;
+		long[] byteCounts;
+		String description = null;
+		double xResolution = 0;
+
+		boolean isTiled() {
+
+			return tileWidth > 0;
+		}
+	}
+
+	/**
+	 * Random access reader for the header and IFDs.
+	 */
+	private static class Reader {
+
+		final FileChannel channel;
+		final ByteOrder order;
+		final boolean bigTiff;
+
+		Reader(final FileChannel channel) throws IOException {
+
+			this.channel = channel;
+			final ByteBuffer header = read(0, 8, ByteOrder.LITTLE_ENDIAN);
+			final int magic = header.getShort(0);
+			if (magic == 0x4949)
+				order = ByteOrder.LITTLE_ENDIAN;
+			else if (magic == 0x4d4d)
+				order = ByteOrder.BIG_ENDIAN;
+			else
+				throw new IOException("Not a TIFF file");
+			header.order(order);
+			final int version = header.getShort(2);
+			if (version == 42)
+				bigTiff = false;
+			else if (version == 43)
+				bigTiff = true;
+			else
+				throw new IOException("Not a TIFF file");
+		}
+
+		ByteBuffer read(final long position, final int size) throws IOException {
+
+			return read(position, size, order);
+		}
+
+		ByteBuffer read(final long position, final int size, final ByteOrder byteOrder) throws IOException {
+
+			final ByteBuffer buffer = ByteBuffer.allocate(size).order(byteOrder);
+			while (buffer.hasRemaining())
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new EOFException("Unexpected end of TIFF file");
+			buffer.flip();
+			return buffer;
+		}
+
+		long firstIfdOffset() throws IOException {
+
+			return bigTiff ? read(8, 8).getLong() : read(4, 4).getInt() & 0xffffffffL;
+		}
+
+		static int typeSize(final int type) {
+
+			switch (type) {
+			case 1: case 2: case 6: case 7:
+				return 1;
+			case 3: case 8:
+				return 2;
+			case 4: case 9: case 11: case 13:
+				return 4;
+			default:
+				return 8;
+			}
+		}
+
+		/**
+		 * Read one IFD, return the offset of the next one.
+		 */
+		long readIfd(final long offset, final Ifd ifd) throws IOException {
+
+			final int countSize = bigTiff ? 8 : 2;
+			final int entrySize = bigTiff ? 20 : 12;
+			final int valueSize = bigTiff ? 8 : 4;
+
+			final ByteBuffer countBuffer = read(offset, countSize);
+			final long numEntries = bigTiff ? countBuffer.getLong() : countBuffer.getShort() & 0xffff;
+			final ByteBuffer entries = read(offset + countSize, (int)numEntries * entrySize + valueSize);
+
+			for (int i = 0; i < numEntries; ++i) {
+				final int e = i * entrySize;
+				final int tag = entries.getShort(e) & 0xffff;
+				final int type = entries.getShort(e + 2) & 0xffff;
+				final long count = bigTiff ? entries.getLong(e + 4) : entries.getInt(e + 4) & 0xffffffffL;
+				final int valuePosition = e + (bigTiff ? 12 : 8);
+				final long size = count * typeSize(type);
+				final ByteBuffer values;
+				if (size <= valueSize)
+					values = entries.duplicate().order(order).position(valuePosition).slice().order(order);
+				else {
+					final long valueOffset = bigTiff ? entries.getLong(valuePosition) : entries.getInt(valuePosition) & 0xffffffffL;
+					values = read(valueOffset, (int)size);
+				}
+
+				switch (tag) {
+				case BigTiffWriter.NEW_SUBFILE_TYPE:
+					ifd.newSubfileType = value(values, type, 0);
+					break;
+				case BigTiffWriter.IMAGE_WIDTH:
+					ifd.width = (int)value(values, type, 0);
+					break;
+				case BigTiffWriter.IMAGE_LENGTH:
+					ifd.height = (int)value(values, type, 0);
+					break;
+				case BigTiffWriter.BITS_PER_SAMPLE:
+					ifd.bitsPerSample = (int)value(values, type, 0);
+					break;
+				case BigTiffWriter.COMPRESSION:
+					ifd.compression = (int)value(values, type, 0);
+					break;
+				case BigTiffWriter.IMAGE_DESCRIPTION: {
+					final byte[] bytes = new byte[(int)count];
+					values.get(0, bytes);
+					ifd.description = new String(bytes, StandardCharsets.UTF_8).replace("\0", "");
+					break;
+				}
+				case STRIP_OFFSETS:
+				case BigTiffWriter.TILE_OFFSETS:
+					ifd.offsets = array(values, type, count);
+					break;
+				case BigTiffWriter.SAMPLES_PER_PIXEL:
+					ifd.samplesPerPixel = (int)value(values, type, 0);
+					break;
+				case ROWS_PER_STRIP:
+					ifd.rowsPerStrip = (int)Math.min(Integer.MAX_VALUE, value(values, type, 0));
+					break;
+				case STRIP_BYTE_COUNTS:
+				case BigTiffWriter.TILE_BYTE_COUNTS:
+					ifd.byteCounts = array(values, type, count);
+					break;
+				case X_RESOLUTION:
+					if (type == 5) {
+						final long denominator = values.getInt(4) & 0xffffffffL;
+						ifd.xResolution = denominator == 0 ? 0 : (double)(values.getInt(0) & 0xffffffffL) / denominator;
+					}
+					break;
+				case BigTiffWriter.PREDICTOR:
+					ifd.predictor = (int)value(values, type, 0);
+					break;
+				case BigTiffWriter.TILE_WIDTH:
+					ifd.tileWidth = (int)value(values, type, 0);
+					break;
+				case BigTiffWriter.TILE_LENGTH:
+					ifd.tileHeight = (int)value(values, type, 0);
+					break;
+				case BigTiffWriter.SAMPLE_FORMAT:
+					ifd.sampleFormat = (int)value(values, type, 0);
+					break;
+				default:
+				}
+			}
+
+			final int next = (int)numEntries * entrySize;
+			return bigTiff ? entries.getLong(next) : entries.getInt(next) & 0xffffffffL;
+		}
+
+		private static long value(final ByteBuffer values, final int type, final int i) {
+
+			switch (typeSize(type)) {
+			case 1:
+				return values.get(i) & 0xff;
+			case 2:
+				return values.getShort(2 * i) & 0xffff;
+			case 4:
+				return values.getInt(4 * i) & 0xffffffffL;
+			default:
+				return values.getLong(8 * i);
+			}
+		}
+
+		private static long[] array(final ByteBuffer values, final int type, final long count) {
+
+			final long[] array = new long[(int)count];
+			for (int i = 0; i < array.length; ++i)
+				array[i] = value(values, type, i);
+			return array;
+		}
+	}
+
+	/**
+	 * Read the full resolution IFDs of a compressed TIFF.
+	 *
+	 * @return the IFDs or null if the file is not compressed or uses features
+	 *     that are not supported
+	 */
+	private static List<Ifd> readIfds(final Reader reader) throws IOException {
+
+		final ArrayList<Ifd> ifds = new ArrayList<>();
+		for (long offset = reader.firstIfdOffset(); offset != 0;) {
+			final Ifd ifd = new Ifd();
+			offset = reader.readIfd(offset, ifd);
+			if ((ifd.newSubfileType & 1) == 0)
+				ifds.add(ifd);
+		}
+		if (ifds.isEmpty())
+			return null;
+
+		final Ifd first = ifds.get(0);
+		for (final Ifd ifd : ifds)
+			if (!isSupported(ifd) || ifd.width != first.width || ifd.height != first.height || ifd.bitsPerSample != first.bitsPerSample)
+				return null;
+
+		return ifds;
+	}
+
+	/**
+	 * Submit decoding tasks for all segments of one plane.
+	 */
+	private static void submitPlane(
+			final Reader reader,
+			final Ifd ifd,
+			final Object pixels,
+			final ExecutorService exec,
+			final List<Future<?>> futures) {
+
+		for (int s = 0; s < ifd.offsets.length; ++s) {
+			final int segment = s;
+			futures.add(exec.submit(() -> {
+				decodeSegment(reader, ifd, segment, pixels);
+				return null;
+			}));
+		}
+	}
+
+	private static void await(final List<Future<?>> futures, final String path) throws IOException {
+
+		for (final Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (final ExecutionException e) {
+				throw new IOException("Could not decode " + path, e.getCause());
+			}
+		}
+	}
+
+	private static ImagePlus createImagePlus(final String path, final ImageStack stack, final int[] dimensions, final Ifd first) {
+
+		final ImagePlus imp = new ImagePlus(Paths.get(path).getFileName().toString(), stack);
+		imp.setDimensions(dimensions[0], dimensions[1], dimensions[2]);
+		if (dimensions[0] > 1 || dimensions[2] > 1 || "true".equals(property(first.description, "hyperstack")))
+			imp.setOpenAsHyperStack(true);
+		setCalibration(imp, first);
+		return imp;
+	}
+
+	/**
+	 * Read and decode a compressed TIFF.
+	 *
+	 * @param path
+	 * @return the image, or null if the file is not compressed or uses
+	 *     features that are not supported
+	 * @throws IOException
+	 */
+	public ImagePlus open(final String path) throws IOException {
+
+		final ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		try (final FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+
+			final Reader reader = new Reader(channel);
+			final List<Ifd> ifds = readIfds(reader);
+			if (ifds == null)
+				return null;
+
+			final Ifd first = ifds.get(0);
+			final int[] dimensions = parseDimensions(first.description, ifds.size());
+			if (dimensions == null)
+				return null;
+
+			/* preallocate planes and decode all segments of all planes concurrently */
+			final ImageStack stack = new ImageStack(first.width, first.height);
+			final ArrayList<Future<?>> futures = new ArrayList<>();
+			for (final Ifd ifd : ifds) {
+				final ImageProcessor ip = createProcessor(ifd);
+				stack.addSlice(ip);
+				submitPlane(reader, ifd, ip.getPixels(), exec, futures);
+			}
+			await(futures, path);
+
+			return createImagePlus(path, stack, dimensions, first);
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/**
+	 * Open a compressed TIFF as a virtual stack.  Planes are decoded when
+	 * they are requested, the segments of each plane in parallel, so planes
+	 * can be streamed without holding the whole file in memory.
+	 *
+	 * @param path
+	 * @return the image, or null if the file is not compressed or uses
+	 *     features that are not supported
+	 * @throws IOException
+	 */
+	public ImagePlus openVirtual(final String path) throws IOException {
+
+		final List<Ifd> ifds;
+		try (final FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			ifds = readIfds(new Reader(channel));
+		}
+		if (ifds == null)
+			return null;
+
+		final Ifd first = ifds.get(0);
+		final int[] dimensions = parseDimensions(first.description, ifds.size());
+		if (dimensions == null)
+			return null;
+
+		final ExecutorService exec = Executors.newFixedThreadPool(numThreads, r -> {
+			final Thread thread = new Thread(r, "tiff-decoder");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final VirtualStack stack = new VirtualStack(first.width, first.height, null, null) {
+
+			@Override
+			public ImageProcessor getProcessor(final int n) {
+
+				final Ifd ifd = ifds.get(n - 1);
+				final ImageProcessor ip = createProcessor(ifd);
+				try (final FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+					final ArrayList<Future<?>> futures = new ArrayList<>();
+					submitPlane(new Reader(channel), ifd, ip.getPixels(), exec, futures);
+					await(futures, path);
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return ip;
+			}
+
+			@Override
+			public int getSize() {
+
+				return ifds.size();
+			}
+
+			@Override
+			public String getSliceLabel(final int n) {
+
+				return null;
+			}
+		};
+		stack.setBitDepth(first.bitsPerSample);
+
+		return createImagePlus(path, stack, dimensions, first);
+	}
+
+	/**
+	 * Open a compressed TIFF as a virtual stack with one decoder thread per
+	 * core.
+	 *
+	 * @param path
+	 * @return the image, or null if the file is not a compressed TIFF that
+	 *     this decoder supports
+	 */
+	public static ImagePlus openCompressedVirtual(final String path) {
+
+		return openCompressedVirtual(path, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Open a compressed TIFF as a virtual stack.
+	 *
+	 * @param path
+	 * @param numThreads number of decoder threads
+	 * @return the image, or null if the file is not a compressed TIFF that
+	 *     this decoder supports
+	 */
+	public static ImagePlus openCompressedVirtual(final String path, final int numThreads) {
+
+		try {
+			return new TiffDecoder(numThreads).openVirtual(path);
+		} catch (final IOException e) {
+			System.err.println("Could not decode " + path + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	static boolean isSupported(final Ifd ifd) {
+
+		if (ifd.compression != LZW && ifd.compression != DEFLATE && ifd.compression != ADOBE_DEFLATE && ifd.compression != PACKBITS && ifd.compression != ZSTD)
+			return false;
+		if (ifd.samplesPerPixel != 1 || ifd.offsets == null || ifd.byteCounts == null || ifd.offsets.length != ifd.byteCounts.length)
+			return false;
+		if (ifd.predictor != 1 && ifd.predictor != 2)
+			return false;
+		if (ifd.isTiled() && ifd.tileHeight <= 0)
+			return false;
+		switch (ifd.bitsPerSample) {
+		case 8:
+		case 16:
+			return ifd.sampleFormat == 1;
+		case 32:
+			return ifd.sampleFormat == 3 && ifd.predictor == 1;
+		default:
+			return false;
+		}
+	}
+
+	private static String property(final String description, final String key) {
+
+		if (description == null || !description.startsWith("ImageJ"))
+			return null;
+		for (final String line : description.split("\n")) {
+			final int i = line.indexOf('=');
+			if (i > 0 && line.substring(0, i).trim().equals(key))
+				return line.substring(i + 1).trim();
+		}
+		return null;
+	}
+
+	private static int intProperty(final String description, final String key) {
+
+		final String value = property(description, key);
+		try {
+			return value == null ? 1 : Integer.parseInt(value);
+		} catch (final NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * @return channels, slices, frames, or null if a multi-plane file has
+	 *     no matching ImageJ description
+	 */
+	static int[] parseDimensions(final String description, final int numPlanes) {
+
+		if (numPlanes == 1)
+			return new int[] {1, 1, 1};
+		if (property(description, "images") == null)
+			return null;
+
+		final int channels = intProperty(description, "channels");
+		final int frames = intProperty(description, "frames");
+		int slices = intProperty(description, "slices");
+		if (property(description, "slices") == null && channels * frames != numPlanes)
+			slices = numPlanes / (channels * frames);
+		if (channels * slices * frames != numPlanes)
+			return null;
+		return new int[] {channels, slices, frames};
+	}
+
+	private static void setCalibration(final ImagePlus imp, final Ifd ifd) {
+
+		final Calibration calibration = imp.getCalibration();
+		final String unit = property(ifd.description, "unit");
+		if (unit != null) {
+			calibration.setUnit(unit);
+			if (ifd.xResolution > 0) {
+				calibration.pixelWidth = 1.0 / ifd.xResolution;
+				calibration.pixelHeight = calibration.pixelWidth;
+			}
+		}
+		final String spacing = property(ifd.description, "spacing");
+		final String min = property(ifd.description, "min");
+		final String max = property(ifd.description, "max");
+		try {
+			if (spacing != null)
+				calibration.pixelDepth = Double.parseDouble(spacing);
+			if (min != null && max != null)
+				imp.setDisplayRange(Double.parseDouble(min), Double.parseDouble(max));
+		} catch (final NumberFormatException e) {}
+	}
+
+	private static ImageProcessor createProcessor(final Ifd ifd) {
+
+		switch (ifd.bitsPerSample) {
+		case 8:
+			return new ByteProcessor(ifd.width, ifd.height);
+		case 16:
+			return new ShortProcessor(ifd.width, ifd.height);
+		default:
+			return new FloatProcessor(ifd.width, ifd.height);
+		}
+	}
+
+	/**
+	 * Read, decompress, and copy one strip or tile into the plane's pixels.
+	 */
+	private static void decodeSegment(final Reader reader, final Ifd ifd, final int segment, final Object pixels) throws IOException {
+
+		/* segment geometry */
+		final int x0, y0, segmentWidth, segmentHeight, validWidth, validHeight;
+		if (ifd.isTiled()) {
+			final int tilesPerRow = (ifd.width + ifd.tileWidth - 1) / ifd.tileWidth;
+			x0 = (segment % tilesPerRow) * ifd.tileWidth;
+			y0 = (segment / tilesPerRow) * ifd.tileHeight;
+			segmentWidth = ifd.tileWidth;
+			segmentHeight = ifd.tileHeight;
+			validWidth = Math.min(segmentWidth, ifd.width - x0);
+		} else {
+			final int rowsPerStrip = Math.min(ifd.rowsPerStrip, ifd.height);
+			x0 = 0;
+			y0 = segment * rowsPerStrip;
+			segmentWidth = ifd.width;
+			segmentHeight = Math.min(rowsPerStrip, ifd.height - y0);
+			validWidth = ifd.width;
+		}
+		validHeight = Math.min(segmentHeight, ifd.height - y0);
+		if (validWidth <= 0 || validHeight <= 0)
+			return;
+
+		final int bytesPerSample = ifd.bitsPerSample / 8;
+		final byte[] decoded = new byte[segmentWidth * segmentHeight * bytesPerSample];
+		final byte[] compressed = reader.read(ifd.offsets[segment], (int)ifd.byteCounts[segment]).array();
+		decompress(ifd.compression, compressed, decoded);
+
+		final ByteBuffer buffer = ByteBuffer.wrap(decoded).order(reader.order);
+		final int width = ifd.width;
+		switch (ifd.bitsPerSample) {
+		case 8: {
+			if (ifd.predictor == 2)
+				for (int y = 0; y < validHeight; ++y)
+					for (int x = 1, i = y * segmentWidth + 1; x < segmentWidth; ++x, ++i)
+						decoded[i] += decoded[i - 1];
+			final byte[] dst = (byte[])pixels;
+			for (int y = 0; y < validHeight; ++y)
+				System.arraycopy(decoded, y * segmentWidth, dst, (y0 + y) * width + x0, validWidth);
+			break;
+		}
+		case 16: {
+			final short[] row = new short[segmentWidth];
+			final short[] dst = (short[])pixels;
+			for (int y = 0; y < validHeight; ++y) {
+				buffer.position(y * segmentWidth * 2);
+				buffer.asShortBuffer().get(row);
+				if (ifd.predictor == 2)
+					for (int x = 1; x < segmentWidth; ++x)
+						row[x] += row[x - 1];
+				System.arraycopy(row, 0, dst, (y0 + y) * width + x0, validWidth);
+			}
+			break;
+		}
+		default: {
+			final float[] dst = (float[])pixels;
+			for (int y = 0; y < validHeight; ++y) {
+				buffer.position(y * segmentWidth * 4);
+				buffer.asFloatBuffer().get(dst, (y0 + y) * width + x0, validWidth);
+			}
+		}
+		}
+	}
+
+	static void decompress(final int compression, final byte[] compressed, final byte[] decoded) throws IOException {
+
+		switch (compression) {
+		case LZW:
+			Lzw.decode(compressed, decoded);
+			break;
+		case DEFLATE:
+		case ADOBE_DEFLATE: {
+			final Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(compressed);
+				int n = 0;
+				while (n < decoded.length && !inflater.finished()) {
+					final int size = inflater.inflate(decoded, n, decoded.length - n);
+					if (size == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					n += size;
+				}
+			} catch (final DataFormatException e) {
+				throw new IOException("Corrupt deflate data", e);
+			} finally {
+				inflater.end();
+			}
+			break;
+		}
+		case PACKBITS: {
+			int in = 0, out = 0;
+			while (in < compressed.length && out < decoded.length) {
+				final int n = compressed[in++];
+				if (n >= 0) {
+					final int length = Math.min(n + 1, Math.min(decoded.length - out, compressed.length - in));
+					System.arraycopy(compressed, in, decoded, out, length);
+					in += n + 1;
+					out += length;
+				} else if (n != -128 && in < compressed.length) {
+					final byte b = compressed[in++];
+					for (int i = Math.min(1 - n, decoded.length - out); i > 0; --i)
+						decoded[out++] = b;
+				}
+			}
+			break;
+		}
+		case ZSTD: {
+			final long size = Zstd.decompress(decoded, compressed);
+			if (Zstd.isError(size))
+				throw new IOException("Corrupt zstd data: " + Zstd.getErrorName(size));
+			break;
+		}
+		default:
+			throw new IOException("Unsupported compression " + compression);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.lenscorrect.json.CalibrationParams;
+import org.janelia.saalfeldlab.lenscorrect.json.CorrectDistortionParams;
+import org.janelia.saalfeldlab.lenscorrect.json.SweepParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class CalibrationMatchesTest {
+
+    private CorrectDistortionParams defaults;
+
+    @Before
+    public void setUp() throws IOException {
+
+        defaults = CalibrationParams.loadFromResource("/calibration-params.json").getCorrectDistortion();
+    }
+
+    @Test
+    public void testDefaultsAreSupported() {
+
+        CalibrationMatches.checkSolverParams(defaults);
+    }
+
+    @Test
+    public void testIgnoredParamsAreAccepted() {
+
+        /* ignored parameters are reported, not rejected */
+        final JsonObject overrides = new JsonObject();
+        overrides.addProperty("desiredModelIndex", 1);
+        overrides.addProperty("maxIterationsOptimize", 500);
+        CalibrationMatches.checkSolverParams(SweepParams.apply(defaults, overrides));
+    }
+
+    @Test
+    public void testRegularizeIsSupported() {
+
+        final JsonObject overrides = new JsonObject();
+        overrides.addProperty("regularize", true);
+        overrides.addProperty("regularizerIndex", 2);
+        overrides.addProperty("lambdaRegularize", 0.1);
+        CalibrationMatches.checkSolverParams(SweepParams.apply(defaults, overrides));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPureRegularizerIsRejected() {
+
+        final JsonObject overrides = new JsonObject();
+        overrides.addProperty("regularize", true);
+        overrides.addProperty("lambdaRegularize", 1.0);
+        CalibrationMatches.checkSolverParams(SweepParams.apply(defaults, overrides));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnusedSweepOverrideIsRejected() {
+
+        final JsonObject overrides = new JsonObject();
+        overrides.addProperty("maxIterationsOptimize", 500);
+        CalibrationMatches.checkSweepOverrides(overrides, SweepParams.apply(defaults, overrides));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegularizerSweepWithoutRegularizeIsRejected() {
+
+        final JsonObject overrides = new JsonObject();
+        overrides.addProperty("lambdaRegularize", 0.1);
+        CalibrationMatches.checkSweepOverrides(overrides, SweepParams.apply(defaults, overrides));
+    }
+
+    @Test
+    public void testRegularizerSweepIsAccepted() {
+
+        final JsonObject overrides = new JsonObject();
+        overrides.addProperty("regularize", true);
+        overrides.addProperty("lambdaRegularize", 0.1);
+        overrides.addProperty("lambda", 0.001);
+        CalibrationMatches.checkSweepOverrides(overrides, SweepParams.apply(defaults, overrides));
+    }
+}
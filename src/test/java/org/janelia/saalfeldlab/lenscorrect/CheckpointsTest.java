@@ -0,0 +1,79 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.janelia.saalfeldlab.lenscorrect.Checkpoints.Stage;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CheckpointsTest {
+
+    private Path markerPath;
+
+    @Before
+    public void setUp() throws IOException {
+
+        markerPath = Files.createTempDirectory("checkpoints-test").resolve("test_stage");
+    }
+
+    private void complete(final Stage... stages) throws IOException {
+
+        final Checkpoints checkpoints = new Checkpoints(markerPath, false, Arrays.asList(stages));
+        for (final Stage stage : stages)
+            if (checkpoints.shouldRun(stage))
+                checkpoints.completed(stage, null, null);
+    }
+
+    @Test
+    public void testResumeAfterLastCompletedStage() throws IOException {
+
+        complete(Stage.PATCHES, Stage.MONTAGE, Stage.ALIGN);
+        final Checkpoints checkpoints = new Checkpoints(markerPath, true, null);
+        assertFalse(checkpoints.shouldRun(Stage.PATCHES));
+        assertFalse(checkpoints.shouldRun(Stage.ALIGN));
+        assertTrue(checkpoints.shouldRun(Stage.CORRECT_DISTORTION));
+        assertTrue(checkpoints.shouldRun(Stage.COMPARE));
+    }
+
+    @Test
+    public void testResumeDoesNotSkipStagesLeftOutBySelection() throws IOException {
+
+        /* --stages EXPORT after the patches, the stages in between have not run */
+        complete(Stage.PATCHES);
+        complete(Stage.EXPORT);
+        final Checkpoints checkpoints = new Checkpoints(markerPath, true, null);
+        assertFalse(checkpoints.shouldRun(Stage.PATCHES));
+        assertTrue(checkpoints.shouldRun(Stage.MONTAGE));
+        assertTrue(checkpoints.shouldRun(Stage.ALIGN3));
+        assertTrue(checkpoints.shouldRun(Stage.EXPORT));
+    }
+
+    @Test
+    public void testCompletedStageInvalidatesLaterStages() throws IOException {
+
+        complete(Stage.values());
+        complete(Stage.MONTAGE);
+        final Checkpoints checkpoints = new Checkpoints(markerPath, true, null);
+        assertFalse(checkpoints.shouldRun(Stage.MONTAGE));
+        assertTrue(checkpoints.shouldRun(Stage.ALIGN));
+        assertTrue(checkpoints.shouldRun(Stage.EXPORT));
+    }
+
+    @Test
+    public void testResumeWithoutPatchesStartsFromTheBeginning() throws IOException {
+
+        /* a marker with a single later stage, e.g. of an earlier version */
+        Files.write(markerPath, Stage.ALIGN3.name().getBytes(StandardCharsets.UTF_8));
+        final Checkpoints checkpoints = new Checkpoints(markerPath, true, Collections.emptyList());
+        assertTrue(checkpoints.shouldRun(Stage.PATCHES));
+        assertTrue(checkpoints.shouldRun(Stage.MONTAGE));
+    }
+}
@@ -0,0 +1,185 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.janelia.saalfeldlab.lenscorrect.Checkpoints.Stage;
+import org.junit.Test;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Option;
+
+public class DistributedOptionsTest {
+
+    static class Args {
+
+        @Option(names = {"-i"})
+        String input;
+
+        @Option(names = {"-n"})
+        String name;
+    }
+
+    @Command(name = "calibrate-test")
+    static class Coordinator {
+
+        @Option(names = {"-i", "--input"})
+        String input;
+
+        @Option(names = {"-n", "--name"})
+        String name;
+
+        @Option(names = {"--stage-positions"})
+        String stagePositions;
+
+        @Option(names = {"--warm-start"})
+        String warmStart;
+
+        @Mixin
+        DistributedOptions distributed = new DistributedOptions();
+    }
+
+    @Test
+    public void testShards() {
+
+        assertEquals(
+                Arrays.asList(Arrays.asList(0, 3, 6), Arrays.asList(1, 4), Arrays.asList(2, 5)),
+                DistributedOptions.shards(7, 3));
+
+        /* no empty shards */
+        final List<List<Integer>> shards = DistributedOptions.shards(2, 4);
+        assertEquals(2, shards.size());
+        assertEquals(Arrays.asList(1), shards.get(1));
+    }
+
+    @Test
+    public void testQuotedArgumentFile() throws Exception {
+
+        final String input = "C:\\data\\scope 1\\tiles";
+        final String name = "say \"cheese\"";
+        final Path argsFile = Files.createTempFile("shard", ".args");
+        try {
+            Files.writeString(
+                    argsFile,
+                    String.join("\n", DistributedOptions.quote("-i"), DistributedOptions.quote(input), DistributedOptions.quote("-n"), DistributedOptions.quote(name)));
+            final Args args = new Args();
+            new CommandLine(args).parseArgs("@" + argsFile);
+            assertEquals(input, args.input);
+            assertEquals(name, args.name);
+        } finally {
+            Files.delete(argsFile);
+        }
+    }
+
+    @Test
+    public void testWorkersMatchTheirShardAndTheFirstLayer() {
+
+        final Coordinator worker = new Coordinator();
+        new CommandLine(worker).parseArgs("--shard-layers", "2,5", "--shard-output", "shard_01.matches");
+        assertTrue(worker.distributed.matchesLayer(0));
+        assertTrue(worker.distributed.matchesLayer(2));
+        assertTrue(worker.distributed.matchesLayer(5));
+        assertFalse(worker.distributed.matchesLayer(1));
+
+        final Coordinator coordinator = new Coordinator();
+        new CommandLine(coordinator).parseArgs("--shards", "2");
+        assertTrue(coordinator.distributed.matchesLayer(1));
+    }
+
+    @Test
+    public void testLayerWorkers() {
+
+        final Coordinator coordinator = new Coordinator();
+        new CommandLine(coordinator).parseArgs("-n", "scope1");
+        assertEquals(16 / DistributedOptions.THREADS_PER_LAYER_WORKER, coordinator.distributed.getNumLayerWorkers(16));
+        assertEquals(1, coordinator.distributed.getNumLayerWorkers(1));
+
+        final Coordinator serial = new Coordinator();
+        new CommandLine(serial).parseArgs("-n", "scope1", "--layer-workers", "1");
+        assertEquals(1, serial.distributed.getNumLayerWorkers(16));
+        assertEquals(1, serial.distributed.getNumLocalWorkers(1));
+
+        /* a coordinator distributes the layers over its shards */
+        final Coordinator sharded = new Coordinator();
+        new CommandLine(sharded).parseArgs("-n", "scope1", "--shards", "3", "--local-workers", "1", "--layer-workers", "2");
+        assertEquals(3, sharded.distributed.getNumLayerWorkers(16));
+        assertEquals(1, sharded.distributed.getNumLocalWorkers(3));
+
+        /* workers run their layers themselves */
+        final Coordinator worker = new Coordinator();
+        new CommandLine(worker).parseArgs("--layer-workers", "4", "--shard-layers", "1", "--shard-output", "montage_01.json", "--shard-stage", "MONTAGE");
+        assertEquals(1, worker.distributed.getNumLayerWorkers(16));
+        assertEquals(Stage.MONTAGE, worker.distributed.getShardStage());
+    }
+
+    @Test
+    public void testRunShardsCollectsTheOutputsOfAllShards() throws Exception {
+
+        final Coordinator coordinator = new Coordinator();
+        new CommandLine(coordinator).parseArgs("-n", "scope1", "--layer-workers", "2");
+        final Path jobDir = Files.createTempDirectory("distributed-options-test");
+
+        /* a worker on another node that writes the layers of each shard it finds */
+        final Thread remote = new Thread(() -> {
+            try {
+                for (int s = 0; s < 2; ++s) {
+                    final Path argsFile = jobDir.resolve(String.format("montage_%02d.args", s));
+                    while (!Files.exists(argsFile))
+                        Thread.sleep(10);
+                    final Coordinator worker = new Coordinator();
+                    new CommandLine(worker).parseArgs("@" + argsFile);
+                    assertEquals("scope1", worker.name);
+                    assertEquals(Stage.MONTAGE, worker.distributed.getShardStage());
+                    final Path tmp = Files.createTempFile(jobDir, "output", ".tmp");
+                    Files.writeString(tmp, worker.distributed.getShardLayers().toString());
+                    Files.move(tmp, worker.distributed.getShardOutput(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (final Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        remote.start();
+
+        final List<Path> outputs = coordinator.distributed.runShards(
+                "montage",
+                ".json",
+                DistributedOptions.shards(3, 2),
+                Arrays.asList("--shard-stage", "MONTAGE"),
+                jobDir,
+                0,
+                1);
+        remote.join();
+        assertEquals("[0, 2]", Files.readString(outputs.get(0)));
+        assertEquals("[1]", Files.readString(outputs.get(1)));
+    }
+
+    @Test
+    public void testWorkerArgsHaveAbsolutePaths() {
+
+        final Coordinator coordinator = new Coordinator();
+        new CommandLine(coordinator).parseArgs(
+                "-i", "data/../tiles", "-n", "scope1", "--stage-positions", "metadata", "--warm-start", "scripts/scope1.json", "--shards", "2");
+        assertEquals(
+                Arrays.asList(
+                        "--input", Paths.get("tiles").toAbsolutePath().toString(),
+                        "--name", "scope1",
+                        "--stage-positions", "metadata",
+                        "--warm-start", Paths.get("scripts", "scope1.json").toAbsolutePath().toString()),
+                coordinator.distributed.workerArgs());
+
+        /* stage positions from a TileConfiguration file */
+        assertEquals(
+                Paths.get("TileConfiguration.txt").toAbsolutePath().toString(),
+                DistributedOptions.workerValue("--stage-positions", "TileConfiguration.txt"));
+    }
+}
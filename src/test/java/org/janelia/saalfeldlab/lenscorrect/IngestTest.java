@@ -0,0 +1,69 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.janelia.saalfeldlab.lenscorrect.stream.RingBuffer;
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import picocli.CommandLine;
+
+public class IngestTest {
+
+    private static final String IDENTITY =
+            "[{\"name\": \"identity\", \"transform\": [{\"className\": \"mpicbg.trakem2.transform.AffineModel2D\", \"dataString\": \"1.0 0.0 0.0 1.0 0.0 0.0\"}]}]";
+
+    /**
+     * A replay has no consumer on the output ring, more frames than output
+     * slots must not block the ingest.
+     */
+    @Test(timeout = 60000)
+    public void testReplayWithMoreFramesThanSlots() throws Exception {
+
+        final int numFrames = 40;
+        final int numOutputSlots = 4;
+
+        final File dir = Files.createTempDirectory("ingest-test").toFile();
+        final File replay = new File(dir, "replay.tif");
+        final File transforms = new File(dir, "transforms.json");
+        final File input = new File(dir, "input.ring");
+        final File output = new File(dir, "output.ring");
+        try {
+            final ImageStack stack = new ImageStack(32, 24);
+            for (int i = 0; i < numFrames; ++i) {
+                final ShortProcessor ip = new ShortProcessor(32, 24);
+                ip.set(i * 100);
+                stack.addSlice(ip);
+            }
+            IJ.saveAsTiff(new ImagePlus("replay", stack), replay.getAbsolutePath());
+            Files.writeString(transforms.toPath(), IDENTITY);
+
+            final int exitCode = new CommandLine(new Ingest()).execute(
+                    "-i", input.getAbsolutePath(),
+                    "-o", output.getAbsolutePath(),
+                    "-t", transforms.getAbsolutePath(),
+                    "--replay", replay.getAbsolutePath(),
+                    "--output-slots", Integer.toString(numOutputSlots),
+                    "--report-every", "0");
+            assertEquals(0, exitCode);
+
+            /* the first frames fill the output ring, the others were dropped */
+            int numPublished = 0;
+            try (final RingBuffer ring = RingBuffer.open(output.getAbsolutePath())) {
+                while (ring.take() != null)
+                    ++numPublished;
+            }
+            assertEquals(numOutputSlots, numPublished);
+        } finally {
+            for (final File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+import org.junit.Test;
+
+import ij.process.ImageProcessor;
+
+public class N5VirtualStackTest {
+
+    private static final long[] DIMENSIONS = {37, 23, 3};
+    private static final int[] BLOCK_SIZE = {16, 16, 2};
+
+    /* written into the part of edge blocks outside of the dataset */
+    private static final short PADDING = (short)60000;
+
+    private static int value(final long x, final long y, final long z) {
+
+        return (int)(x + 64 * y + 2048 * z);
+    }
+
+    /**
+     * Write all blocks at the full block size like Zarr edge chunks.
+     */
+    private static void writeDataset(final N5Writer n5, final String dataset) throws Exception {
+
+        n5.createDataset(dataset, DIMENSIONS, BLOCK_SIZE, DataType.UINT16, new RawCompression());
+        final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+        for (long gz = 0; gz * BLOCK_SIZE[2] < DIMENSIONS[2]; ++gz) {
+            for (long gy = 0; gy * BLOCK_SIZE[1] < DIMENSIONS[1]; ++gy) {
+                for (long gx = 0; gx * BLOCK_SIZE[0] < DIMENSIONS[0]; ++gx) {
+                    final short[] data = new short[BLOCK_SIZE[0] * BLOCK_SIZE[1] * BLOCK_SIZE[2]];
+                    int i = 0;
+                    for (int z = 0; z < BLOCK_SIZE[2]; ++z) {
+                        for (int y = 0; y < BLOCK_SIZE[1]; ++y) {
+                            for (int x = 0; x < BLOCK_SIZE[0]; ++x, ++i) {
+                                final long px = gx * BLOCK_SIZE[0] + x;
+                                final long py = gy * BLOCK_SIZE[1] + y;
+                                final long pz = gz * BLOCK_SIZE[2] + z;
+                                data[i] = px < DIMENSIONS[0] && py < DIMENSIONS[1] && pz < DIMENSIONS[2]
+                                        ? (short)value(px, py, pz)
+                                        : PADDING;
+                            }
+                        }
+                    }
+                    n5.writeBlock(dataset, attributes, new ShortArrayDataBlock(BLOCK_SIZE.clone(), new long[] {gx, gy, gz}, data));
+                }
+            }
+        }
+    }
+
+    private static void assertRoundTrip(final N5Writer n5) throws Exception {
+
+        try {
+            writeDataset(n5, "raw");
+            final N5VirtualStack stack = new N5VirtualStack(n5, "raw", 4, 2);
+            assertEquals(DIMENSIONS[2], stack.getSize());
+            for (int z = 0; z < DIMENSIONS[2]; ++z) {
+                final ImageProcessor ip = stack.getProcessor(z + 1);
+                assertEquals(DIMENSIONS[0], ip.getWidth());
+                assertEquals(DIMENSIONS[1], ip.getHeight());
+                for (int y = 0; y < DIMENSIONS[1]; ++y)
+                    for (int x = 0; x < DIMENSIONS[0]; ++x)
+                        assertEquals("pixel " + x + ", " + y + ", " + z, value(x, y, z), ip.get(x, y));
+            }
+        } finally {
+            n5.remove();
+        }
+    }
+
+    @Test
+    public void testN5EdgeBlocks() throws Exception {
+
+        assertRoundTrip(new N5FSWriter(Files.createTempDirectory("n5-test").resolve("test.n5").toString()));
+    }
+
+    @Test
+    public void testZarrEdgeChunks() throws Exception {
+
+        assertRoundTrip(new N5ZarrWriter(Files.createTempDirectory("zarr-test").resolve("test.zarr").toString()));
+    }
+}
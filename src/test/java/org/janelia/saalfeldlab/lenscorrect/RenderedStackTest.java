@@ -0,0 +1,74 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+public class RenderedStackTest {
+
+    private static final int WIDTH = 7;
+    private static final int HEIGHT = 5;
+    private static final int NUM_SOURCE_PLANES = 3;
+    private static final int PLANES_PER_SOURCE = 2;
+
+    private int numSourceReads = 0;
+
+    private RenderedStack createStack() {
+
+        return new RenderedStack(
+                WIDTH - 1,
+                HEIGHT,
+                16,
+                i -> {
+                    ++numSourceReads;
+                    final ShortProcessor ip = new ShortProcessor(WIDTH, HEIGHT);
+                    ip.set(100 * i);
+                    return ip;
+                },
+                NUM_SOURCE_PLANES,
+                PLANES_PER_SOURCE,
+                (ip, n) -> {
+                    final ImageProcessor dst = ip.createProcessor(WIDTH - 1, HEIGHT);
+                    dst.set(ip.get(0, 0) + n % PLANES_PER_SOURCE);
+                    return dst;
+                });
+    }
+
+    @Test
+    public void testPlanesAreRenderedFromTheirSourcePlane() {
+
+        final RenderedStack stack = createStack();
+        assertEquals(NUM_SOURCE_PLANES * PLANES_PER_SOURCE, stack.getSize());
+        for (int n = 1; n <= stack.getSize(); ++n) {
+            final ImageProcessor ip = stack.getProcessor(n);
+            assertEquals(WIDTH - 1, ip.getWidth());
+            assertEquals(100 * ((n - 1) / PLANES_PER_SOURCE) + (n - 1) % PLANES_PER_SOURCE, ip.get(3, 2));
+        }
+        assertEquals(NUM_SOURCE_PLANES, numSourceReads);
+    }
+
+    @Test
+    public void testSaveWritesAllRenderedPlanes() throws Exception {
+
+        final ImagePlus imp = new ImagePlus("rendered", createStack());
+        imp.setDimensions(PLANES_PER_SOURCE, NUM_SOURCE_PLANES, 1);
+        final File file = Files.createTempDirectory("rendered-stack-test").resolve("rendered.tif").toFile();
+        IJ.save(imp, file.getPath());
+
+        final ImagePlus saved = IJ.openImage(file.getPath());
+        assertEquals(PLANES_PER_SOURCE, saved.getNChannels());
+        assertEquals(NUM_SOURCE_PLANES, saved.getNSlices());
+        final ImageStack stack = saved.getStack();
+        for (int n = 1; n <= stack.getSize(); ++n)
+            assertEquals(100 * ((n - 1) / PLANES_PER_SOURCE) + (n - 1) % PLANES_PER_SOURCE, stack.getProcessor(n).get(3, 2));
+    }
+}
@@ -0,0 +1,60 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StagePositionsTest {
+
+    @Test
+    public void testParseTileConfiguration() throws Exception {
+
+        final File file = File.createTempFile("TileConfiguration", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), String.join("\n",
+                "# Define the number of dimensions we are working on",
+                "dim = 3",
+                "",
+                "# Define the image coordinates",
+                "tile_00.lsm; ; (0.0, 0.0, 0.0)",
+                "tile_01.lsm; ; (921.5, -3.25, 0.0)",
+                "tile_02.lsm; ; (1.0, 920.0)").getBytes());
+
+        final HashMap<String, double[]> positions = StagePositions.parseTileConfiguration(file.getPath());
+        assertEquals(3, positions.size());
+        assertArrayEquals(new double[] {921.5, -3.25}, positions.get("tile_01.lsm"), 1e-9);
+        assertArrayEquals(new double[] {1.0, 920.0}, positions.get("tile_02.lsm"), 1e-9);
+
+        final StagePositions stagePositions = new StagePositions(file.getPath());
+        assertArrayEquals(new double[] {921.5, -3.25}, stagePositions.get("/data/scope1/tile_01.lsm"), 1e-9);
+    }
+
+    @Test
+    public void testOverlappingPairs() {
+
+        /* 4 x 4 grid with 50% overlap, only direct and diagonal neighbours overlap */
+        final List<double[]> positions = new ArrayList<>();
+        for (int y = 0; y < 4; ++y)
+            for (int x = 0; x < 4; ++x)
+                positions.add(new double[] {100 + x * 512, -50 + y * 512});
+
+        final List<int[]> pairs = StagePositions.overlappingPairs(positions, 1024, 1024);
+        assertEquals(3 * 4 * 2 + 3 * 3 * 2, pairs.size());
+        for (final int[] pair : pairs) {
+            assertEquals(true, pair[0] < pair[1]);
+            assertEquals(true, Math.abs(pair[0] % 4 - pair[1] % 4) <= 1);
+            assertEquals(true, Math.abs(pair[0] / 4 - pair[1] / 4) <= 1);
+        }
+
+        final List<double[]> normalized = StagePositions.normalize(positions);
+        assertArrayEquals(new double[] {0, 0}, normalized.get(0), 1e-9);
+        assertArrayEquals(new double[] {3 * 512, 3 * 512}, normalized.get(15), 1e-9);
+    }
+}
@@ -0,0 +1,96 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.lenscorrect.StreamingProjector.Method;
+import org.janelia.saalfeldlab.lenscorrect.tiff.BigTiffWriter;
+import org.janelia.saalfeldlab.lenscorrect.tiff.BigTiffWriter.Compression;
+import org.janelia.saalfeldlab.lenscorrect.tiff.TiffDecoder;
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ZProjector;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+public class StreamingProjectorTest {
+
+    private static ImagePlus createHyperStack(final int width, final int height, final int nChannels, final int nSlices) {
+
+        final Random random = new Random(7);
+        final ImageStack stack = new ImageStack(width, height);
+        for (int i = 0; i < nChannels * nSlices; ++i) {
+            final ShortProcessor ip = new ShortProcessor(width, height);
+            for (int j = 0; j < width * height; ++j)
+                ip.set(j, random.nextInt(4096));
+            stack.addSlice(ip);
+        }
+        final ImagePlus imp = new ImagePlus("test", stack);
+        imp.setDimensions(nChannels, nSlices, 1);
+        imp.setOpenAsHyperStack(true);
+        return imp;
+    }
+
+    private static ImagePlus zProject(final ImagePlus imp, final int method) {
+
+        final ZProjector zp = new ZProjector(imp);
+        zp.setMethod(method);
+        zp.setStopSlice(imp.getNSlices());
+        zp.doHyperStackProjection(false);
+        return zp.getProjection();
+    }
+
+    @Test
+    public void testMaxMatchesZProjector() {
+
+        final ImagePlus imp = createHyperStack(31, 23, 2, 7);
+        final ImagePlus expected = zProject(imp, ZProjector.MAX_METHOD);
+        final ImagePlus actual = new StreamingProjector(Method.MAX, 3).project(imp);
+
+        assertEquals(16, actual.getBitDepth());
+        assertEquals(2, actual.getNChannels());
+        assertEquals(1, actual.getNSlices());
+        for (int c = 1; c <= 2; ++c)
+            assertArrayEquals((short[])expected.getStack().getPixels(c), (short[])actual.getStack().getPixels(c));
+    }
+
+    @Test
+    public void testMeanMatchesZProjector() {
+
+        final ImagePlus imp = createHyperStack(31, 23, 3, 5);
+        final ImagePlus expected = zProject(imp, ZProjector.AVG_METHOD);
+        final ImagePlus actual = new StreamingProjector(Method.MEAN, 2).project(imp);
+
+        /* ZProjector converts hyperstack means back to 16-bit */
+        assertEquals(32, actual.getBitDepth());
+        for (int c = 1; c <= 3; ++c) {
+            final ImageProcessor expectedChannel = expected.getStack().getProcessor(c);
+            final ImageProcessor actualChannel = actual.getStack().getProcessor(c);
+            for (int i = 0; i < 31 * 23; ++i)
+                assertEquals(expectedChannel.getf(i), actualChannel.getf(i), 0.5f);
+        }
+    }
+
+    @Test
+    public void testVirtualStack() throws Exception {
+
+        final ImagePlus imp = createHyperStack(40, 30, 2, 6);
+        final File file = File.createTempFile("projector-test", ".tif");
+        file.deleteOnExit();
+        new BigTiffWriter(Compression.LZW, 16, 0, 1).write(imp, file.getAbsolutePath());
+
+        final ImagePlus virtual = new TiffDecoder(2).openVirtual(file.getAbsolutePath());
+        assertTrue(virtual.getStack().isVirtual());
+
+        final ImagePlus expected = new StreamingProjector(Method.SUM, 1).project(imp);
+        final ImagePlus actual = new StreamingProjector(Method.SUM, 4).project(virtual);
+        for (int c = 1; c <= 2; ++c)
+            assertArrayEquals((float[])expected.getStack().getPixels(c), (float[])actual.getStack().getPixels(c), 0);
+    }
+}
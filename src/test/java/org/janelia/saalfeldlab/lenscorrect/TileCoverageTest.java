@@ -0,0 +1,78 @@
+package org.janelia.saalfeldlab.lenscorrect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TileCoverageTest {
+
+    private static List<double[]> grid(final int n, final double step) {
+
+        final List<double[]> positions = new ArrayList<>();
+        for (int y = 0; y < n; ++y)
+            for (int x = 0; x < n; ++x)
+                positions.add(new double[] {x * step, y * step});
+        return positions;
+    }
+
+    private static int count(final boolean[] selected) {
+
+        int n = 0;
+        for (final boolean s : selected)
+            if (s)
+                ++n;
+        return n;
+    }
+
+    @Test
+    public void testTwoTiles() {
+
+        /* two tiles overlapping by half, the overlapping half of each is covered once */
+        final List<double[]> positions = new ArrayList<>();
+        positions.add(new double[] {0, 0});
+        positions.add(new double[] {512, 0});
+        final TileCoverage tileCoverage = new TileCoverage(positions, 1024, 1024, 4);
+        final int[] coverage = tileCoverage.coverage(new boolean[] {true, true});
+        for (int y = 0; y < 4; ++y)
+            for (int x = 0; x < 4; ++x)
+                assertEquals(1, coverage[y * 4 + x]);
+    }
+
+    @Test
+    public void testSelect() {
+
+        /* 6 x 6 tiles with 75% overlap are very redundant */
+        final List<double[]> positions = grid(6, 256);
+        final TileCoverage tileCoverage = new TileCoverage(positions, 1024, 1024, 16);
+        final boolean[] all = new boolean[positions.size()];
+        Arrays.fill(all, true);
+        final int[] fullCoverage = tileCoverage.coverage(all);
+
+        final boolean[] selected = tileCoverage.select(3);
+        assertTrue("selected " + count(selected), count(selected) < positions.size() / 2);
+        final int[] coverage = tileCoverage.coverage(selected);
+        for (int i = 0; i < coverage.length; ++i)
+            assertTrue("cell " + i, coverage[i] >= Math.min(3, fullCoverage[i]));
+    }
+
+    @Test
+    public void testSelectKeepsTile() {
+
+        final TileCoverage tileCoverage = new TileCoverage(grid(6, 256), 1024, 1024, 16);
+        for (final int keep : new int[] {0, 7, 35})
+            assertTrue("tile " + keep, tileCoverage.select(3, keep)[keep]);
+    }
+
+    @Test
+    public void testSelectKeepsAllNeededTiles() {
+
+        /* more coverage than all tiles provide keeps all tiles */
+        final TileCoverage tileCoverage = new TileCoverage(grid(3, 512), 1024, 1024, 8);
+        assertEquals(9, count(tileCoverage.select(100)));
+    }
+}
@@ -0,0 +1,58 @@
+package org.janelia.saalfeldlab.lenscorrect.params;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.janelia.saalfeldlab.lenscorrect.json.BatchParams;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+public class BatchParamsTest {
+
+    private static final String BATCH =
+            "{\"scopes\": [" +
+            "{\"command\": \"calibrate-split\", \"name\": \"scope1\", \"input\": \"in1\", \"output\": \"out1\", \"inputParams\": \"in1.json\"}," +
+            "{\"command\": \"calibrate-channels\", \"name\": \"scope2\", \"input\": \"in2\", \"output\": \"out2\", \"inputParams\": \"in2.json\"," +
+            " \"calibrationParams\": \"params2.json\", \"args\": [\"--engine\", \"NATIVE\", \"--threads=4\"]}]}";
+
+    @Test
+    public void testToArgs() {
+        List<BatchParams.Scope> scopes = new Gson().fromJson(BATCH, BatchParams.class).getScopes();
+
+        assertEquals(2, scopes.size());
+        assertEquals(
+                Arrays.asList("--input", "in1", "--output", "out1", "--input-params", "in1.json", "--name", "scope1"),
+                scopes.get(0).toArgs());
+        assertEquals(
+                Arrays.asList("--input", "in2", "--output", "out2", "--input-params", "in2.json", "--name", "scope2",
+                        "--calibration-params", "params2.json", "--engine", "NATIVE", "--threads=4"),
+                scopes.get(1).toArgs());
+        assertFalse(scopes.get(0).hasArg("--threads"));
+        assertTrue(scopes.get(1).hasArg("--threads"));
+    }
+
+    @Test
+    public void testUsesTrakEM2() {
+        List<BatchParams.Scope> scopes = new Gson().fromJson(BATCH, BatchParams.class).getScopes();
+
+        assertEquals("4", scopes.get(1).getArg("--threads"));
+        assertEquals("NATIVE", scopes.get(1).getArg("--engine"));
+        assertTrue(scopes.get(0).usesTrakEM2());
+        assertFalse(scopes.get(1).usesTrakEM2());
+
+        String batch = "{\"scopes\": [{\"command\": \"calibrate-split\", \"name\": \"s\", \"input\": \"i\", \"output\": \"o\", \"inputParams\": \"p\"," +
+                " \"args\": [\"--resolve-only\", \"s.matches\"]}]}";
+        assertFalse(new Gson().fromJson(batch, BatchParams.class).getScopes().get(0).usesTrakEM2());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownCommand() {
+        String batch = "{\"scopes\": [{\"command\": \"calibrate-sweep\", \"name\": \"s\", \"input\": \"i\", \"output\": \"o\", \"inputParams\": \"p\"}]}";
+        new Gson().fromJson(batch, BatchParams.class).getScopes().get(0).toArgs();
+    }
+}
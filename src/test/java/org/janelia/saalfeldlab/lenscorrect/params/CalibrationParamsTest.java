@@ -47,6 +47,27 @@ public class CalibrationParamsTest {
         assertEquals("Max octave size should be 1200", 1200, alignParam.sift.maxOctaveSize);
     }
 
+    @Test
+    public void testDownsampledMontageLayersConversion() {
+        Align.ParamOptimize alignParam = calibParams.getMontageLayers().toAlignParam(4);
+
+        assertEquals("Min octave size should be 150", 150, alignParam.sift.minOctaveSize);
+        assertEquals("Max octave size should be 300", 300, alignParam.sift.maxOctaveSize);
+        assertEquals("Max epsilon should stay in full resolution pixels", 20.0f, alignParam.maxEpsilon, 0.001f);
+    }
+
+    @Test
+    public void testWarmStartParams() {
+        CalibrationParams warmStart = calibParams.warmStart(0.25, 0.5);
+        Align.ParamOptimize alignParam = warmStart.getMontageLayers().toAlignParam();
+
+        assertEquals("Max epsilon should be 5", 5.0f, alignParam.maxEpsilon, 0.001f);
+        assertEquals("Max iterations should be 1000", 1000, alignParam.maxIterations);
+        assertEquals("Distortion correction max epsilon should not change",
+            calibParams.getCorrectDistortion().getMaxEpsilon(), warmStart.getCorrectDistortion().getMaxEpsilon(), 0.001);
+        assertEquals("Original params should not change", 20.0f, calibParams.getMontageLayers().toAlignParam().maxEpsilon, 0.001f);
+    }
+
     @Test
     public void testCorrectDistortionConversion() {
         CorrectDistortionFromSelectionParam distortionParam =
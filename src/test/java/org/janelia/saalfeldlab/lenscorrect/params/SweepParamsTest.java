@@ -0,0 +1,53 @@
+package org.janelia.saalfeldlab.lenscorrect.params;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.janelia.saalfeldlab.lenscorrect.json.CalibrationParams;
+import org.janelia.saalfeldlab.lenscorrect.json.CorrectDistortionParams;
+import org.janelia.saalfeldlab.lenscorrect.json.SweepParams;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+public class SweepParamsTest {
+
+    private static final String SWEEP =
+            "{\"grid\": {\"lambda\": [0.001, 0.01, 0.1], \"dimension\": [4, 5]}," +
+            " \"variants\": [{\"lambda\": 0.5, \"rod\": 0.9}]}";
+
+    @Test
+    public void testExpand() {
+        List<JsonObject> overrides = new Gson().fromJson(SWEEP, SweepParams.class).expand();
+
+        assertEquals(7, overrides.size());
+        assertEquals(0.001, overrides.get(0).get("lambda").getAsDouble(), 0);
+        assertEquals(4, overrides.get(0).get("dimension").getAsInt());
+        assertEquals(5, overrides.get(5).get("dimension").getAsInt());
+        assertEquals(0.1, overrides.get(5).get("lambda").getAsDouble(), 0);
+        assertEquals(0.9, overrides.get(6).get("rod").getAsDouble(), 0);
+    }
+
+    @Test
+    public void testApply() throws IOException {
+        CalibrationParams calibParams = CalibrationParams.loadFromResource("/calibration-params.json");
+        JsonObject overrides = new Gson().fromJson(SWEEP, SweepParams.class).expand().get(6);
+
+        CorrectDistortionParams params = SweepParams.apply(calibParams.getCorrectDistortion(), overrides);
+        assertEquals(0.5, params.getLambda(), 0);
+        assertEquals(0.9, params.getRod(), 0);
+        assertEquals(calibParams.getCorrectDistortion().getDimension(), params.getDimension());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownParameter() throws IOException {
+        CalibrationParams calibParams = CalibrationParams.loadFromResource("/calibration-params.json");
+        JsonObject overrides = new JsonObject();
+        overrides.addProperty("lamda", 0.1);
+
+        SweepParams.apply(calibParams.getCorrectDistortion(), overrides);
+    }
+}
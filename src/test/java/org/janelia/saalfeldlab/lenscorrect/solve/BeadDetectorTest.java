@@ -0,0 +1,119 @@
+package org.janelia.saalfeldlab.lenscorrect.solve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BeadDetectorTest {
+
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 160;
+
+    /* Gaussian beads at random sub-pixel positions, at least 12 px apart, on a constant background */
+    private static List<double[]> createBeads(final Random random, final int n) {
+
+        final List<double[]> beads = new ArrayList<>();
+        while (beads.size() < n) {
+            final double[] p = {10 + random.nextDouble() * (WIDTH - 20), 10 + random.nextDouble() * (HEIGHT - 20)};
+            boolean free = true;
+            for (final double[] q : beads)
+                free &= Math.hypot(p[0] - q[0], p[1] - q[1]) > 12;
+            if (free)
+                beads.add(p);
+        }
+        return beads;
+    }
+
+    private static float[] render(final List<double[]> beads, final double sigma, final double dx, final double dy) {
+
+        final float[] pixels = new float[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                double v = 10;
+                for (final double[] b : beads) {
+                    final double ex = x - b[0] + dx;
+                    final double ey = y - b[1] + dy;
+                    v += 100 * Math.exp(-0.5 * (ex * ex + ey * ey) / (sigma * sigma));
+                }
+                pixels[y * WIDTH + x] = (float)v;
+            }
+        }
+        return pixels;
+    }
+
+    private static double[] nearest(final List<double[]> points, final double x, final double y) {
+
+        double[] best = null;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (final double[] p : points) {
+            final double d = Math.hypot(p[0] - x, p[1] - y);
+            if (d < bestDistance) {
+                best = p;
+                bestDistance = d;
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void testDetectSubpixel() {
+
+        final List<double[]> beads = createBeads(new Random(5), 40);
+        final List<double[]> detected = new BeadDetector(2.0, 0.1).detect(render(beads, 2.0, 0, 0), WIDTH, HEIGHT);
+        assertEquals(beads.size(), detected.size());
+        for (final double[] b : beads) {
+            final double[] d = nearest(detected, b[0], b[1]);
+            assertNotNull(d);
+            assertTrue("error " + Math.hypot(d[0] - b[0], d[1] - b[1]), Math.hypot(d[0] - b[0], d[1] - b[1]) < 0.15);
+        }
+    }
+
+    @Test
+    public void testDescriptorsAreTranslationInvariant() {
+
+        final List<double[]> beads = createBeads(new Random(7), 30);
+        final List<double[]> shifted = new ArrayList<>();
+        for (final double[] b : beads)
+            shifted.add(new double[] {b[0] + 123.25, b[1] - 45.5});
+
+        final float[][] descriptors = BeadDetector.descriptors(beads, 3);
+        final float[][] shiftedDescriptors = BeadDetector.descriptors(shifted, 3);
+        for (int i = 0; i < beads.size(); ++i) {
+            assertEquals(6, descriptors[i].length);
+            for (int j = 0; j < 6; ++j)
+                assertEquals(descriptors[i][j], shiftedDescriptors[i][j], 1e-3);
+        }
+    }
+
+    @Test
+    public void testDescriptorsAreNearestNeighbours() {
+
+        /* clustered random beads and a regular lattice with many equal distances */
+        final Random random = new Random(11);
+        final List<double[]> beads = new ArrayList<>();
+        for (int i = 0; i < 500; ++i)
+            beads.add(new double[] {random.nextGaussian() * (i % 2 == 0 ? 10 : 300), random.nextDouble() * 2000});
+        for (int y = 0; y < 20; ++y)
+            for (int x = 0; x < 20; ++x)
+                beads.add(new double[] {5000 + 10 * x, 10 * y});
+
+        final int k = 4;
+        final float[][] descriptors = BeadDetector.descriptors(beads, k);
+        for (int i = 0; i < beads.size(); ++i) {
+            final double[] p = beads.get(i);
+            final double[] distances = new double[beads.size() - 1];
+            for (int j = 0, m = 0; j < beads.size(); ++j)
+                if (j != i)
+                    distances[m++] = Math.hypot(beads.get(j)[0] - p[0], beads.get(j)[1] - p[1]);
+            java.util.Arrays.sort(distances);
+            for (int n = 0; n < k; ++n)
+                assertEquals(distances[n], Math.hypot(descriptors[i][2 * n], descriptors[i][2 * n + 1]), 1e-3);
+        }
+    }
+}
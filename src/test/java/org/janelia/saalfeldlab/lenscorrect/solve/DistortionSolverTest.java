@@ -0,0 +1,333 @@
+package org.janelia.saalfeldlab.lenscorrect.solve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.lenscorrect.solve.DistortionSolver.Solution;
+import org.janelia.saalfeldlab.lenscorrect.solve.MatchSet.TileMatches;
+import org.junit.Test;
+
+public class DistortionSolverTest {
+
+    private static final int WIDTH = 400;
+    private static final int HEIGHT = 300;
+
+    /* barrel distortion around a decentered point, strength differs per layer */
+    private static double[] distort(final double k, final double x, final double y) {
+
+        final double dx = (x - 190) / WIDTH;
+        final double dy = (y - 160) / WIDTH;
+        final double f = 1 + k * (dx * dx + dy * dy);
+        return new double[] {190 + dx * WIDTH * f, 160 + dy * WIDTH * f};
+    }
+
+    private static double[] undistort(final double k, final double x, final double y) {
+
+        double[] p = new double[] {x, y};
+        for (int i = 0; i < 50; ++i) {
+            final double[] d = distort(k, p[0], p[1]);
+            p = new double[] {p[0] + x - d[0], p[1] + y - d[1]};
+        }
+        return p;
+    }
+
+    /**
+     * 3 x 3 tiles with 50% overlap per layer, and matches between layers
+     * that are shifted by a few pixels against each other.
+     */
+    private static MatchSet createMatchSet(final double[] k, final double[][] layerShifts) {
+
+        final Random random = new Random(3);
+        final int numTiles = 9;
+        final double[][] offsets = new double[numTiles][];
+        for (int t = 0; t < numTiles; ++t)
+            offsets[t] = new double[] {(t % 3) * WIDTH / 2.0, (t / 3) * HEIGHT / 2.0};
+
+        final int[] tiles = new int[k.length];
+        java.util.Arrays.fill(tiles, numTiles);
+        final MatchSet matchSet = new MatchSet(WIDTH, HEIGHT, tiles);
+        for (int la = 0; la < k.length; ++la) {
+            for (int lb = 0; lb <= la; ++lb) {
+                for (int a = 0; a < numTiles; ++a) {
+                    for (int b = 0; b < numTiles; ++b) {
+                        if (la == lb ? b <= a : b != a)
+                            continue;
+                        final ArrayList<Float> locations = new ArrayList<>();
+                        for (int i = 0; i < 200; ++i) {
+                            final double xa = random.nextDouble() * (WIDTH - 1);
+                            final double ya = random.nextDouble() * (HEIGHT - 1);
+                            final double[] w = distort(k[la], xa, ya);
+                            final double wx = w[0] + offsets[a][0] + layerShifts[la][0];
+                            final double wy = w[1] + offsets[a][1] + layerShifts[la][1];
+                            final double[] q = undistort(
+                                    k[lb],
+                                    wx - offsets[b][0] - layerShifts[lb][0],
+                                    wy - offsets[b][1] - layerShifts[lb][1]);
+                            if (q[0] < 0 || q[0] > WIDTH - 1 || q[1] < 0 || q[1] > HEIGHT - 1)
+                                continue;
+                            locations.add((float)xa);
+                            locations.add((float)ya);
+                            locations.add((float)q[0]);
+                            locations.add((float)q[1]);
+                        }
+                        if (locations.size() >= 4 * 20) {
+                            final float[] l = new float[locations.size()];
+                            for (int i = 0; i < l.length; ++i)
+                                l[i] = locations.get(i);
+                            matchSet.add(new TileMatches(la, a, lb, b, l));
+                        }
+                    }
+                }
+            }
+        }
+        return matchSet;
+    }
+
+    @Test
+    public void testDataStringRoundTrip() {
+
+        final PolynomialDistortion identity = PolynomialDistortion.identity(5, 1024, 1024);
+        final PolynomialDistortion parsed = PolynomialDistortion.fromDataString(identity.toDataString());
+        assertEquals(identity.toDataString(), parsed.toDataString());
+        assertEquals(88, parsed.toDataString().split(" ").length);
+
+        final double[] l = new double[] {123.5, 987.25};
+        parsed.applyInPlace(l);
+        assertEquals(123.5, l[0], 1e-6);
+        assertEquals(987.25, l[1], 1e-6);
+    }
+
+    @Test
+    public void testWithOffset() {
+
+        final PolynomialDistortion distortion = PolynomialDistortion.identity(5, WIDTH, HEIGHT);
+        final double[][] beta = distortion.getBeta();
+        beta[3][0] += 2.0;
+        beta[7][1] -= 1.5;
+        beta[12][0] += 0.5;
+
+        final PolynomialDistortion shifted = distortion.withOffset(200, 50, 2 * WIDTH, 2 * HEIGHT);
+        assertEquals(2 * WIDTH, shifted.getWidth());
+        for (int y = 0; y < HEIGHT; y += 25) {
+            for (int x = 0; x < WIDTH; x += 25) {
+                final double[] expected = new double[] {x, y};
+                distortion.applyInPlace(expected);
+                final double[] actual = new double[] {x + 200, y + 50};
+                shifted.applyInPlace(actual);
+                assertEquals(expected[0], actual[0], 1e-3);
+                assertEquals(expected[1], actual[1], 1e-3);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchSetRoundTrip() throws Exception {
+
+        final MatchSet matchSet = createMatchSet(new double[] {0.05, 0.08}, new double[][] {{0, 0}, {3, -2}});
+        final String[][] tileIds = new String[2][9];
+        for (int t = 0; t < 9; ++t)
+            tileIds[0][t] = tileIds[1][t] = "tile " + t;
+        matchSet.setTileIds(tileIds);
+        final File file = File.createTempFile("matches", ".bin");
+        file.deleteOnExit();
+        matchSet.write(file.toPath());
+
+        final MatchSet read = MatchSet.read(file.toPath());
+        assertEquals(matchSet.getWidth(), read.getWidth());
+        assertEquals(matchSet.getHeight(), read.getHeight());
+        assertEquals(matchSet.getNumLayers(), read.getNumLayers());
+        assertEquals(matchSet.getNumMatches(), read.getNumMatches());
+        assertEquals(matchSet.getMatches(), read.getMatches());
+        assertTrue(java.util.Arrays.deepEquals(tileIds, read.getTileIds()));
+    }
+
+    @Test
+    public void testSolveRecoversDistortion() throws Exception {
+
+        final double[] k = {0.05, 0.08};
+        final MatchSet matchSet = createMatchSet(k, new double[][] {{0, 0}, {3, -2}});
+        final Solution solution = new DistortionSolver(DistortionSolver.TileModel.TRANSLATION, 5, 1e-6, 5, 3).solve(matchSet);
+
+        for (int l = 0; l < k.length; ++l) {
+            assertTrue("montage rms " + solution.rms[l], solution.rms[l] < 0.05);
+
+            /* up to an affine, the estimate equals the true distortion */
+            final ArrayList<double[]> estimated = new ArrayList<>();
+            final ArrayList<double[]> truth = new ArrayList<>();
+            for (int y = 0; y < HEIGHT; y += 20) {
+                for (int x = 0; x < WIDTH; x += 20) {
+                    final double[] p = new double[] {x, y};
+                    solution.distortions[l].applyInPlace(p);
+                    estimated.add(p);
+                    truth.add(distort(k[l], x, y));
+                }
+            }
+            final double[] affine = DistortionSolver.fitAffine(estimated, truth);
+            double maxError = 0;
+            for (int i = 0; i < estimated.size(); ++i) {
+                final double[] p = estimated.get(i).clone();
+                DistortionSolver.apply(affine, p);
+                maxError = Math.max(maxError, Math.hypot(p[0] - truth.get(i)[0], p[1] - truth.get(i)[1]));
+            }
+            assertTrue("distortion error " + maxError, maxError < 0.5);
+        }
+        assertTrue("layer rms " + solution.layerRms[1], solution.layerRms[1] < 0.05);
+    }
+
+    @Test
+    public void testEvaluate() throws Exception {
+
+        final double[] k = {0.05, 0.08};
+        final MatchSet matchSet = createMatchSet(k, new double[][] {{0, 0}, {3, -2}});
+        final DistortionSolver solver = new DistortionSolver(DistortionSolver.TileModel.TRANSLATION, 5, 1e-6, 5, 3);
+        final Solution solution = solver.solve(matchSet);
+        final String dataString = solution.distortions[1].toDataString();
+
+        /* the fitted distortions explain matches of other layer shifts, the identity does not */
+        final MatchSet other = createMatchSet(k, new double[][] {{0, 0}, {-4, 5}});
+        final Solution fitted = solver.evaluate(other, solution.distortions);
+        final Solution identity = solver.evaluate(other, new PolynomialDistortion[] {
+            PolynomialDistortion.identity(5, WIDTH, HEIGHT),
+            PolynomialDistortion.identity(5, WIDTH, HEIGHT)});
+        for (int l = 0; l < k.length; ++l) {
+            assertTrue("montage rms " + fitted.rms[l], fitted.rms[l] < 0.05);
+            assertTrue("identity rms " + identity.rms[l], identity.rms[l] > 10 * fitted.rms[l]);
+        }
+        assertTrue("layer rms " + fitted.layerRms[1], fitted.layerRms[1] < 0.05);
+        assertEquals(dataString, solution.distortions[1].toDataString());
+    }
+
+    /* two tiles of one layer, tile 1 is scaled by 1.1 and shifted against tile 0 */
+    private static MatchSet createScaledMatchSet() {
+
+        final Random random = new Random(5);
+        final MatchSet matchSet = new MatchSet(WIDTH, HEIGHT, new int[] {2});
+        final float[] locations = new float[4 * 100];
+        for (int i = 0; i < 100; ++i) {
+            final double xb = random.nextDouble() * (WIDTH - 1);
+            final double yb = random.nextDouble() * (HEIGHT - 1);
+            locations[4 * i] = (float)(1.1 * xb + 5);
+            locations[4 * i + 1] = (float)(1.1 * yb - 3);
+            locations[4 * i + 2] = (float)xb;
+            locations[4 * i + 3] = (float)yb;
+        }
+        matchSet.add(new TileMatches(0, 0, 0, 1, locations));
+        return matchSet;
+    }
+
+    @Test
+    public void testRegularizerBlendsTileModels() throws Exception {
+
+        final MatchSet matchSet = createScaledMatchSet();
+        final PolynomialDistortion[] identity = {PolynomialDistortion.identity(3, WIDTH, HEIGHT)};
+
+        final double[] affine = new DistortionSolver(DistortionSolver.TileModel.AFFINE, 3, 1e-6, 0, 1)
+                .evaluate(matchSet, identity).tileAffines[0][1];
+        assertEquals(1.1, affine[0], 1e-4);
+        assertEquals(1.1, affine[4], 1e-4);
+
+        /* like InterpolatedAffineModel2D, 0.75 of the affine and 0.25 of the translation */
+        final double[] blended = new DistortionSolver(
+                DistortionSolver.TileModel.AFFINE,
+                DistortionSolver.TileModel.TRANSLATION,
+                0.25,
+                3,
+                1e-6,
+                0,
+                1).evaluate(matchSet, identity).tileAffines[0][1];
+        assertEquals(0.75 * 1.1 + 0.25, blended[0], 1e-4);
+        assertEquals(0.75 * 1.1 + 0.25, blended[4], 1e-4);
+        assertEquals(0, blended[1], 1e-4);
+        assertEquals(0, blended[3], 1e-4);
+
+        /* a similarity regularizer keeps the isotropic scale */
+        final double[] similarity = new DistortionSolver(
+                DistortionSolver.TileModel.AFFINE,
+                DistortionSolver.TileModel.SIMILARITY,
+                0.5,
+                3,
+                1e-6,
+                0,
+                1).evaluate(matchSet, identity).tileAffines[0][1];
+        assertEquals(1.1, similarity[0], 1e-4);
+        assertEquals(1.1, similarity[4], 1e-4);
+    }
+
+    @Test
+    public void testRegularizedSolveRecoversDistortion() throws Exception {
+
+        final double[] k = {0.05, 0.08};
+        final MatchSet matchSet = createMatchSet(k, new double[][] {{0, 0}, {3, -2}});
+        final Solution solution = new DistortionSolver(
+                DistortionSolver.TileModel.SIMILARITY,
+                DistortionSolver.TileModel.TRANSLATION,
+                0.1,
+                5,
+                1e-6,
+                5,
+                3).solve(matchSet);
+        for (int l = 0; l < k.length; ++l)
+            assertTrue("montage rms " + solution.rms[l], solution.rms[l] < 0.05);
+    }
+
+    /* maximum distance between two distortions after the best affine */
+    private static double affineResidual(final PolynomialDistortion a, final PolynomialDistortion b) {
+
+        final ArrayList<double[]> pa = new ArrayList<>();
+        final ArrayList<double[]> pb = new ArrayList<>();
+        for (int y = 0; y < HEIGHT; y += 20) {
+            for (int x = 0; x < WIDTH; x += 20) {
+                final double[] p = new double[] {x, y};
+                a.applyInPlace(p);
+                pa.add(p);
+                final double[] q = new double[] {x, y};
+                b.applyInPlace(q);
+                pb.add(q);
+            }
+        }
+        final double[] affine = DistortionSolver.fitAffine(pa, pb);
+        double maxError = 0;
+        for (int i = 0; i < pa.size(); ++i) {
+            final double[] p = pa.get(i).clone();
+            DistortionSolver.apply(affine, p);
+            maxError = Math.max(maxError, Math.hypot(p[0] - pb.get(i)[0], p[1] - pb.get(i)[1]));
+        }
+        return maxError;
+    }
+
+    @Test
+    public void testWarmStart() throws Exception {
+
+        final double[] k = {0.05, 0.08};
+        final MatchSet matchSet = createMatchSet(k, new double[][] {{0, 0}, {3, -2}});
+        final DistortionSolver solver = new DistortionSolver(DistortionSolver.TileModel.TRANSLATION, 5, 1e-6, 5, 3);
+        final Solution cold = solver.solve(matchSet);
+
+        /* previous distortions followed by a rotation and scale, like TrakEM2 lens transforms */
+        final PolynomialDistortion[] previous = new PolynomialDistortion[k.length];
+        for (int l = 0; l < k.length; ++l) {
+            previous[l] = PolynomialDistortion.fromDataString(cold.distortions[l].toDataString());
+            final double[][] beta = previous[l].getBeta();
+            for (final double[] row : beta) {
+                final double x = row[0];
+                final double y = row[1];
+                row[0] = 1.01 * x - 0.02 * y;
+                row[1] = 0.02 * x + 1.01 * y;
+            }
+            beta[beta.length - 1][0] += 0.5;
+
+            final PolynomialDistortion warm = DistortionSolver.warmStart(previous[l], 5, WIDTH, HEIGHT);
+            assertTrue("warm start residual", affineResidual(warm, previous[l]) < 1e-3);
+        }
+
+        final Solution solution = solver.solve(matchSet, previous);
+        for (int l = 0; l < k.length; ++l) {
+            assertEquals(cold.rms[l], solution.rms[l], 0.01);
+            assertTrue("distortion change", affineResidual(solution.distortions[l], cold.distortions[l]) < 0.05);
+        }
+    }
+}
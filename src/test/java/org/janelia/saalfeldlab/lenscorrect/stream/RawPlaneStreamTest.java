@@ -0,0 +1,91 @@
+package org.janelia.saalfeldlab.lenscorrect.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Pipe;
+
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneFormat.PixelType;
+import org.junit.Test;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+public class RawPlaneStreamTest {
+
+    private static ShortProcessor createPlane(final int width, final int height, final int i) {
+
+        final ShortProcessor ip = new ShortProcessor(width, height);
+        for (int y = 0; y < height; ++y)
+            for (int x = 0; x < width; ++x)
+                ip.set(x, y, (x * 7 + y * 13 + i * 1000) & 0xffff);
+        return ip;
+    }
+
+    @Test
+    public void testRoundTripWithHeader() throws Exception {
+
+        final int numPlanes = 5;
+        final RawPlaneFormat format = new RawPlaneFormat(33, 17, PixelType.UINT16, 1, numPlanes);
+        final Pipe pipe = Pipe.open();
+
+        final Thread producer = new Thread(() -> {
+            try (final RawPlaneWriter writer = new RawPlaneWriter(pipe.sink(), format, true)) {
+                for (int i = 0; i < numPlanes; ++i)
+                    writer.write(createPlane(33, 17, i));
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        producer.start();
+
+        final RawPlaneFormat readFormat = RawPlaneFormat.readHeader(pipe.source());
+        assertEquals(33, readFormat.getWidth());
+        assertEquals(17, readFormat.getHeight());
+        assertEquals(PixelType.UINT16, readFormat.getType());
+        assertEquals(numPlanes, readFormat.getNumPlanes());
+
+        try (final RawPlaneReader reader = new RawPlaneReader(pipe.source(), readFormat)) {
+            for (int i = 0; i < numPlanes; ++i) {
+                final ImageProcessor ip = reader.read();
+                assertArrayEquals((short[])createPlane(33, 17, i).getPixels(), (short[])ip.getPixels());
+            }
+            assertNull(reader.read());
+        }
+        producer.join();
+    }
+
+    @Test
+    public void testReadUntilEndOfStream() throws Exception {
+
+        final RawPlaneFormat format = new RawPlaneFormat(8, 4, PixelType.UINT16, 1, 0);
+        final Pipe pipe = Pipe.open();
+        try (final RawPlaneWriter writer = new RawPlaneWriter(pipe.sink(), format, false)) {
+            writer.write(createPlane(8, 4, 0));
+            writer.write(createPlane(8, 4, 1));
+        }
+
+        try (final RawPlaneReader reader = new RawPlaneReader(pipe.source(), format)) {
+            assertArrayEquals((short[])createPlane(8, 4, 0).getPixels(), (short[])reader.read().getPixels());
+            assertArrayEquals((short[])createPlane(8, 4, 1).getPixels(), (short[])reader.read().getPixels());
+            assertNull(reader.read());
+            assertEquals(2, reader.getNumPlanesRead());
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedPlane() throws Exception {
+
+        final Pipe pipe = Pipe.open();
+        try (final RawPlaneWriter writer = new RawPlaneWriter(pipe.sink(), new RawPlaneFormat(8, 2, PixelType.UINT16, 1, 0), false)) {
+            writer.write(createPlane(8, 2, 0));
+        }
+
+        try (final RawPlaneReader reader = new RawPlaneReader(pipe.source(), new RawPlaneFormat(8, 4, PixelType.UINT16, 1, 0))) {
+            reader.read();
+        }
+    }
+}
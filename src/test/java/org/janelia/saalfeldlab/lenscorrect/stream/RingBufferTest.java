@@ -0,0 +1,84 @@
+package org.janelia.saalfeldlab.lenscorrect.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.lenscorrect.stream.RawPlaneFormat.PixelType;
+import org.janelia.saalfeldlab.lenscorrect.stream.RingBuffer.Frame;
+import org.junit.Test;
+
+import ij.process.ShortProcessor;
+
+public class RingBufferTest {
+
+    private static ShortProcessor createFrame(final int width, final int height, final int i) {
+
+        final ShortProcessor ip = new ShortProcessor(width, height);
+        for (int y = 0; y < height; ++y)
+            for (int x = 0; x < width; ++x)
+                ip.set(x, y, (x * 7 + y * 13 + i * 1000) & 0xffff);
+        return ip;
+    }
+
+    @Test
+    public void testHeaderAndFullRing() throws IOException {
+
+        final File file = File.createTempFile("ring-test", ".ring");
+        file.deleteOnExit();
+
+        try (final RingBuffer producer = RingBuffer.create(file.getAbsolutePath(), new RawPlaneFormat(10, 6, PixelType.UINT16, 2, 0), 2);
+                final RingBuffer consumer = RingBuffer.open(file.getAbsolutePath())) {
+
+            assertEquals(10, consumer.getFormat().getWidth());
+            assertEquals(6, consumer.getFormat().getHeight());
+            assertEquals(2, consumer.getFormat().getNumChannels());
+            assertEquals(2, consumer.getNumSlots());
+
+            assertNull(consumer.poll());
+            assertTrue(producer.offer(createFrame(10, 6, 0), 1));
+            assertTrue(producer.offer(createFrame(10, 6, 1), 2));
+            assertFalse(producer.offer(createFrame(10, 6, 2), 3));
+
+            final Frame frame = consumer.poll();
+            assertEquals(1, frame.acquisitionTime);
+            assertArrayEquals((short[])createFrame(10, 6, 0).getPixels(), (short[])frame.ip.getPixels());
+            assertTrue(producer.offer(createFrame(10, 6, 2), 3));
+        }
+    }
+
+    @Test
+    public void testProducerConsumer() throws Exception {
+
+        final File file = File.createTempFile("ring-test", ".ring");
+        file.deleteOnExit();
+
+        final int numFrames = 200;
+        try (final RingBuffer consumer = RingBuffer.create(file.getAbsolutePath(), new RawPlaneFormat(31, 17, PixelType.UINT16, 1, 0), 3)) {
+
+            final Thread thread = new Thread(() -> {
+                try (final RingBuffer producer = RingBuffer.open(file.getAbsolutePath())) {
+                    for (int i = 0; i < numFrames; ++i)
+                        producer.put(createFrame(31, 17, i), i);
+                    producer.finish();
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+
+            int i = 0;
+            for (Frame frame = consumer.take(); frame != null; frame = consumer.take(), ++i) {
+                assertEquals(i, frame.acquisitionTime);
+                assertArrayEquals((short[])createFrame(31, 17, i).getPixels(), (short[])frame.ip.getPixels());
+            }
+            assertEquals(numFrames, i);
+            thread.join();
+        }
+    }
+}
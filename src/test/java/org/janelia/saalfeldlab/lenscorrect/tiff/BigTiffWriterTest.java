@@ -0,0 +1,173 @@
+package org.janelia.saalfeldlab.lenscorrect.tiff;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.zip.Inflater;
+
+import org.janelia.saalfeldlab.lenscorrect.tiff.BigTiffWriter.Compression;
+import org.junit.Test;
+
+import com.github.luben.zstd.Zstd;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+public class BigTiffWriterTest {
+
+    private static ImagePlus createHyperStack(final int width, final int height, final int nChannels, final int nSlices) {
+
+        final ImageStack stack = new ImageStack(width, height);
+        for (int i = 0; i < nChannels * nSlices; ++i) {
+            final ShortProcessor ip = new ShortProcessor(width, height);
+            for (int y = 0; y < height; ++y)
+                for (int x = 0; x < width; ++x)
+                    ip.set(x, y, (x * 7 + y * 13 + i * 1000) & 0xffff);
+            stack.addSlice(ip);
+        }
+        final ImagePlus imp = new ImagePlus("test", stack);
+        imp.setDimensions(nChannels, nSlices, 1);
+        return imp;
+    }
+
+    private static ByteBuffer read(final File file) throws IOException {
+
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return value or offset field position of the entry with the given tag
+     */
+    private static int findEntry(final ByteBuffer buffer, final long ifdOffset, final int tag) {
+
+        final long n = buffer.getLong((int)ifdOffset);
+        for (int i = 0; i < n; ++i) {
+            final int entry = (int)ifdOffset + 8 + 20 * i;
+            if ((buffer.getShort(entry) & 0xffff) == tag)
+                return entry + 12;
+        }
+        return -1;
+    }
+
+    private static void assertAscendingTags(final ByteBuffer buffer, final long ifdOffset) {
+
+        final long n = buffer.getLong((int)ifdOffset);
+        for (int i = 1; i < n; ++i) {
+            final int previous = buffer.getShort((int)ifdOffset + 8 + 20 * (i - 1)) & 0xffff;
+            final int tag = buffer.getShort((int)ifdOffset + 8 + 20 * i) & 0xffff;
+            assertTrue("tag " + tag + " after " + previous, tag > previous);
+        }
+    }
+
+    @Test
+    public void testHeaderAndPlaneCount() throws IOException {
+
+        final ImagePlus imp = createHyperStack(100, 70, 2, 3);
+        final File file = File.createTempFile("bigtiff-test", ".tif");
+        file.deleteOnExit();
+
+        new BigTiffWriter(Compression.LZW, 32, 1, 2).write(imp, file.getAbsolutePath());
+
+        final ByteBuffer buffer = read(file);
+        assertEquals('I', buffer.get(0));
+        assertEquals('I', buffer.get(1));
+        assertEquals(43, buffer.getShort(2));
+        assertEquals(8, buffer.getShort(4));
+
+        int numIfds = 0;
+        for (long ifd = buffer.getLong(8); ifd != 0; ifd = buffer.getLong((int)(ifd + 8 + 20 * buffer.getLong((int)ifd)))) {
+            assertEquals(100, buffer.getInt(findEntry(buffer, ifd, BigTiffWriter.IMAGE_WIDTH)));
+            assertEquals(70, buffer.getInt(findEntry(buffer, ifd, BigTiffWriter.IMAGE_LENGTH)));
+            assertTrue("SubIFDs expected", findEntry(buffer, ifd, BigTiffWriter.SUB_IFDS) >= 0);
+            assertAscendingTags(buffer, ifd);
+            final int subIfds = findEntry(buffer, ifd, BigTiffWriter.SUB_IFDS);
+            assertAscendingTags(buffer, buffer.getLong(subIfds));
+            ++numIfds;
+        }
+        assertEquals(imp.getStackSize(), numIfds);
+    }
+
+    @Test
+    public void testDeflateTileRoundTrip() throws Exception {
+
+        final ImagePlus imp = createHyperStack(40, 20, 1, 1);
+        final File file = File.createTempFile("bigtiff-test", ".tif");
+        file.deleteOnExit();
+
+        final int tileSize = 16;
+        new BigTiffWriter(Compression.DEFLATE, tileSize, 0, 1).write(imp, file.getAbsolutePath());
+
+        final ByteBuffer buffer = read(file);
+        final long ifd = buffer.getLong(8);
+        final long offsetsPosition = buffer.getLong(findEntry(buffer, ifd, BigTiffWriter.TILE_OFFSETS));
+        final long byteCountsPosition = buffer.getLong(findEntry(buffer, ifd, BigTiffWriter.TILE_BYTE_COUNTS));
+
+        /* second tile in the first row */
+        final int offset = (int)buffer.getLong((int)offsetsPosition + 8);
+        final int byteCount = (int)buffer.getLong((int)byteCountsPosition + 8);
+        final byte[] compressed = new byte[byteCount];
+        buffer.position(offset);
+        buffer.get(compressed);
+
+        final Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        final byte[] tile = new byte[tileSize * tileSize * 2];
+        assertEquals(tile.length, inflater.inflate(tile));
+        inflater.end();
+
+        /* undo horizontal differencing */
+        final ByteBuffer tileBuffer = ByteBuffer.wrap(tile).order(ByteOrder.LITTLE_ENDIAN);
+        final short[] actual = new short[tileSize];
+        final short[] expected = new short[tileSize];
+        final ShortProcessor ip = (ShortProcessor)imp.getProcessor();
+        for (int y = 0; y < 20 && y < tileSize; ++y) {
+            int sum = 0;
+            for (int x = 0; x < tileSize; ++x) {
+                sum += tileBuffer.getShort(2 * (y * tileSize + x));
+                actual[x] = (short)sum;
+                expected[x] = x + tileSize < 40 ? (short)ip.get(x + tileSize, y) : 0;
+            }
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testZstdTileRoundTrip() throws Exception {
+
+        final ImagePlus imp = createHyperStack(16, 16, 1, 1);
+        final File file = File.createTempFile("bigtiff-test", ".tif");
+        file.deleteOnExit();
+
+        new BigTiffWriter(Compression.ZSTD, 16, 0, 1).write(imp, file.getAbsolutePath());
+
+        final ByteBuffer buffer = read(file);
+        assertAscendingTags(buffer, buffer.getLong(8));
+        assertEquals(50000, buffer.getShort(findEntry(buffer, buffer.getLong(8), BigTiffWriter.COMPRESSION)) & 0xffff);
+
+        final long ifd = buffer.getLong(8);
+        final long offset = buffer.getLong(findEntry(buffer, ifd, BigTiffWriter.TILE_OFFSETS));
+        final long byteCount = buffer.getLong(findEntry(buffer, ifd, BigTiffWriter.TILE_BYTE_COUNTS));
+        final byte[] compressed = new byte[(int)byteCount];
+        buffer.position((int)offset);
+        buffer.get(compressed);
+        final byte[] decompressed = new byte[16 * 16 * 2];
+        assertEquals(decompressed.length, Zstd.decompress(decompressed, compressed));
+
+        final ByteBuffer tile = ByteBuffer.wrap(decompressed).order(ByteOrder.LITTLE_ENDIAN);
+        final ShortProcessor ip = (ShortProcessor)imp.getProcessor();
+        for (int y = 0; y < 16; ++y) {
+            int sum = 0;
+            for (int x = 0; x < 16; ++x) {
+                sum += tile.getShort(2 * (y * 16 + x));
+                assertEquals(ip.get(x, y), sum & 0xffff);
+            }
+        }
+    }
+}
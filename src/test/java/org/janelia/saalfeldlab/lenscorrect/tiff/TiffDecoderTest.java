@@ -0,0 +1,98 @@
+package org.janelia.saalfeldlab.lenscorrect.tiff;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.lenscorrect.tiff.BigTiffWriter.Compression;
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+public class TiffDecoderTest {
+
+    private static ImagePlus createHyperStack(final int bitDepth, final int width, final int height, final int nChannels, final int nSlices) {
+
+        final Random random = new Random(42);
+        final ImageStack stack = new ImageStack(width, height);
+        for (int i = 0; i < nChannels * nSlices; ++i) {
+            final ImageProcessor ip = bitDepth == 8 ? new ByteProcessor(width, height) : bitDepth == 16 ? new ShortProcessor(width, height) : new FloatProcessor(width, height);
+            for (int y = 0; y < height; ++y)
+                for (int x = 0; x < width; ++x)
+                    ip.setf(x, y, bitDepth == 32 ? random.nextFloat() : (x * 7 + y * 13 + i * 1000 + random.nextInt(4)) & (bitDepth == 8 ? 0xff : 0xffff));
+            stack.addSlice(ip);
+        }
+        final ImagePlus imp = new ImagePlus("test", stack);
+        imp.setDimensions(nChannels, nSlices, 1);
+        return imp;
+    }
+
+    private static void assertRoundTrip(final ImagePlus imp, final Compression compression, final int tileSize) throws IOException {
+
+        final File file = File.createTempFile("tiff-decoder-test", ".tif");
+        file.deleteOnExit();
+        new BigTiffWriter(compression, tileSize, 1, 2).write(imp, file.getAbsolutePath());
+
+        final ImagePlus decoded = new TiffDecoder(3).open(file.getAbsolutePath());
+        assertEquals(imp.getWidth(), decoded.getWidth());
+        assertEquals(imp.getHeight(), decoded.getHeight());
+        assertEquals(imp.getBitDepth(), decoded.getBitDepth());
+        assertEquals(imp.getNChannels(), decoded.getNChannels());
+        assertEquals(imp.getNSlices(), decoded.getNSlices());
+        for (int i = 1; i <= imp.getStackSize(); ++i) {
+            final Object expected = imp.getStack().getPixels(i);
+            final Object actual = decoded.getStack().getPixels(i);
+            if (expected instanceof byte[])
+                assertArrayEquals((byte[])expected, (byte[])actual);
+            else if (expected instanceof short[])
+                assertArrayEquals((short[])expected, (short[])actual);
+            else
+                assertArrayEquals((float[])expected, (float[])actual, 0);
+        }
+    }
+
+    @Test
+    public void testLzwRoundTrip() {
+
+        final Random random = new Random(1);
+        final byte[] data = new byte[100000];
+        /* runs and noise to exercise long strings, KwKwK codes, and table resets */
+        for (int i = 0; i < data.length; ++i)
+            data[i] = (byte)(i % 3000 < 1000 ? 7 : random.nextInt(i % 2 == 0 ? 4 : 256));
+
+        final byte[] decoded = new byte[data.length];
+        assertEquals(data.length, Lzw.decode(Lzw.encode(data), decoded));
+        assertArrayEquals(data, decoded);
+    }
+
+    @Test
+    public void testCompressedRoundTrips() throws IOException {
+
+        assertRoundTrip(createHyperStack(16, 100, 70, 2, 3), Compression.LZW, 32);
+        assertRoundTrip(createHyperStack(16, 100, 70, 1, 4), Compression.DEFLATE, 64);
+        assertRoundTrip(createHyperStack(8, 45, 33, 1, 2), Compression.LZW, 16);
+        assertRoundTrip(createHyperStack(32, 40, 20, 1, 1), Compression.DEFLATE, 16);
+        assertRoundTrip(createHyperStack(16, 100, 70, 2, 2), Compression.ZSTD, 32);
+        assertRoundTrip(createHyperStack(32, 40, 20, 1, 1), Compression.ZSTD, 16);
+    }
+
+    @Test
+    public void testUncompressedFallsBack() throws IOException {
+
+        final File file = File.createTempFile("tiff-decoder-test", ".tif");
+        file.deleteOnExit();
+        IJ.saveAsTiff(createHyperStack(16, 20, 10, 1, 2), file.getAbsolutePath());
+
+        assertNull(new TiffDecoder(1).open(file.getAbsolutePath()));
+    }
+}